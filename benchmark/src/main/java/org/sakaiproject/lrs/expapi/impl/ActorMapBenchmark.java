@@ -0,0 +1,64 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Actor;
+import org.sakaiproject.lrs.expapi.model.LRSKeys;
+import org.sakaiproject.lrs.expapi.util.StatementMapUtils;
+
+/**
+ * Cost of building the actor map for each inverse functional identifier type
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class ActorMapBenchmark {
+
+    @Param({"mbox", "mbox_sha1sum", "openid", "account"})
+    public String identifier;
+
+    private LRS_Actor actor;
+
+    @Setup
+    public void setup() {
+        StatementMapUtils.setServerConfigurationService(TestSupport.configuration(
+            Collections.singletonMap(LRSKeys.INVERSE_FUNCTIONAL_IDENTIFIER_PROPERTY, identifier)));
+        actor = TestSupport.actor("student1");
+    }
+
+    @Benchmark
+    public Map<String, Object> actorMap() {
+        return StatementMapUtils.getActorMap(actor);
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.lrs.expapi.util.StatementMapUtils;
+
+/**
+ * Cost of {@link TincanapiLearningResourceStoreProvider#handleStatement} for each kind of statement, sent synchronously to
+ * the in-process {@link StandInLrs}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class HandleStatementBenchmark {
+
+    private StandInLrs lrs;
+    private TincanapiLearningResourceStoreProvider provider;
+    private LRS_Statement populated;
+    private LRS_Statement rawMap;
+    private LRS_Statement rawJson;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        lrs = new StandInLrs();
+        Map<String, String> values = TestSupport.providerConfiguration(lrs.getUrl());
+        // the same statements are sent over and over, they must not be dropped as duplicates
+        values.put("lrs.tincanapi.dedup.window", "0");
+        ServerConfigurationService configuration = TestSupport.configuration(values);
+        StatementMapUtils.setServerConfigurationService(configuration);
+        provider = new TincanapiLearningResourceStoreProvider(configuration);
+        provider.init();
+
+        populated = TestSupport.typicalStatement();
+        rawMap = new LRS_Statement(typicalStatementMap());
+        rawJson = new LRS_Statement(new String(provider.convertLRS_StatementToJSON(populated), "UTF-8"));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        provider.destroy();
+        lrs.stop();
+    }
+
+    @Benchmark
+    public void populated() {
+        provider.handleStatement(populated);
+    }
+
+    @Benchmark
+    public void rawMap() {
+        provider.handleStatement(rawMap);
+    }
+
+    @Benchmark
+    public void rawJson() {
+        provider.handleStatement(rawJson);
+    }
+
+    /**
+     * @return the typical statement as the nested maps a caller would hand over
+     */
+    private static Map<String, Object> typicalStatementMap() {
+        Map<String, Object> statement = new HashMap<>();
+        statement.put("actor", StatementMapUtils.getActorMap(TestSupport.actor("student1")));
+        statement.put("verb", StatementMapUtils.getVerbMap(TestSupport.typicalStatement().getVerb()));
+        statement.put("object", StatementMapUtils.getObjectMap(TestSupport.typicalStatement().getObject()));
+        statement.put("context", StatementMapUtils.getContextMap(TestSupport.typicalStatement().getContext()));
+        return statement;
+    }
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+import org.sakaiproject.lrs.expapi.util.StatementMapUtils;
+
+/**
+ * Round-trip of a single statement or a batch to the in-process {@link StandInLrs}, for each transport and with or
+ * without compression
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class PostDataBenchmark {
+
+    @Param({"entitybroker", "async"})
+    public String transport;
+
+    @Param({"false", "true"})
+    public boolean gzip;
+
+    @Param({"1", "50"})
+    public int statements;
+
+    private StandInLrs lrs;
+    private TincanapiLearningResourceStoreProvider provider;
+    private byte[] body;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        lrs = new StandInLrs();
+        Map<String, String> values = TestSupport.providerConfiguration(lrs.getUrl());
+        values.put("lrs.tincanapi.transport", transport);
+        values.put("lrs.tincanapi.gzip.enabled", String.valueOf(gzip));
+        values.put("lrs.tincanapi.gzip.threshold", "0");
+        ServerConfigurationService configuration = TestSupport.configuration(values);
+        StatementMapUtils.setServerConfigurationService(configuration);
+        provider = new TincanapiLearningResourceStoreProvider(configuration);
+        provider.init();
+
+        byte[] statement = provider.convertLRS_StatementToJSON(TestSupport.typicalStatement());
+
+        if (statements == 1) {
+            body = statement;
+        } else {
+            ByteArrayOutputStream array = new ByteArrayOutputStream();
+            array.write('[');
+            for (int i = 0; i < statements; i++) {
+                if (i > 0) {
+                    array.write(',');
+                }
+                array.write(statement);
+            }
+            array.write(']');
+            body = array.toByteArray();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        provider.destroy();
+        lrs.stop();
+    }
+
+    @Benchmark
+    public HttpResponse postData() {
+        return provider.postData(body).join();
+    }
+
+}
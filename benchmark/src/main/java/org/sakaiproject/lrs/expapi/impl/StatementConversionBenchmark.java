@@ -0,0 +1,77 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.lrs.expapi.model.LRSKeys;
+import org.sakaiproject.lrs.expapi.util.StatementMapUtils;
+
+/**
+ * Cost of turning a populated statement into the JSON body, with the rendered fragment caches on and off
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Dorg.slf4j.simpleLogger.defaultLogLevel=warn")
+public class StatementConversionBenchmark {
+
+    @Param({"minimal", "typical", "fullScore", "fullGrade"})
+    public String shape;
+
+    @Param({"true", "false"})
+    public boolean caches;
+
+    private TincanapiLearningResourceStoreProvider provider;
+    private LRS_Statement statement;
+
+    @Setup
+    public void setup() {
+        Map<String, String> values = new HashMap<>();
+
+        if (!caches) {
+            values.put(LRSKeys.ACTOR_CACHE_SIZE_PROPERTY, "0");
+            values.put(LRSKeys.VERB_CACHE_SIZE_PROPERTY, "0");
+            values.put(LRSKeys.ACTIVITY_CACHE_SIZE_PROPERTY, "0");
+            values.put(LRSKeys.GRADE_CACHE_SIZE_PROPERTY, "0");
+        }
+
+        StatementMapUtils.setServerConfigurationService(TestSupport.configuration(values));
+        provider = new TincanapiLearningResourceStoreProvider(TestSupport.configuration(values));
+        statement = TestSupport.statement(shape);
+    }
+
+    @Benchmark
+    public byte[] convert() {
+        return provider.convertLRS_StatementToJSON(statement);
+    }
+
+}
@@ -0,0 +1,191 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.hc.client5.http.async.methods.SimpleHttpRequest;
+import org.apache.hc.client5.http.async.methods.SimpleHttpResponse;
+import org.apache.hc.client5.http.async.methods.SimpleRequestBuilder;
+import org.apache.hc.client5.http.config.RequestConfig;
+import org.apache.hc.client5.http.impl.async.CloseableHttpAsyncClient;
+import org.apache.hc.client5.http.impl.async.HttpAsyncClients;
+import org.apache.hc.client5.http.impl.nio.PoolingAsyncClientConnectionManagerBuilder;
+import org.apache.hc.core5.concurrent.FutureCallback;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.util.TimeValue;
+import org.apache.hc.core5.util.Timeout;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+
+/**
+ * Non-blocking transport on the Apache HttpClient 5 async client. Requests complete on the client's I/O threads, so a
+ * few calling threads can keep many requests in flight. HTTP/2 is negotiated with the LRS when enabled (over TLS with ALPN),
+ * otherwise connections are pooled and kept alive HTTP/1.1 connections. The returned futures are completed on a separate
+ * callback thread so that nothing chained to them runs on an I/O thread. That thread completes every request of the
+ * transport, whatever the target, so work which may block (spooling, sending again) must be chained on another executor.
+ */
+public class AsyncHttpTransport implements LrsTransport {
+
+    private final CloseableHttpAsyncClient client;
+    private final RequestConfig requestConfig;
+    private final Semaphore inFlight;
+    private final ExecutorService callbacks;
+
+    /**
+     * @param id the LRS provider id
+     * @param connectTimeout connect timeout (in ms), 0 for none
+     * @param responseTimeout time (in ms) to wait for a response once the request is sent, 0 for none
+     * @param maxConnectionsPerHost maximum number of pooled connections to one host
+     * @param maxConnections maximum number of pooled connections to all hosts
+     * @param keepAliveMs how long (in ms) an idle connection is kept open
+     * @param maxInFlight maximum number of requests waiting for a response, further callers block until one completes
+     * @param http2 true to negotiate HTTP/2 with the LRS
+     */
+    public AsyncHttpTransport(String id, int connectTimeout, int responseTimeout, int maxConnectionsPerHost, int maxConnections, final long keepAliveMs,
+        int maxInFlight, boolean http2) {
+        requestConfig = RequestConfig.custom()
+            .setConnectTimeout(connectTimeout > 0 ? Timeout.ofMilliseconds(connectTimeout) : Timeout.DISABLED)
+            .setResponseTimeout(responseTimeout > 0 ? Timeout.ofMilliseconds(responseTimeout) : Timeout.DISABLED)
+            .build();
+
+        client = HttpAsyncClients.custom()
+            .setConnectionManager(PoolingAsyncClientConnectionManagerBuilder.create()
+                .setMaxConnTotal(maxConnections)
+                .setMaxConnPerRoute(maxConnectionsPerHost)
+                .build())
+            .setVersionPolicy(http2 ? HttpVersionPolicy.NEGOTIATE : HttpVersionPolicy.FORCE_HTTP_1)
+            .setDefaultRequestConfig(requestConfig)
+            .setKeepAliveStrategy((response, context) -> TimeValue.ofMilliseconds(keepAliveMs))
+            .evictIdleConnections(TimeValue.ofMilliseconds(keepAliveMs))
+            .build();
+        client.start();
+
+        inFlight = new Semaphore(Math.max(1, maxInFlight));
+        callbacks = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LRS-" + id + "-transport-callback");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public CompletableFuture<HttpResponse> post(String url, Map<String, String> headers, byte[] body, int timeout) {
+        SimpleRequestBuilder builder = SimpleRequestBuilder.post(url);
+
+        if (timeout > 0) {
+            builder.setRequestConfig(RequestConfig.copy(requestConfig).setResponseTimeout(Timeout.ofMilliseconds(timeout)).build());
+        }
+        String contentType = null;
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            if ("Content-Type".equalsIgnoreCase(header.getKey())) {
+                contentType = header.getValue();
+            } else {
+                builder.addHeader(header.getKey(), header.getValue());
+            }
+        }
+
+        return execute(builder.setBody(body, contentType != null ? ContentType.parse(contentType) : ContentType.APPLICATION_JSON).build());
+    }
+
+    public CompletableFuture<HttpResponse> get(String url, Map<String, String> headers) {
+        SimpleRequestBuilder builder = SimpleRequestBuilder.get(url);
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            builder.addHeader(header.getKey(), header.getValue());
+        }
+
+        return execute(builder.build());
+    }
+
+    private CompletableFuture<HttpResponse> execute(final SimpleHttpRequest request) {
+        final CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+        try {
+            inFlight.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        try {
+            client.execute(request, new FutureCallback<SimpleHttpResponse>() {
+                public void completed(SimpleHttpResponse response) {
+                    inFlight.release();
+                    final HttpResponse httpResponse = toHttpResponse(response);
+                    callbacks.execute(() -> future.complete(httpResponse));
+                }
+
+                public void failed(Exception e) {
+                    inFlight.release();
+                    callbacks.execute(() -> future.completeExceptionally(e));
+                }
+
+                public void cancelled() {
+                    inFlight.release();
+                    callbacks.execute(() -> future.completeExceptionally(new IOException("Request to " + request.getRequestUri() + " was cancelled")));
+                }
+            });
+        } catch (RuntimeException e) {
+            inFlight.release();
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    public void shutdown() {
+        client.close(CloseMode.GRACEFUL);
+        callbacks.shutdown();
+
+        try {
+            callbacks.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static HttpResponse toHttpResponse(SimpleHttpResponse response) {
+        Map<String, String[]> headers = new HashMap<>();
+
+        for (Header header : response.getHeaders()) {
+            String[] values = headers.get(header.getName());
+
+            if (values == null) {
+                values = new String[] {header.getValue()};
+            } else {
+                values = Arrays.copyOf(values, values.length + 1);
+                values[values.length - 1] = header.getValue();
+            }
+
+            headers.put(header.getName(), values);
+        }
+
+        return new HttpResponse(response.getCode(), response.getReasonPhrase(), response.getBodyText(), headers);
+    }
+
+}
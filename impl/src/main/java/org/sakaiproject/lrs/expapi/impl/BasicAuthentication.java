@@ -0,0 +1,44 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import org.apache.commons.codec.binary.Base64;
+
+/**
+ * HTTP Basic authentication, the header value is encoded once
+ */
+public class BasicAuthentication implements LrsAuthentication {
+
+    private final String authorization;
+
+    /**
+     * @param userPass the username and password as username:password
+     */
+    public BasicAuthentication(String userPass) {
+        // Note that the SCORM example javascript 64 encoder does use + and / in their output, so we do NOT use the URL safe
+        // version of this method here to match their logic
+        this.authorization = "Basic " + Base64.encodeBase64String(userPass.getBytes());
+    }
+
+    public String getStaticAuthorization() {
+        return authorization;
+    }
+
+    public String getAuthorization(String method, String url) {
+        return authorization;
+    }
+
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Holds serialized statements on bounded in-memory queues and hands them to a {@link BatchHandler} in batches from a
+ * small pool of background workers. A batch is flushed once it reaches the configured size or once its first statement
+ * has waited for the linger time of its lane, whichever comes first.
+ * <p>
+ * Statements are queued in one of two lanes, each with its own capacity, so a flood of low priority statements fills only
+ * its own lane and never keeps a high priority statement out. When both lanes hold statements the workers take batches
+ * from them in proportion to their weights, and stop filling a low priority batch as soon as a high priority statement
+ * arrives. The statements of a batch are sent while other workers send theirs, so no order is kept.
+ */
+public class BatchingStatementDispatcher implements StatementDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(BatchingStatementDispatcher.class);
+
+    private static final long IDLE_POLL_MS = 1000L;
+    // how often a worker filling a low priority batch looks for high priority statements
+    private static final long PREEMPT_CHECK_MS = 10L;
+
+    private static final class LaneQueue {
+        private final Lane lane;
+        private final BlockingQueue<byte[]> queue;
+        private final int weight;
+        private final long lingerMs;
+        // enqueue time (nanoTime) of each queued statement by sequence number, to tell how long the oldest one has waited
+        private final AtomicLongArray enqueueTimes;
+        private final AtomicLong offered = new AtomicLong();
+        private final AtomicLong taken = new AtomicLong();
+        private final LatencyHistogram wait = new LatencyHistogram();
+
+        LaneQueue(Lane lane, int capacity, int weight, long lingerMs) {
+            this.lane = lane;
+            this.queue = new ArrayBlockingQueue<>(Math.max(1, capacity));
+            this.weight = Math.max(1, weight);
+            this.lingerMs = Math.max(0L, lingerMs);
+            this.enqueueTimes = new AtomicLongArray(Math.max(1, capacity));
+        }
+
+        /**
+         * @return approximately how long (in ns) the oldest statement has been waiting, 0 if the lane is empty
+         */
+        long oldestAgeNanos() {
+            long next = taken.get();
+
+            if (offered.get() <= next) {
+                return 0L;
+            }
+
+            return Math.max(0L, System.nanoTime() - enqueueTimes.get((int) (next % enqueueTimes.length())));
+        }
+    }
+
+    private final String id;
+    private final BatchHandler handler;
+    private volatile int batchSize;
+    private final Thread[] workers;
+    private final LaneQueue[] lanes = new LaneQueue[Lane.values().length];
+    // released for every queued statement, so idle workers wake up whichever lane it went to
+    private final Semaphore signal = new Semaphore(0);
+    // the lane each turn prefers, every lane appears as many times as its weight
+    private int[] schedule;
+    private final AtomicLong turns = new AtomicLong();
+
+    private volatile boolean running;
+
+    /**
+     * Configure each lane with {@link #setLane(Lane, int, int, long)} before starting the dispatcher
+     *
+     * @param id the LRS provider id (used for thread names and logging)
+     * @param handler receives each batch
+     * @param batchSize maximum number of statements in a single batch
+     * @param workerCount number of background threads sending batches
+     */
+    public BatchingStatementDispatcher(String id, BatchHandler handler, int batchSize, int workerCount) {
+        this.id = id;
+        this.handler = handler;
+        this.batchSize = Math.max(1, batchSize);
+        this.workers = new Thread[Math.max(1, workerCount)];
+    }
+
+    /**
+     * @param capacity maximum number of statements waiting in the lane
+     * @param weight share of the batches taken from the lane while the other lane holds statements too
+     * @param lingerMs maximum time (in ms) to wait for a batch of the lane to fill up
+     */
+    public void setLane(Lane lane, int capacity, int weight, long lingerMs) {
+        lanes[lane.ordinal()] = new LaneQueue(lane, capacity, weight, lingerMs);
+    }
+
+    public void start() {
+        List<Integer> turnLanes = new ArrayList<>();
+
+        for (LaneQueue lane : lanes) {
+            if (lane == null) {
+                throw new IllegalStateException("Every lane of the " + id + " LRS dispatcher must be configured");
+            }
+
+            for (int i = 0; i < lane.weight; i++) {
+                turnLanes.add(lane.lane.ordinal());
+            }
+        }
+
+        schedule = new int[turnLanes.size()];
+        for (int i = 0; i < schedule.length; i++) {
+            schedule[i] = turnLanes.get(i);
+        }
+
+        running = true;
+
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                public void run() {
+                    processQueue();
+                }
+            }, "LRS-" + id + "-dispatcher-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        log.info("{} LRS dispatcher started with {} worker(s), batch size {}, lanes (capacity/weight/linger ms) high {}/{}/{}, low {}/{}/{}",
+            id, workers.length, batchSize, getCapacity(Lane.HIGH), lanes[0].weight, lanes[0].lingerMs, getCapacity(Lane.LOW), lanes[1].weight, lanes[1].lingerMs);
+    }
+
+    public boolean offer(byte[] statement, Lane lane, String orderKey) {
+        LaneQueue laneQueue = lanes[lane.ordinal()];
+
+        if (running && laneQueue.queue.offer(statement)) {
+            laneQueue.enqueueTimes.set((int) (laneQueue.offered.getAndIncrement() % laneQueue.enqueueTimes.length()), System.nanoTime());
+            signal.release();
+            return true;
+        }
+
+        return false;
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+
+        for (LaneQueue lane : lanes) {
+            size += lane.queue.size();
+        }
+
+        return size;
+    }
+
+    public int getQueueSize(Lane lane) {
+        return lanes[lane.ordinal()].queue.size();
+    }
+
+    public int getCapacity(Lane lane) {
+        LaneQueue laneQueue = lanes[lane.ordinal()];
+        return laneQueue.queue.size() + laneQueue.queue.remainingCapacity();
+    }
+
+    public long getOldestAgeMs() {
+        long oldest = 0L;
+
+        for (LaneQueue lane : lanes) {
+            oldest = Math.max(oldest, lane.oldestAgeNanos());
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(oldest);
+    }
+
+    public LatencyHistogram getWaitHistogram(Lane lane) {
+        return lanes[lane.ordinal()].wait;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public List<byte[]> shutdown(long timeoutMs) {
+        running = false;
+        signal.release(workers.length);
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        for (Thread worker : workers) {
+            if (worker == null) {
+                continue;
+            }
+
+            try {
+                worker.join(Math.max(1L, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (worker.isAlive()) {
+                worker.interrupt();
+            }
+        }
+
+        List<byte[]> unsent = new ArrayList<>();
+
+        for (LaneQueue lane : lanes) {
+            if (lane != null) {
+                lane.queue.drainTo(unsent);
+            }
+        }
+
+        if (!unsent.isEmpty()) {
+            log.warn("{} LRS dispatcher stopped with {} unsent statement(s)", id, unsent.size());
+        }
+
+        return unsent;
+    }
+
+    private void processQueue() {
+        List<byte[]> batch = new ArrayList<>(batchSize);
+
+        while (running || getQueueSize() > 0) {
+            try {
+                // permits only wake idle workers, the lanes themselves tell whether there is work
+                signal.drainPermits();
+                LaneQueue lane = nextLane();
+
+                if (lane == null) {
+                    signal.tryAcquire(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                    continue;
+                }
+
+                long waited = lane.oldestAgeNanos();
+                byte[] first = lane.queue.poll();
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first);
+                fillBatch(lane, batch);
+                lane.taken.addAndGet(batch.size());
+                lane.wait.record(waited);
+                handler.handleBatch(lane.lane, new ArrayList<>(batch));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Exception e) {
+                log.error("{} LRS dispatcher failed to handle a batch of {} statement(s)", id, batch.size(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * @return the lane to take the next batch from, the one this turn prefers if it holds statements, otherwise the first
+     *     lane (in priority order) which does, null if all lanes are empty
+     */
+    private LaneQueue nextLane() {
+        LaneQueue preferred = lanes[schedule[(int) (turns.getAndIncrement() % schedule.length)]];
+
+        if (!preferred.queue.isEmpty()) {
+            return preferred;
+        }
+
+        for (LaneQueue lane : lanes) {
+            if (!lane.queue.isEmpty()) {
+                return lane;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Add statements of the lane to the batch until it is full or the linger time has passed. Once stopped, or when a
+     * statement of a higher priority lane is waiting, don't linger.
+     */
+    private void fillBatch(LaneQueue lane, List<byte[]> batch) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + lane.lingerMs;
+        int size = batchSize;
+
+        while (batch.size() < size) {
+            lane.queue.drainTo(batch, size - batch.size());
+
+            long remaining = deadline - System.currentTimeMillis();
+
+            if (batch.size() >= size || remaining <= 0 || !running || isHigherLaneWaiting(lane)) {
+                break;
+            }
+
+            byte[] next = lane.queue.poll(lane.lane.ordinal() == 0 ? remaining : Math.min(remaining, PREEMPT_CHECK_MS), TimeUnit.MILLISECONDS);
+
+            if (next != null) {
+                batch.add(next);
+            }
+        }
+    }
+
+    private boolean isHigherLaneWaiting(LaneQueue lane) {
+        for (int i = 0; i < lane.lane.ordinal(); i++) {
+            if (!lanes[i].queue.isEmpty()) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+}
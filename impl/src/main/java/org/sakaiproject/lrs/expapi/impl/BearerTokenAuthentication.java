@@ -0,0 +1,233 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.lang3.StringUtils;
+import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bearer token authentication, with a fixed token or with tokens from an OAuth 2.0 token endpoint (client credentials
+ * grant). Tokens are fetched in the background, the next one once most of the lifetime of the current one has passed, so
+ * a request never waits for a token. A request is not sent while there is no valid token.
+ */
+public class BearerTokenAuthentication implements LrsAuthentication {
+
+    private static final Logger log = LoggerFactory.getLogger(BearerTokenAuthentication.class);
+
+    // share of the lifetime of a token after which the next one is fetched
+    private static final double REFRESH_AT = 0.8d;
+    private static final long DEFAULT_LIFETIME_MS = 3600000L;
+    private static final long RETRY_MS = 10000L;
+    private static final long FIRST_TOKEN_WAIT_MS = 5000L;
+
+    private final String id;
+    private final LrsTransport transport;
+    private final String tokenUrl;
+    private final Map<String, String> tokenHeaders;
+    private final byte[] tokenRequest;
+    private final AtomicBoolean fetching = new AtomicBoolean();
+    private final JSONTranscoder jsonTranscoder = new JSONTranscoder(true, true, false);
+
+    private volatile String authorization;
+    // when the current token expires (in ms since the epoch), Long.MAX_VALUE for a fixed token
+    private volatile long expiresAt;
+    private volatile long fetchedAt;
+    private ScheduledExecutorService executor;
+    // the next fetch, there is only ever one waiting
+    private ScheduledFuture<?> next;
+
+    /**
+     * @param token the fixed token
+     */
+    public BearerTokenAuthentication(String token) {
+        this.id = null;
+        this.transport = null;
+        this.tokenUrl = null;
+        this.tokenHeaders = null;
+        this.tokenRequest = null;
+        this.authorization = "Bearer " + token;
+        this.expiresAt = Long.MAX_VALUE;
+    }
+
+    /**
+     * @param id the LRS provider id (used for thread names and logging)
+     * @param tokenUrl the url of the token endpoint
+     * @param scope the scope of the tokens, null for the default scope of the client
+     */
+    public BearerTokenAuthentication(String id, LrsTransport transport, String tokenUrl, String clientId, String clientSecret, String scope) {
+        this.id = id;
+        this.transport = transport;
+        this.tokenUrl = tokenUrl;
+
+        Map<String, String> headers = new HashMap<>(3);
+        headers.put("Content-Type", "application/x-www-form-urlencoded");
+        headers.put("Accept", "application/json");
+        headers.put("Authorization", "Basic " + Base64.encodeBase64String((encode(clientId) + ":" + encode(clientSecret)).getBytes(StandardCharsets.UTF_8)));
+        this.tokenHeaders = headers;
+        String request = "grant_type=client_credentials" + (StringUtils.isNotEmpty(scope) ? "&scope=" + encode(scope) : "");
+        this.tokenRequest = request.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public String getStaticAuthorization() {
+        return tokenUrl == null ? authorization : null;
+    }
+
+    public String getAuthorization(String method, String url) throws IOException {
+        String current = authorization;
+
+        if (current == null || System.currentTimeMillis() >= expiresAt) {
+            // a fetch is already scheduled
+            throw new IOException("No valid bearer token from " + tokenUrl + " yet");
+        }
+
+        return current;
+    }
+
+    /**
+     * Fetch the first token, waiting a little for it so the first statements need not be kept for later
+     */
+    public void start() {
+        Future<?> first;
+
+        synchronized (this) {
+            if (tokenUrl == null || executor != null) {
+                return;
+            }
+
+            executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "LRS-" + id + "-token");
+                thread.setDaemon(true);
+                return thread;
+            });
+            first = executor.submit(this::fetch);
+        }
+
+        try {
+            first.get(FIRST_TOKEN_WAIT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("{} LRS provider has no bearer token from {} yet, statements are kept until there is one", id, tokenUrl);
+        }
+    }
+
+    /**
+     * The token may have been revoked, fetch a new one now unless the current one is quite new. A fixed token cannot be
+     * replaced.
+     */
+    public boolean rejected() {
+        if (tokenUrl == null) {
+            return false;
+        }
+
+        if (!fetching.get() && System.currentTimeMillis() - fetchedAt >= RETRY_MS) {
+            refresh(0L);
+        }
+
+        return true;
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Fetch a token after the delay, instead of the fetch scheduled so far
+     */
+    private synchronized void refresh(long delayMs) {
+        if (executor == null) {
+            return;
+        }
+
+        if (next != null) {
+            next.cancel(false);
+        }
+
+        try {
+            next = executor.schedule(this::fetch, delayMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            log.debug("{} LRS provider is shutting down, bearer token not refreshed", id);
+        }
+    }
+
+    /**
+     * Get a new token and schedule the next refresh, unless another fetch is in progress
+     */
+    private void fetch() {
+        if (!fetching.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            HttpResponse response = transport.post(tokenUrl, tokenHeaders, tokenRequest).join();
+            int code = response.getResponseCode();
+
+            if (code < 200 || code >= 300) {
+                throw new IOException(tokenUrl + " answered " + code + ": " + response.getResponseBody());
+            }
+
+            Map<String, Object> answer = jsonTranscoder.decode(response.getResponseBody());
+            Object token = answer.get("access_token");
+
+            if (token == null || StringUtils.isBlank(token.toString())) {
+                throw new IOException(tokenUrl + " answered without an access token");
+            }
+
+            Object expiresIn = answer.get("expires_in");
+            long lifetimeMs = expiresIn != null ? TimeUnit.SECONDS.toMillis(Long.parseLong(expiresIn.toString())) : DEFAULT_LIFETIME_MS;
+            authorization = "Bearer " + token;
+            fetchedAt = System.currentTimeMillis();
+            expiresAt = fetchedAt + lifetimeMs;
+            refresh((long) (lifetimeMs * REFRESH_AT));
+            log.debug("{} LRS provider got a bearer token from {} valid for {} ms", id, tokenUrl, lifetimeMs);
+        } catch (Exception e) {
+            log.warn("{} LRS provider failed to get a bearer token from {}, trying again in {} ms", id, tokenUrl, RETRY_MS, e);
+            refresh(RETRY_MS);
+        } finally {
+            fetching.set(false);
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
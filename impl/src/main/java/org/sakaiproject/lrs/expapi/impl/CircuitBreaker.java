@@ -0,0 +1,293 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Stops calls to the LRS while it is failing or too slow. The outcome of the most recent calls is kept in a sliding window,
+ * once enough of them failed (or took too long) the circuit opens and calls are refused. After a jittered, exponentially
+ * growing delay (or the delay asked for by the LRS with Retry-After) a few trial calls are let through (half-open), the
+ * circuit closes again if they all succeed and reopens for a longer delay if one fails.
+ */
+public class CircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    /**
+     * Notified (outside of any lock) each time the circuit changes state
+     */
+    public interface Listener {
+        void stateChanged(CircuitBreaker breaker, State from, State to);
+    }
+
+    private static final byte SUCCESS = 0;
+    private static final byte FAILURE = 1;
+    private static final byte SLOW = 2;
+
+    private final String id;
+    private final byte[] window;
+    private final int minimumCalls;
+    private final int failureRateThreshold;
+    private final long slowCallMs;
+    private final int slowCallRateThreshold;
+    private final long baseOpenMs;
+    private final long maxOpenMs;
+    private final int halfOpenCalls;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+    // guarded by this
+    private State state = State.CLOSED;
+    private int windowPosition;
+    private int windowCount;
+    private int failures;
+    private int slowCalls;
+    private int consecutiveOpens;
+    private long openUntil;
+    private int trialPermits;
+    private int trialSuccesses;
+
+    /**
+     * @param id the LRS provider id
+     * @param windowSize number of recent calls the rates are computed over
+     * @param minimumCalls number of calls needed in the window before the circuit can open
+     * @param failureRateThreshold percentage of failed calls which opens the circuit
+     * @param slowCallMs calls taking longer (in ms) are slow, 0 to ignore latency
+     * @param slowCallRateThreshold percentage of slow calls which opens the circuit
+     * @param baseOpenMs time (in ms) the circuit stays open the first time, doubled each time it reopens
+     * @param maxOpenMs maximum time (in ms) the circuit stays open
+     * @param halfOpenCalls number of trial calls which must succeed to close the circuit
+     */
+    public CircuitBreaker(String id, int windowSize, int minimumCalls, int failureRateThreshold, long slowCallMs, int slowCallRateThreshold,
+            long baseOpenMs, long maxOpenMs, int halfOpenCalls) {
+        this.id = id;
+        this.window = new byte[Math.max(1, windowSize)];
+        this.minimumCalls = Math.max(1, Math.min(minimumCalls, window.length));
+        this.failureRateThreshold = failureRateThreshold;
+        this.slowCallMs = slowCallMs;
+        this.slowCallRateThreshold = slowCallRateThreshold;
+        this.baseOpenMs = Math.max(1L, baseOpenMs);
+        this.maxOpenMs = Math.max(this.baseOpenMs, maxOpenMs);
+        this.halfOpenCalls = Math.max(1, halfOpenCalls);
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return the time (in ms) left before the open circuit lets trial calls through, 0 if it is not open
+     */
+    public synchronized long getRemainingOpenMs() {
+        return state == State.OPEN ? Math.max(0L, openUntil - System.currentTimeMillis()) : 0L;
+    }
+
+    /**
+     * Ask to make a call. Every permitted call must be followed by {@link #onSuccess}, {@link #onFailure} or {@link #release}.
+     *
+     * @return false if the call must not be made now
+     */
+    public boolean tryAcquire() {
+        State from;
+
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() < openUntil) {
+                    return false;
+                }
+
+                trialPermits = halfOpenCalls;
+                trialSuccesses = 0;
+                from = transition(State.HALF_OPEN);
+            } else {
+                from = null;
+            }
+
+            if (trialPermits == 0) {
+                return false;
+            }
+
+            trialPermits--;
+        }
+
+        fire(from, State.HALF_OPEN);
+        return true;
+    }
+
+    /**
+     * Give back a permitted call which was not made
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            trialPermits++;
+        }
+    }
+
+    /**
+     * Record a call the LRS answered
+     *
+     * @param latencyMs how long the call took
+     */
+    public void onSuccess(long latencyMs) {
+        State from = null;
+        State to;
+
+        synchronized (this) {
+            boolean slow = slowCallMs > 0 && latencyMs > slowCallMs;
+
+            if (state == State.HALF_OPEN) {
+                if (slow) {
+                    from = open(0L);
+                } else if (++trialSuccesses >= halfOpenCalls) {
+                    consecutiveOpens = 0;
+                    clearWindow();
+                    from = transition(State.CLOSED);
+                }
+            } else if (state == State.CLOSED) {
+                record(slow ? SLOW : SUCCESS);
+                from = tripIfNeeded();
+            }
+
+            to = state;
+        }
+
+        fire(from, to);
+    }
+
+    /**
+     * Record a call which failed or that the LRS asked to slow down
+     *
+     * @param latencyMs how long the call took
+     * @param retryAfterMs the delay asked for by the LRS (Retry-After), 0 if none; opens the circuit for at least that long
+     *        (up to the maximum open time)
+     */
+    public void onFailure(long latencyMs, long retryAfterMs) {
+        State from = null;
+        State to;
+
+        synchronized (this) {
+            if (state == State.HALF_OPEN || (state == State.CLOSED && retryAfterMs > 0)) {
+                from = open(retryAfterMs);
+            } else if (state == State.CLOSED) {
+                record(FAILURE);
+                from = tripIfNeeded();
+            } else if (retryAfterMs > 0) {
+                // a late response from a call made before the circuit opened, keep the longer of the two delays
+                openUntil = Math.max(openUntil, System.currentTimeMillis() + Math.min(retryAfterMs, maxOpenMs));
+            }
+
+            to = state;
+        }
+
+        fire(from, to);
+    }
+
+    private State tripIfNeeded() {
+        if (windowCount < minimumCalls) {
+            return null;
+        }
+
+        boolean tooManyFailures = failures * 100 >= failureRateThreshold * windowCount;
+        boolean tooManySlow = slowCallMs > 0 && slowCalls * 100 >= slowCallRateThreshold * windowCount;
+
+        return (tooManyFailures || tooManySlow) ? open(0L) : null;
+    }
+
+    /**
+     * Open the circuit for the next backoff delay: exponential in the number of consecutive openings, with the upper half
+     * jittered so that several servers don't all retry at the same moment
+     */
+    private State open(long retryAfterMs) {
+        long delay = baseOpenMs << Math.min(consecutiveOpens, 30);
+        delay = Math.min(maxOpenMs, delay > 0 ? delay : maxOpenMs);
+        delay = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+        consecutiveOpens++;
+
+        openUntil = System.currentTimeMillis() + Math.max(delay, Math.min(retryAfterMs, maxOpenMs));
+        clearWindow();
+        return transition(State.OPEN);
+    }
+
+    private void record(byte outcome) {
+        if (windowCount == window.length) {
+            forget(window[windowPosition]);
+        } else {
+            windowCount++;
+        }
+
+        window[windowPosition] = outcome;
+        windowPosition = (windowPosition + 1) % window.length;
+
+        if (outcome == FAILURE) {
+            failures++;
+        } else if (outcome == SLOW) {
+            slowCalls++;
+        }
+    }
+
+    private void forget(byte outcome) {
+        if (outcome == FAILURE) {
+            failures--;
+        } else if (outcome == SLOW) {
+            slowCalls--;
+        }
+    }
+
+    private void clearWindow() {
+        windowPosition = 0;
+        windowCount = 0;
+        failures = 0;
+        slowCalls = 0;
+    }
+
+    private State transition(State to) {
+        State from = state;
+        state = to;
+        return from != to ? from : null;
+    }
+
+    private void fire(State from, State to) {
+        if (from == null) {
+            return;
+        }
+
+        for (Listener listener : listeners) {
+            listener.stateChanged(this, from, to);
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return id + " circuit " + state + " (" + failures + " failed, " + slowCalls + " slow of the last " + windowCount + " call(s))";
+    }
+
+}
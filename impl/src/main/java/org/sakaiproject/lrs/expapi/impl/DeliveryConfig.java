@@ -0,0 +1,162 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The delivery settings read at one time (see {@link ProviderConfig#readDeliveryConfig()}), checked and never modified once
+ * read: a change of the configuration is applied by replacing them as a whole
+ */
+public class DeliveryConfig {
+
+    // where the statements go, the url or each of the targets (none with the file sink)
+    private final List<TargetConfig> targets;
+    private final String endpointPolicy;
+    private final int endpointEjectFailures;
+    private final long endpointEjectMs;
+    private final long endpointEjectMaxMs;
+    private final long endpointProbeIntervalMs;
+    private final String transportType;
+    private final int connectTimeout;
+    // request timeout (in ms), 0 for the timeout of the transport
+    private final int timeout;
+    private final long keepAliveMs;
+    private final boolean http2Enabled;
+    private final int maxInFlight;
+    // the number of connections to each LRS, as many as the statements may be delivered in parallel
+    private final int connections;
+    private final int batchSize;
+    // requests per second to each LRS, 0 for no limit
+    private final double rateLimit;
+    private final int rateBurst;
+
+    public DeliveryConfig(List<TargetConfig> targets, String endpointPolicy, int endpointEjectFailures, long endpointEjectMs,
+            long endpointEjectMaxMs, long endpointProbeIntervalMs, String transportType, int connectTimeout, int timeout, long keepAliveMs,
+            boolean http2Enabled, int maxInFlight, int connections, int batchSize, double rateLimit, int rateBurst) {
+        this.targets = Collections.unmodifiableList(targets);
+        this.endpointPolicy = endpointPolicy;
+        this.endpointEjectFailures = endpointEjectFailures;
+        this.endpointEjectMs = endpointEjectMs;
+        this.endpointEjectMaxMs = endpointEjectMaxMs;
+        this.endpointProbeIntervalMs = endpointProbeIntervalMs;
+        this.transportType = transportType;
+        this.connectTimeout = connectTimeout;
+        this.timeout = timeout;
+        this.keepAliveMs = keepAliveMs;
+        this.http2Enabled = http2Enabled;
+        this.maxInFlight = maxInFlight;
+        this.connections = connections;
+        this.batchSize = batchSize;
+        this.rateLimit = rateLimit;
+        this.rateBurst = rateBurst;
+    }
+
+    public List<TargetConfig> getTargets() {
+        return targets;
+    }
+
+    public String getEndpointPolicy() {
+        return endpointPolicy;
+    }
+
+    public int getEndpointEjectFailures() {
+        return endpointEjectFailures;
+    }
+
+    public long getEndpointEjectMs() {
+        return endpointEjectMs;
+    }
+
+    public long getEndpointEjectMaxMs() {
+        return endpointEjectMaxMs;
+    }
+
+    public long getEndpointProbeIntervalMs() {
+        return endpointProbeIntervalMs;
+    }
+
+    public String getTransportType() {
+        return transportType;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public long getKeepAliveMs() {
+        return keepAliveMs;
+    }
+
+    public boolean isHttp2Enabled() {
+        return http2Enabled;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getConnections() {
+        return connections;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public double getRateLimit() {
+        return rateLimit;
+    }
+
+    public int getRateBurst() {
+        return rateBurst;
+    }
+
+    /**
+     * @return the number of LRS nodes the statements are sent to, all targets together
+     */
+    public int getHostCount() {
+        int hosts = 0;
+
+        for (TargetConfig target : targets) {
+            hosts += target.getUrls().size();
+        }
+
+        return Math.max(1, hosts);
+    }
+
+    /**
+     * @return the settings the nodes of each LRS are managed with, the nodes of a target are only replaced when they or its
+     *     urls change
+     */
+    public String getEndpointSettings() {
+        return endpointPolicy + "," + endpointEjectFailures + "," + endpointEjectMs + "," + endpointEjectMaxMs + "," + endpointProbeIntervalMs;
+    }
+
+    /**
+     * @return the settings the transport is created with, a transport is only replaced when they change
+     */
+    public String getTransportSettings() {
+        return transportType + "," + connectTimeout + "," + timeout + "," + keepAliveMs + "," + http2Enabled + "," + maxInFlight + ","
+            + connections + "," + getHostCount();
+    }
+
+}
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Spreads the requests over equivalent LRS nodes (replicas behind the same data). Each request goes to the active node with
+ * the fewest requests waiting for a response, or with the lowest latency average weighted by its waiting requests. A node
+ * failing several requests in a row (transport errors, timeouts and 5xx responses) is ejected: it gets no requests until
+ * its about resource answers again, checked in the background once the ejection time has passed, the ejection time
+ * doubles each time the check fails. The last active node is never ejected, a failing LRS as a whole is left to the
+ * circuit breaker.
+ */
+public class EndpointPool {
+
+    private static final Logger log = LoggerFactory.getLogger(EndpointPool.class);
+
+    // weight of the newest sample in the latency average
+    private static final double EWMA_WEIGHT = 0.2d;
+
+    public enum Policy {
+        LEAST_OUTSTANDING, EWMA
+    }
+
+    public enum State {
+        ACTIVE, EJECTED
+    }
+
+    /**
+     * One LRS node and its statistics
+     */
+    public static final class Endpoint {
+        private final String url;
+        private final String aboutUrl;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private final AtomicInteger consecutiveFailures = new AtomicInteger();
+        private final LongAdder requests = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder ejections = new LongAdder();
+        private final LatencyHistogram roundTrip = new LatencyHistogram();
+        private final AtomicBoolean probing = new AtomicBoolean();
+        // updated without a lock, a sample may be lost under contention which is fine for an average
+        private volatile long ewmaNanos;
+        private volatile State state = State.ACTIVE;
+        private volatile long ejectedUntil;
+        private volatile long ejectionMs;
+
+        Endpoint(String url) {
+            this.url = url;
+            this.aboutUrl = LrsHealthProber.getAboutUrl(url);
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        public long getRequests() {
+            return requests.sum();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getEjections() {
+            return ejections.sum();
+        }
+
+        public long getEwmaMicros() {
+            return ewmaNanos / 1000L;
+        }
+
+        public LatencyHistogram getRoundTripHistogram() {
+            return roundTrip;
+        }
+
+        @Override
+        public String toString() {
+            return url + " " + state + " outstanding=" + getOutstanding() + ", requests=" + getRequests() + ", errors=" + getErrors()
+                + ", ejections=" + getEjections() + ", ewma=" + getEwmaMicros() + "us, p99=" + roundTrip.getPercentileMicros(99) + "us";
+        }
+    }
+
+    private final String id;
+    private final List<Endpoint> endpoints;
+    private final Policy policy;
+    private final LrsTransport transport;
+    private final Map<String, String> aboutHeaders;
+    private final int ejectFailures;
+    private final long ejectMs;
+    private final long maxEjectMs;
+    private final long probeIntervalMs;
+    private final AtomicInteger next = new AtomicInteger();
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param id the LRS provider id (used for thread names and logging)
+     * @param urls the statements urls of the nodes
+     * @param aboutHeaders the request headers of the checks of ejected nodes
+     * @param ejectFailures number of requests in a row a node fails before it is ejected
+     * @param ejectMs time (in ms) a node stays ejected the first time, doubled each time its check fails up to maxEjectMs
+     * @param probeIntervalMs time (in ms) between two looks for ejected nodes due for a check
+     */
+    public EndpointPool(String id, List<String> urls, Policy policy, LrsTransport transport, Map<String, String> aboutHeaders, int ejectFailures,
+        long ejectMs, long maxEjectMs, long probeIntervalMs) {
+        List<Endpoint> nodes = new ArrayList<>(urls.size());
+
+        for (String url : urls) {
+            nodes.add(new Endpoint(url));
+        }
+
+        this.id = id;
+        this.endpoints = Collections.unmodifiableList(nodes);
+        this.policy = policy;
+        this.transport = transport;
+        this.aboutHeaders = aboutHeaders;
+        this.ejectFailures = Math.max(1, ejectFailures);
+        this.ejectMs = Math.max(1L, ejectMs);
+        this.maxEjectMs = Math.max(this.ejectMs, maxEjectMs);
+        this.probeIntervalMs = Math.max(100L, probeIntervalMs);
+    }
+
+    /**
+     * @param policy least (fewest requests waiting) or ewma (lowest latency average)
+     * @return the policy with the name, null if there is none
+     */
+    public static Policy getPolicy(String policy) {
+        if ("least".equalsIgnoreCase(policy)) {
+            return Policy.LEAST_OUTSTANDING;
+        } else if ("ewma".equalsIgnoreCase(policy)) {
+            return Policy.EWMA;
+        }
+        return null;
+    }
+
+    /**
+     * Start checking the ejected nodes, not needed with a single node
+     */
+    public synchronized void start() {
+        if (executor != null || endpoints.size() < 2) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LRS-" + id + "-endpoints");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::probe, probeIntervalMs, probeIntervalMs, TimeUnit.MILLISECONDS);
+        log.info("{} LRS provider spreading requests over {} nodes ({})", id, endpoints.size(), policy);
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * Pick the node for a request, {@link #release} must follow once the request completes
+     */
+    public Endpoint acquire() {
+        Endpoint chosen = endpoints.get(0);
+
+        if (endpoints.size() > 1) {
+            // start the scan somewhere else each time, so ties are spread over the nodes
+            int start = Math.floorMod(next.getAndIncrement(), endpoints.size());
+            long best = Long.MAX_VALUE;
+
+            for (int i = 0; i < endpoints.size(); i++) {
+                Endpoint endpoint = endpoints.get((start + i) % endpoints.size());
+
+                if (endpoint.state != State.ACTIVE) {
+                    continue;
+                }
+
+                long score = policy == Policy.EWMA ? endpoint.ewmaNanos * (endpoint.outstanding.get() + 1) : endpoint.outstanding.get();
+
+                if (score < best) {
+                    best = score;
+                    chosen = endpoint;
+                }
+            }
+        }
+
+        chosen.outstanding.incrementAndGet();
+        chosen.requests.increment();
+        return chosen;
+    }
+
+    /**
+     * @param nanos time the request took
+     * @param failed true if the request failed in a way that points at the node (transport error, timeout, 5xx)
+     */
+    public void release(Endpoint endpoint, long nanos, boolean failed) {
+        endpoint.outstanding.decrementAndGet();
+        endpoint.roundTrip.record(nanos);
+        long ewma = endpoint.ewmaNanos;
+        endpoint.ewmaNanos = ewma == 0L ? nanos : (long) (ewma + EWMA_WEIGHT * (nanos - ewma));
+
+        if (!failed) {
+            endpoint.consecutiveFailures.set(0);
+            return;
+        }
+
+        endpoint.errors.increment();
+
+        if (endpoint.consecutiveFailures.incrementAndGet() >= ejectFailures && endpoints.size() > 1) {
+            eject(endpoint, ejectMs);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder states = new StringBuilder();
+
+        for (Endpoint endpoint : endpoints) {
+            states.append(states.length() > 0 ? "; " : "").append(endpoint);
+        }
+
+        return states.toString();
+    }
+
+    private synchronized void eject(Endpoint endpoint, long durationMs) {
+        if (endpoint.state == State.EJECTED) {
+            return;
+        }
+
+        int active = 0;
+
+        for (Endpoint other : endpoints) {
+            active += other.state == State.ACTIVE ? 1 : 0;
+        }
+
+        if (active < 2) {
+            log.debug("{} LRS provider keeps failing node {} active, it is the last one", id, endpoint.url);
+            return;
+        }
+
+        endpoint.ejectionMs = durationMs;
+        endpoint.ejectedUntil = System.currentTimeMillis() + durationMs;
+        endpoint.state = State.EJECTED;
+        endpoint.ejections.increment();
+        log.warn("{} LRS provider ejected node {} for {} ms after {} failed request(s) in a row", id, endpoint.url, durationMs,
+            endpoint.consecutiveFailures.get());
+    }
+
+    /**
+     * Check the ejected nodes whose ejection time has passed, a node answering its about resource is active again
+     */
+    void probe() {
+        long now = System.currentTimeMillis();
+
+        for (final Endpoint endpoint : endpoints) {
+            if (endpoint.state != State.EJECTED || endpoint.ejectedUntil > now || !endpoint.probing.compareAndSet(false, true)) {
+                continue;
+            }
+
+            try {
+                transport.get(endpoint.aboutUrl, aboutHeaders).whenComplete((response, failure) -> {
+                    try {
+                        if (failure == null && response.getResponseCode() >= 200 && response.getResponseCode() < 300) {
+                            readmit(endpoint);
+                        } else {
+                            extend(endpoint, failure != null ? String.valueOf(failure) : "answered " + response.getResponseCode());
+                        }
+                    } finally {
+                        endpoint.probing.set(false);
+                    }
+                });
+            } catch (RuntimeException e) {
+                endpoint.probing.set(false);
+                extend(endpoint, String.valueOf(e));
+            }
+        }
+    }
+
+    private synchronized void readmit(Endpoint endpoint) {
+        endpoint.consecutiveFailures.set(0);
+        endpoint.state = State.ACTIVE;
+        log.info("{} LRS provider readmitted node {}, its about resource answers again", id, endpoint.url);
+    }
+
+    private synchronized void extend(Endpoint endpoint, String problem) {
+        endpoint.ejectionMs = Math.min(maxEjectMs, endpoint.ejectionMs * 2);
+        endpoint.ejectedUntil = System.currentTimeMillis() + endpoint.ejectionMs;
+        log.debug("{} LRS provider keeps node {} ejected for {} ms: {}", id, endpoint.url, endpoint.ejectionMs, problem);
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.httpclient.params.HttpConnectionManagerParams;
+import org.sakaiproject.entitybroker.util.http.HttpClientWrapper;
+import org.sakaiproject.entitybroker.util.http.HttpRESTUtils;
+import org.sakaiproject.entitybroker.util.http.HttpRESTUtils.Method;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+
+/**
+ * Blocking transport using the entitybroker reusable HTTP client, the request is complete when {@link #post} (or
+ * {@link #get}) returns. The client has a single timeout, requests with a timeout of their own go through a client (and
+ * connection pool) kept for that timeout.
+ */
+public class EntityBrokerTransport implements LrsTransport {
+
+    private static final HashMap<String, String> EMPTY_PARAMS = new HashMap<>(0);
+    private static final boolean GUARANTEE_SSL = true;
+
+    private final int timeout;
+    private final int maxConnectionsPerHost;
+    private final int maxConnections;
+    private final HttpClientWrapper httpClientWrapper;
+    // the clients for the requests with a timeout of their own, by timeout
+    private final Map<Integer, HttpClientWrapper> timedClients = new ConcurrentHashMap<>();
+
+    /**
+     * @param timeout request timeout (in ms), 0 for none
+     * @param maxConnectionsPerHost maximum number of parallel connections to one host
+     * @param maxConnections maximum number of parallel connections to all hosts
+     */
+    public EntityBrokerTransport(int timeout, int maxConnectionsPerHost, int maxConnections) {
+        this.timeout = timeout;
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxConnections = maxConnections;
+        httpClientWrapper = createClient(timeout);
+    }
+
+    public CompletableFuture<HttpResponse> post(String url, Map<String, String> headers, byte[] body, int requestTimeout) {
+        HttpClientWrapper client = httpClientWrapper;
+
+        if (requestTimeout > 0 && requestTimeout != timeout) {
+            client = timedClients.computeIfAbsent(requestTimeout, this::createClient);
+        }
+
+        return fire(client, url, Method.POST, headers, body);
+    }
+
+    public CompletableFuture<HttpResponse> get(String url, Map<String, String> headers) {
+        return fire(httpClientWrapper, url, Method.GET, headers, null);
+    }
+
+    private CompletableFuture<HttpResponse> fire(HttpClientWrapper client, String url, Method method, Map<String, String> headers, byte[] body) {
+        CompletableFuture<HttpResponse> future = new CompletableFuture<>();
+
+        try {
+            future.complete(HttpRESTUtils.fireRequest(client, url, method, EMPTY_PARAMS, headers, body, GUARANTEE_SSL));
+        } catch (Exception e) {
+            future.completeExceptionally(e);
+        }
+
+        return future;
+    }
+
+    public void shutdown() {
+        httpClientWrapper.shutdown();
+
+        for (HttpClientWrapper client : timedClients.values()) {
+            client.shutdown();
+        }
+    }
+
+    private HttpClientWrapper createClient(int clientTimeout) {
+        HttpClientWrapper client = HttpRESTUtils.makeReusableHttpClient(true, clientTimeout, null);
+
+        // the pool defaults to 2 connections per host, allow as many parallel requests as we want to deliver
+        HttpConnectionManagerParams connectionParams = client.getHttpClient().getHttpConnectionManager().getParams();
+        connectionParams.setDefaultMaxConnectionsPerHost(maxConnectionsPerHost);
+        connectionParams.setMaxTotalConnections(maxConnections);
+        return client;
+    }
+
+}
@@ -0,0 +1,332 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers the same statements (serialized once) to several targets at the same time. Each target is isolated from the
+ * others: it has its own sink (with its own circuit breaker), at most a fixed number of deliveries in progress and its own
+ * spool. The statements a target cannot take now (it is failing, or slow and at its limit) go to its spool and are replayed
+ * to that target alone, so a slow or failing target never holds back nor duplicates the deliveries to the others.
+ * <p>
+ * A delivery completes once every target either has the statements or holds them for a retry, so it is never RETRY. It
+ * waits a limited time for each target: the statements of a target which has not answered by then are spooled for it, so
+ * a slow target never holds back the caller (a partition waits for its deliveries) either. A batch a target rejects is sent
+ * to it again one statement at a time. A single statement every target rejects is REJECTED.
+ */
+public class FanOutStatementSink implements StatementSink {
+
+    private static final Logger log = LoggerFactory.getLogger(FanOutStatementSink.class);
+
+    /**
+     * A delivery target
+     */
+    public static final class Target {
+        private final String name;
+        private final StatementSink sink;
+        private final StatementSpool spool;
+        private final LrsMetrics metrics;
+        private final AtomicInteger inProgress = new AtomicInteger();
+        private volatile int concurrency;
+
+        /**
+         * @param spool where the statements the target cannot take now are kept, null to drop them
+         * @param concurrency maximum number of deliveries to the target in progress
+         */
+        public Target(String name, StatementSink sink, StatementSpool spool, LrsMetrics metrics, int concurrency) {
+            this.name = name;
+            this.sink = sink;
+            this.spool = spool;
+            this.metrics = metrics;
+            this.concurrency = Math.max(1, concurrency);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public StatementSink getSink() {
+            return sink;
+        }
+
+        public StatementSpool getSpool() {
+            return spool;
+        }
+
+        public LrsMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Change the maximum number of deliveries to the target in progress, those already in progress go on
+         */
+        public void setConcurrency(int concurrency) {
+            this.concurrency = Math.max(1, concurrency);
+        }
+
+        private boolean tryAcquire() {
+            for (int current = inProgress.get(); current < concurrency; current = inProgress.get()) {
+                if (inProgress.compareAndSet(current, current + 1)) {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+
+        private void release() {
+            inProgress.decrementAndGet();
+        }
+    }
+
+    private final String id;
+    private final List<Target> targets;
+    private final ExecutorService executor;
+    // the pool, or the calling thread once the pool is shut down so that no outcome is lost
+    private final Executor followUpExecutor;
+    private final long waitMs;
+    // ends the waits for the targets which have not answered in time
+    private final ScheduledExecutorService timer;
+
+    /**
+     * @param id the LRS provider id
+     * @param waitMs maximum time (in ms) a delivery waits for each target, 0 to wait until the target answers
+     */
+    public FanOutStatementSink(final String id, List<Target> targets, long waitMs) {
+        this.id = id;
+        this.targets = Collections.unmodifiableList(targets);
+        this.waitMs = waitMs;
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LRS-" + id + "-fanout-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        final AtomicInteger threads = new AtomicInteger();
+        // the concurrency of the targets bounds the number of threads
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "LRS-" + id + "-fanout-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.followUpExecutor = task -> {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+    }
+
+    public List<Target> getTargets() {
+        return targets;
+    }
+
+    public CompletableFuture<DeliveryResult> deliver(List<byte[]> statements, long maxWaitMs) {
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        final CompletableFuture<DeliveryResult>[] outcomes = new CompletableFuture[targets.size()];
+
+        for (int i = 0; i < outcomes.length; i++) {
+            outcomes[i] = deliverInTime(targets.get(i), statements, maxWaitMs);
+        }
+
+        return CompletableFuture.allOf(outcomes).thenApply(done -> {
+            for (CompletableFuture<DeliveryResult> outcome : outcomes) {
+                if (outcome.join() != DeliveryResult.REJECTED) {
+                    return DeliveryResult.SENT;
+                }
+            }
+
+            return DeliveryResult.REJECTED;
+        });
+    }
+
+    /**
+     * Stop the deliveries, the sinks of the targets are left to their owner
+     */
+    public void shutdown() {
+        timer.shutdownNow();
+        executor.shutdown();
+
+        try {
+            if (!executor.awaitTermination(10, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Deliver the statements to the target, keeping them for a retry if it does not answer within the wait limit. The
+     * delivery goes on, once it answers it keeps nothing more: the statements it may still take are then in the spool as
+     * well, which the LRS recognizes by their ids when it is replayed.
+     *
+     * @return completes once the target has the statements (SENT), refused them (REJECTED) or holds them for a retry (SENT)
+     */
+    private CompletableFuture<DeliveryResult> deliverInTime(final Target target, final List<byte[]> statements, final long maxWaitMs) {
+        final AtomicBoolean kept = new AtomicBoolean();
+        final CompletableFuture<DeliveryResult> outcome = deliver(target, statements, maxWaitMs, kept);
+
+        if (waitMs <= 0 || outcome.isDone()) {
+            return outcome;
+        }
+
+        final CompletableFuture<DeliveryResult> inTime = new CompletableFuture<>();
+        final ScheduledFuture<?> timeout;
+
+        try {
+            // spooling may block, so it runs on the pool and not on the timer the other deliveries share
+            timeout = timer.schedule(() -> followUpExecutor.execute(() -> {
+                if (kept.compareAndSet(false, true)) {
+                    target.metrics.statementsParked(statements.size());
+                    log.debug("{} LRS provider target {} did not answer within {} ms, {} statement(s) kept for later", id, target.name, waitMs, statements.size());
+                    inTime.complete(keep(target, statements));
+                }
+            }), waitMs, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            return outcome;
+        }
+
+        outcome.whenComplete((result, failure) -> {
+            timeout.cancel(false);
+
+            if (failure != null) {
+                inTime.completeExceptionally(failure);
+            } else {
+                inTime.complete(result);
+            }
+        });
+
+        return inTime;
+    }
+
+    /**
+     * @param kept set once the statements are kept for the target, by this delivery or because it took too long
+     * @return completes once the target has the statements (SENT), refused them (REJECTED) or holds them for a retry (SENT)
+     */
+    private CompletableFuture<DeliveryResult> deliver(final Target target, final List<byte[]> statements, final long maxWaitMs,
+            final AtomicBoolean kept) {
+        if (!target.tryAcquire()) {
+            target.metrics.statementsParked(statements.size());
+            log.debug("{} LRS provider target {} has too many deliveries in progress, {} statement(s) kept for later", id, target.name, statements.size());
+            return CompletableFuture.completedFuture(keep(target, statements));
+        }
+
+        CompletableFuture<DeliveryResult> outcome;
+
+        try {
+            // on a thread of the pool, as delivering may block the caller until the target answers
+            outcome = CompletableFuture.supplyAsync(() -> target.sink.deliver(statements, maxWaitMs), executor).thenCompose(delivery -> delivery);
+        } catch (RejectedExecutionException e) {
+            target.release();
+            return CompletableFuture.completedFuture(keep(target, statements));
+        }
+
+        // spooling and sending one by one may block, so they run on the pool too: never on the thread which completed the
+        // delivery, which the other targets share
+        return outcome.exceptionally(failure -> {
+            log.error("{} LRS provider failed to deliver {} statement(s) to target {}", id, statements.size(), target.name, failure);
+            return DeliveryResult.RETRY;
+        }).thenComposeAsync(result -> {
+            if (result == DeliveryResult.RETRY) {
+                return CompletableFuture.completedFuture(kept.compareAndSet(false, true) ? keep(target, statements) : DeliveryResult.SENT);
+            }
+
+            if (result == DeliveryResult.REJECTED && statements.size() > 1) {
+                return deliverOneByOne(target, statements, maxWaitMs, kept);
+            }
+
+            kept.set(true);
+            return CompletableFuture.completedFuture(result);
+        }, followUpExecutor).whenComplete((result, failure) -> target.release());
+    }
+
+    /**
+     * Send the statements of a rejected batch to the target one after the other, a statement which fails is kept for a retry
+     * like a batch and the next one is sent all the same
+     */
+    private CompletableFuture<DeliveryResult> deliverOneByOne(final Target target, List<byte[]> statements, final long maxWaitMs,
+            final AtomicBoolean kept) {
+        CompletableFuture<DeliveryResult> singles = CompletableFuture.completedFuture(DeliveryResult.SENT);
+
+        for (final byte[] statement : statements) {
+            final List<byte[]> single = Collections.singletonList(statement);
+            singles = singles.thenComposeAsync(previous -> target.sink.deliver(single, maxWaitMs), followUpExecutor).exceptionally(failure -> {
+                log.error("{} LRS provider failed to deliver a statement to target {}", id, target.name, failure);
+                return DeliveryResult.RETRY;
+            }).thenApplyAsync(result -> {
+                // the whole batch is in the spool already if the target took too long
+                if (result == DeliveryResult.RETRY && !kept.get()) {
+                    keep(target, single);
+                }
+
+                return DeliveryResult.SENT;
+            }, followUpExecutor);
+        }
+
+        return singles.whenComplete((result, failure) -> kept.set(true));
+    }
+
+    /**
+     * Keep the statements in the spool of the target
+     *
+     * @return SENT, the statements are dealt with as far as the other targets are concerned
+     */
+    private DeliveryResult keep(Target target, List<byte[]> statements) {
+        if (target.spool == null) {
+            // logged in full so they can still be recovered
+            target.metrics.statementsDropped(statements.size());
+
+            for (byte[] statement : statements) {
+                log.warn("{} LRS provider has no spool configured, statement was not sent to target {}.\n Statement data: {}",
+                    id, target.name, new String(statement, StandardCharsets.UTF_8));
+            }
+            return DeliveryResult.SENT;
+        }
+
+        for (byte[] statement : statements) {
+            try {
+                target.spool.append(statement);
+                target.metrics.statementsSpooled(1);
+            } catch (IOException e) {
+                target.metrics.statementsDropped(1);
+                log.error("{} LRS provider failed to spool statement for target {}, statement was not sent.\n Statement data: {}",
+                    id, target.name, new String(statement, StandardCharsets.UTF_8), e);
+            }
+        }
+
+        return DeliveryResult.SENT;
+    }
+
+}
@@ -0,0 +1,648 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+import org.sakaiproject.lrs.expapi.util.GzipCompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers to one LRS over HTTP: a single statement as is, several as one statement array. Each LRS has its own
+ * authentication, circuit breaker, health checks and rate limit. Nothing is sent (the result is RETRY straight away)
+ * while the LRS is down, its circuit is open or when its rate limit is reached. Where and how the requests are sent
+ * (the route) is replaced when the configuration changes, reusing the parts whose settings did not change.
+ */
+public class HttpStatementSink implements StatementSink {
+
+    private static final Logger log = LoggerFactory.getLogger(HttpStatementSink.class);
+
+    // the provider id, or the provider id and the target name
+    private final String name;
+    private final LrsMetrics targetMetrics;
+    private final ProviderConfig settings;
+    // null when compression is disabled
+    private final GzipCompressor gzipCompressor;
+    // the follow-up of the deliveries runs there, never on the thread of the transport
+    private final Executor followUpExecutor;
+    // run once the LRS is back (circuit closed again, health check passing again)
+    private final Runnable recovered;
+    // a delivery keeps the route it started with, even if it is replaced in the meantime
+    private volatile Route route;
+    // the about resource url the checks were started with
+    private volatile String aboutUrl;
+    private volatile int concurrency;
+    private CircuitBreaker circuitBreaker;
+    private volatile LrsHealthProber healthProber;
+    // true if the statements not sent are kept for later (spool or outbox), only then the health checks hold them back
+    private volatile boolean holdWhileDown;
+    // set once the LRS refused a compressed body it took uncompressed
+    private volatile boolean compressionRefused;
+
+    /**
+     * The url, nodes, transport, authentication and rate limit of the LRS, never modified once built
+     */
+    private final class Route {
+        private final String url;
+        private final EndpointPool endpoints;
+        // the urls and delivery settings the nodes were created with
+        private final String endpointSettings;
+        private final LrsTransport transport;
+        private final int requestTimeout;
+        private final LrsAuthentication authentication;
+        private final String authenticationSettings;
+        // shared by all requests so they must never be modified, requests authorized one by one get their own copy (see send)
+        private final Map<String, String> headers;
+        private final Map<String, String> gzipHeaders;
+        private final Map<String, String> aboutHeaders;
+        private final TokenBucketRateLimiter rateLimiter;
+        private final double rateLimit;
+        private final int rateBurst;
+
+        /**
+         * @param previous the route replaced, its authentication, nodes and rate limiter are kept if their settings did not
+         *     change (the first two only on the same transport), null to build them all
+         */
+        Route(TargetConfig config, DeliveryConfig delivery, LrsTransport transport, Route previous) {
+            this.url = config.getUrls().get(0);
+            this.transport = transport;
+            this.requestTimeout = config.getTimeout();
+            this.authenticationSettings = config.getAuthenticationSettings();
+            this.endpointSettings = delivery.getEndpointSettings() + "," + config.getUrls();
+            this.rateLimit = delivery.getRateLimit();
+            this.rateBurst = delivery.getRateBurst();
+            boolean sameTransport = previous != null && previous.transport == transport;
+
+            if (previous != null && rateLimit == previous.rateLimit && rateBurst == previous.rateBurst) {
+                // keeps the requests already counted
+                rateLimiter = previous.rateLimiter;
+            } else if (rateLimit > 0) {
+                rateLimiter = new TokenBucketRateLimiter(rateLimit, rateBurst > 0 ? rateBurst : (int) Math.ceil(rateLimit));
+                log.info("{} LRS provider limited to {} request(s) per second", name, rateLimit);
+            } else {
+                rateLimiter = null;
+            }
+
+            if (sameTransport && authenticationSettings.equals(previous.authenticationSettings)) {
+                authentication = previous.authentication;
+                headers = previous.headers;
+                gzipHeaders = previous.gzipHeaders;
+                aboutHeaders = previous.aboutHeaders;
+                endpoints = endpointSettings.equals(previous.endpointSettings) ? previous.endpoints : createEndpoints(delivery, config);
+                return;
+            }
+
+            this.authentication = createAuthentication(name, config, transport);
+
+            HashMap<String, String> baseHeaders = new HashMap<>(3);
+            baseHeaders.put("Content-Type", "application/json");
+            baseHeaders.put("X-Experience-API-Version", TincanapiLearningResourceStoreProvider.apiVersion);
+            String authorization = authentication.getStaticAuthorization();
+
+            if (authorization != null) {
+                baseHeaders.put("Authorization", authorization);
+            }
+
+            headers = Collections.unmodifiableMap(baseHeaders);
+            HashMap<String, String> compressedHeaders = new HashMap<>(baseHeaders);
+            compressedHeaders.put("Content-Encoding", "gzip");
+            gzipHeaders = Collections.unmodifiableMap(compressedHeaders);
+
+            // the about resource needs no authentication, a fixed header is sent along for LRSs that want it anyway
+            HashMap<String, String> checkHeaders = new HashMap<>(2);
+            checkHeaders.put("X-Experience-API-Version", TincanapiLearningResourceStoreProvider.apiVersion);
+
+            if (baseHeaders.containsKey("Authorization")) {
+                checkHeaders.put("Authorization", baseHeaders.get("Authorization"));
+            }
+
+            aboutHeaders = Collections.unmodifiableMap(checkHeaders);
+            endpoints = createEndpoints(delivery, config);
+        }
+
+        private EndpointPool createEndpoints(DeliveryConfig delivery, TargetConfig config) {
+            return new EndpointPool(name, config.getUrls(), EndpointPool.getPolicy(delivery.getEndpointPolicy()), transport, aboutHeaders,
+                delivery.getEndpointEjectFailures(), delivery.getEndpointEjectMs(), delivery.getEndpointEjectMaxMs(), delivery.getEndpointProbeIntervalMs());
+        }
+    }
+
+    /**
+     * @param name the provider id, or the provider id and the target name
+     * @param delivery the delivery settings the target config was read with
+     * @param transport the transport, shared with the other sinks
+     * @param settings the settings of the provider
+     * @param recovered run once the LRS is back, to replay the statements kept for later
+     */
+    public HttpStatementSink(String name, TargetConfig config, DeliveryConfig delivery, LrsTransport transport, ProviderConfig settings,
+            GzipCompressor gzipCompressor, Executor followUpExecutor, Runnable recovered, LrsMetrics targetMetrics) {
+        this.name = name;
+        this.settings = settings;
+        this.gzipCompressor = gzipCompressor;
+        this.followUpExecutor = followUpExecutor;
+        this.recovered = recovered;
+        this.targetMetrics = targetMetrics;
+        this.concurrency = config.getConcurrency() > 0 ? config.getConcurrency() : delivery.getConnections();
+        this.route = new Route(config, delivery, transport, null);
+        route.authentication.start();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public LrsMetrics getMetrics() {
+        return targetMetrics;
+    }
+
+    /**
+     * @return the maximum number of deliveries to the LRS in progress
+     */
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    public CompletableFuture<DeliveryResult> deliver(List<byte[]> statements, long maxWaitMs) {
+        byte[] data = statements.size() == 1 ? statements.get(0) : toStatementArray(statements);
+        return deliver(data, statements.size(), maxWaitMs);
+    }
+
+    /**
+     * Send the data (a single statement or a statement array) and log the outcome once the LRS responds
+     *
+     * @param rateLimitWaitMs maximum time (in ms) to wait for the rate limiter
+     */
+    private CompletableFuture<DeliveryResult> deliver(final byte[] data, final int count, long rateLimitWaitMs) {
+        final CircuitBreaker breaker = circuitBreaker;
+        final Route current = route;
+
+        if (holdWhileDown && getHealthState() == LrsHealthProber.State.DOWN) {
+            targetMetrics.statementsParked(count);
+            log.debug("{} LRS provider health check failed, {} statement(s) not sent", name, count);
+            return CompletableFuture.completedFuture(DeliveryResult.RETRY);
+        }
+
+        if (breaker != null && !breaker.tryAcquire()) {
+            targetMetrics.statementsParked(count);
+            log.debug("{} LRS provider circuit is open, {} statement(s) not sent", name, count);
+            return CompletableFuture.completedFuture(DeliveryResult.RETRY);
+        }
+
+        if (!acquireRate(current, rateLimitWaitMs)) {
+            if (breaker != null) {
+                breaker.release();
+            }
+
+            targetMetrics.statementsParked(count);
+            log.debug("{} LRS provider rate limit reached, {} statement(s) not sent", name, count);
+            return CompletableFuture.completedFuture(DeliveryResult.RETRY);
+        }
+
+        final EndpointPool.Endpoint endpoint = current.endpoints.acquire();
+        final long start = System.nanoTime();
+        byte[] compressed = compress(data);
+        CompletableFuture<HttpResponse> sent = postData(current, endpoint, data, compressed);
+
+        if (compressed != null) {
+            // sending may wait for a request in flight to complete, not on the thread which completed the first one
+            sent = sent.thenComposeAsync(response -> resendUncompressed(current, data, response), followUpExecutor);
+        }
+
+        return sent.handle((response, failure) -> {
+            long elapsed = System.nanoTime() - start;
+            long latencyMs = TimeUnit.NANOSECONDS.toMillis(elapsed);
+            targetMetrics.roundTripTime(elapsed);
+            // what the call says about the LRS, null if nothing: reported to the breaker on every way out, so that the
+            // permit (the only one while the circuit is half open) is always given back
+            Boolean healthy = null;
+            long retryAfterMs = 0L;
+
+            try {
+                if (failure != null) {
+                    healthy = false;
+                    targetMetrics.transportError();
+                    targetMetrics.statementsFailed(count);
+
+                    log.error("{} LRS provider exception: {} statement(s) were not sent.\n Statement data: {}", name, count, asString(data), failure);
+                    return DeliveryResult.RETRY;
+                }
+
+                int code = response.getResponseCode();
+                targetMetrics.responseCode(code);
+
+                if (code >= 200 && code < 300) {
+                    healthy = true;
+                    targetMetrics.statementsSent(count);
+
+                    if (log.isDebugEnabled()) {
+                        log.debug("{} LRS provider successfully sent {} statement(s): {}", name, count, asString(data));
+                    }
+                    return DeliveryResult.SENT;
+                }
+
+                log.warn("{} LRS provider failed ({} {}) sending {} statement(s) ({}) to ({}), response: {}",
+                    name, code, response.getResponseMessage(), count, asString(data), endpoint.getUrl(), response.getResponseBody());
+
+                // an expired or revoked bearer token, send the statements again once renewed. Persistent refusals open the
+                // circuit like any failure, instead of going round forever
+                if (code == 401 && current.authentication.rejected()) {
+                    healthy = false;
+                    targetMetrics.statementsFailed(count);
+                    return DeliveryResult.RETRY;
+                }
+
+                // the LRS refuses the content (or the credentials, which cannot change by themselves) itself, sending it
+                // again will not help (but the LRS itself is healthy)
+                if (code >= 400 && code < 500 && code != 408 && code != 429) {
+                    healthy = true;
+                    targetMetrics.statementsRejected(count);
+                    return DeliveryResult.REJECTED;
+                }
+
+                healthy = false;
+                retryAfterMs = getRetryAfterMs(response);
+                targetMetrics.statementsFailed(count);
+                return DeliveryResult.RETRY;
+            } finally {
+                if (breaker != null) {
+                    if (healthy == null) {
+                        breaker.release();
+                    } else if (healthy) {
+                        breaker.onSuccess(latencyMs);
+                    } else {
+                        breaker.onFailure(latencyMs, retryAfterMs);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Send the data to the node picked by the endpoint pool
+     */
+    CompletableFuture<HttpResponse> postData(byte[] data) {
+        Route current = route;
+        return postData(current, current.endpoints.acquire(), data, compress(data));
+    }
+
+    /**
+     * @return the data compressed, null if it is sent as is: compression disabled or refused by the LRS, the data too
+     *     small or not any smaller once compressed
+     */
+    private byte[] compress(byte[] data) {
+        GzipCompressor compressor = gzipCompressor;
+
+        if (compressor == null || compressionRefused || data.length < settings.getGzipThreshold()) {
+            return null;
+        }
+
+        byte[] compressed = compressor.compress(data);
+        return compressed.length < data.length ? compressed : null;
+    }
+
+    /**
+     * An LRS which cannot read compressed bodies answers 400 or 415 to a compressed request. The request is sent again uncompressed right
+     * away and, unless the LRS refuses it the same way (the statements themselves are bad), the following ones are no
+     * longer compressed.
+     *
+     * @return the answer to the request, or to the uncompressed one if it was sent again
+     */
+    private CompletableFuture<HttpResponse> resendUncompressed(Route current, byte[] data, HttpResponse response) {
+        final int code = response.getResponseCode();
+
+        if (code != 400 && code != 415) {
+            return CompletableFuture.completedFuture(response);
+        }
+
+        return postData(current, current.endpoints.acquire(), data, null).thenApply(answer -> {
+            if (answer.getResponseCode() != code && !compressionRefused) {
+                compressionRefused = true;
+                log.warn("{} LRS provider disabled compression, the LRS answered {} to a compressed body and {} to the same one uncompressed",
+                    name, code, answer.getResponseCode());
+            }
+
+            return answer;
+        });
+    }
+
+    /**
+     * Send the data, or the compressed data if there is any, the outcome is reported to the pool
+     */
+    private CompletableFuture<HttpResponse> postData(final Route current, final EndpointPool.Endpoint endpoint, byte[] data, byte[] compressed) {
+        final long start = System.nanoTime();
+        CompletableFuture<HttpResponse> response;
+
+        try {
+            response = compressed != null ? send(current, endpoint.getUrl(), compressed, current.gzipHeaders)
+                : send(current, endpoint.getUrl(), data, current.headers);
+        } catch (RuntimeException e) {
+            // reported like a request which failed, so the node and the circuit breaker get their outcome
+            response = new CompletableFuture<>();
+            response.completeExceptionally(e);
+        }
+
+        return response.whenComplete((answer, failure) ->
+            current.endpoints.release(endpoint, System.nanoTime() - start, failure != null || answer.getResponseCode() >= 500));
+    }
+
+    private CompletableFuture<HttpResponse> send(Route current, String url, byte[] body, Map<String, String> requestHeaders) {
+        if (current.authentication.getStaticAuthorization() == null) {
+            // each request is authorized (once, whatever the number of statements) into its own copy of the headers, so
+            // concurrent requests never see each other's signature
+            try {
+                long start = System.nanoTime();
+                HashMap<String, String> signedHeaders = new HashMap<>(requestHeaders);
+                signedHeaders.put("Authorization", current.authentication.getAuthorization("POST", url));
+                requestHeaders = signedHeaders;
+                targetMetrics.signTime(System.nanoTime() - start);
+            } catch (IOException e) {
+                CompletableFuture<HttpResponse> failed = new CompletableFuture<>();
+                failed.completeExceptionally(e);
+                return failed;
+            }
+        }
+
+        return current.transport.post(url, requestHeaders, body, current.requestTimeout);
+    }
+
+    /**
+     * @return true if the request may be sent now according to the rate limit (if any)
+     */
+    private boolean acquireRate(Route current, long maxWaitMs) {
+        if (current.rateLimiter == null) {
+            return true;
+        }
+
+        try {
+            return current.rateLimiter.tryAcquire(maxWaitMs);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Create the circuit breaker, its transitions are logged and the spools are replayed as soon as the circuit closes again
+     */
+    public void startCircuitBreaker() {
+        circuitBreaker = new CircuitBreaker(name, settings.getCircuitWindow(), settings.getCircuitMinCalls(), settings.getCircuitFailureRate(),
+            settings.getCircuitSlowCallMs(), settings.getCircuitSlowCallRate(), settings.getCircuitBackoffInitialMs(), settings.getCircuitBackoffMaxMs(),
+            settings.getCircuitHalfOpenCalls());
+        circuitBreaker.addListener(new CircuitBreaker.Listener() {
+            public void stateChanged(CircuitBreaker breaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+                if (to == CircuitBreaker.State.OPEN) {
+                    log.warn("{} LRS provider circuit opened ({} -> {}), statements are parked for {} ms", name, from, to, breaker.getRemainingOpenMs());
+                } else {
+                    log.info("{} LRS provider circuit {} -> {}", name, from, to);
+                }
+
+                if (to == CircuitBreaker.State.CLOSED) {
+                    recovered.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Start checking the nodes once they fail or, with a single node and health checks enabled, check the health of the
+     * LRS in the background
+     *
+     * @param aboutUrl the about resource url, null for the one next to the statements url
+     */
+    public void startChecks(String aboutUrl) {
+        startChecks(route, aboutUrl);
+    }
+
+    /**
+     * Start checking the nodes of the route once they fail or, with a single node and health checks enabled, check the
+     * health of the LRS in the background
+     *
+     * @param aboutUrl the about resource url, null for the one next to the statements url
+     */
+    private void startChecks(Route current, String aboutUrl) {
+        this.aboutUrl = aboutUrl;
+
+        if (current.endpoints.getEndpoints().size() > 1) {
+            // the nodes are checked one by one once they fail, a health check of one of them says little
+            current.endpoints.start();
+        } else if (settings.isHealthEnabled()) {
+            startHealthProber(current, aboutUrl);
+        }
+    }
+
+    /**
+     * Check the health of the LRS in the background, without sending it a statement. Statements are held back while it is
+     * down and the spool is replayed once it is up again.
+     *
+     * @param aboutUrl the about resource url, null for the one next to the statements url
+     */
+    private void startHealthProber(Route current, String aboutUrl) {
+        String checkedUrl = StringUtils.isNotEmpty(aboutUrl) ? aboutUrl : LrsHealthProber.getAboutUrl(current.url);
+        LrsHealthProber prober = new LrsHealthProber(name, current.transport, checkedUrl, current.aboutHeaders,
+            TincanapiLearningResourceStoreProvider.apiVersion, settings.getHealthIntervalMs());
+        prober.addListener(new LrsHealthProber.Listener() {
+            public void stateChanged(LrsHealthProber prober, LrsHealthProber.State from, LrsHealthProber.State to) {
+                if (to == LrsHealthProber.State.UP && from == LrsHealthProber.State.DOWN) {
+                    recovered.run();
+                }
+            }
+        });
+        healthProber = prober;
+        prober.start();
+        log.info("{} LRS provider checking {} every {} ms{}", name, checkedUrl, settings.getHealthIntervalMs(),
+            holdWhileDown ? "" : ", statements are sent even while it fails as there is no spool to keep them");
+    }
+
+    /**
+     * @param holdWhileDown true if the statements not sent are kept for later, false to send them even while the health
+     *     checks fail (an LRS without about resource, or with one the checks cannot read, would lose them all otherwise)
+     */
+    public void setHoldWhileDown(boolean holdWhileDown) {
+        this.holdWhileDown = holdWhileDown;
+    }
+
+    public LrsHealthProber.State getHealthState() {
+        LrsHealthProber prober = healthProber;
+        return prober != null ? prober.getState() : LrsHealthProber.State.UNKNOWN;
+    }
+
+    public CircuitBreaker.State getCircuitState() {
+        return circuitBreaker != null ? circuitBreaker.getState() : CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * @return true if the requests are spread over several nodes
+     */
+    public boolean isPooled() {
+        return route.endpoints.getEndpoints().size() > 1;
+    }
+
+    public EndpointPool getEndpoints() {
+        return route.endpoints;
+    }
+
+    /**
+     * Build the route for the new configuration and use it from the next delivery on, the deliveries in progress finish
+     * on the previous one. Only the parts whose settings changed are replaced: a target whose settings are all the same
+     * keeps its authentication (and token), nodes (and their state), rate limit and checks. The checks start over once the
+     * nodes or the about resource change, the circuit breaker is always kept.
+     *
+     * @param aboutUrl the about resource url, null for the one next to the statements url
+     */
+    public void reconfigure(TargetConfig config, DeliveryConfig delivery, LrsTransport newTransport, String aboutUrl) {
+        Route previous = route;
+        Route current = new Route(config, delivery, newTransport, previous);
+        concurrency = config.getConcurrency() > 0 ? config.getConcurrency() : delivery.getConnections();
+
+        if (current.authentication != previous.authentication) {
+            current.authentication.start();
+        }
+
+        // the health check of a single node is started with the about url, the checks of several nodes are not
+        boolean checksKept = current.endpoints == previous.endpoints
+            && (current.endpoints.getEndpoints().size() > 1 || StringUtils.equals(aboutUrl, this.aboutUrl));
+        route = current;
+        stop(previous, current, !checksKept);
+
+        if (!checksKept) {
+            startChecks(current, aboutUrl);
+        }
+    }
+
+    /**
+     * Stop the health checks and the background work of the authentication, the transport is shared and left to the
+     * provider
+     */
+    public void shutdown() {
+        stop(route, null, true);
+    }
+
+    /**
+     * @param current the route replacing the stopped one, the parts they share go on; null to stop them all
+     */
+    private void stop(Route stopped, Route current, boolean stopChecks) {
+        if (current == null || current.authentication != stopped.authentication) {
+            stopped.authentication.shutdown();
+        }
+
+        if (current == null || current.endpoints != stopped.endpoints) {
+            stopped.endpoints.shutdown();
+        }
+
+        LrsHealthProber prober = healthProber;
+
+        if (stopChecks && prober != null) {
+            healthProber = null;
+            prober.shutdown();
+        }
+    }
+
+    /**
+     * @return the delay (in ms) asked for by the Retry-After header of the response (seconds or HTTP date), 0 if there is none
+     */
+    private static long getRetryAfterMs(HttpResponse response) {
+        Map<String, String[]> responseHeaders = response.getResponseHeaders();
+
+        if (responseHeaders == null) {
+            return 0L;
+        }
+
+        for (Map.Entry<String, String[]> header : responseHeaders.entrySet()) {
+            if (!"Retry-After".equalsIgnoreCase(header.getKey()) || header.getValue() == null || header.getValue().length == 0) {
+                continue;
+            }
+
+            String value = StringUtils.trimToEmpty(header.getValue()[0]);
+
+            try {
+                return Math.max(0L, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+            } catch (NumberFormatException e) {
+                try {
+                    return Math.max(0L, ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli() - System.currentTimeMillis());
+                } catch (DateTimeParseException e2) {
+                    log.debug("Ignoring invalid Retry-After header: {}", value);
+                }
+            }
+        }
+
+        return 0L;
+    }
+
+    /**
+     * @return the statements joined into a single xAPI statement array
+     */
+    private static byte[] toStatementArray(List<byte[]> statements) {
+        int length = statements.size() + 1;
+        for (byte[] statement : statements) {
+            length += statement.length;
+        }
+
+        byte[] data = new byte[length];
+        int position = 0;
+        data[position++] = '[';
+
+        for (int i = 0; i < statements.size(); i++) {
+            if (i > 0) {
+                data[position++] = ',';
+            }
+
+            byte[] statement = statements.get(i);
+            System.arraycopy(statement, 0, data, position, statement.length);
+            position += statement.length;
+        }
+
+        data[position] = ']';
+
+        return data;
+    }
+
+    /**
+     * @return the UTF-8 statement data as a string for logging
+     */
+    private static String asString(byte[] data) {
+        return new String(data, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the authentication of the target: Basic, a bearer token (fixed or from the token endpoint) or OAuth, the first
+     *     one configured
+     */
+    private static LrsAuthentication createAuthentication(String name, TargetConfig config, LrsTransport tokenTransport) {
+        if (StringUtils.isNotEmpty(config.getBasicAuthString())) {
+            return new BasicAuthentication(config.getBasicAuthString());
+        } else if (StringUtils.isNotEmpty(config.getBearerToken())) {
+            return new BearerTokenAuthentication(config.getBearerToken());
+        } else if (StringUtils.isNotEmpty(config.getTokenUrl())) {
+            return new BearerTokenAuthentication(name, tokenTransport, config.getTokenUrl(), config.getClientId(), config.getClientSecret(), config.getTokenScope());
+        }
+
+        return new OAuthAuthentication(config.getConsumerKey(), config.getConsumerSecret(), config.getRealm());
+    }
+
+}
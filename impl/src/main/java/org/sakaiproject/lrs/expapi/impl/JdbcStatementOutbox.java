@@ -0,0 +1,565 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.sql.DataSource;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sakaiproject.lrs.expapi.impl.StatementSink.DeliveryResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the statements in a database table until they are delivered, so the statements of a node which stops survive it
+ * and any node of the cluster can send them. Statements are queued in memory and written by a single thread, many rows
+ * per transaction (group commit), so the caller never waits for the database.
+ * <p>
+ * Drainer threads on every node claim the oldest undelivered rows of the provider by setting a lease on them with a
+ * conditional update (only rows without a current lease are taken, whichever node updates a row first has it), send them
+ * as one batch and mark them delivered. Rows whose delivery has to be retried get a lease for the retry interval instead,
+ * and the rows of a node which died while sending are taken over once their lease expires. With skip locked enabled the
+ * candidate rows are read with SELECT ... FOR UPDATE SKIP LOCKED (MySQL 8, PostgreSQL), so the drainers of the cluster
+ * skip each other's rows instead of competing for them. Delivered rows are deleted once the retention time has passed.
+ * Delivery is at least once, a statement may be sent again if its lease expires while it is being sent.
+ */
+public class JdbcStatementOutbox {
+
+    private static final Logger log = LoggerFactory.getLogger(JdbcStatementOutbox.class);
+
+    private static final long IDLE_POLL_MS = 1000L;
+    private static final long PRUNE_INTERVAL_MS = 60000L;
+
+    private static final class Pending {
+        private final byte[] statement;
+        private final long enqueued = System.nanoTime();
+
+        Pending(byte[] statement) {
+            this.statement = statement;
+        }
+    }
+
+    private static final class Row {
+        private final String id;
+        private final byte[] statement;
+
+        Row(String id, byte[] statement) {
+            this.id = id;
+            this.statement = statement;
+        }
+    }
+
+    private final String id;
+    private final DataSource dataSource;
+    private final String table;
+    private final StatementSink sink;
+    private final Consumer<List<byte[]>> fallback;
+    private final BlockingQueue<Pending> queue;
+    private final int commitSize;
+    private final long commitIntervalMs;
+    private volatile int claimSize;
+    private final long leaseMs;
+    private final long retryMs;
+    private final long pollIntervalMs;
+    private final long retentionMs;
+    private final AtomicLong nextPrune = new AtomicLong();
+    private long lastCreated;
+    private final List<Thread> threads = new ArrayList<>();
+
+    private boolean skipLocked;
+    private volatile boolean running;
+
+    /**
+     * @param id the LRS provider id, the rows of each provider are kept apart
+     * @param table the name of the outbox table
+     * @param sink where the claimed statements are delivered to
+     * @param fallback receives the statements which could not be written to the table
+     * @param queueSize maximum number of statements waiting to be written
+     * @param commitSize maximum number of statements written in one transaction
+     * @param commitIntervalMs maximum time (in ms) a statement waits for more statements to be written with
+     * @param claimSize maximum number of statements claimed and sent at once
+     * @param leaseMs time (in ms) a node has to deliver the statements it claimed before other nodes may take them
+     * @param retryMs time (in ms) before statements whose delivery failed are claimed again
+     * @param pollIntervalMs time (in ms) a drainer waits when there is nothing to send
+     * @param retentionMs time (in ms) delivered statements are kept
+     */
+    public JdbcStatementOutbox(String id, DataSource dataSource, String table, StatementSink sink, Consumer<List<byte[]>> fallback,
+        int queueSize, int commitSize, long commitIntervalMs, int claimSize, long leaseMs, long retryMs, long pollIntervalMs, long retentionMs) {
+        this.id = id;
+        this.dataSource = dataSource;
+        this.table = table;
+        this.sink = sink;
+        this.fallback = fallback;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.commitSize = Math.max(1, commitSize);
+        this.commitIntervalMs = Math.max(0L, commitIntervalMs);
+        this.claimSize = Math.max(1, claimSize);
+        this.leaseMs = Math.max(1000L, leaseMs);
+        this.retryMs = Math.max(0L, retryMs);
+        this.pollIntervalMs = Math.max(10L, pollIntervalMs);
+        this.retentionMs = Math.max(0L, retentionMs);
+    }
+
+    /**
+     * Read the candidate rows with SELECT ... LIMIT n FOR UPDATE SKIP LOCKED, the database must support it
+     */
+    public void setSkipLocked(boolean skipLocked) {
+        this.skipLocked = skipLocked;
+    }
+
+    /**
+     * Change the maximum number of statements claimed and sent at once, from the next claim on
+     */
+    public void setClaimSize(int claimSize) {
+        this.claimSize = Math.max(1, claimSize);
+    }
+
+    /**
+     * Create the table if it does not exist yet
+     */
+    public void createTable() throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement check = connection.createStatement()) {
+                check.executeQuery("SELECT COUNT(*) FROM " + table + " WHERE 1 = 0").close();
+                return;
+            } catch (SQLException e) {
+                log.debug("{} LRS outbox table {} not found, creating it", id, table, e);
+            }
+
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+
+            String product = StringUtils.lowerCase(connection.getMetaData().getDatabaseProductName());
+            boolean oracle = StringUtils.contains(product, "oracle");
+            String bigint = oracle ? "NUMBER(19)" : "BIGINT";
+            String varchar = oracle ? "VARCHAR2" : "VARCHAR";
+            String blob = StringUtils.contains(product, "mysql") || StringUtils.contains(product, "mariadb") ? "MEDIUMBLOB" : "BLOB";
+
+            try (Statement ddl = connection.createStatement()) {
+                ddl.executeUpdate("CREATE TABLE " + table + " (OUTBOX_ID " + varchar + "(36) NOT NULL, PROVIDER_ID " + varchar + "(99) NOT NULL, "
+                    + "CREATED " + bigint + " NOT NULL, LEASE_OWNER " + varchar + "(36), LEASE_UNTIL " + bigint + " NOT NULL, "
+                    + "ATTEMPTS INTEGER NOT NULL, DELIVERED " + bigint + ", STATEMENT " + blob + " NOT NULL, PRIMARY KEY (OUTBOX_ID))");
+                ddl.executeUpdate("CREATE INDEX " + table + "_CLAIM ON " + table + " (PROVIDER_ID, DELIVERED, LEASE_UNTIL, CREATED)");
+            }
+
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+
+            log.info("{} LRS outbox created table {}", id, table);
+        }
+    }
+
+    /**
+     * Start the writer and the drainers
+     *
+     * @param drainers number of threads claiming and sending statements
+     */
+    public synchronized void start(int drainers) {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        startThread(this::write, "LRS-" + id + "-outbox-writer");
+
+        for (int i = 0; i < Math.max(1, drainers); i++) {
+            startThread(this::drain, "LRS-" + id + "-outbox-drainer-" + i);
+        }
+
+        log.info("{} LRS outbox started on table {} with {} drainer(s), claiming {} statement(s) at a time{}", id, table, Math.max(1, drainers),
+            claimSize, skipLocked ? " (skip locked)" : "");
+    }
+
+    /**
+     * Queue a statement for writing, never blocks
+     *
+     * @return false if the outbox is stopped or its queue is full
+     */
+    public boolean append(byte[] statement) {
+        return running && queue.offer(new Pending(statement));
+    }
+
+    /**
+     * @return the number of statements waiting to be written
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return how long (in ms) the oldest statement has been waiting to be written, 0 if there is none
+     */
+    public long getOldestAgeMs() {
+        Pending oldest = queue.peek();
+        return oldest != null ? TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - oldest.enqueued) : 0L;
+    }
+
+    /**
+     * Stop taking statements, write the queued ones and stop the drainers once their current batch is done
+     *
+     * @param timeoutMs maximum time (in ms) to wait for the threads
+     */
+    public void shutdown(long timeoutMs) {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        for (Thread thread : threads) {
+            try {
+                thread.join(Math.max(1L, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (thread.isAlive()) {
+                thread.interrupt();
+            }
+        }
+
+        threads.clear();
+
+        if (!queue.isEmpty()) {
+            List<byte[]> unwritten = new ArrayList<>();
+
+            for (Pending pending = queue.poll(); pending != null; pending = queue.poll()) {
+                unwritten.add(pending.statement);
+            }
+
+            log.warn("{} LRS outbox stopped with {} unwritten statement(s)", id, unwritten.size());
+            fallback.accept(unwritten);
+        }
+    }
+
+    private void startThread(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        threads.add(thread);
+    }
+
+    /**
+     * Write the queued statements, as many as arrive within the commit interval in one transaction
+     */
+    private void write() {
+        List<byte[]> batch = new ArrayList<>(commitSize);
+
+        while (running || !queue.isEmpty()) {
+            try {
+                Pending first = queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                batch.add(first.statement);
+                long deadline = System.currentTimeMillis() + commitIntervalMs;
+
+                while (batch.size() < commitSize) {
+                    long remaining = deadline - System.currentTimeMillis();
+                    Pending next = remaining > 0 && running ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+
+                    if (next == null) {
+                        break;
+                    }
+
+                    batch.add(next.statement);
+                }
+
+                insert(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (SQLException e) {
+                log.error("{} LRS outbox failed to write {} statement(s)", id, batch.size(), e);
+                fallback.accept(new ArrayList<>(batch));
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void insert(List<byte[]> statements) throws SQLException {
+        // in microseconds and never the same twice on a node, so the rows of a transaction keep their order
+        long created = Math.max(TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()), lastCreated + 1L);
+
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement insert = connection.prepareStatement("INSERT INTO " + table
+                    + " (OUTBOX_ID, PROVIDER_ID, CREATED, LEASE_UNTIL, ATTEMPTS, STATEMENT) VALUES (?, ?, ?, 0, 0, ?)")) {
+                for (byte[] statement : statements) {
+                    insert.setString(1, UUID.randomUUID().toString());
+                    insert.setString(2, id);
+                    insert.setLong(3, created++);
+                    insert.setBytes(4, statement);
+                    insert.addBatch();
+                }
+
+                insert.executeBatch();
+                connection.commit();
+                lastCreated = created - 1L;
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Claim and send batches of statements until there are none left, then wait for the poll interval
+     */
+    private void drain() {
+        while (running) {
+            boolean sent = false;
+
+            try {
+                sent = drainBatch();
+                prune();
+            } catch (SQLException e) {
+                log.error("{} LRS outbox failed to read from table {}", id, table, e);
+            } catch (RuntimeException e) {
+                log.error("{} LRS outbox failed to send statements", id, e);
+            }
+
+            if (!sent) {
+                try {
+                    Thread.sleep(pollIntervalMs);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if a batch was claimed and delivered, false if there was nothing to send or it must be retried
+     */
+    boolean drainBatch() throws SQLException {
+        String owner = UUID.randomUUID().toString();
+        List<Row> rows = claim(owner);
+
+        if (rows.isEmpty()) {
+            return false;
+        }
+
+        List<byte[]> statements = new ArrayList<>(rows.size());
+
+        for (Row row : rows) {
+            statements.add(row.statement);
+        }
+
+        DeliveryResult result = sink.deliver(statements, 0L).join();
+
+        if (result == DeliveryResult.RETRY) {
+            release(rows, owner);
+            return false;
+        }
+
+        complete(rows);
+        return true;
+    }
+
+    /**
+     * Lease the oldest rows which are neither delivered nor leased to the owner
+     */
+    private List<Row> claim(String owner) throws SQLException {
+        long now = System.currentTimeMillis();
+        int size = claimSize;
+        List<Row> candidates = new ArrayList<>(size);
+        List<Row> claimed = new ArrayList<>(size);
+
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try {
+                String select = "SELECT OUTBOX_ID, STATEMENT FROM " + table + " WHERE PROVIDER_ID = ? AND DELIVERED IS NULL AND LEASE_UNTIL < ? "
+                    + "ORDER BY CREATED" + (skipLocked ? " LIMIT " + size + " FOR UPDATE SKIP LOCKED" : "");
+
+                try (PreparedStatement query = connection.prepareStatement(select)) {
+                    query.setString(1, id);
+                    query.setLong(2, now);
+                    query.setMaxRows(size);
+
+                    try (ResultSet results = query.executeQuery()) {
+                        while (results.next()) {
+                            candidates.add(new Row(results.getString(1), results.getBytes(2)));
+                        }
+                    }
+                }
+
+                if (candidates.isEmpty()) {
+                    connection.commit();
+                    return claimed;
+                }
+
+                // only rows nobody leased in the meantime are taken, whoever updates a row first has it
+                boolean unknownCounts = false;
+
+                try (PreparedStatement lease = connection.prepareStatement("UPDATE " + table
+                        + " SET LEASE_OWNER = ?, LEASE_UNTIL = ? WHERE OUTBOX_ID = ? AND DELIVERED IS NULL AND LEASE_UNTIL < ?")) {
+                    for (Row candidate : candidates) {
+                        lease.setString(1, owner);
+                        lease.setLong(2, now + leaseMs);
+                        lease.setString(3, candidate.id);
+                        lease.setLong(4, now);
+                        lease.addBatch();
+                    }
+
+                    int[] counts = lease.executeBatch();
+
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] == Statement.SUCCESS_NO_INFO) {
+                            unknownCounts = true;
+                        } else if (counts[i] > 0) {
+                            claimed.add(candidates.get(i));
+                        }
+                    }
+                }
+
+                connection.commit();
+
+                if (unknownCounts) {
+                    claimed = leasedTo(connection, owner, candidates);
+                }
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+
+        return claimed;
+    }
+
+    /**
+     * @return the candidates leased to the owner, for drivers which do not report the count of each update of a batch
+     */
+    private List<Row> leasedTo(Connection connection, String owner, List<Row> candidates) throws SQLException {
+        List<String> ids = new ArrayList<>();
+
+        try (PreparedStatement query = connection.prepareStatement("SELECT OUTBOX_ID FROM " + table + " WHERE LEASE_OWNER = ?")) {
+            query.setString(1, owner);
+
+            try (ResultSet results = query.executeQuery()) {
+                while (results.next()) {
+                    ids.add(results.getString(1));
+                }
+            }
+        }
+
+        connection.commit();
+        List<Row> claimed = new ArrayList<>(ids.size());
+
+        for (Row candidate : candidates) {
+            if (ids.contains(candidate.id)) {
+                claimed.add(candidate);
+            }
+        }
+
+        return claimed;
+    }
+
+    /**
+     * Mark the rows delivered, whoever holds their lease now
+     */
+    private void complete(List<Row> rows) throws SQLException {
+        update(rows, "UPDATE " + table + " SET DELIVERED = ?, LEASE_OWNER = NULL WHERE OUTBOX_ID = ?", System.currentTimeMillis(), null);
+    }
+
+    /**
+     * Keep the rows for a retry, unless another node took them over in the meantime
+     */
+    private void release(List<Row> rows, String owner) throws SQLException {
+        update(rows, "UPDATE " + table + " SET LEASE_UNTIL = ?, LEASE_OWNER = NULL, ATTEMPTS = ATTEMPTS + 1 WHERE OUTBOX_ID = ? AND LEASE_OWNER = ?",
+            System.currentTimeMillis() + retryMs, owner);
+    }
+
+    private void update(List<Row> rows, String sql, long time, String owner) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            boolean autoCommit = connection.getAutoCommit();
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement update = connection.prepareStatement(sql)) {
+                for (Row row : rows) {
+                    update.setLong(1, time);
+                    update.setString(2, row.id);
+
+                    if (owner != null) {
+                        update.setString(3, owner);
+                    }
+
+                    update.addBatch();
+                }
+
+                update.executeBatch();
+                connection.commit();
+            } catch (SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(autoCommit);
+            }
+        }
+    }
+
+    /**
+     * Delete the rows delivered before the retention time, at most once per prune interval on each node
+     */
+    private void prune() throws SQLException {
+        long now = System.currentTimeMillis();
+        long due = nextPrune.get();
+
+        if (now < due || !nextPrune.compareAndSet(due, now + PRUNE_INTERVAL_MS)) {
+            return;
+        }
+
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement delete = connection.prepareStatement("DELETE FROM " + table + " WHERE PROVIDER_ID = ? AND DELIVERED < ?")) {
+            delete.setString(1, id);
+            delete.setLong(2, now - retentionMs);
+            int deleted = delete.executeUpdate();
+
+            if (!connection.getAutoCommit()) {
+                connection.commit();
+            }
+
+            if (deleted > 0) {
+                log.debug("{} LRS outbox deleted {} delivered statement(s)", id, deleted);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free latency histogram with power of two buckets (in microseconds). Recording never allocates or locks, the price is
+ * that percentiles are only known to within a factor of two, which is plenty to tell a 5 ms round-trip from a 500 ms one.
+ */
+public class LatencyHistogram {
+
+    // bucket 0 holds values under 1 us, bucket i values from 2^(i-1) to 2^i - 1 us, the last one everything above
+    private static final int BUCKETS = 40;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder totalMicros = new LongAdder();
+    private final AtomicLong maxMicros = new AtomicLong();
+
+    /**
+     * @param nanos the measured duration
+     */
+    public void record(long nanos) {
+        long micros = Math.max(0L, nanos / 1000L);
+        buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+        count.increment();
+        totalMicros.add(micros);
+
+        long max = maxMicros.get();
+        while (micros > max && !maxMicros.compareAndSet(max, micros)) {
+            max = maxMicros.get();
+        }
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMeanMicros() {
+        long samples = count.sum();
+        return samples == 0 ? 0L : totalMicros.sum() / samples;
+    }
+
+    public long getMaxMicros() {
+        return maxMicros.get();
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return the upper bound (in us) of the bucket holding the percentile, 0 if nothing was recorded
+     */
+    public long getPercentileMicros(double percentile) {
+        long[] snapshot = new long[BUCKETS];
+        long total = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = buckets.get(i);
+            total += snapshot[i];
+        }
+
+        if (total == 0) {
+            return 0L;
+        }
+
+        long target = Math.max(1L, (long) Math.ceil(total * Math.min(100.0, Math.max(0.0, percentile)) / 100.0));
+        long seen = 0;
+
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+
+            if (seen >= target) {
+                // the last bucket has no upper bound of its own
+                return i < BUCKETS - 1 ? Math.min((1L << i) - 1, getMaxMicros()) : getMaxMicros();
+            }
+        }
+
+        return getMaxMicros();
+    }
+
+    @Override
+    public String toString() {
+        return "count=" + getCount() + ", mean=" + getMeanMicros() + "us, p50=" + getPercentileMicros(50) + "us, p99="
+            + getPercentileMicros(99) + "us, max=" + getMaxMicros() + "us";
+    }
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.IOException;
+
+/**
+ * How the requests to an LRS are authorized. Implementations must be safe to call from any number of threads at once, the
+ * authorization is worked out once per request (so once per batch of statements).
+ */
+public interface LrsAuthentication {
+
+    /**
+     * @return the Authorization header value of every request, computed once so it can be part of the shared request
+     *     headers, null if it depends on the request or changes over time
+     */
+    String getStaticAuthorization();
+
+    /**
+     * @param method the HTTP method of the request
+     * @param url the url of the request
+     * @return the Authorization header value of the request
+     * @throws IOException if the request cannot be authorized (it is not sent)
+     */
+    String getAuthorization(String method, String url) throws IOException;
+
+    /**
+     * Start the background work (if any), before the first request
+     */
+    default void start() {
+    }
+
+    /**
+     * Called when the LRS refused the authorization of a request (401)
+     *
+     * @return true if the following requests are authorized differently (a new token), so the refused one is worth sending
+     *     again, false if they would be refused the same way
+     */
+    default boolean rejected() {
+        return false;
+    }
+
+    /**
+     * Stop the background work (if any), the requests already authorized may still be sent
+     */
+    default void shutdown() {
+    }
+
+}
@@ -0,0 +1,224 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringUtils;
+import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Checks in the background that the LRS is reachable and speaks our xAPI version by reading its about resource, which
+ * (unlike sending a test statement) leaves nothing behind in the LRS. The first check runs as soon as the prober starts,
+ * the provider does not wait for it.
+ */
+public class LrsHealthProber {
+
+    private static final Logger log = LoggerFactory.getLogger(LrsHealthProber.class);
+
+    public enum State {
+        UNKNOWN, UP, DOWN
+    }
+
+    /**
+     * Notified (outside of any lock) each time the health changes
+     */
+    public interface Listener {
+        void stateChanged(LrsHealthProber prober, State from, State to);
+    }
+
+    private final String id;
+    private final LrsTransport transport;
+    private final String aboutUrl;
+    private final Map<String, String> headers;
+    private final String apiVersion;
+    private final long intervalMs;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean probing = new AtomicBoolean();
+    private final JSONTranscoder jsonTranscoder = new JSONTranscoder(true, true, false);
+
+    private volatile State state = State.UNKNOWN;
+    private volatile String problem;
+    private volatile long lastCheck;
+    private ScheduledExecutorService executor;
+
+    /**
+     * @param id the LRS provider id
+     * @param aboutUrl the url of the LRS about resource
+     * @param headers the request headers
+     * @param apiVersion the xAPI version the LRS must support (only the major and minor version are compared)
+     * @param intervalMs time (in ms) between two checks
+     */
+    public LrsHealthProber(String id, LrsTransport transport, String aboutUrl, Map<String, String> headers, String apiVersion, long intervalMs) {
+        this.id = id;
+        this.transport = transport;
+        this.aboutUrl = aboutUrl;
+        this.headers = headers;
+        this.apiVersion = apiVersion;
+        this.intervalMs = Math.max(1000L, intervalMs);
+    }
+
+    /**
+     * @return the about resource next to the statements resource of the url (.../xAPI/statements becomes .../xAPI/about)
+     */
+    public static String getAboutUrl(String statementsUrl) {
+        String base = StringUtils.removeEnd(statementsUrl, "/");
+        base = StringUtils.endsWith(base, "/statements") ? StringUtils.removeEnd(base, "statements") : base + "/";
+        return base + "about";
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LRS-" + id + "-health");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(this::probe, 0L, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void shutdown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return why the last check failed, null if it succeeded
+     */
+    public String getProblem() {
+        return problem;
+    }
+
+    /**
+     * @return when the last check completed (in ms since the epoch), 0 if none did yet
+     */
+    public long getLastCheck() {
+        return lastCheck;
+    }
+
+    /**
+     * Check the LRS now, unless the previous check is still waiting for an answer
+     */
+    void probe() {
+        if (!probing.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            transport.get(aboutUrl, headers).whenComplete((response, failure) -> {
+                try {
+                    if (failure != null) {
+                        update("cannot reach " + aboutUrl + ": " + failure);
+                    } else {
+                        update(check(response));
+                    }
+                } finally {
+                    probing.set(false);
+                }
+            });
+        } catch (RuntimeException e) {
+            probing.set(false);
+            update("cannot reach " + aboutUrl + ": " + e);
+        }
+    }
+
+    /**
+     * @return why the response shows the LRS is not usable, null if it is
+     */
+    private String check(HttpResponse response) {
+        int code = response.getResponseCode();
+
+        if (code < 200 || code >= 300) {
+            return aboutUrl + " answered " + code + " " + response.getResponseMessage();
+        }
+
+        Object versions;
+
+        try {
+            versions = jsonTranscoder.decode(response.getResponseBody()).get("version");
+        } catch (RuntimeException e) {
+            return aboutUrl + " did not answer with an about resource: " + response.getResponseBody();
+        }
+
+        String wanted = apiVersion.substring(0, apiVersion.lastIndexOf('.') + 1);
+
+        if (versions instanceof Collection) {
+            for (Object version : (Collection<?>) versions) {
+                if (String.valueOf(version).startsWith(wanted)) {
+                    return null;
+                }
+            }
+        } else if (versions instanceof Object[]) {
+            for (Object version : (Object[]) versions) {
+                if (String.valueOf(version).startsWith(wanted)) {
+                    return null;
+                }
+            }
+        }
+
+        return "the LRS does not support xAPI " + apiVersion + " (versions: " + versions + ")";
+    }
+
+    private void update(String failure) {
+        State from;
+        State to = failure == null ? State.UP : State.DOWN;
+
+        synchronized (this) {
+            from = state;
+            problem = failure;
+            lastCheck = System.currentTimeMillis();
+            state = to;
+        }
+
+        if (from == to) {
+            return;
+        }
+
+        if (to == State.UP) {
+            log.info("{} LRS provider health {} -> {}, the LRS at {} is ready", id, from, to, aboutUrl);
+        } else {
+            log.warn("{} LRS provider health {} -> {}, statements are held back: {}", id, from, to, failure);
+        }
+
+        for (Listener listener : listeners) {
+            listener.stateChanged(this, from, to);
+        }
+    }
+
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/**
+ * Counters, gauges and latency histograms of one LRS provider. Recording only touches striped counters and atomic arrays,
+ * it never allocates or locks. The metrics of every running provider can be polled through {@link #get(String)} and
+ * {@link #getAll()}, or over JMX.
+ */
+public class LrsMetrics implements LrsMetricsMBean {
+
+    private static final ConcurrentMap<String, LrsMetrics> REGISTRY = new ConcurrentHashMap<>();
+    // codes outside of 100-599 are counted together at index 0
+    private static final int MAX_CODE = 600;
+
+    private final String id;
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder parked = new LongAdder();
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder filtered = new LongAdder();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder shed = new LongAdder();
+    private final LongAdder transportErrors = new LongAdder();
+    private final AtomicLongArray responseCodes = new AtomicLongArray(MAX_CODE);
+    private final LatencyHistogram serialize = new LatencyHistogram();
+    private final LatencyHistogram sign = new LatencyHistogram();
+    private final LatencyHistogram roundTrip = new LatencyHistogram();
+    private final LatencyHistogram highLaneDelivery = new LatencyHistogram();
+    private final LatencyHistogram lowLaneDelivery = new LatencyHistogram();
+
+    private volatile IntSupplier queueDepth;
+    private volatile LongSupplier queueOldestAgeMs;
+    private volatile IntSupplier spoolSegments;
+    private volatile Supplier<String> circuitState;
+    private volatile Supplier<String> healthState;
+    private volatile Supplier<String> filterHits;
+    private volatile IntSupplier highLaneDepth;
+    private volatile IntSupplier lowLaneDepth;
+    private volatile LatencyHistogram highLaneWait;
+    private volatile LatencyHistogram lowLaneWait;
+    private volatile IntSupplier largestPartitionDepth;
+    private volatile Supplier<String> endpoints;
+
+    public LrsMetrics(String id) {
+        this.id = id;
+    }
+
+    /**
+     * Make the metrics available through {@link #get(String)}, replacing any earlier metrics with the same id
+     */
+    public static void register(LrsMetrics metrics) {
+        REGISTRY.put(metrics.getId(), metrics);
+    }
+
+    public static void unregister(LrsMetrics metrics) {
+        REGISTRY.remove(metrics.getId(), metrics);
+    }
+
+    /**
+     * @return the metrics of the provider with this id, null if there is none running
+     */
+    public static LrsMetrics get(String id) {
+        return REGISTRY.get(id);
+    }
+
+    /**
+     * @return the metrics of all running providers
+     */
+    public static Collection<LrsMetrics> getAll() {
+        return Collections.unmodifiableCollection(REGISTRY.values());
+    }
+
+    public void statementsSent(int count) {
+        sent.add(count);
+    }
+
+    public void statementsFailed(int count) {
+        failed.add(count);
+    }
+
+    public void statementsRejected(int count) {
+        rejected.add(count);
+    }
+
+    public void statementsParked(int count) {
+        parked.add(count);
+    }
+
+    public void statementsSpooled(int count) {
+        spooled.add(count);
+    }
+
+    public void statementsDropped(int count) {
+        dropped.add(count);
+    }
+
+    public void statementsSuppressed(int count) {
+        suppressed.add(count);
+    }
+
+    public void statementsFiltered(int count) {
+        filtered.add(count);
+    }
+
+    public void statementsCoalesced(int count) {
+        coalesced.add(count);
+    }
+
+    public void statementsShed(int count) {
+        shed.add(count);
+    }
+
+    public void transportError() {
+        transportErrors.increment();
+    }
+
+    public void responseCode(int code) {
+        responseCodes.incrementAndGet(code >= 100 && code < MAX_CODE ? code : 0);
+    }
+
+    /**
+     * @param nanos time taken to map and serialize a statement
+     */
+    public void serializeTime(long nanos) {
+        serialize.record(nanos);
+    }
+
+    /**
+     * @param nanos time taken to authorize a request (OAuth signature or bearer token)
+     */
+    public void signTime(long nanos) {
+        sign.record(nanos);
+    }
+
+    /**
+     * @param nanos time from sending a request to receiving its response
+     */
+    public void roundTripTime(long nanos) {
+        roundTrip.record(nanos);
+    }
+
+    /**
+     * @param nanos time from handing a batch of the lane over for delivery to its outcome
+     */
+    public void laneDeliveryTime(StatementDispatcher.Lane lane, long nanos) {
+        (lane == StatementDispatcher.Lane.HIGH ? highLaneDelivery : lowLaneDelivery).record(nanos);
+    }
+
+    public void setQueueGauges(IntSupplier queueDepth, LongSupplier queueOldestAgeMs) {
+        this.queueDepth = queueDepth;
+        this.queueOldestAgeMs = queueOldestAgeMs;
+    }
+
+    public void setSpoolGauge(IntSupplier spoolSegments) {
+        this.spoolSegments = spoolSegments;
+    }
+
+    public void setCircuitGauge(Supplier<String> circuitState) {
+        this.circuitState = circuitState;
+    }
+
+    public void setHealthGauge(Supplier<String> healthState) {
+        this.healthState = healthState;
+    }
+
+    public void setFilterGauge(Supplier<String> filterHits) {
+        this.filterHits = filterHits;
+    }
+
+    /**
+     * @param highLaneWait how long the oldest statement of each high priority batch waited in the queue
+     * @param lowLaneWait how long the oldest statement of each low priority batch waited in the queue
+     */
+    public void setLaneGauges(IntSupplier highLaneDepth, IntSupplier lowLaneDepth, LatencyHistogram highLaneWait, LatencyHistogram lowLaneWait) {
+        this.highLaneDepth = highLaneDepth;
+        this.lowLaneDepth = lowLaneDepth;
+        this.highLaneWait = highLaneWait;
+        this.lowLaneWait = lowLaneWait;
+    }
+
+    public void setPartitionGauge(IntSupplier largestPartitionDepth) {
+        this.largestPartitionDepth = largestPartitionDepth;
+    }
+
+    public void setEndpointGauge(Supplier<String> endpoints) {
+        this.endpoints = endpoints;
+    }
+
+    public LatencyHistogram getSerializeHistogram() {
+        return serialize;
+    }
+
+    public LatencyHistogram getSignHistogram() {
+        return sign;
+    }
+
+    public LatencyHistogram getRoundTripHistogram() {
+        return roundTrip;
+    }
+
+    /**
+     * @return the number of responses with this code
+     */
+    public long getResponseCount(int code) {
+        return responseCodes.get(code >= 100 && code < MAX_CODE ? code : 0);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getStatementsSent() {
+        return sent.sum();
+    }
+
+    public long getStatementsFailed() {
+        return failed.sum();
+    }
+
+    public long getStatementsRejected() {
+        return rejected.sum();
+    }
+
+    public long getStatementsParked() {
+        return parked.sum();
+    }
+
+    public long getStatementsSpooled() {
+        return spooled.sum();
+    }
+
+    public long getStatementsDropped() {
+        return dropped.sum();
+    }
+
+    public long getStatementsSuppressed() {
+        return suppressed.sum();
+    }
+
+    public long getStatementsFiltered() {
+        return filtered.sum();
+    }
+
+    public long getStatementsCoalesced() {
+        return coalesced.sum();
+    }
+
+    public long getStatementsShed() {
+        return shed.sum();
+    }
+
+    public long getTransportErrors() {
+        return transportErrors.sum();
+    }
+
+    public String getResponseCodes() {
+        StringBuilder codes = new StringBuilder();
+
+        for (int code = 0; code < MAX_CODE; code++) {
+            long count = responseCodes.get(code);
+
+            if (count > 0) {
+                if (codes.length() > 0) {
+                    codes.append(", ");
+                }
+
+                codes.append(code == 0 ? "other" : String.valueOf(code)).append('=').append(count);
+            }
+        }
+
+        return codes.toString();
+    }
+
+    public int getQueueDepth() {
+        IntSupplier gauge = queueDepth;
+        return gauge != null ? gauge.getAsInt() : 0;
+    }
+
+    public long getQueueOldestAgeMs() {
+        LongSupplier gauge = queueOldestAgeMs;
+        return gauge != null ? gauge.getAsLong() : 0L;
+    }
+
+    public int getHighLaneDepth() {
+        IntSupplier gauge = highLaneDepth;
+        return gauge != null ? gauge.getAsInt() : 0;
+    }
+
+    public int getLowLaneDepth() {
+        IntSupplier gauge = lowLaneDepth;
+        return gauge != null ? gauge.getAsInt() : 0;
+    }
+
+    public long getHighLaneWaitP99Micros() {
+        LatencyHistogram histogram = highLaneWait;
+        return histogram != null ? histogram.getPercentileMicros(99) : 0L;
+    }
+
+    public long getLowLaneWaitP99Micros() {
+        LatencyHistogram histogram = lowLaneWait;
+        return histogram != null ? histogram.getPercentileMicros(99) : 0L;
+    }
+
+    public long getHighLaneDeliveryP99Micros() {
+        return highLaneDelivery.getPercentileMicros(99);
+    }
+
+    public long getLowLaneDeliveryP99Micros() {
+        return lowLaneDelivery.getPercentileMicros(99);
+    }
+
+    public int getLargestPartitionDepth() {
+        IntSupplier gauge = largestPartitionDepth;
+        return gauge != null ? gauge.getAsInt() : 0;
+    }
+
+    public int getSpoolSegments() {
+        IntSupplier gauge = spoolSegments;
+        return gauge != null ? gauge.getAsInt() : 0;
+    }
+
+    public String getCircuitState() {
+        Supplier<String> gauge = circuitState;
+        return gauge != null ? gauge.get() : null;
+    }
+
+    public String getHealthState() {
+        Supplier<String> gauge = healthState;
+        return gauge != null ? gauge.get() : null;
+    }
+
+    public String getFilterHits() {
+        Supplier<String> gauge = filterHits;
+        return gauge != null ? gauge.get() : "";
+    }
+
+    public String getEndpoints() {
+        Supplier<String> gauge = endpoints;
+        return gauge != null ? gauge.get() : "";
+    }
+
+    public long getSerializeMeanMicros() {
+        return serialize.getMeanMicros();
+    }
+
+    public long getSerializeP99Micros() {
+        return serialize.getPercentileMicros(99);
+    }
+
+    public long getSignMeanMicros() {
+        return sign.getMeanMicros();
+    }
+
+    public long getSignP99Micros() {
+        return sign.getPercentileMicros(99);
+    }
+
+    public long getRoundTripMeanMicros() {
+        return roundTrip.getMeanMicros();
+    }
+
+    public long getRoundTripP50Micros() {
+        return roundTrip.getPercentileMicros(50);
+    }
+
+    public long getRoundTripP99Micros() {
+        return roundTrip.getPercentileMicros(99);
+    }
+
+    public long getRoundTripMaxMicros() {
+        return roundTrip.getMaxMicros();
+    }
+
+    @Override
+    public String toString() {
+        return id + " LRS metrics: sent=" + getStatementsSent() + ", failed=" + getStatementsFailed() + ", rejected=" + getStatementsRejected()
+            + ", parked=" + getStatementsParked() + ", spooled=" + getStatementsSpooled() + ", dropped=" + getStatementsDropped()
+            + ", suppressed=" + getStatementsSuppressed() + ", filtered=" + getStatementsFiltered() + ", coalesced=" + getStatementsCoalesced()
+            + ", shed=" + getStatementsShed() + ", transport errors=" + getTransportErrors()
+            + ", responses=[" + getResponseCodes() + "], round-trip [" + roundTrip + "]"
+            + (endpoints != null ? ", endpoints [" + getEndpoints() + "]" : "");
+    }
+
+}
@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+/**
+ * JMX view of the metrics of one LRS provider, registered as {@code org.sakaiproject.lrs.expapi:type=LrsMetrics,id=[id]}.
+ * Latencies are in microseconds.
+ */
+public interface LrsMetricsMBean {
+
+    String getId();
+
+    long getStatementsSent();
+
+    long getStatementsFailed();
+
+    long getStatementsRejected();
+
+    long getStatementsParked();
+
+    long getStatementsSpooled();
+
+    long getStatementsDropped();
+
+    /**
+     * @return the number of duplicate statements dropped before they were sent
+     */
+    long getStatementsSuppressed();
+
+    /**
+     * @return the number of statements the filter rules dropped
+     */
+    long getStatementsFiltered();
+
+    /**
+     * @return the number of statements merged into the aggregate statement of an earlier one
+     */
+    long getStatementsCoalesced();
+
+    /**
+     * @return the number of low priority statements dropped because their lane was full
+     */
+    long getStatementsShed();
+
+    long getTransportErrors();
+
+    /**
+     * @return the number of responses for each response code, as "code=count" pairs
+     */
+    String getResponseCodes();
+
+    int getQueueDepth();
+
+    long getQueueOldestAgeMs();
+
+    int getHighLaneDepth();
+
+    int getLowLaneDepth();
+
+    /**
+     * @return the 99th percentile of the time the oldest statement of each high priority batch waited in the queue
+     */
+    long getHighLaneWaitP99Micros();
+
+    long getLowLaneWaitP99Micros();
+
+    /**
+     * @return the 99th percentile of the time from handing a high priority batch over for delivery to its outcome
+     */
+    long getHighLaneDeliveryP99Micros();
+
+    long getLowLaneDeliveryP99Micros();
+
+    /**
+     * @return the number of statements waiting in the fullest partition of a partitioned dispatcher, 0 when not partitioned
+     */
+    int getLargestPartitionDepth();
+
+    int getSpoolSegments();
+
+    String getCircuitState();
+
+    /**
+     * @return the health of the LRS according to the last check: UNKNOWN, UP or DOWN
+     */
+    String getHealthState();
+
+    /**
+     * @return the number of statements each filter rule matched, as "[rule]=count" pairs
+     */
+    String getFilterHits();
+
+    /**
+     * @return the state, requests waiting, requests, errors, ejections and latency of each node of an endpoint pool
+     */
+    String getEndpoints();
+
+    long getSerializeMeanMicros();
+
+    long getSerializeP99Micros();
+
+    long getSignMeanMicros();
+
+    long getSignP99Micros();
+
+    long getRoundTripMeanMicros();
+
+    long getRoundTripP50Micros();
+
+    long getRoundTripP99Micros();
+
+    long getRoundTripMaxMicros();
+
+}
@@ -0,0 +1,60 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+
+/**
+ * Sends requests to an LRS. Implementations must be safe to call from any number of threads at once.
+ */
+public interface LrsTransport {
+
+    /**
+     * POST the body to the url
+     *
+     * @param headers the request headers, never modified
+     * @return completes with the response, or exceptionally if the request could not be sent
+     */
+    default CompletableFuture<HttpResponse> post(String url, Map<String, String> headers, byte[] body) {
+        return post(url, headers, body, 0);
+    }
+
+    /**
+     * POST the body to the url, with a request timeout of its own
+     *
+     * @param headers the request headers, never modified
+     * @param timeout request timeout (in ms), 0 for the timeout of the transport
+     * @return completes with the response, or exceptionally if the request could not be sent
+     */
+    CompletableFuture<HttpResponse> post(String url, Map<String, String> headers, byte[] body, int timeout);
+
+    /**
+     * GET the url
+     *
+     * @param headers the request headers, never modified
+     * @return completes with the response, or exceptionally if the request could not be sent
+     */
+    CompletableFuture<HttpResponse> get(String url, Map<String, String> headers);
+
+    /**
+     * Release the connections, the transport cannot be used afterwards
+     */
+    void shutdown();
+
+}
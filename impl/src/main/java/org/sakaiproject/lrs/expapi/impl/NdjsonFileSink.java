@@ -0,0 +1,416 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes statements to local files instead of an LRS, as newline delimited JSON (one statement per line) in gzip files ready
+ * for a bulk import. The file being written ends in .part and is renamed once it is complete, when it reaches the maximum
+ * size or age.
+ * <p>
+ * A single thread does all the writing with group commits: it takes every statement waiting when it is ready, compresses
+ * them into a buffer written to the file in large chunks and forces the file to disk once for the whole group before the
+ * deliveries complete. Under load the groups grow, so the cost of the forced writes is shared by more statements.
+ */
+public class NdjsonFileSink implements StatementSink {
+
+    private static final Logger log = LoggerFactory.getLogger(NdjsonFileSink.class);
+
+    private static final String FILE_SUFFIX = ".ndjson.gz";
+    private static final String PART_SUFFIX = ".part";
+    private static final int BUFFER_SIZE = 256 * 1024;
+    private static final int LINES_SIZE = 64 * 1024;
+    private static final int MAX_GROUP = 10000;
+    private static final long IDLE_POLL_MS = 1000L;
+
+    private final String id;
+    private final File directory;
+    private final long maxFileSize;
+    private final long maxFileAgeMs;
+    private final int level;
+    private final LrsMetrics metrics;
+    private final LinkedBlockingQueue<Append> pending = new LinkedBlockingQueue<>();
+
+    private volatile boolean running;
+    private Thread writer;
+
+    // only used by the writer thread
+    private File partFile;
+    private FileChannel channel;
+    private ChannelOutput output;
+    private GZIPOutputStream gzip;
+    private long fileStarted;
+    private int fileSequence;
+    // the lines are collected here to be compressed in large chunks, deflating each line on its own costs more
+    private final byte[] lines = new byte[LINES_SIZE];
+    private int linesLength;
+
+    private static final class Append {
+        private final List<byte[]> statements;
+        private final CompletableFuture<DeliveryResult> result = new CompletableFuture<>();
+
+        Append(List<byte[]> statements) {
+            this.statements = statements;
+        }
+    }
+
+    /**
+     * Buffers the compressed data to write it to the file in large chunks
+     */
+    private static final class ChannelOutput extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        private long written;
+
+        ChannelOutput(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length > buffer.remaining()) {
+                drain();
+            }
+
+            if (length >= buffer.capacity()) {
+                writeFully(ByteBuffer.wrap(bytes, offset, length));
+            } else {
+                buffer.put(bytes, offset, length);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            drain();
+        }
+
+        /**
+         * @return the size (in bytes) of the file once the buffer is written
+         */
+        long size() {
+            return written + buffer.position();
+        }
+
+        private void drain() throws IOException {
+            buffer.flip();
+            writeFully(buffer);
+            buffer.clear();
+        }
+
+        private void writeFully(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                written += channel.write(data);
+            }
+        }
+    }
+
+    /**
+     * @param id the LRS provider id
+     * @param directory where the files are written, created if needed
+     * @param maxFileSize size (in compressed bytes) at which a file is completed
+     * @param maxFileAgeMs time (in ms) after which a file is completed, even if it is small
+     * @param level the gzip compression level (1-9)
+     */
+    public NdjsonFileSink(String id, File directory, long maxFileSize, long maxFileAgeMs, int level, LrsMetrics metrics) {
+        this.id = id;
+        this.directory = directory;
+        this.maxFileSize = Math.max(BUFFER_SIZE, maxFileSize);
+        this.maxFileAgeMs = Math.max(1000L, maxFileAgeMs);
+        this.level = level;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Complete the files left by a previous run and start the writer thread
+     *
+     * @throws IOException if the directory cannot be used
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create LRS export directory " + directory);
+        }
+
+        File[] leftovers = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(FILE_SUFFIX + PART_SUFFIX);
+            }
+        });
+
+        if (leftovers != null) {
+            for (File leftover : leftovers) {
+                // everything up to the last group commit can be read back, only the gzip trailer is missing
+                log.warn("{} LRS export keeping the statements of the interrupted file {}", id, leftover);
+                complete(leftover);
+            }
+        }
+
+        running = true;
+        writer = new Thread(this::run, "LRS-" + id + "-export");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public CompletableFuture<DeliveryResult> deliver(List<byte[]> statements, long maxWaitMs) {
+        Append append = new Append(statements);
+
+        if (!running) {
+            append.result.complete(DeliveryResult.RETRY);
+            return append.result;
+        }
+
+        pending.add(append);
+
+        // lost the race with shutdown, make sure the delivery does not wait forever
+        if (!running && pending.remove(append)) {
+            append.result.complete(DeliveryResult.RETRY);
+        }
+
+        return append.result;
+    }
+
+    /**
+     * Write the statements still waiting and complete the current file
+     */
+    public void shutdown() {
+        Thread thread;
+
+        synchronized (this) {
+            running = false;
+            thread = writer;
+            writer = null;
+        }
+
+        if (thread == null) {
+            return;
+        }
+
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(10));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        Append append;
+        while ((append = pending.poll()) != null) {
+            append.result.complete(DeliveryResult.RETRY);
+        }
+    }
+
+    private void run() {
+        List<Append> group = new ArrayList<>();
+
+        while (running || !pending.isEmpty()) {
+            try {
+                Append first = pending.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+
+                if (first != null) {
+                    group.add(first);
+                    pending.drainTo(group, MAX_GROUP - 1);
+                    commit(group);
+                    group.clear();
+                }
+
+                if (channel != null && (output.size() >= maxFileSize || System.currentTimeMillis() - fileStarted >= maxFileAgeMs)) {
+                    finishFile();
+                }
+            } catch (InterruptedException e) {
+                break;
+            } catch (IOException e) {
+                log.error("{} LRS export failed to complete {}", id, partFile, e);
+                abandonFile();
+            }
+        }
+
+        try {
+            finishFile();
+        } catch (IOException e) {
+            log.error("{} LRS export failed to complete {}", id, partFile, e);
+            abandonFile();
+        }
+    }
+
+    /**
+     * Write the statements of the group and force them to disk, all the deliveries of the group share the outcome
+     */
+    private void commit(List<Append> group) {
+        int count = 0;
+
+        for (Append append : group) {
+            count += append.statements.size();
+        }
+
+        DeliveryResult result;
+
+        try {
+            if (channel == null) {
+                startFile();
+            }
+
+            for (Append append : group) {
+                for (byte[] statement : append.statements) {
+                    writeLine(statement);
+                }
+            }
+
+            flushLines();
+            // a sync flush ends the compressed data on a byte boundary, everything written so far can be read back
+            gzip.flush();
+            channel.force(false);
+            metrics.statementsSent(count);
+            result = DeliveryResult.SENT;
+        } catch (IOException e) {
+            linesLength = 0;
+            log.error("{} LRS export failed to write {} statement(s) to {}", id, count, partFile, e);
+            metrics.statementsFailed(count);
+            abandonFile();
+            result = DeliveryResult.RETRY;
+        }
+
+        for (Append append : group) {
+            append.result.complete(result);
+        }
+    }
+
+    private void startFile() throws IOException {
+        long now = System.currentTimeMillis();
+        String name = id + "-" + DateFormatUtils.format(now, "yyyyMMdd'T'HHmmss'Z'", TimeZone.getTimeZone("UTC")) + "-" + (fileSequence++);
+        partFile = new File(directory, name + FILE_SUFFIX + PART_SUFFIX);
+        channel = FileChannel.open(partFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        output = new ChannelOutput(channel);
+        gzip = new GZIPOutputStream(output, BUFFER_SIZE / 4, true) {
+            {
+                def.setLevel(level);
+            }
+        };
+        fileStarted = now;
+    }
+
+    /**
+     * Write the gzip trailer and give the file its final name
+     */
+    private void finishFile() throws IOException {
+        if (channel == null) {
+            return;
+        }
+
+        gzip.finish();
+        output.flush();
+        channel.force(true);
+        channel.close();
+        File finished = complete(partFile);
+        log.info("{} LRS export completed {} ({} bytes)", id, finished, output.size());
+        channel = null;
+        gzip = null;
+        output = null;
+        partFile = null;
+    }
+
+    /**
+     * Close the file as it is after a failure, the next statements go to a new file
+     */
+    private void abandonFile() {
+        if (channel == null) {
+            return;
+        }
+
+        try {
+            channel.close();
+            complete(partFile);
+        } catch (IOException e) {
+            log.warn("{} LRS export could not close {}", id, partFile, e);
+        }
+
+        channel = null;
+        gzip = null;
+        output = null;
+        partFile = null;
+    }
+
+    /**
+     * @return the file renamed without the .part suffix
+     */
+    private static File complete(File part) throws IOException {
+        File finished = new File(part.getParentFile(), part.getName().substring(0, part.getName().length() - PART_SUFFIX.length()));
+        Files.move(part.toPath(), finished.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return finished;
+    }
+
+    /**
+     * Add the statement as a line, with any line breaks (only possible as whitespace in raw JSON) replaced by spaces
+     */
+    private void writeLine(byte[] statement) throws IOException {
+        int offset = 0;
+
+        while (offset < statement.length) {
+            if (linesLength == lines.length) {
+                flushLines();
+            }
+
+            int length = Math.min(statement.length - offset, lines.length - linesLength);
+            System.arraycopy(statement, offset, lines, linesLength, length);
+
+            for (int i = linesLength; i < linesLength + length; i++) {
+                if (lines[i] == '\n' || lines[i] == '\r') {
+                    lines[i] = ' ';
+                }
+            }
+
+            linesLength += length;
+            offset += length;
+        }
+
+        if (linesLength == lines.length) {
+            flushLines();
+        }
+
+        lines[linesLength++] = '\n';
+    }
+
+    private void flushLines() throws IOException {
+        gzip.write(lines, 0, linesLength);
+        linesLength = 0;
+    }
+
+}
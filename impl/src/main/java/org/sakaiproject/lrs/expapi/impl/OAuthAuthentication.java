@@ -0,0 +1,56 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.OAuthServiceProvider;
+
+/**
+ * Two-legged OAuth 1.0a, each request is signed on its own (with its own nonce and timestamp)
+ */
+public class OAuthAuthentication implements LrsAuthentication {
+
+    private final OAuthAccessor accessor;
+    private final String realm;
+
+    public OAuthAuthentication(String consumerKey, String consumerSecret, String realm) {
+        // the pieces needed for getting the two-step OAuth header values
+        OAuthServiceProvider serviceProvider = new OAuthServiceProvider("notUsed", "notUsed", "notUsed");
+        this.accessor = new OAuthAccessor(new OAuthConsumer("notUsed", consumerKey, consumerSecret, serviceProvider));
+        this.realm = realm;
+    }
+
+    public String getStaticAuthorization() {
+        return null;
+    }
+
+    public String getAuthorization(String method, String url) throws IOException {
+        try {
+            OAuthMessage message = accessor.newRequestMessage(method, url, null);
+            message.sign(accessor);
+            return message.getAuthorizationHeader(realm);
+        } catch (OAuthException | URISyntaxException e) {
+            throw new IOException("Cannot sign the request to " + url, e);
+        }
+    }
+
+}
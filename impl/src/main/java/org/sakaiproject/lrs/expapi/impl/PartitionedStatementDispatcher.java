@@ -0,0 +1,349 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends in parallel while keeping the order of the statements of each actor: the statements are spread over partitions by
+ * the hash of their order key (the actor identity), and each partition is a single queue emptied by its own thread, which
+ * hands a batch over only once the previous one was handled. Statements of one actor always land in the same partition, so
+ * they are sent one batch after the other in the order they were queued, while the partitions send at the same time.
+ * <p>
+ * The lanes only bound how many statements of each priority a partition holds, a flood of low priority statements never
+ * keeps a high priority statement out. Inside a partition the statements stay in order whatever their lane, a batch holds
+ * statements of one lane and ends where the next statement is of the other lane. The order only holds for the first
+ * delivery, statements spooled for a retry are sent again later. Statements without an order key are spread over the
+ * partitions in turn.
+ */
+public class PartitionedStatementDispatcher implements StatementDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(PartitionedStatementDispatcher.class);
+
+    private static final long IDLE_POLL_MS = 1000L;
+    private static final int LANES = Lane.values().length;
+
+    private static final class Queued {
+        private final byte[] statement;
+        private final Lane lane;
+        private final long enqueued = System.nanoTime();
+
+        Queued(byte[] statement, Lane lane) {
+            this.statement = statement;
+            this.lane = lane;
+        }
+    }
+
+    private final class Partition implements Runnable {
+        // unbounded, the statements of each lane are counted and bounded on their own
+        private final LinkedBlockingQueue<Queued> queue = new LinkedBlockingQueue<>();
+        private final AtomicIntegerArray sizes = new AtomicIntegerArray(LANES);
+        // taken from the queue but of another lane than the batch being filled, it starts the next batch
+        private volatile Queued carried;
+
+        public void run() {
+            List<byte[]> batch = new ArrayList<>(batchSize);
+
+            while (running || carried != null || !queue.isEmpty()) {
+                try {
+                    Queued first = carried != null ? carried : queue.poll(IDLE_POLL_MS, TimeUnit.MILLISECONDS);
+                    carried = null;
+
+                    if (first == null) {
+                        continue;
+                    }
+
+                    take(first, batch);
+                    fillBatch(first.lane, batch);
+                    waits[first.lane.ordinal()].record(System.nanoTime() - first.enqueued);
+                    handler.handleBatch(first.lane, new ArrayList<>(batch));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                } catch (Exception e) {
+                    log.error("{} LRS dispatcher failed to handle a batch of {} statement(s)", id, batch.size(), e);
+                } finally {
+                    batch.clear();
+                }
+            }
+        }
+
+        /**
+         * Add the following statements of the lane to the batch until it is full, the linger time has passed or a statement
+         * of the other lane comes next
+         */
+        private void fillBatch(Lane lane, List<byte[]> batch) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + lingerMs[lane.ordinal()];
+
+            while (batch.size() < batchSize) {
+                long remaining = deadline - System.currentTimeMillis();
+                Queued next = remaining > 0 && running ? queue.poll(remaining, TimeUnit.MILLISECONDS) : queue.poll();
+
+                if (next == null) {
+                    break;
+                }
+
+                if (next.lane != lane) {
+                    carried = next;
+                    break;
+                }
+
+                take(next, batch);
+            }
+        }
+
+        private void take(Queued queued, List<byte[]> batch) {
+            sizes.decrementAndGet(queued.lane.ordinal());
+            batch.add(queued.statement);
+        }
+
+        /**
+         * Take the statement carried over and the queued ones, in their order
+         */
+        void drainTo(List<byte[]> statements) {
+            Queued next = carried;
+            carried = null;
+
+            if (next == null) {
+                next = queue.poll();
+            }
+
+            for (; next != null; next = queue.poll()) {
+                sizes.decrementAndGet(next.lane.ordinal());
+                statements.add(next.statement);
+            }
+        }
+
+        long oldestEnqueued() {
+            Queued oldest = carried;
+
+            if (oldest == null) {
+                oldest = queue.peek();
+            }
+
+            return oldest != null ? oldest.enqueued : 0L;
+        }
+
+        int size() {
+            int size = 0;
+
+            for (int lane = 0; lane < LANES; lane++) {
+                size += sizes.get(lane);
+            }
+
+            return size;
+        }
+    }
+
+    private final String id;
+    private final BatchHandler handler;
+    private volatile int batchSize;
+    private final Partition[] partitions;
+    private final Thread[] workers;
+    // per partition
+    private final int[] capacities = new int[LANES];
+    private final long[] lingerMs = new long[LANES];
+    private final LatencyHistogram[] waits = new LatencyHistogram[LANES];
+    private final AtomicInteger unkeyed = new AtomicInteger();
+
+    private volatile boolean running;
+
+    /**
+     * Configure each lane with {@link #setLane(Lane, int, long)} before starting the dispatcher
+     *
+     * @param id the LRS provider id (used for thread names and logging)
+     * @param handler receives each batch
+     * @param batchSize maximum number of statements in a single batch
+     * @param partitionCount number of partitions, each sending with its own thread
+     */
+    public PartitionedStatementDispatcher(String id, BatchHandler handler, int batchSize, int partitionCount) {
+        this.id = id;
+        this.handler = handler;
+        this.batchSize = Math.max(1, batchSize);
+        this.partitions = new Partition[Math.max(1, partitionCount)];
+        this.workers = new Thread[partitions.length];
+
+        for (int i = 0; i < partitions.length; i++) {
+            partitions[i] = new Partition();
+        }
+
+        for (int lane = 0; lane < LANES; lane++) {
+            waits[lane] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * @param capacity maximum number of statements of the lane waiting in each partition
+     * @param lingerMs maximum time (in ms) to wait for a batch of the lane to fill up
+     */
+    public void setLane(Lane lane, int capacity, long lingerMs) {
+        this.capacities[lane.ordinal()] = Math.max(1, capacity);
+        this.lingerMs[lane.ordinal()] = Math.max(0L, lingerMs);
+    }
+
+    public void start() {
+        for (int capacity : capacities) {
+            if (capacity == 0) {
+                throw new IllegalStateException("Every lane of the " + id + " LRS dispatcher must be configured");
+            }
+        }
+
+        running = true;
+
+        for (int i = 0; i < partitions.length; i++) {
+            workers[i] = new Thread(partitions[i], "LRS-" + id + "-partition-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+
+        log.info("{} LRS dispatcher started with {} partition(s), batch size {}, lanes per partition (capacity/linger ms) high {}/{}, low {}/{}",
+            id, partitions.length, batchSize, capacities[0], lingerMs[0], capacities[1], lingerMs[1]);
+    }
+
+    public boolean offer(byte[] statement, Lane lane, String orderKey) {
+        if (!running) {
+            return false;
+        }
+
+        Partition partition = partitions[partitionOf(orderKey)];
+        int index = lane.ordinal();
+
+        // claim room in the lane first, the queue itself is unbounded
+        if (partition.sizes.incrementAndGet(index) > capacities[index]) {
+            partition.sizes.decrementAndGet(index);
+            return false;
+        }
+
+        partition.queue.add(new Queued(statement, lane));
+        return true;
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+
+        for (Partition partition : partitions) {
+            size += partition.size();
+        }
+
+        return size;
+    }
+
+    public int getQueueSize(Lane lane) {
+        int size = 0;
+
+        for (Partition partition : partitions) {
+            size += partition.sizes.get(lane.ordinal());
+        }
+
+        return size;
+    }
+
+    public int getCapacity(Lane lane) {
+        return capacities[lane.ordinal()] * partitions.length;
+    }
+
+    /**
+     * @return the number of statements waiting in the fullest partition, far above the average when a few actors send most
+     *     of the statements
+     */
+    public int getLargestPartitionSize() {
+        int largest = 0;
+
+        for (Partition partition : partitions) {
+            largest = Math.max(largest, partition.size());
+        }
+
+        return largest;
+    }
+
+    public long getOldestAgeMs() {
+        long now = System.nanoTime();
+        long oldest = 0L;
+
+        for (Partition partition : partitions) {
+            long enqueued = partition.oldestEnqueued();
+
+            if (enqueued != 0L) {
+                oldest = Math.max(oldest, now - enqueued);
+            }
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(oldest);
+    }
+
+    public LatencyHistogram getWaitHistogram(Lane lane) {
+        return waits[lane.ordinal()];
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    public List<byte[]> shutdown(long timeoutMs) {
+        running = false;
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        for (Thread worker : workers) {
+            if (worker == null) {
+                continue;
+            }
+
+            try {
+                worker.join(Math.max(1L, deadline - System.currentTimeMillis()));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            if (worker.isAlive()) {
+                worker.interrupt();
+            }
+        }
+
+        List<byte[]> unsent = new ArrayList<>();
+
+        for (Partition partition : partitions) {
+            partition.drainTo(unsent);
+        }
+
+        if (!unsent.isEmpty()) {
+            log.warn("{} LRS dispatcher stopped with {} unsent statement(s)", id, unsent.size());
+        }
+
+        return unsent;
+    }
+
+    /**
+     * @return the partition of the statements with the key
+     */
+    int partitionOf(String orderKey) {
+        if (orderKey == null) {
+            return Math.floorMod(unkeyed.getAndIncrement(), partitions.length);
+        }
+
+        int hash = orderKey.hashCode();
+        // fold in the high bits, so a power of two partition count still depends on the whole hash
+        return Math.floorMod(hash ^ (hash >>> 16), partitions.length);
+    }
+
+}
@@ -0,0 +1,1090 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+import org.apache.commons.lang3.ArrayUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.validator.routines.UrlValidator;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.component.api.ServerConfigurationService.ConfigItem;
+import org.sakaiproject.component.api.ServerConfigurationService.ConfigurationListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The settings of an LRS provider: the values injected by Spring, overridden by the lrs.[id].* values of the Sakai
+ * configuration once the provider starts. The delivery settings (see {@link #readDeliveryConfig()}) are read again whenever
+ * they change, into new {@link DeliveryConfig}s, the injected values stay their defaults.
+ */
+public class ProviderConfig {
+
+    private static final Logger log = LoggerFactory.getLogger(ProviderConfig.class);
+
+    // the settings read by readDeliveryConfig next to the endpoints and the settings of the targets, they may change at runtime
+    private static final String[] DELIVERY_KEYS = { "url", "endpoints.policy", "endpoints.eject.failures", "endpoints.eject.time",
+        "endpoints.eject.max", "endpoints.probe.interval", "transport", "connect.timeout", "keepalive", "http2", "delivery.max.inflight",
+        "request.timeout", "basicAuthUserPass", "consumer.key", "consumer.secret", "realm", "bearer.token", "bearer.token.url",
+        "bearer.client.id", "bearer.client.secret", "bearer.scope", "delivery.concurrency", "batch.size", "rate.limit", "rate.burst" };
+
+    private boolean asyncEnabled = false;
+    private int asyncQueueSize = 10000;
+    private int asyncWorkers = 1;
+    private int asyncPartitions = 0;
+    private int asyncPartitionQueueSize = 0;
+    private int deliveryConcurrency = 0;
+    private int batchSize = 50;
+    private long batchLingerMs = 1000L;
+    private int highLaneQueueSize = 1000;
+    private int highLaneWeight = 4;
+    private int lowLaneWeight = 1;
+    private long highLaneLingerMs = 0L;
+    private String[] highLaneVerbs;
+    private boolean lowLaneShed = false;
+    private boolean spoolEnabled = false;
+    private String spoolDirectory;
+    private int spoolSegmentSize = 16 * 1024 * 1024;
+    private int spoolMaxSegments = 64;
+    private int spoolFsyncRecords = 100;
+    private long spoolFsyncIntervalMs = 1000L;
+    private long spoolReplayIntervalMs = 30000L;
+    private boolean circuitEnabled = true;
+    private int circuitWindow = 20;
+    private int circuitMinCalls = 10;
+    private int circuitFailureRate = 50;
+    private long circuitSlowCallMs = 10000L;
+    private int circuitSlowCallRate = 80;
+    private long circuitBackoffInitialMs = 2000L;
+    private long circuitBackoffMaxMs = 300000L;
+    private int circuitHalfOpenCalls = 1;
+    private double rateLimit = 0;
+    private int rateBurst = 0;
+    private boolean gzipEnabled = false;
+    private int gzipThreshold = 1024;
+    private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean healthEnabled = true;
+    private long healthIntervalMs = 30000L;
+    private String healthUrl;
+    private boolean statementIdsEnabled = true;
+    private long dedupWindowMs = 0L;
+    private int dedupCapacity = 100000;
+    private String sinkType = "http";
+    private String sinkDirectory;
+    private long sinkFileSize = 64L * 1024 * 1024;
+    private long sinkFileAgeMs = 3600000L;
+    private int sinkGzipLevel = Deflater.BEST_SPEED;
+    private String[] filterRules;
+    private long coalesceWindowMs = 0L;
+    private int coalesceCapacity = 10000;
+    private String[] coalesceVerbs;
+    private boolean outboxEnabled = false;
+    private String outboxTable = "LRS_OUTBOX";
+    private boolean outboxAutoDdl = true;
+    private int outboxQueueSize = 10000;
+    private int outboxCommitSize = 500;
+    private long outboxCommitIntervalMs = 50L;
+    private int outboxDrainers = 1;
+    private long outboxLeaseMs = 60000L;
+    private long outboxRetryMs = 30000L;
+    private long outboxPollIntervalMs = 1000L;
+    private long outboxRetentionMs = 3600000L;
+    private boolean outboxSkipLocked = false;
+    private String basicAuthString;
+    private String consumerKey;
+    private String consumerSecret;
+    private String realm;
+    private String bearerToken;
+    private String tokenUrl;
+    private String clientId;
+    private String clientSecret;
+    private String tokenScope;
+    private int timeout = 0;
+    private int connectTimeout = 0;
+    private String transportType = "entitybroker";
+    private long keepAliveMs = 30000L;
+    private boolean http2Enabled = true;
+    private int maxInFlight = 200;
+    private String url;
+    private String[] targetNames;
+    private long targetWaitMs = 5000L;
+    private String[] endpointUrls;
+    private String endpointPolicy = "least";
+    private int endpointEjectFailures = 5;
+    private long endpointEjectMs = 10000L;
+    private long endpointEjectMaxMs = 300000L;
+    private long endpointProbeIntervalMs = 5000L;
+
+    // set once the configuration is read
+    private ServerConfigurationService serverConfigurationService;
+    private String id;
+    private String configPrefix;
+    private DeliveryListener deliveryListener;
+
+    /**
+     * Tells when one of the delivery settings, of the url or of one of the targets, changes
+     */
+    private static final class DeliveryListener implements ConfigurationListener {
+        private final String configPrefix;
+        private final Runnable changed;
+        private volatile boolean active = true;
+
+        DeliveryListener(String configPrefix, Runnable changed) {
+            this.configPrefix = configPrefix;
+            this.changed = changed;
+        }
+
+        public ConfigItem changing(ConfigItem current, ConfigItem newItem) {
+            return null;
+        }
+
+        public void changed(ConfigItem current, ConfigItem previous) {
+            if (active && current != null && isDeliveryKey(StringUtils.removeStart(current.getName(), configPrefix))) {
+                changed.run();
+            }
+        }
+
+        private boolean isDeliveryKey(String key) {
+            return ArrayUtils.contains(DELIVERY_KEYS, key) || StringUtils.startsWith(key, "endpoints") || StringUtils.startsWith(key, "target.");
+        }
+    }
+
+    /**
+     * Read the setup from the configuration. All non-empty values will overwrite any values that may have been set due to DI
+     * Values are prefixed with "lrs.[id]." so that multiple versions of this provider can be instantiated based on the id.
+     */
+    public void read(ServerConfigurationService configurationService, String providerId) {
+        if (StringUtils.isEmpty(providerId)) {
+            throw new IllegalStateException("Invalid " + providerId + " for LRS provider, cannot start");
+        }
+
+        serverConfigurationService = configurationService;
+        id = providerId;
+        configPrefix = "lrs." + id + ".";
+
+        // file sink, statements are written to files instead of being sent to an LRS
+        String value = serverConfigurationService.getConfig(configPrefix + "sink", "");
+        sinkType = StringUtils.isNotEmpty(value) ? value : sinkType;
+        value = serverConfigurationService.getConfig(configPrefix + "sink.dir", "");
+        sinkDirectory = StringUtils.isNotEmpty(value) ? value : sinkDirectory;
+        sinkFileSize = serverConfigurationService.getInt(configPrefix + "sink.file.size", (int) sinkFileSize);
+        sinkFileAgeMs = serverConfigurationService.getInt(configPrefix + "sink.file.age", (int) sinkFileAgeMs);
+        sinkGzipLevel = serverConfigurationService.getInt(configPrefix + "sink.gzip.level", sinkGzipLevel);
+
+        if (!StringUtils.equalsIgnoreCase(sinkType, "http") && !isFileSink()) {
+            throw new IllegalStateException("Invalid " + id + " LRS provider sink (" + sinkType + "), correct the " + configPrefix + "sink config value");
+        }
+
+        // several LRSs, as lrs.[id].targets=a,b (or lrs.[id].targets.count and lrs.[id].targets.1 to lrs.[id].targets.[count])
+        targetNames = getConfigList(configPrefix + "targets", targetNames);
+        targetWaitMs = serverConfigurationService.getInt(configPrefix + "targets.wait", (int) targetWaitMs);
+
+        // async batched dispatch
+        asyncEnabled = serverConfigurationService.getBoolean(configPrefix + "async.enabled", asyncEnabled);
+        asyncQueueSize = serverConfigurationService.getInt(configPrefix + "async.queue.size", asyncQueueSize);
+        asyncWorkers = serverConfigurationService.getInt(configPrefix + "async.workers", asyncWorkers);
+        asyncPartitions = serverConfigurationService.getInt(configPrefix + "async.partitions", asyncPartitions);
+        asyncPartitionQueueSize = serverConfigurationService.getInt(configPrefix + "async.partition.queue.size", asyncPartitionQueueSize);
+        batchLingerMs = serverConfigurationService.getInt(configPrefix + "batch.linger", (int) batchLingerMs);
+
+        // priority lanes, the verbs as lrs.[id].lane.high.verbs.count and lrs.[id].lane.high.verbs.1 to lrs.[id].lane.high.verbs.[count]
+        highLaneQueueSize = serverConfigurationService.getInt(configPrefix + "lane.high.queue.size", highLaneQueueSize);
+        highLaneWeight = serverConfigurationService.getInt(configPrefix + "lane.high.weight", highLaneWeight);
+        lowLaneWeight = serverConfigurationService.getInt(configPrefix + "lane.low.weight", lowLaneWeight);
+        highLaneLingerMs = serverConfigurationService.getInt(configPrefix + "lane.high.linger", (int) highLaneLingerMs);
+        String[] verbs = serverConfigurationService.getStrings(configPrefix + "lane.high.verbs");
+        highLaneVerbs = verbs != null && verbs.length > 0 ? verbs : highLaneVerbs;
+        lowLaneShed = serverConfigurationService.getBoolean(configPrefix + "lane.low.shed", lowLaneShed);
+
+        // spool for failed statements
+        spoolEnabled = serverConfigurationService.getBoolean(configPrefix + "spool.enabled", spoolEnabled);
+        value = serverConfigurationService.getConfig(configPrefix + "spool.dir", "");
+        spoolDirectory = StringUtils.isNotEmpty(value) ? value : spoolDirectory;
+        spoolSegmentSize = serverConfigurationService.getInt(configPrefix + "spool.segment.size", spoolSegmentSize);
+        spoolMaxSegments = serverConfigurationService.getInt(configPrefix + "spool.max.segments", spoolMaxSegments);
+        spoolFsyncRecords = serverConfigurationService.getInt(configPrefix + "spool.fsync.records", spoolFsyncRecords);
+        spoolFsyncIntervalMs = serverConfigurationService.getInt(configPrefix + "spool.fsync.interval", (int) spoolFsyncIntervalMs);
+        spoolReplayIntervalMs = serverConfigurationService.getInt(configPrefix + "spool.replay.interval", (int) spoolReplayIntervalMs);
+
+        // circuit breaker and rate limit
+        circuitEnabled = serverConfigurationService.getBoolean(configPrefix + "circuit.enabled", circuitEnabled);
+        circuitWindow = serverConfigurationService.getInt(configPrefix + "circuit.window", circuitWindow);
+        circuitMinCalls = serverConfigurationService.getInt(configPrefix + "circuit.min.calls", circuitMinCalls);
+        circuitFailureRate = serverConfigurationService.getInt(configPrefix + "circuit.failure.rate", circuitFailureRate);
+        circuitSlowCallMs = serverConfigurationService.getInt(configPrefix + "circuit.slow.call", (int) circuitSlowCallMs);
+        circuitSlowCallRate = serverConfigurationService.getInt(configPrefix + "circuit.slow.rate", circuitSlowCallRate);
+        circuitBackoffInitialMs = serverConfigurationService.getInt(configPrefix + "circuit.backoff.initial", (int) circuitBackoffInitialMs);
+        circuitBackoffMaxMs = serverConfigurationService.getInt(configPrefix + "circuit.backoff.max", (int) circuitBackoffMaxMs);
+        circuitHalfOpenCalls = serverConfigurationService.getInt(configPrefix + "circuit.half.open.calls", circuitHalfOpenCalls);
+
+        // request body compression
+        gzipEnabled = serverConfigurationService.getBoolean(configPrefix + "gzip.enabled", gzipEnabled);
+        gzipThreshold = serverConfigurationService.getInt(configPrefix + "gzip.threshold", gzipThreshold);
+        gzipLevel = serverConfigurationService.getInt(configPrefix + "gzip.level", gzipLevel);
+
+        // filter rules, as lrs.[id].filter.count and lrs.[id].filter.1 to lrs.[id].filter.[count]
+        String[] rules = serverConfigurationService.getStrings(configPrefix + "filter");
+        filterRules = rules != null && rules.length > 0 ? rules : filterRules;
+
+        // coalescing, the verbs as lrs.[id].coalesce.verbs.count and lrs.[id].coalesce.verbs.1 to lrs.[id].coalesce.verbs.[count]
+        coalesceWindowMs = serverConfigurationService.getInt(configPrefix + "coalesce.window", (int) coalesceWindowMs);
+        coalesceCapacity = serverConfigurationService.getInt(configPrefix + "coalesce.capacity", coalesceCapacity);
+        verbs = serverConfigurationService.getStrings(configPrefix + "coalesce.verbs");
+        coalesceVerbs = verbs != null && verbs.length > 0 ? verbs : coalesceVerbs;
+
+        // database outbox, the table is created when the Sakai auto.ddl is on
+        outboxEnabled = serverConfigurationService.getBoolean(configPrefix + "outbox.enabled", outboxEnabled);
+        value = serverConfigurationService.getConfig(configPrefix + "outbox.table", "");
+        outboxTable = StringUtils.isNotEmpty(value) ? value : outboxTable;
+        outboxAutoDdl = serverConfigurationService.getBoolean("auto.ddl", outboxAutoDdl);
+        outboxQueueSize = serverConfigurationService.getInt(configPrefix + "outbox.queue.size", outboxQueueSize);
+        outboxCommitSize = serverConfigurationService.getInt(configPrefix + "outbox.commit.size", outboxCommitSize);
+        outboxCommitIntervalMs = serverConfigurationService.getInt(configPrefix + "outbox.commit.interval", (int) outboxCommitIntervalMs);
+        outboxDrainers = serverConfigurationService.getInt(configPrefix + "outbox.drainers", outboxDrainers);
+        outboxLeaseMs = serverConfigurationService.getInt(configPrefix + "outbox.lease", (int) outboxLeaseMs);
+        outboxRetryMs = serverConfigurationService.getInt(configPrefix + "outbox.retry.interval", (int) outboxRetryMs);
+        outboxPollIntervalMs = serverConfigurationService.getInt(configPrefix + "outbox.poll.interval", (int) outboxPollIntervalMs);
+        outboxRetentionMs = serverConfigurationService.getInt(configPrefix + "outbox.retention", (int) outboxRetentionMs);
+        outboxSkipLocked = serverConfigurationService.getBoolean(configPrefix + "outbox.skip.locked", outboxSkipLocked);
+
+        // statement ids and duplicates
+        statementIdsEnabled = serverConfigurationService.getBoolean(configPrefix + "statement.ids", statementIdsEnabled);
+        dedupWindowMs = serverConfigurationService.getInt(configPrefix + "dedup.window", (int) dedupWindowMs);
+        dedupCapacity = serverConfigurationService.getInt(configPrefix + "dedup.capacity", dedupCapacity);
+
+        // health checks
+        healthEnabled = serverConfigurationService.getBoolean(configPrefix + "health.enabled", healthEnabled);
+        healthIntervalMs = serverConfigurationService.getInt(configPrefix + "health.interval", (int) healthIntervalMs);
+        value = serverConfigurationService.getConfig(configPrefix + "health.url", "");
+        healthUrl = StringUtils.isNotEmpty(value) ? value : healthUrl;
+    }
+
+    /**
+     * Read the settings which may change while the provider runs: where the statements go, the authentication, the
+     * transport and the throughput limits. Nothing is modified while reading, a setting missing from the configuration
+     * (or removed from it) has its injected or default value.
+     *
+     * @return the settings, checked
+     * @throws IllegalStateException if one of the settings is invalid
+     */
+    public DeliveryConfig readDeliveryConfig() {
+        // replicas of one LRS, as lrs.[id].endpoints=url1,url2 (or .count and .1 to .[count] like the targets)
+        String[] endpoints = getConfigList(configPrefix + "endpoints", endpointUrls);
+        String policy = getConfig("endpoints.policy", endpointPolicy);
+
+        if (EndpointPool.getPolicy(policy) == null) {
+            throw new IllegalStateException("Invalid " + id + " LRS provider endpoints policy (" + policy + "), correct the " + configPrefix + "endpoints.policy config value");
+        }
+
+        String value = getConfig("request.timeout", null);
+        int requestTimeout;
+
+        try {
+            requestTimeout = value != null ? Integer.parseInt(value) : timeout; // allow setter to override
+        } catch (NumberFormatException e) {
+            requestTimeout = 0;
+            log.debug("{} request.timeout must be an integer value - using default setting", configPrefix, e);
+        }
+
+        int batch = serverConfigurationService.getInt(configPrefix + "batch.size", batchSize);
+
+        if (batch <= 0) {
+            throw new IllegalStateException("Invalid " + id + " LRS provider batch size (" + batch + "), correct the " + configPrefix + "batch.size config value");
+        }
+
+        value = getConfig("rate.limit", null);
+        double limit;
+
+        try {
+            limit = value != null ? Double.parseDouble(value) : rateLimit;
+        } catch (NumberFormatException e) {
+            log.warn("{}rate.limit must be a number - rate limit disabled", configPrefix, e);
+            limit = 0;
+        }
+
+        // the url and its authentication: basic auth, oauth fields or a bearer token (fixed or from a token endpoint)
+        TargetConfig configured = new TargetConfig(id, getConfig("url", url), endpoints, getConfig("basicAuthUserPass", basicAuthString),
+            getConfig("consumer.key", consumerKey), getConfig("consumer.secret", consumerSecret), getConfig("realm", realm),
+            getConfig("bearer.token", bearerToken), getConfig("bearer.token.url", tokenUrl), getConfig("bearer.client.id", clientId),
+            getConfig("bearer.client.secret", clientSecret), getConfig("bearer.scope", tokenScope), requestTimeout, 0);
+
+        return new DeliveryConfig(readTargetConfigs(configured), policy,
+            serverConfigurationService.getInt(configPrefix + "endpoints.eject.failures", endpointEjectFailures),
+            serverConfigurationService.getInt(configPrefix + "endpoints.eject.time", (int) endpointEjectMs),
+            serverConfigurationService.getInt(configPrefix + "endpoints.eject.max", (int) endpointEjectMaxMs),
+            serverConfigurationService.getInt(configPrefix + "endpoints.probe.interval", (int) endpointProbeIntervalMs),
+            getConfig("transport", transportType),
+            serverConfigurationService.getInt(configPrefix + "connect.timeout", connectTimeout),
+            requestTimeout,
+            serverConfigurationService.getInt(configPrefix + "keepalive", (int) keepAliveMs),
+            serverConfigurationService.getBoolean(configPrefix + "http2", http2Enabled),
+            serverConfigurationService.getInt(configPrefix + "delivery.max.inflight", maxInFlight),
+            getConnections(serverConfigurationService.getInt(configPrefix + "delivery.concurrency", deliveryConcurrency)),
+            batch, limit,
+            serverConfigurationService.getInt(configPrefix + "rate.burst", rateBurst));
+    }
+
+    /**
+     * @param configured the url and its authentication
+     * @return where and how to deliver the statements, the url or each of the targets (none with the file sink)
+     */
+    private List<TargetConfig> readTargetConfigs(TargetConfig configured) {
+        List<TargetConfig> configs = new ArrayList<>();
+
+        if (isFileSink()) {
+            return configs;
+        }
+
+        // ensure the URL is valid and formatted the same way (add "/" if not on the end for example)
+        UrlValidator urlValidator = new UrlValidator(UrlValidator.ALLOW_LOCAL_URLS);
+
+        if (!isFanOut()) {
+            if (configured.getEndpoints() == null && !urlValidator.isValid(configured.getUrl())) {
+                throw new IllegalStateException("Invalid " + id + " LRS provider url (" + configured.getUrl() + "), correct the " + configPrefix + "url config value");
+            } /* won't work with some LRS
+            else {
+                if (!url.endsWith("/")) {
+                    url = url + "/";
+                }
+            }*/
+
+            validateEndpoints(configured, urlValidator, configPrefix);
+            validateTarget(configured, urlValidator, configPrefix);
+            configs.add(configured);
+            return configs;
+        }
+
+        for (String name : targetNames) {
+            // each target as lrs.[id].target.[name].url and so on, the authentication works like the one of the url
+            String targetPrefix = configPrefix + "target." + name + ".";
+            TargetConfig config = new TargetConfig(name,
+                serverConfigurationService.getConfig(targetPrefix + "url", ""),
+                getConfigList(targetPrefix + "endpoints", null),
+                serverConfigurationService.getConfig(targetPrefix + "basicAuthUserPass", ""),
+                serverConfigurationService.getConfig(targetPrefix + "consumer.key", ""),
+                serverConfigurationService.getConfig(targetPrefix + "consumer.secret", ""),
+                serverConfigurationService.getConfig(targetPrefix + "realm", ""),
+                serverConfigurationService.getConfig(targetPrefix + "bearer.token", ""),
+                serverConfigurationService.getConfig(targetPrefix + "bearer.token.url", ""),
+                serverConfigurationService.getConfig(targetPrefix + "bearer.client.id", ""),
+                serverConfigurationService.getConfig(targetPrefix + "bearer.client.secret", ""),
+                serverConfigurationService.getConfig(targetPrefix + "bearer.scope", ""),
+                serverConfigurationService.getInt(targetPrefix + "request.timeout", configured.getTimeout()),
+                serverConfigurationService.getInt(targetPrefix + "concurrency", 0));
+
+            if (config.getEndpoints() == null && !urlValidator.isValid(config.getUrl())) {
+                throw new IllegalStateException("Invalid " + id + " LRS provider target url (" + config.getUrl() + "), correct the " + targetPrefix + "url config value");
+            }
+
+            validateEndpoints(config, urlValidator, targetPrefix);
+            validateTarget(config, urlValidator, targetPrefix);
+            configs.add(config);
+        }
+
+        return configs;
+    }
+
+    /**
+     * Run the task whenever one of the delivery settings (see {@link #readDeliveryConfig()}) changes in the configuration,
+     * until {@link #unwatch()}. The task runs on the thread which changed the configuration.
+     */
+    public synchronized void watch(Runnable changed) {
+        unwatch();
+        deliveryListener = new DeliveryListener(configPrefix, changed);
+        serverConfigurationService.registerListener(deliveryListener);
+    }
+
+    /**
+     * Stop watching the delivery settings, the configuration service has no way to remove a listener so it is only
+     * deactivated
+     */
+    public synchronized void unwatch() {
+        if (deliveryListener != null) {
+            deliveryListener.active = false;
+            deliveryListener = null;
+        }
+    }
+
+    /**
+     * @return the value of the setting, the default if it is missing or empty
+     */
+    private String getConfig(String key, String defaultValue) {
+        String value = serverConfigurationService.getConfig(configPrefix + key, "");
+        return StringUtils.isNotEmpty(value) ? value : defaultValue;
+    }
+
+    /**
+     * @return the comma separated values (or the values as name.count and name.1 to name.[count]), the default if there are none
+     */
+    private String[] getConfigList(String name, String[] defaultValue) {
+        String[] values = serverConfigurationService.getStrings(name);
+
+        if (values == null || values.length == 0) {
+            values = StringUtils.split(serverConfigurationService.getConfig(name, ""), ", ");
+        }
+
+        return values != null && values.length > 0 ? values : defaultValue;
+    }
+
+    private void validateEndpoints(TargetConfig config, UrlValidator urlValidator, String prefix) {
+        if (config.getEndpoints() == null) {
+            return;
+        }
+
+        for (String endpoint : config.getEndpoints()) {
+            if (!urlValidator.isValid(endpoint)) {
+                throw new IllegalStateException("Invalid " + id + " LRS provider endpoint url (" + endpoint + "), correct the " + prefix + "endpoints config value");
+            }
+        }
+    }
+
+    private void validateTarget(TargetConfig config, UrlValidator urlValidator, String prefix) {
+        if (StringUtils.isEmpty(config.getBasicAuthString()) && StringUtils.isEmpty(config.getBearerToken()) && StringUtils.isNotEmpty(config.getTokenUrl())) {
+            if (!urlValidator.isValid(config.getTokenUrl())) {
+                throw new IllegalStateException("Invalid " + id + " LRS provider token url (" + config.getTokenUrl() + "), correct the " + prefix + "bearer.token.url config value");
+            }
+
+            if (StringUtils.isEmpty(config.getClientId()) || StringUtils.isEmpty(config.getClientSecret())) {
+                throw new IllegalStateException("No bearer token client configured for LRS provider (" + prefix + "), service cannot start. Please check the configuration");
+            }
+
+            return;
+        }
+
+        if (StringUtils.isEmpty(config.getBasicAuthString()) && StringUtils.isEmpty(config.getBearerToken())
+                && (StringUtils.isEmpty(config.getConsumerKey()) || StringUtils.isEmpty(config.getConsumerSecret()) || StringUtils.isEmpty(config.getRealm()))) {
+            throw new IllegalStateException("No authentication configured properly for LRS provider (" + prefix + "), service cannot start. Please check the configuration");
+        }
+    }
+
+    /**
+     * @return the prefix of the settings of the provider in the Sakai configuration
+     */
+    public String getConfigPrefix() {
+        return configPrefix;
+    }
+
+    /**
+     * @return true if the statements are delivered to the configured targets, instead of the url
+     */
+    public boolean isFanOut() {
+        return targetNames != null && targetNames.length > 0;
+    }
+
+    public boolean isFileSink() {
+        return StringUtils.equalsIgnoreCase(sinkType, "file");
+    }
+
+    /**
+     * @return the directory of the file sink
+     */
+    public File getSinkDirectory() {
+        return StringUtils.isNotEmpty(sinkDirectory) ? new File(sinkDirectory) : new File(serverConfigurationService.getSakaiHomePath(), "lrs-export" + File.separator + id);
+    }
+
+    public File getSpoolDirectory() {
+        return StringUtils.isNotEmpty(spoolDirectory) ? new File(spoolDirectory) : new File(serverConfigurationService.getSakaiHomePath(), "lrs-spool" + File.separator + id);
+    }
+
+    /**
+     * @param deliveryConcurrency the configured number of connections, 0 for as many as the dispatch threads
+     * @return the number of connections to each LRS, as many as the statements may be delivered in parallel
+     */
+    private int getConnections(int deliveryConcurrency) {
+        int dispatchThreads = asyncPartitions > 0 ? asyncPartitions : asyncWorkers;
+        return deliveryConcurrency > 0 ? deliveryConcurrency : Math.max(2, asyncEnabled ? dispatchThreads : 2);
+    }
+
+    public boolean isAsyncEnabled() {
+        return asyncEnabled;
+    }
+
+    public void setAsyncEnabled(boolean asyncEnabled) {
+        this.asyncEnabled = asyncEnabled;
+    }
+
+    public int getAsyncQueueSize() {
+        return asyncQueueSize;
+    }
+
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        this.asyncQueueSize = asyncQueueSize;
+    }
+
+    public int getAsyncWorkers() {
+        return asyncWorkers;
+    }
+
+    public void setAsyncWorkers(int asyncWorkers) {
+        this.asyncWorkers = asyncWorkers;
+    }
+
+    public int getAsyncPartitions() {
+        return asyncPartitions;
+    }
+
+    public void setAsyncPartitions(int asyncPartitions) {
+        this.asyncPartitions = asyncPartitions;
+    }
+
+    public int getAsyncPartitionQueueSize() {
+        return asyncPartitionQueueSize;
+    }
+
+    public void setAsyncPartitionQueueSize(int asyncPartitionQueueSize) {
+        this.asyncPartitionQueueSize = asyncPartitionQueueSize;
+    }
+
+    public void setDeliveryConcurrency(int deliveryConcurrency) {
+        this.deliveryConcurrency = deliveryConcurrency;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getBatchLingerMs() {
+        return batchLingerMs;
+    }
+
+    public void setBatchLingerMs(long batchLingerMs) {
+        this.batchLingerMs = batchLingerMs;
+    }
+
+    public int getHighLaneQueueSize() {
+        return highLaneQueueSize;
+    }
+
+    public void setHighLaneQueueSize(int highLaneQueueSize) {
+        this.highLaneQueueSize = highLaneQueueSize;
+    }
+
+    public int getHighLaneWeight() {
+        return highLaneWeight;
+    }
+
+    public void setHighLaneWeight(int highLaneWeight) {
+        this.highLaneWeight = highLaneWeight;
+    }
+
+    public int getLowLaneWeight() {
+        return lowLaneWeight;
+    }
+
+    public void setLowLaneWeight(int lowLaneWeight) {
+        this.lowLaneWeight = lowLaneWeight;
+    }
+
+    public long getHighLaneLingerMs() {
+        return highLaneLingerMs;
+    }
+
+    public void setHighLaneLingerMs(long highLaneLingerMs) {
+        this.highLaneLingerMs = highLaneLingerMs;
+    }
+
+    public String[] getHighLaneVerbs() {
+        return highLaneVerbs;
+    }
+
+    public void setHighLaneVerbs(String[] highLaneVerbs) {
+        this.highLaneVerbs = highLaneVerbs;
+    }
+
+    public boolean isLowLaneShed() {
+        return lowLaneShed;
+    }
+
+    public void setLowLaneShed(boolean lowLaneShed) {
+        this.lowLaneShed = lowLaneShed;
+    }
+
+    public boolean isSpoolEnabled() {
+        return spoolEnabled;
+    }
+
+    public void setSpoolEnabled(boolean spoolEnabled) {
+        this.spoolEnabled = spoolEnabled;
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        this.spoolDirectory = spoolDirectory;
+    }
+
+    public int getSpoolSegmentSize() {
+        return spoolSegmentSize;
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        this.spoolSegmentSize = spoolSegmentSize;
+    }
+
+    public int getSpoolMaxSegments() {
+        return spoolMaxSegments;
+    }
+
+    public void setSpoolMaxSegments(int spoolMaxSegments) {
+        this.spoolMaxSegments = spoolMaxSegments;
+    }
+
+    public int getSpoolFsyncRecords() {
+        return spoolFsyncRecords;
+    }
+
+    public void setSpoolFsyncRecords(int spoolFsyncRecords) {
+        this.spoolFsyncRecords = spoolFsyncRecords;
+    }
+
+    public long getSpoolFsyncIntervalMs() {
+        return spoolFsyncIntervalMs;
+    }
+
+    public void setSpoolFsyncIntervalMs(long spoolFsyncIntervalMs) {
+        this.spoolFsyncIntervalMs = spoolFsyncIntervalMs;
+    }
+
+    public long getSpoolReplayIntervalMs() {
+        return spoolReplayIntervalMs;
+    }
+
+    public void setSpoolReplayIntervalMs(long spoolReplayIntervalMs) {
+        this.spoolReplayIntervalMs = spoolReplayIntervalMs;
+    }
+
+    public boolean isCircuitEnabled() {
+        return circuitEnabled;
+    }
+
+    public void setCircuitEnabled(boolean circuitEnabled) {
+        this.circuitEnabled = circuitEnabled;
+    }
+
+    public int getCircuitWindow() {
+        return circuitWindow;
+    }
+
+    public void setCircuitWindow(int circuitWindow) {
+        this.circuitWindow = circuitWindow;
+    }
+
+    public int getCircuitMinCalls() {
+        return circuitMinCalls;
+    }
+
+    public void setCircuitMinCalls(int circuitMinCalls) {
+        this.circuitMinCalls = circuitMinCalls;
+    }
+
+    public int getCircuitFailureRate() {
+        return circuitFailureRate;
+    }
+
+    public void setCircuitFailureRate(int circuitFailureRate) {
+        this.circuitFailureRate = circuitFailureRate;
+    }
+
+    public long getCircuitSlowCallMs() {
+        return circuitSlowCallMs;
+    }
+
+    public void setCircuitSlowCallMs(long circuitSlowCallMs) {
+        this.circuitSlowCallMs = circuitSlowCallMs;
+    }
+
+    public int getCircuitSlowCallRate() {
+        return circuitSlowCallRate;
+    }
+
+    public void setCircuitSlowCallRate(int circuitSlowCallRate) {
+        this.circuitSlowCallRate = circuitSlowCallRate;
+    }
+
+    public long getCircuitBackoffInitialMs() {
+        return circuitBackoffInitialMs;
+    }
+
+    public void setCircuitBackoffInitialMs(long circuitBackoffInitialMs) {
+        this.circuitBackoffInitialMs = circuitBackoffInitialMs;
+    }
+
+    public long getCircuitBackoffMaxMs() {
+        return circuitBackoffMaxMs;
+    }
+
+    public void setCircuitBackoffMaxMs(long circuitBackoffMaxMs) {
+        this.circuitBackoffMaxMs = circuitBackoffMaxMs;
+    }
+
+    public int getCircuitHalfOpenCalls() {
+        return circuitHalfOpenCalls;
+    }
+
+    public void setCircuitHalfOpenCalls(int circuitHalfOpenCalls) {
+        this.circuitHalfOpenCalls = circuitHalfOpenCalls;
+    }
+
+    public void setRateLimit(double rateLimit) {
+        this.rateLimit = rateLimit;
+    }
+
+    public void setRateBurst(int rateBurst) {
+        this.rateBurst = rateBurst;
+    }
+
+    public boolean isGzipEnabled() {
+        return gzipEnabled;
+    }
+
+    public void setGzipEnabled(boolean gzipEnabled) {
+        this.gzipEnabled = gzipEnabled;
+    }
+
+    public int getGzipThreshold() {
+        return gzipThreshold;
+    }
+
+    public void setGzipThreshold(int gzipThreshold) {
+        this.gzipThreshold = gzipThreshold;
+    }
+
+    public int getGzipLevel() {
+        return gzipLevel;
+    }
+
+    public void setGzipLevel(int gzipLevel) {
+        this.gzipLevel = gzipLevel;
+    }
+
+    public boolean isHealthEnabled() {
+        return healthEnabled;
+    }
+
+    public void setHealthEnabled(boolean healthEnabled) {
+        this.healthEnabled = healthEnabled;
+    }
+
+    public long getHealthIntervalMs() {
+        return healthIntervalMs;
+    }
+
+    public void setHealthIntervalMs(long healthIntervalMs) {
+        this.healthIntervalMs = healthIntervalMs;
+    }
+
+    public String getHealthUrl() {
+        return healthUrl;
+    }
+
+    public void setHealthUrl(String healthUrl) {
+        this.healthUrl = healthUrl;
+    }
+
+    public boolean isStatementIdsEnabled() {
+        return statementIdsEnabled;
+    }
+
+    public void setStatementIdsEnabled(boolean statementIdsEnabled) {
+        this.statementIdsEnabled = statementIdsEnabled;
+    }
+
+    public long getDedupWindowMs() {
+        return dedupWindowMs;
+    }
+
+    public void setDedupWindowMs(long dedupWindowMs) {
+        this.dedupWindowMs = dedupWindowMs;
+    }
+
+    public int getDedupCapacity() {
+        return dedupCapacity;
+    }
+
+    public void setDedupCapacity(int dedupCapacity) {
+        this.dedupCapacity = dedupCapacity;
+    }
+
+    public String getSinkType() {
+        return sinkType;
+    }
+
+    public void setSinkType(String sinkType) {
+        this.sinkType = sinkType;
+    }
+
+    public void setSinkDirectory(String sinkDirectory) {
+        this.sinkDirectory = sinkDirectory;
+    }
+
+    public long getSinkFileSize() {
+        return sinkFileSize;
+    }
+
+    public void setSinkFileSize(long sinkFileSize) {
+        this.sinkFileSize = sinkFileSize;
+    }
+
+    public long getSinkFileAgeMs() {
+        return sinkFileAgeMs;
+    }
+
+    public void setSinkFileAgeMs(long sinkFileAgeMs) {
+        this.sinkFileAgeMs = sinkFileAgeMs;
+    }
+
+    public int getSinkGzipLevel() {
+        return sinkGzipLevel;
+    }
+
+    public void setSinkGzipLevel(int sinkGzipLevel) {
+        this.sinkGzipLevel = sinkGzipLevel;
+    }
+
+    public String[] getFilterRules() {
+        return filterRules;
+    }
+
+    public void setFilterRules(String[] filterRules) {
+        this.filterRules = filterRules;
+    }
+
+    public long getCoalesceWindowMs() {
+        return coalesceWindowMs;
+    }
+
+    public void setCoalesceWindowMs(long coalesceWindowMs) {
+        this.coalesceWindowMs = coalesceWindowMs;
+    }
+
+    public int getCoalesceCapacity() {
+        return coalesceCapacity;
+    }
+
+    public void setCoalesceCapacity(int coalesceCapacity) {
+        this.coalesceCapacity = coalesceCapacity;
+    }
+
+    public String[] getCoalesceVerbs() {
+        return coalesceVerbs;
+    }
+
+    public void setCoalesceVerbs(String[] coalesceVerbs) {
+        this.coalesceVerbs = coalesceVerbs;
+    }
+
+    public boolean isOutboxEnabled() {
+        return outboxEnabled;
+    }
+
+    public void setOutboxEnabled(boolean outboxEnabled) {
+        this.outboxEnabled = outboxEnabled;
+    }
+
+    public String getOutboxTable() {
+        return outboxTable;
+    }
+
+    public void setOutboxTable(String outboxTable) {
+        this.outboxTable = outboxTable;
+    }
+
+    public boolean isOutboxAutoDdl() {
+        return outboxAutoDdl;
+    }
+
+    public void setOutboxAutoDdl(boolean outboxAutoDdl) {
+        this.outboxAutoDdl = outboxAutoDdl;
+    }
+
+    public int getOutboxQueueSize() {
+        return outboxQueueSize;
+    }
+
+    public void setOutboxQueueSize(int outboxQueueSize) {
+        this.outboxQueueSize = outboxQueueSize;
+    }
+
+    public int getOutboxCommitSize() {
+        return outboxCommitSize;
+    }
+
+    public void setOutboxCommitSize(int outboxCommitSize) {
+        this.outboxCommitSize = outboxCommitSize;
+    }
+
+    public long getOutboxCommitIntervalMs() {
+        return outboxCommitIntervalMs;
+    }
+
+    public void setOutboxCommitIntervalMs(long outboxCommitIntervalMs) {
+        this.outboxCommitIntervalMs = outboxCommitIntervalMs;
+    }
+
+    public int getOutboxDrainers() {
+        return outboxDrainers;
+    }
+
+    public void setOutboxDrainers(int outboxDrainers) {
+        this.outboxDrainers = outboxDrainers;
+    }
+
+    public long getOutboxLeaseMs() {
+        return outboxLeaseMs;
+    }
+
+    public void setOutboxLeaseMs(long outboxLeaseMs) {
+        this.outboxLeaseMs = outboxLeaseMs;
+    }
+
+    public long getOutboxRetryMs() {
+        return outboxRetryMs;
+    }
+
+    public void setOutboxRetryMs(long outboxRetryMs) {
+        this.outboxRetryMs = outboxRetryMs;
+    }
+
+    public long getOutboxPollIntervalMs() {
+        return outboxPollIntervalMs;
+    }
+
+    public void setOutboxPollIntervalMs(long outboxPollIntervalMs) {
+        this.outboxPollIntervalMs = outboxPollIntervalMs;
+    }
+
+    public long getOutboxRetentionMs() {
+        return outboxRetentionMs;
+    }
+
+    public void setOutboxRetentionMs(long outboxRetentionMs) {
+        this.outboxRetentionMs = outboxRetentionMs;
+    }
+
+    public boolean isOutboxSkipLocked() {
+        return outboxSkipLocked;
+    }
+
+    public void setOutboxSkipLocked(boolean outboxSkipLocked) {
+        this.outboxSkipLocked = outboxSkipLocked;
+    }
+
+    public void setBasicAuthString(String basicAuthString) {
+        this.basicAuthString = basicAuthString;
+    }
+
+    public void setConsumerKey(String consumerKey) {
+        this.consumerKey = consumerKey;
+    }
+
+    public void setConsumerSecret(String consumerSecret) {
+        this.consumerSecret = consumerSecret;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
+    public void setBearerToken(String bearerToken) {
+        this.bearerToken = bearerToken;
+    }
+
+    public void setTokenUrl(String tokenUrl) {
+        this.tokenUrl = tokenUrl;
+    }
+
+    public void setClientId(String clientId) {
+        this.clientId = clientId;
+    }
+
+    public void setClientSecret(String clientSecret) {
+        this.clientSecret = clientSecret;
+    }
+
+    public void setTokenScope(String tokenScope) {
+        this.tokenScope = tokenScope;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    public void setTransportType(String transportType) {
+        this.transportType = transportType;
+    }
+
+    public void setKeepAliveMs(long keepAliveMs) {
+        this.keepAliveMs = keepAliveMs;
+    }
+
+    public void setHttp2Enabled(boolean http2Enabled) {
+        this.http2Enabled = http2Enabled;
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public String[] getTargetNames() {
+        return targetNames;
+    }
+
+    public void setTargetNames(String[] targetNames) {
+        this.targetNames = targetNames;
+    }
+
+    public long getTargetWaitMs() {
+        return targetWaitMs;
+    }
+
+    public void setTargetWaitMs(long targetWaitMs) {
+        this.targetWaitMs = targetWaitMs;
+    }
+
+    public void setEndpointUrls(String[] endpointUrls) {
+        this.endpointUrls = endpointUrls;
+    }
+
+    public void setEndpointPolicy(String endpointPolicy) {
+        this.endpointPolicy = endpointPolicy;
+    }
+
+    public void setEndpointEjectFailures(int endpointEjectFailures) {
+        this.endpointEjectFailures = endpointEjectFailures;
+    }
+
+    public void setEndpointEjectMs(long endpointEjectMs) {
+        this.endpointEjectMs = endpointEjectMs;
+    }
+
+    public void setEndpointEjectMaxMs(long endpointEjectMaxMs) {
+        this.endpointEjectMaxMs = endpointEjectMaxMs;
+    }
+
+    public void setEndpointProbeIntervalMs(long endpointProbeIntervalMs) {
+        this.endpointProbeIntervalMs = endpointProbeIntervalMs;
+    }
+
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.lrs.expapi.util.StatementMapUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Merges the statements with the same actor, verb and object (id and activity type) handled within a window into one
+ * statement: the first of them, with result extensions holding how many statements it stands for and the timestamps of the
+ * first and last one. The context of the others is not compared, it is lost. A statement nothing else was merged into is sent
+ * unchanged. Statements with a result are never merged, as their results would be lost.
+ * <p>
+ * A statement is held back until the window that started with it expires, so coalescing trades delivery latency for fewer
+ * statements. At most capacity groups are held, the oldest one is sent early to make room for a new one.
+ */
+public class StatementCoalescer {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementCoalescer.class);
+
+    public static final String COUNT_EXTENSION = "http://sakaiproject.org/xapi/extensions/result/count";
+    public static final String FIRST_TIMESTAMP_EXTENSION = "http://sakaiproject.org/xapi/extensions/result/first_timestamp";
+    public static final String LAST_TIMESTAMP_EXTENSION = "http://sakaiproject.org/xapi/extensions/result/last_timestamp";
+
+    /**
+     * Receives the statements once their window expires
+     */
+    public interface Sink {
+        /**
+         * @param count the number of statements the statement stands for
+         * @param resultExtensions the extensions to add to the result of the statement, null if nothing was merged into it
+         */
+        void emit(LRS_Statement statement, int count, Map<String, Object> resultExtensions);
+    }
+
+    private final String id;
+    private final long windowMs;
+    private final int capacity;
+    // the verb ids of the statements which may be merged, empty for all verbs
+    private final Set<String> verbs;
+    private final Sink sink;
+    // in the order the groups were started, so the expired ones are always at the head
+    private final LinkedHashMap<String, Group> groups = new LinkedHashMap<>();
+
+    private ScheduledExecutorService executor;
+
+    private static final class Group {
+        private final LRS_Statement first;
+        private final long started;
+        private Date firstTimestamp;
+        private Date lastTimestamp;
+        private int count = 1;
+
+        Group(LRS_Statement first, long started) {
+            this.first = first;
+            this.started = started;
+            this.firstTimestamp = timestampOf(first);
+            this.lastTimestamp = firstTimestamp;
+        }
+
+        void add(LRS_Statement statement) {
+            Date timestamp = timestampOf(statement);
+            count++;
+
+            if (timestamp.before(firstTimestamp)) {
+                firstTimestamp = timestamp;
+            }
+
+            if (timestamp.after(lastTimestamp)) {
+                lastTimestamp = timestamp;
+            }
+        }
+
+        private static Date timestampOf(LRS_Statement statement) {
+            return statement.getTimestamp() != null ? statement.getTimestamp() : new Date();
+        }
+    }
+
+    /**
+     * @param id the LRS provider id
+     * @param windowMs time (in ms) the statements following the first of a group are merged into it
+     * @param capacity maximum number of groups held
+     * @param verbs the verbs (verb ids or Sakai verb names) of the statements which may be merged, empty for all verbs
+     * @throws IllegalArgumentException if a verb is not a verb id or a Sakai verb name
+     */
+    public StatementCoalescer(String id, long windowMs, int capacity, String[] verbs, Sink sink) {
+        this.id = id;
+        this.windowMs = Math.max(1L, windowMs);
+        this.capacity = Math.max(1, capacity);
+        this.verbs = new HashSet<>();
+        this.sink = sink;
+
+        for (String verb : verbs) {
+            this.verbs.add(StatementFilter.toVerbId(verb.trim()));
+        }
+    }
+
+    public synchronized void start() {
+        if (executor != null) {
+            return;
+        }
+
+        executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LRS-" + id + "-coalesce");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // a group is sent at most a quarter of a window late
+        long tickMs = Math.max(10L, windowMs / 4L);
+        executor.scheduleWithFixedDelay(this::flushExpired, tickMs, tickMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the background flushes and send all the groups held
+     */
+    public void shutdown() {
+        synchronized (this) {
+            if (executor != null) {
+                executor.shutdownNow();
+                executor = null;
+            }
+        }
+
+        List<Group> remaining;
+
+        synchronized (groups) {
+            remaining = new ArrayList<>(groups.values());
+            groups.clear();
+        }
+
+        emit(remaining);
+    }
+
+    /**
+     * @return true if the statement is held (it is sent later on its own or merged into another), false if the caller has to
+     *     send it
+     */
+    public boolean offer(LRS_Statement statement) {
+        if (!statement.isPopulated() || statement.getResult() != null || statement.getActor() == null
+            || statement.getVerb() == null || statement.getObject() == null) {
+            return false;
+        }
+
+        String verb = statement.getVerb().getId();
+
+        if (!verbs.isEmpty() && !verbs.contains(verb)) {
+            return false;
+        }
+
+        // the context, and the name and description of the object, are those of the first statement of the group
+        String key = StatementMapUtils.getActorIdentity(statement.getActor()) + '\u0000' + verb + '\u0000' + statement.getObject().getId()
+            + '\u0000' + StringUtils.defaultString(statement.getObject().getActivityType());
+        long now = System.currentTimeMillis();
+        Group evicted = null;
+
+        synchronized (groups) {
+            Group group = groups.get(key);
+
+            if (group != null && now - group.started < windowMs) {
+                group.add(statement);
+                return true;
+            }
+
+            if (group != null) {
+                // expired but not flushed yet, the statement starts the next window
+                evicted = groups.remove(key);
+            } else if (groups.size() >= capacity) {
+                Iterator<Group> oldest = groups.values().iterator();
+                evicted = oldest.next();
+                oldest.remove();
+                log.debug("{} LRS provider holds {} statement groups, the oldest is sent before its window expires", id, capacity);
+            }
+
+            groups.put(key, new Group(statement, now));
+        }
+
+        if (evicted != null) {
+            emit(evicted);
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the number of statement groups held
+     */
+    public int getPending() {
+        synchronized (groups) {
+            return groups.size();
+        }
+    }
+
+    /**
+     * Send the groups whose window expired
+     */
+    void flushExpired() {
+        long expiry = System.currentTimeMillis() - windowMs;
+        List<Group> expired = new ArrayList<>();
+
+        synchronized (groups) {
+            Iterator<Group> oldest = groups.values().iterator();
+
+            while (oldest.hasNext()) {
+                Group group = oldest.next();
+
+                if (group.started > expiry) {
+                    break;
+                }
+
+                expired.add(group);
+                oldest.remove();
+            }
+        }
+
+        emit(expired);
+    }
+
+    private void emit(List<Group> expired) {
+        for (Group group : expired) {
+            emit(group);
+        }
+    }
+
+    private void emit(Group group) {
+        try {
+            if (group.count == 1) {
+                sink.emit(group.first, 1, null);
+                return;
+            }
+
+            Map<String, Object> extensions = new LinkedHashMap<>(4);
+            extensions.put(COUNT_EXTENSION, group.count);
+            extensions.put(FIRST_TIMESTAMP_EXTENSION, DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(group.firstTimestamp));
+            extensions.put(LAST_TIMESTAMP_EXTENSION, DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(group.lastTimestamp));
+            sink.emit(group.first, group.count, extensions);
+        } catch (RuntimeException e) {
+            log.error("{} LRS provider failed to send a coalesced statement ({} statement(s))", id, group.count, e);
+        }
+    }
+
+}
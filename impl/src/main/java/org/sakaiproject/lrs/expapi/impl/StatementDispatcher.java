@@ -0,0 +1,92 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.List;
+
+/**
+ * Queues serialized statements in memory and hands them in batches to a {@link BatchHandler} from background threads, so
+ * the callers never wait for the LRS. Statements are queued in one of two priority lanes, each with its own capacity.
+ */
+public interface StatementDispatcher {
+
+    /**
+     * The lanes, in priority order
+     */
+    enum Lane {
+        HIGH, LOW
+    }
+
+    /**
+     * Receives the batches collected by the dispatcher threads, a batch only holds statements of one lane
+     */
+    interface BatchHandler {
+        void handleBatch(Lane lane, List<byte[]> batch);
+    }
+
+    /**
+     * Start the background threads
+     */
+    void start();
+
+    /**
+     * Queue a statement for sending, never blocks
+     *
+     * @param orderKey statements with the same key are handed over in the order they were queued by dispatchers which keep
+     *     an order, null if the statement has no place in an order
+     * @return false if the dispatcher is stopped or the lane is full
+     */
+    boolean offer(byte[] statement, Lane lane, String orderKey);
+
+    /**
+     * @return the number of statements waiting to be sent
+     */
+    int getQueueSize();
+
+    /**
+     * @return the number of statements waiting to be sent in the lane
+     */
+    int getQueueSize(Lane lane);
+
+    /**
+     * @return the maximum number of statements waiting in the lane
+     */
+    int getCapacity(Lane lane);
+
+    /**
+     * @return approximately how long (in ms) the oldest statement has been waiting to be sent, 0 if the queue is empty
+     */
+    long getOldestAgeMs();
+
+    /**
+     * @return how long the oldest statement of each batch of the lane waited before it was handed over
+     */
+    LatencyHistogram getWaitHistogram(Lane lane);
+
+    /**
+     * Change the maximum number of statements in a single batch, from the next batch on
+     */
+    void setBatchSize(int batchSize);
+
+    /**
+     * Stop accepting statements and give the background threads a chance to hand over the remaining ones
+     *
+     * @param timeoutMs maximum time (in ms) to wait for the threads to finish
+     * @return the statements still waiting once the threads are stopped, for the caller to keep
+     */
+    List<byte[]> shutdown(long timeoutMs);
+
+}
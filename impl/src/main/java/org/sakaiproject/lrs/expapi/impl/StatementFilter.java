@@ -0,0 +1,339 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.commons.lang3.StringUtils;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+
+/**
+ * Decides which statements are sent, before they are serialized. Each rule is an action followed by conditions, all of
+ * which must hold for the rule to match, the first matching rule decides and statements no rule matches are sent:
+ * <pre>
+ * drop verb=experienced activity=https://sakai.example.edu/portal/site/
+ * sample=0.1 type=http://adlnet.gov/expapi/activities/media result=false
+ * allow verb=http://www.adlnet.gov/expapi/verbs/scored,http://www.adlnet.gov/expapi/verbs/passed
+ * </pre>
+ * Actions: allow, drop, sample=[share of the statements kept, 0-1]. Conditions: verb (verb ids, or Sakai verb names), type
+ * (activity types, or the short names Sakai uses), activity (activity id prefixes), result (true or false). Each condition
+ * takes a comma separated list of values, any of which may match.
+ * <p>
+ * The rules are compiled into bit masks of the rules each verb, type, result and activity prefix (through a trie of the
+ * prefixes) is compatible with, so matching costs a few map lookups and one walk down the activity id whatever the number of
+ * rules. At most 64 rules. Only populated statements are filtered. Safe to use from any number of threads.
+ */
+public class StatementFilter {
+
+    public enum Action {
+        ALLOW, DROP, SAMPLE
+    }
+
+    static final int MAX_RULES = 64;
+
+    private final String[] rules;
+    private final Action[] actions;
+    private final double[] sampleRates;
+    private final LongAdder[] hits;
+
+    // the rules without a condition on the verb (or type, result, activity), and the rules each value is compatible with
+    private long anyVerb;
+    private long anyType;
+    private long anyActivity;
+    private final Map<String, Long> verbRules = new HashMap<>();
+    private final Map<String, Long> typeRules = new HashMap<>();
+    private long withResult;
+    private long withoutResult;
+    private final Node activityRules = new Node("");
+
+    /**
+     * A node of the activity id prefix trie. Chains of single children are merged into one node with a longer label (a
+     * radix trie), so matching an IRI compares whole runs of characters instead of walking one node per character.
+     */
+    private static final class Node {
+        private String label;
+        private Node[] children = new Node[0];
+        // the rules whose prefix ends at the end of this label
+        private long rules;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node child(char first) {
+            for (Node child : children) {
+                if (child.label.charAt(0) == first) {
+                    return child;
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @param rules the rules, in order
+     * @throws IllegalArgumentException if a rule cannot be understood
+     */
+    public StatementFilter(String[] rules) {
+        int count = Math.min(rules.length, MAX_RULES);
+        this.rules = new String[count];
+        this.actions = new Action[count];
+        this.sampleRates = new double[count];
+        this.hits = new LongAdder[count];
+
+        for (int i = 0; i < count; i++) {
+            this.rules[i] = StringUtils.normalizeSpace(rules[i]);
+            this.hits[i] = new LongAdder();
+            compile(i, this.rules[i]);
+        }
+    }
+
+    /**
+     * @return true if the statement is to be sent
+     */
+    public boolean accept(LRS_Statement statement) {
+        int rule = match(statement);
+
+        if (rule < 0) {
+            return true;
+        }
+
+        hits[rule].increment();
+
+        switch (actions[rule]) {
+            case DROP:
+                return false;
+            case SAMPLE:
+                return ThreadLocalRandom.current().nextDouble() < sampleRates[rule];
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * @return the index of the first rule matching the statement, -1 if none does
+     */
+    int match(LRS_Statement statement) {
+        LRS_Verb verb = statement.getVerb();
+        LRS_Object object = statement.getObject();
+
+        long candidates = anyVerb;
+        if (verb != null && verb.getId() != null) {
+            Long rulesOfVerb = verbRules.get(verb.getId());
+            candidates |= rulesOfVerb != null ? rulesOfVerb : 0L;
+        }
+
+        long typeCandidates = anyType;
+        if (object != null && object.getActivityType() != null) {
+            Long rulesOfType = typeRules.get(object.getActivityType());
+            typeCandidates |= rulesOfType != null ? rulesOfType : 0L;
+        }
+
+        candidates &= typeCandidates;
+        candidates &= statement.getResult() != null ? withResult : withoutResult;
+
+        if (candidates == 0L) {
+            return -1;
+        }
+
+        long activityCandidates = anyActivity;
+        String activity = object != null ? object.getId() : null;
+
+        if (activity != null) {
+            int position = 0;
+            Node node = activityRules;
+
+            while (position < activity.length() && (node = node.child(activity.charAt(position))) != null
+                && activity.startsWith(node.label, position)) {
+                position += node.label.length();
+                activityCandidates |= node.rules;
+            }
+        }
+
+        candidates &= activityCandidates;
+
+        return candidates != 0L ? Long.numberOfTrailingZeros(candidates) : -1;
+    }
+
+    /**
+     * @return the number of statements each rule matched, as "[rule]=count" pairs
+     */
+    public String getHits() {
+        StringBuilder counts = new StringBuilder();
+
+        for (int i = 0; i < rules.length; i++) {
+            if (i > 0) {
+                counts.append(", ");
+            }
+
+            counts.append('[').append(rules[i]).append("]=").append(hits[i].sum());
+        }
+
+        return counts.toString();
+    }
+
+    public int getRuleCount() {
+        return rules.length;
+    }
+
+    private void compile(int index, String rule) {
+        String[] parts = StringUtils.split(rule, ' ');
+        long bit = 1L << index;
+
+        if (parts.length == 0) {
+            throw new IllegalArgumentException("Empty filter rule");
+        }
+
+        if ("allow".equalsIgnoreCase(parts[0])) {
+            actions[index] = Action.ALLOW;
+        } else if ("drop".equalsIgnoreCase(parts[0])) {
+            actions[index] = Action.DROP;
+        } else if (StringUtils.startsWithIgnoreCase(parts[0], "sample=")) {
+            actions[index] = Action.SAMPLE;
+
+            try {
+                sampleRates[index] = Double.parseDouble(parts[0].substring("sample=".length()));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid sample rate in filter rule: " + rule, e);
+            }
+        } else {
+            throw new IllegalArgumentException("Filter rule must start with allow, drop or sample=[rate]: " + rule);
+        }
+
+        boolean verbCondition = false;
+        boolean typeCondition = false;
+        boolean activityCondition = false;
+        boolean resultCondition = false;
+
+        for (int i = 1; i < parts.length; i++) {
+            String name = StringUtils.substringBefore(parts[i], "=");
+            String[] values = StringUtils.split(StringUtils.substringAfter(parts[i], "="), ',');
+
+            if (values.length == 0) {
+                throw new IllegalArgumentException("Missing value for " + name + " in filter rule: " + rule);
+            }
+
+            switch (name) {
+                case "verb":
+                    verbCondition = true;
+                    for (String value : values) {
+                        verbRules.merge(toVerbId(value), bit, (a, b) -> a | b);
+                    }
+                    break;
+                case "type":
+                    typeCondition = true;
+                    for (String value : values) {
+                        typeRules.merge(toActivityType(value), bit, (a, b) -> a | b);
+                    }
+                    break;
+                case "activity":
+                    activityCondition = true;
+                    for (String value : values) {
+                        addPrefix(value, bit);
+                    }
+                    break;
+                case "result":
+                    resultCondition = true;
+                    for (String value : values) {
+                        if (Boolean.parseBoolean(value)) {
+                            withResult |= bit;
+                        } else {
+                            withoutResult |= bit;
+                        }
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown condition " + name + " in filter rule: " + rule);
+            }
+        }
+
+        anyVerb |= verbCondition ? 0L : bit;
+        anyType |= typeCondition ? 0L : bit;
+        anyActivity |= activityCondition ? 0L : bit;
+
+        if (!resultCondition) {
+            withResult |= bit;
+            withoutResult |= bit;
+        }
+    }
+
+    private void addPrefix(String prefix, long bit) {
+        Node node = activityRules;
+        int position = 0;
+
+        while (position < prefix.length()) {
+            Node child = node.child(prefix.charAt(position));
+
+            if (child == null) {
+                child = new Node(prefix.substring(position));
+                node.children = Arrays.copyOf(node.children, node.children.length + 1);
+                node.children[node.children.length - 1] = child;
+                node = child;
+                break;
+            }
+
+            int common = 1;
+            while (common < child.label.length() && position + common < prefix.length()
+                && child.label.charAt(common) == prefix.charAt(position + common)) {
+                common++;
+            }
+
+            if (common < child.label.length()) {
+                // split the child, its label becomes the common part with the rest of it moved to a new node below
+                Node rest = new Node(child.label.substring(common));
+                rest.children = child.children;
+                rest.rules = child.rules;
+                child.label = child.label.substring(0, common);
+                child.children = new Node[] {rest};
+                child.rules = 0L;
+            }
+
+            position += common;
+            node = child;
+        }
+
+        node.rules |= bit;
+    }
+
+    /**
+     * @return the verb id, for a verb id or the name of a Sakai verb
+     */
+    static String toVerbId(String value) {
+        if (value.indexOf(':') >= 0) {
+            return value;
+        }
+
+        try {
+            return new LRS_Verb(LRS_Verb.SAKAI_VERB.valueOf(value)).getId();
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown Sakai verb in filter rule: " + value, e);
+        }
+    }
+
+    /**
+     * @return the activity type, for an activity type or the short name Sakai expands to one
+     */
+    private static String toActivityType(String value) {
+        return value.indexOf(':') >= 0 ? value : new LRS_Object("urn:filter", value).getActivityType();
+    }
+
+}
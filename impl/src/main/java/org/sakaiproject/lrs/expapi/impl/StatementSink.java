@@ -0,0 +1,48 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Where serialized statements end up: the LRS, or files to import into one later. Implementations must be safe to call from
+ * any number of threads at once.
+ */
+public interface StatementSink {
+
+    /**
+     * Outcome of a delivery attempt, only RETRY outcomes are worth spooling
+     */
+    enum DeliveryResult {
+        SENT, RETRY, REJECTED
+    }
+
+    /**
+     * Deliver the statements, all or none of them
+     *
+     * @param statements the statements, as UTF-8 encoded JSON objects
+     * @param maxWaitMs maximum time (in ms) to wait before the delivery starts (for a rate limit)
+     * @return completes with the outcome once it is known, never exceptionally
+     */
+    CompletableFuture<DeliveryResult> deliver(List<byte[]> statements, long maxWaitMs);
+
+    /**
+     * Complete or abandon the deliveries in progress and release the resources, the sink cannot be used afterwards
+     */
+    void shutdown();
+
+}
@@ -0,0 +1,411 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only local spool for statements that could not be delivered. Records are appended to numbered segment files
+ * as [length][crc32][payload] and read back in order from a persisted cursor, so unsent statements survive a restart.
+ * Disk usage is bounded by a maximum number of segments, once it is exceeded the oldest segment is evicted.
+ */
+public class StatementSpool {
+
+    private static final Logger log = LoggerFactory.getLogger(StatementSpool.class);
+
+    private static final String SEGMENT_SUFFIX = ".spool";
+    private static final String CURSOR_FILE = "cursor";
+    private static final int HEADER_SIZE = 8;
+    private static final int CURSOR_SIZE = 20;
+
+    /**
+     * A run of records read from the spool, {@link StatementSpool#commit(Batch, int)} marks them as delivered
+     */
+    public static class Batch {
+        private final List<byte[]> records = new ArrayList<>();
+        private final List<long[]> positions = new ArrayList<>();
+
+        public List<byte[]> getRecords() {
+            return Collections.unmodifiableList(records);
+        }
+
+        public boolean isEmpty() {
+            return records.isEmpty();
+        }
+
+        public int size() {
+            return records.size();
+        }
+
+        private void add(byte[] record, long segment, long nextPosition) {
+            records.add(record);
+            positions.add(new long[] {segment, nextPosition});
+        }
+    }
+
+    private final String id;
+    private final File directory;
+    private final long segmentSize;
+    private final int maxSegments;
+    private final int fsyncRecords;
+
+    // segment sequence -> segment file, oldest first
+    private final TreeMap<Long, File> segments = new TreeMap<>();
+    private FileChannel writeChannel;
+    private long writeSegment;
+    private long writePosition;
+    private int unsyncedRecords;
+    private long cursorSegment;
+    private long cursorPosition;
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * @param id the LRS provider id (used for logging)
+     * @param directory where the segment files are kept, created if needed
+     * @param segmentSize maximum size (in bytes) of a single segment file
+     * @param maxSegments maximum number of segment files kept on disk
+     * @param fsyncRecords number of appended records after which the active segment is forced to disk
+     */
+    public StatementSpool(String id, File directory, long segmentSize, int maxSegments, int fsyncRecords) {
+        this.id = id;
+        this.directory = directory;
+        this.segmentSize = Math.max(HEADER_SIZE + 1, segmentSize);
+        this.maxSegments = Math.max(2, maxSegments);
+        this.fsyncRecords = Math.max(1, fsyncRecords);
+    }
+
+    /**
+     * Find the existing segments and cursor and start a fresh segment for appending
+     *
+     * @throws IOException if the spool directory cannot be used
+     */
+    public synchronized void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create LRS spool directory " + directory);
+        }
+
+        segments.clear();
+        File[] files = directory.listFiles(new FilenameFilter() {
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        if (files != null) {
+            for (File file : files) {
+                try {
+                    segments.put(Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length())), file);
+                } catch (NumberFormatException e) {
+                    log.warn("{} LRS spool ignoring unknown file {}", id, file);
+                }
+            }
+        }
+
+        readCursor();
+
+        // the segments the previous run read completely, or started without writing to them, hold nothing to replay
+        for (Map.Entry<Long, File> oldest = segments.firstEntry(); oldest != null && (oldest.getKey() < cursorSegment
+            || (oldest.getKey() == cursorSegment && cursorPosition >= oldest.getValue().length())); oldest = segments.firstEntry()) {
+            deleteSegment(oldest.getKey());
+        }
+
+        startSegment(segments.isEmpty() ? 0L : segments.lastKey() + 1);
+
+        if (!segments.containsKey(cursorSegment)) {
+            // the cursor segment is gone, continue with the oldest segment after it
+            Long next = segments.ceilingKey(cursorSegment);
+            cursorSegment = next != null ? next : segments.firstKey();
+            cursorPosition = 0L;
+        }
+
+        if (segments.size() > 1) {
+            log.info("{} LRS spool opened with {} segment(s) of unsent statements in {}", id, segments.size() - 1, directory);
+        }
+    }
+
+    /**
+     * Append a record, evicting the oldest segment if the spool is full
+     *
+     * @throws IOException if the record could not be written
+     */
+    public synchronized void append(byte[] record) throws IOException {
+        if (writeChannel == null) {
+            throw new IOException("LRS spool " + id + " is not open");
+        }
+
+        if (HEADER_SIZE + record.length > segmentSize) {
+            throw new IOException("Record of " + record.length + " bytes does not fit in a spool segment of " + segmentSize + " bytes");
+        }
+
+        if (writePosition + HEADER_SIZE + record.length > segmentSize) {
+            writeChannel.force(false);
+            writeChannel.close();
+            startSegment(writeSegment + 1);
+        }
+
+        crc.reset();
+        crc.update(record, 0, record.length);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(record.length).putInt((int) crc.getValue()).flip();
+        ByteBuffer payload = ByteBuffer.wrap(record);
+
+        while (header.hasRemaining() || payload.hasRemaining()) {
+            writeChannel.write(new ByteBuffer[] {header, payload});
+        }
+
+        writePosition += HEADER_SIZE + record.length;
+
+        if (++unsyncedRecords >= fsyncRecords) {
+            flush();
+        }
+    }
+
+    /**
+     * Force any appended records to disk
+     */
+    public synchronized void flush() throws IOException {
+        if (writeChannel != null && unsyncedRecords > 0) {
+            writeChannel.force(false);
+            unsyncedRecords = 0;
+        }
+    }
+
+    /**
+     * Read up to maxRecords records starting at the cursor, the cursor is not moved
+     */
+    public synchronized Batch read(int maxRecords) throws IOException {
+        Batch batch = new Batch();
+        long segment = cursorSegment;
+        long position = cursorPosition;
+
+        while (batch.size() < maxRecords && segments.containsKey(segment)) {
+            long limit = segment == writeSegment ? writePosition : segments.get(segment).length();
+
+            try (FileChannel channel = FileChannel.open(segments.get(segment).toPath(), StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+
+                while (batch.size() < maxRecords && position + HEADER_SIZE <= limit) {
+                    header.clear();
+                    readFully(channel, header, position);
+                    header.flip();
+                    int length = header.getInt();
+                    int checksum = header.getInt();
+
+                    if (length <= 0 || position + HEADER_SIZE + length > limit) {
+                        log.warn("{} LRS spool segment {} is truncated at {}, skipping the rest of it", id, segment, position);
+                        position = limit;
+                        break;
+                    }
+
+                    ByteBuffer payload = ByteBuffer.allocate(length);
+                    readFully(channel, payload, position + HEADER_SIZE);
+                    crc.reset();
+                    crc.update(payload.array(), 0, length);
+                    position += HEADER_SIZE + length;
+
+                    if ((int) crc.getValue() == checksum) {
+                        batch.add(payload.array(), segment, position);
+                    } else {
+                        log.warn("{} LRS spool record in segment {} failed its checksum, skipping it", id, segment);
+                    }
+                }
+            }
+
+            if (segment == writeSegment || position < limit) {
+                break;
+            }
+
+            // this segment is finished, continue with the next one
+            Long next = segments.higherKey(segment);
+            if (next == null) {
+                break;
+            }
+            segment = next;
+            position = 0L;
+        }
+
+        return batch;
+    }
+
+    /**
+     * Mark the first count records of the batch as delivered, moving the cursor past them and deleting finished segments
+     */
+    public synchronized void commit(Batch batch, int count) throws IOException {
+        if (count <= 0 || batch.positions.isEmpty()) {
+            return;
+        }
+
+        long[] end = batch.positions.get(Math.min(count, batch.positions.size()) - 1);
+
+        if (end[0] < cursorSegment || (end[0] == cursorSegment && end[1] <= cursorPosition)) {
+            // the records were evicted while being delivered
+            return;
+        }
+
+        cursorSegment = end[0];
+        cursorPosition = end[1];
+
+        // step over segments that have been read completely
+        while (cursorSegment != writeSegment && segments.containsKey(cursorSegment) && cursorPosition >= segments.get(cursorSegment).length()) {
+            Long next = segments.higherKey(cursorSegment);
+            cursorSegment = next != null ? next : writeSegment;
+            cursorPosition = 0L;
+        }
+
+        while (!segments.isEmpty() && segments.firstKey() < cursorSegment) {
+            deleteSegment(segments.firstKey());
+        }
+
+        writeCursor();
+    }
+
+    /**
+     * @return true if there are no records after the cursor
+     */
+    public synchronized boolean isEmpty() {
+        return cursorSegment == writeSegment && cursorPosition >= writePosition;
+    }
+
+    /**
+     * @return number of segment files currently on disk
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Force the remaining records to disk and release the files, the spool can be opened again later
+     */
+    public synchronized void close() {
+        if (writeChannel != null) {
+            try {
+                writeChannel.force(false);
+                writeChannel.close();
+            } catch (IOException e) {
+                log.warn("{} LRS spool failed to close segment {}", id, writeSegment, e);
+            }
+
+            writeChannel = null;
+        }
+
+        try {
+            writeCursor();
+        } catch (IOException e) {
+            log.warn("{} LRS spool failed to save its cursor", id, e);
+        }
+    }
+
+    private void startSegment(long segment) throws IOException {
+        File file = new File(directory, String.format("%020d%s", segment, SEGMENT_SUFFIX));
+        writeChannel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        writeSegment = segment;
+        writePosition = 0L;
+        unsyncedRecords = 0;
+        segments.put(segment, file);
+
+        while (segments.size() > maxSegments) {
+            long evicted = segments.firstKey();
+            log.warn("{} LRS spool is full ({} segments), discarding the oldest unsent statements in segment {}", id, maxSegments, evicted);
+            deleteSegment(evicted);
+
+            if (cursorSegment <= evicted) {
+                cursorSegment = segments.firstKey();
+                cursorPosition = 0L;
+            }
+        }
+    }
+
+    private void deleteSegment(long segment) {
+        File file = segments.remove(segment);
+
+        if (file != null && !file.delete() && file.exists()) {
+            log.warn("{} LRS spool failed to delete segment {}", id, file);
+        }
+    }
+
+    private void readCursor() {
+        File file = new File(directory, CURSOR_FILE);
+        cursorSegment = 0L;
+        cursorPosition = 0L;
+
+        if (!file.isFile()) {
+            return;
+        }
+
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+            if (buffer.remaining() == CURSOR_SIZE) {
+                long segment = buffer.getLong();
+                long position = buffer.getLong();
+                crc.reset();
+                crc.update(buffer.array(), 0, 16);
+
+                if (buffer.getInt() == (int) crc.getValue()) {
+                    cursorSegment = segment;
+                    cursorPosition = position;
+                    return;
+                }
+            }
+
+            log.warn("{} LRS spool cursor is corrupt, replaying from the oldest segment", id);
+        } catch (IOException e) {
+            log.warn("{} LRS spool failed to read its cursor, replaying from the oldest segment", id, e);
+        }
+    }
+
+    private void writeCursor() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(CURSOR_SIZE);
+        buffer.putLong(cursorSegment).putLong(cursorPosition);
+        crc.reset();
+        crc.update(buffer.array(), 0, 16);
+        buffer.putInt((int) crc.getValue()).flip();
+
+        File temp = new File(directory, CURSOR_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(false);
+        }
+
+        Files.move(temp.toPath(), new File(directory, CURSOR_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of LRS spool segment");
+            }
+        }
+    }
+
+}
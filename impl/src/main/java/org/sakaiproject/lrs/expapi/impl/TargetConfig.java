@@ -0,0 +1,135 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Where and how to deliver the statements to one LRS, never modified once read
+ */
+public class TargetConfig {
+
+    private final String name;
+    private final String url;
+    // the nodes of a replicated LRS, null for the url alone
+    private final String[] endpoints;
+    private final String basicAuthString;
+    private final String consumerKey;
+    private final String consumerSecret;
+    private final String realm;
+    private final String bearerToken;
+    private final String tokenUrl;
+    private final String clientId;
+    private final String clientSecret;
+    private final String tokenScope;
+    // request timeout (in ms), 0 for the timeout of the transport
+    private final int timeout;
+    // maximum number of deliveries in progress, 0 for the number of connections
+    private final int concurrency;
+
+    public TargetConfig(String name, String url, String[] endpoints, String basicAuthString, String consumerKey, String consumerSecret,
+            String realm, String bearerToken, String tokenUrl, String clientId, String clientSecret, String tokenScope, int timeout,
+            int concurrency) {
+        this.name = name;
+        this.url = url;
+        this.endpoints = endpoints;
+        this.basicAuthString = basicAuthString;
+        this.consumerKey = consumerKey;
+        this.consumerSecret = consumerSecret;
+        this.realm = realm;
+        this.bearerToken = bearerToken;
+        this.tokenUrl = tokenUrl;
+        this.clientId = clientId;
+        this.clientSecret = clientSecret;
+        this.tokenScope = tokenScope;
+        this.timeout = timeout;
+        this.concurrency = concurrency;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String[] getEndpoints() {
+        return endpoints;
+    }
+
+    /**
+     * @return the urls of the nodes, the url alone if there are none
+     */
+    public List<String> getUrls() {
+        return endpoints != null ? Arrays.asList(endpoints) : Collections.singletonList(url);
+    }
+
+    public String getBasicAuthString() {
+        return basicAuthString;
+    }
+
+    public String getConsumerKey() {
+        return consumerKey;
+    }
+
+    public String getConsumerSecret() {
+        return consumerSecret;
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getBearerToken() {
+        return bearerToken;
+    }
+
+    public String getTokenUrl() {
+        return tokenUrl;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public String getClientSecret() {
+        return clientSecret;
+    }
+
+    public String getTokenScope() {
+        return tokenScope;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public int getConcurrency() {
+        return concurrency;
+    }
+
+    /**
+     * @return the settings the authentication is created with, it is only replaced when they change
+     */
+    public String getAuthenticationSettings() {
+        return basicAuthString + "," + consumerKey + "," + consumerSecret + "," + realm + "," + bearerToken + "," + tokenUrl + "," + clientId
+            + "," + clientSecret + "," + tokenScope;
+    }
+
+}
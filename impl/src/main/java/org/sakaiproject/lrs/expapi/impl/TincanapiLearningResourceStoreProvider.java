@@ -15,30 +15,52 @@
 
 package org.sakaiproject.lrs.expapi.impl;
 
+import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.URISyntaxException;
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
 
-import net.oauth.OAuthAccessor;
-import net.oauth.OAuthConsumer;
 import net.oauth.OAuthException;
-import net.oauth.OAuthMessage;
-import net.oauth.OAuthServiceProvider;
 
-import org.apache.commons.codec.binary.Base64;
 import org.apache.commons.lang3.StringUtils;
-import org.apache.commons.lang3.time.DateFormatUtils;
-import org.apache.commons.lang3.time.FastDateFormat;
-import org.apache.commons.validator.routines.UrlValidator;
 import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
 import org.sakaiproject.component.api.ServerConfigurationService;
-import org.sakaiproject.entitybroker.util.http.HttpClientWrapper;
-import org.sakaiproject.entitybroker.util.http.HttpRESTUtils;
-import org.sakaiproject.entitybroker.util.http.HttpRESTUtils.Method;
+import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.entitybroker.util.http.HttpResponse;
 import org.sakaiproject.event.api.LearningResourceStoreProvider;
 import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.lrs.expapi.impl.StatementDispatcher.Lane;
+import org.sakaiproject.lrs.expapi.impl.StatementSink.DeliveryResult;
 import org.sakaiproject.lrs.expapi.model.LRSKeys;
+import org.sakaiproject.lrs.expapi.util.DuplicateFilter;
+import org.sakaiproject.lrs.expapi.util.FragmentCache;
+import org.sakaiproject.lrs.expapi.util.GzipCompressor;
+import org.sakaiproject.lrs.expapi.util.StatementIds;
+import org.sakaiproject.lrs.expapi.util.StatementJsonWriter;
 import org.sakaiproject.lrs.expapi.util.StatementMapUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -54,29 +76,57 @@ public class TincanapiLearningResourceStoreProvider implements LearningResourceS
 
     private static final Logger log = LoggerFactory.getLogger(TincanapiLearningResourceStoreProvider.class);
 
-    private static final String apiVersion = "1.0.0";
-    private static final HashMap<String, String> EMPTY_PARAMS = new HashMap<>(0);
-    private static final FastDateFormat FORMATTER = DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT;
-    private static final String TEST_CONN_MESSAGE = "{\"actor\": {\"mbox\": \"mailto:no-reply@sakaiTCAPI.com\",\"name\": \"Sakai startup connection test\",\"objectType\": \"Agent\"},\"verb\": {\"id\": \"http://adlnet.gov/expapi/verbs/interacted\",\"display\": {\"en-US\": \"interacted\"}},\"object\": {\"id\": \"http://www.example.com/tincan/activities/OyeZsHFR\",\"objectType\": \"Activity\",\"definition\": {\"name\": {\"en-US\": \"Example Activity\"}}}}";
-    private static final boolean GUARANTEE_SSL = true;
+    static final String apiVersion = "1.0.0";
+    private static final long DISPATCHER_SHUTDOWN_TIMEOUT_MS = 10000L;
+    private static final long RATE_LIMIT_WAIT_MS = 5000L;
+    private static final int GZIP_POOL_SIZE = 16;
+    private static final double DEDUP_FALSE_POSITIVE_RATE = 0.0001;
+    // how long requests still in flight on a replaced transport have to complete before it is shut down
+    private static final long TRANSPORT_RETIRE_MS = 120000L;
+    private static final ThreadLocal<StatementJsonWriter> JSON_WRITER = new ThreadLocal<StatementJsonWriter>() {
+        @Override
+        protected StatementJsonWriter initialValue() {
+            return new StatementJsonWriter();
+        }
+    };
 
     // config variables
-    private String basicAuthString;
+    private final ProviderConfig settings = new ProviderConfig();
+    private DataSource dataSource;
     private ServerConfigurationService serverConfigurationService;
-    private String consumerKey;
-    private String consumerSecret;
     private String id = "tincanapi";
-    private String realm;
-    private int timeout = 0;
-    private String url;
 
     // calculated variables
-    private String configPrefix;
-    private HashMap<String, String> headers;
-    private HttpClientWrapper httpClientWrapper;
+    // the delivery settings applied, replaced as a whole when they change
+    private volatile DeliveryConfig delivery;
+    // the changes of the configuration are applied there, one after the other
+    private ScheduledExecutorService reloadExecutor;
+    private final AtomicBoolean reloadPending = new AtomicBoolean();
+    // the settings the current transport was created with
+    private String transportSettings;
+    private final List<LrsTransport> retiredTransports = new CopyOnWriteArrayList<>();
+    private final List<HttpStatementSink> targets = new ArrayList<>();
+    private StatementDispatcher dispatcher;
+    // the follow-up of the deliveries (spooling, sending again) runs on these threads, never on the transport's
+    private ExecutorService followUpThreads;
+    private Executor followUpExecutor = Runnable::run;
+    private JdbcStatementOutbox outbox;
+    // the ids of the verbs sent in the high priority lane
+    private Set<String> highLaneVerbIds = Collections.emptySet();
+    private StatementSpool spool;
+    private ScheduledExecutorService spoolExecutor;
+    private DuplicateFilter duplicateFilter;
+    private StatementFilter statementFilter;
+    private volatile StatementCoalescer coalescer;
+    private LrsMetrics metrics;
+    private ObjectName metricsName;
+    private final List<ObjectName> targetMetricsNames = new ArrayList<>();
+    // null when compression is disabled
+    private GzipCompressor gzipCompressor;
+    private volatile LrsTransport transport;
+    private StatementSink sink;
+    private FanOutStatementSink fanOut;
     private JSONTranscoder jsonTranscoder;
-    private OAuthServiceProvider oAuthServiceProvider;
-    private OAuthAccessor oAuthAccessor;
 
     /**
      * @param {@link ServerConfigurationService}
@@ -86,98 +136,542 @@ public class TincanapiLearningResourceStoreProvider implements LearningResourceS
     }
 
     /**
-     * Build up the pieces needed for getting the two-step OAuth header values
+     * @return the various elements of the supplied statement as UTF-8 encoded JSON (package visible for the benchmarks)
      */
-    private void configForOAuth() {
-        oAuthServiceProvider = new OAuthServiceProvider("notUsed", "notUsed", "notUsed");
-        oAuthAccessor = new OAuthAccessor(new OAuthConsumer("notUsed", consumerKey, consumerSecret, oAuthServiceProvider));
+    byte[] convertLRS_StatementToJSON(LRS_Statement statement) {
+        return JSON_WRITER.get().write(statement);
+    }
+
+    private byte[] convertLRS_StatementToJSON(LRS_Statement statement, UUID statementId, Map<String, Object> resultExtensions) {
+        return JSON_WRITER.get().write(statement, statementId, resultExtensions);
     }
 
     /**
-     * @return create a JSON string from the various elements of the supplied statement
+     * Shutdown the provider
      */
-    private String convertLRS_StatementToJSON(LRS_Statement statement) {
-        HashMap<String, Object> statementMap = new HashMap<>();
+    public void destroy() {
+        settings.unwatch();
 
-        // Actor, verb and object are required
-        try {
-            statementMap.put(LRSStatementKey.actor.toString(), StatementMapUtils.getActorMap(statement.getActor()));
-            statementMap.put(LRSStatementKey.verb.toString(), StatementMapUtils.getVerbMap(statement.getVerb()));
-            statementMap.put(LRSStatementKey.object.toString(), StatementMapUtils.getObjectMap(statement.getObject()));
-        } catch (Exception e) {
-            log.debug("Unable to handle supplied LRS_Statement", e);
-            throw new IllegalArgumentException("Unable to handle supplied LRS_Statement.\nUnable to process Actor, Verb, or Object");
-        }
+        if (reloadExecutor != null) {
+            reloadExecutor.shutdownNow();
+
+            try {
+                reloadExecutor.awaitTermination(DISPATCHER_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
 
-        if (null != statement.getContext()) {
-            statementMap.put(LRSStatementKey.context.toString(), StatementMapUtils.getContextMap(statement.getContext()));
+            reloadExecutor = null;
         }
 
-        if (null != statement.getResult()) {
-            statementMap.put(LRSStatementKey.result.toString(), StatementMapUtils.getResultMap(statement.getResult()));
+        // the statements held for coalescing are sent while the dispatcher and transport still run
+        StatementCoalescer heldStatements = coalescer;
+        if (heldStatements != null) {
+            coalescer = null;
+            heldStatements.shutdown();
         }
 
-        if (null != statement.getStored()) {
-            statementMap.put(LRSStatementKey.stored.toString(), FORMATTER.format(statement.getStored()));
+        if (dispatcher != null) {
+            // the statements the threads could not hand over in time are kept in the spool, which is still open
+            List<byte[]> unsent = dispatcher.shutdown(DISPATCHER_SHUTDOWN_TIMEOUT_MS);
+            dispatcher = null;
+
+            if (!unsent.isEmpty()) {
+                spoolStatements(unsent);
+            }
         }
 
-        if (null != statement.getTimestamp()) {
-            statementMap.put(LRSStatementKey.timestamp.toString(), FORMATTER.format(statement.getTimestamp()));
+        if (outbox != null) {
+            outbox.shutdown(DISPATCHER_SHUTDOWN_TIMEOUT_MS);
+            outbox = null;
         }
 
-        return jsonTranscoder.encode(statementMap, null, null);
-    }
+        if (followUpThreads != null) {
+            followUpThreads.shutdown();
 
-    /**
-     * Shutdown the provider
-     */
-    public void destroy() {
-        if (httpClientWrapper != null) {
             try {
-                httpClientWrapper.shutdown();
+                followUpThreads.awaitTermination(DISPATCHER_SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            followUpThreads = null;
+        }
+
+        // deliveries still in progress may fail and need the spool, so the sinks go first
+        if (sink != null) {
+            try {
+                sink.shutdown();
+
+                for (HttpStatementSink target : targets) {
+                    target.shutdown();
+                }
+
+                if (transport != null) {
+                    transport.shutdown();
+                }
+
+                for (LrsTransport retired : retiredTransports) {
+                    retired.shutdown();
+                }
+
+                retiredTransports.clear();
             } catch (Exception e) {
                 log.error("Error upon destroying TinCanAPI provider.", e);
             }
 
-            httpClientWrapper = null;
+            sink = null;
+            transport = null;
+        }
+
+        if (spoolExecutor != null) {
+            spoolExecutor.shutdownNow();
+            spoolExecutor = null;
+        }
+
+        if (spool != null) {
+            spool.close();
+            spool = null;
+        }
+
+        if (fanOut != null) {
+            for (FanOutStatementSink.Target target : fanOut.getTargets()) {
+                if (target.getSpool() != null) {
+                    target.getSpool().close();
+                }
+
+                log.info("{}", target.getMetrics());
+            }
+        }
+
+        GzipCompressor compressor = gzipCompressor;
+        if (compressor != null) {
+            compressor.close();
+            gzipCompressor = null;
         }
 
         jsonTranscoder = null;
+        for (FragmentCache<?> cache : StatementMapUtils.getFragmentCaches()) {
+            log.info("{} LRS provider {}", id, cache);
+        }
+        StatementMapUtils.releaseServerConfigurationService(serverConfigurationService);
+
+        if (statementFilter != null) {
+            log.info("{} LRS provider filter rule hits: {}", id, statementFilter.getHits());
+        }
+
+        if (metrics != null) {
+            unregisterMetrics();
+            log.info("{}", metrics);
+        }
+
+        fanOut = null;
+        targets.clear();
     }
 
     /**
      * Parse the data from the LRS statement and handle sending the request to the configured receiver. If there is an issue in
-     * sending (due to endpoint being misconfigured or unavailable), we simply log the statement.
+     * sending (due to endpoint being misconfigured or unavailable), we log the statement and keep it in the spool (if enabled)
+     * to be replayed later. In async mode the statement is only queued here and sent later as part of a batch
+     * (see {@link #sendBatch(List)}). Populated statements the filter rules (if any) drop are never serialized, those
+     * coalescing holds back are sent once their window expires (see {@link StatementCoalescer}).
      * 
      * @see org.sakaiproject.event.api.LearningResourceStoreProvider#handleStatement(org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement)
      */
     public void handleStatement(LRS_Statement statement) {
-        String data = null;
+        StatementFilter filter = statementFilter;
+
+        if (filter != null && statement.isPopulated() && !filter.accept(statement)) {
+            metrics.statementsFiltered(1);
+            return;
+        }
+
+        StatementCoalescer heldStatements = coalescer;
+
+        if (heldStatements != null && heldStatements.offer(statement)) {
+            return;
+        }
+
+        submitStatement(statement, null);
+    }
+
+    /**
+     * Serialize and send (or queue) the statement. Statements get a deterministic id (see {@link StatementIds}), a statement
+     * with the id of one handled within the dedup window is dropped, before it is even serialized when it is populated.
+     * Statements which cannot get a deterministic id (no timestamp, raw statements without an id of their own) get a random
+     * one and are never taken for duplicates.
+     *
+     * @param resultExtensions extensions added to the result of a populated statement, null for none
+     */
+    private void submitStatement(LRS_Statement statement, Map<String, Object> resultExtensions) {
+        byte[] data = null;
+        long start = System.nanoTime();
 
         if (statement.isPopulated()) {
-            data = convertLRS_StatementToJSON(statement);
-            log.debug("LRS using populated statement: {}", data);
+            UUID statementId = null;
+
+            if (settings.isStatementIdsEnabled()) {
+                statementId = StatementIds.forStatement(statement);
+
+                if (statementId == null) {
+                    statementId = UUID.randomUUID();
+                } else if (isDuplicate(statementId)) {
+                    return;
+                }
+            }
+
+            try {
+                data = convertLRS_StatementToJSON(statement, statementId, resultExtensions);
+            } catch (IllegalArgumentException e) {
+                log.debug("Unable to handle supplied LRS_Statement", e);
+                throw e;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("LRS using populated statement: {}", asString(data));
+            }
         } else if (statement.getRawMap() != null && !statement.getRawMap().isEmpty()) {
-            data = jsonTranscoder.encode(statement.getRawMap(), null, null);
-            log.debug("LRS using raw Map statement: {}", data);
+            // the map based fallback, raw maps can hold anything so leave them to the transcoder
+            String json = jsonTranscoder.encode(statement.getRawMap(), null, null);
+            log.debug("LRS using raw Map statement: {}", json);
+            data = json.getBytes(StandardCharsets.UTF_8);
+
+            if (settings.isStatementIdsEnabled()) {
+                data = withStatementId(data, statement.getRawMap().get(LRSStatementKey.id.toString()));
+            }
         } else {
-            data = statement.getRawJSON();
-            log.debug("LRS using raw JSON statement: {}", data);
+            log.debug("LRS using raw JSON statement: {}", statement.getRawJSON());
+            data = statement.getRawJSON().getBytes(StandardCharsets.UTF_8);
+
+            if (settings.isStatementIdsEnabled()) {
+                try {
+                    data = withStatementId(data, StatementIds.getId(data));
+                } catch (IllegalArgumentException e) {
+                    // not a single statement (a statement array, or invalid JSON), sent as it is and left to the LRS
+                    log.debug("{} LRS provider sending raw JSON without a statement id: {}", id, e.getMessage());
+                }
+            }
+        }
+
+        if (data == null) {
+            return;
         }
 
+        metrics.serializeTime(System.nanoTime() - start);
+
         log.debug("LRS Attempting to handle statement: {}", statement);
 
-        try {
-            HttpResponse response = postData(data);
-            if (response.getResponseCode() >= 200 && response.getResponseCode() < 300) {
-                log.debug("{} LRS provider successfully sent statement data: {}", id, data);
+        if (outbox != null) {
+            if (!outbox.append(data)) {
+                log.warn("{} LRS provider outbox queue is full ({} statements)", id, settings.getOutboxQueueSize());
+                spoolStatements(Collections.singletonList(data));
+            }
+
+            return;
+        }
+
+        if (dispatcher != null) {
+            Lane lane = getLane(statement);
+
+            if (dispatcher.offer(data, lane, settings.getAsyncPartitions() > 0 ? getOrderKey(statement) : null)) {
+                return;
+            }
+
+            if (lane == Lane.LOW && settings.isLowLaneShed()) {
+                metrics.statementsShed(1);
+                log.debug("{} LRS provider low priority queue is full ({} statements), statement dropped", id, dispatcher.getCapacity(lane));
             } else {
-                log.warn("{} LRS provider failed ({} {}) sending statement data ({}) to ({}), response: {}",
-                    id, response.getResponseCode(), response.getResponseMessage(), data, url, response.getResponseBody());
+                log.warn("{} LRS provider {} priority queue is full ({} statements)", id, lane, dispatcher.getCapacity(lane));
+                spoolStatements(Collections.singletonList(data));
+            }
+
+            return;
+        }
+
+        // the caller never waits on the rate limiter, statements over the limit are parked like when the circuit is open
+        if (deliver(Collections.singletonList(data), 0L) == DeliveryResult.RETRY) {
+            spoolStatements(Collections.singletonList(data));
+        }
+    }
+
+    /**
+     * Statements with a result or an instructor, and those with one of the configured verbs, go in the high priority lane.
+     * Raw statements only do when their map has a result (package visible for the tests).
+     */
+    Lane getLane(LRS_Statement statement) {
+        if (!statement.isPopulated()) {
+            Map<String, Object> rawMap = statement.getRawMap();
+            return rawMap != null && rawMap.get(LRSStatementKey.result.toString()) != null ? Lane.HIGH : Lane.LOW;
+        }
+
+        if (statement.getResult() != null || (statement.getContext() != null && statement.getContext().getInstructor() != null)) {
+            return Lane.HIGH;
+        }
+
+        return statement.getVerb() != null && highLaneVerbIds.contains(statement.getVerb().getId()) ? Lane.HIGH : Lane.LOW;
+    }
+
+    /**
+     * @return the identity of the actor of the statement, the statements of an actor are sent in order when the dispatcher is
+     *     partitioned, null for raw JSON statements
+     */
+    private String getOrderKey(LRS_Statement statement) {
+        if (statement.isPopulated()) {
+            return statement.getActor() != null ? StatementMapUtils.getActorIdentity(statement.getActor()) : null;
+        }
+
+        Map<String, Object> rawMap = statement.getRawMap();
+        Object actor = rawMap != null ? rawMap.get(LRSStatementKey.actor.toString()) : null;
+        return actor != null ? actor.toString() : null;
+    }
+
+    /**
+     * Give a raw statement without an id a random one, so that sending it again is recognized by the LRS. Two identical raw
+     * statements may well have happened twice, only those with an id of their own are taken for duplicates.
+     *
+     * @param statementId the id of the statement, null if it has none
+     * @return the statement data, null if it is a duplicate
+     */
+    private byte[] withStatementId(byte[] data, Object statementId) {
+        if (statementId == null) {
+            return StatementIds.withId(data, UUID.randomUUID());
+        }
+
+        try {
+            return isDuplicate(UUID.fromString(statementId.toString())) ? null : data;
+        } catch (IllegalArgumentException e) {
+            // not a valid statement id, the LRS will refuse it
+            return data;
+        }
+    }
+
+    /**
+     * @return true if a statement with the same id was handled within the dedup window
+     */
+    private boolean isDuplicate(UUID statementId) {
+        DuplicateFilter filter = duplicateFilter;
+
+        if (filter != null && filter.seen(statementId)) {
+            metrics.statementsSuppressed(1);
+            log.info("{} LRS provider dropped duplicate statement {}", id, statementId);
+            return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * Deliver the statements to the sink, waiting for the outcome
+     *
+     * @param rateLimitWaitMs maximum time (in ms) to wait for the rate limiter
+     */
+    private DeliveryResult deliver(List<byte[]> statements, long rateLimitWaitMs) {
+        return sink.deliver(statements, rateLimitWaitMs).join();
+    }
+
+    /**
+     * @return the health of the LRS according to the last check, UNKNOWN before the first one and when checks are disabled.
+     *     With several targets, DOWN if any of them is down, UP if they all are.
+     */
+    public LrsHealthProber.State getHealthState() {
+        LrsHealthProber.State state = null;
+
+        for (HttpStatementSink target : targets) {
+            LrsHealthProber.State targetState = target.getHealthState();
+
+            if (targetState == LrsHealthProber.State.DOWN) {
+                return targetState;
+            }
+
+            state = state == null || state == targetState ? targetState : LrsHealthProber.State.UNKNOWN;
+        }
+
+        return state != null ? state : LrsHealthProber.State.UNKNOWN;
+    }
+
+    /**
+     * @return the state of the circuit to the LRS, CLOSED when the circuit breaker is disabled. With several targets, OPEN if
+     *     any circuit is open, HALF_OPEN if any is half open.
+     */
+    public CircuitBreaker.State getCircuitState() {
+        CircuitBreaker.State state = CircuitBreaker.State.CLOSED;
+
+        for (HttpStatementSink target : targets) {
+            CircuitBreaker.State targetState = target.getCircuitState();
+
+            if (targetState == CircuitBreaker.State.OPEN) {
+                return targetState;
+            }
+
+            state = targetState == CircuitBreaker.State.HALF_OPEN ? targetState : state;
+        }
+
+        return state;
+    }
+
+    /**
+     * Deliver a batch of statements (to the LRS as a single xAPI statement array) without waiting for the outcome, unless
+     * the dispatcher is partitioned. If the batch is rejected, the statements are sent one after the other so a single bad
+     * statement does not take the others down with it.
+     */
+    private void sendBatch(final Lane lane, final List<byte[]> batch) {
+        final long start = System.nanoTime();
+
+        final Executor executor = followUpExecutor;
+
+        // spooling and sending again may block (disk, rate limit), so they never run on the thread which completed the delivery
+        CompletableFuture<Void> handled = sink.deliver(batch, RATE_LIMIT_WAIT_MS).thenComposeAsync(result -> {
+            metrics.laneDeliveryTime(lane, System.nanoTime() - start);
+            CompletableFuture<Void> singles = CompletableFuture.completedFuture(null);
+
+            if (result == DeliveryResult.RETRY) {
+                spoolStatements(batch);
+            } else if (result == DeliveryResult.REJECTED && batch.size() > 1) {
+                for (final byte[] statement : batch) {
+                    singles = singles.thenComposeAsync(previous -> sink.deliver(Collections.singletonList(statement), RATE_LIMIT_WAIT_MS), executor)
+                        .thenAcceptAsync(single -> {
+                            if (single == DeliveryResult.RETRY) {
+                                spoolStatements(Collections.singletonList(statement));
+                            }
+                        }, executor);
+                }
+            }
+
+            return singles;
+        }, executor);
+
+        // a partition hands its next batch over once this one is done, or the statements of an actor could overtake each other
+        // (with several targets it is done within targets.wait, the statements of a target which takes longer are spooled)
+        if (settings.getAsyncPartitions() > 0) {
+            handled.join();
+        }
+    }
+
+    /**
+     * Keep statements that could not be delivered in the spool so they can be replayed later
+     */
+    private void spoolStatements(List<byte[]> statements) {
+        if (spool == null) {
+            // logged in full so they can still be recovered
+            metrics.statementsDropped(statements.size());
+
+            for (byte[] statement : statements) {
+                log.warn("{} LRS provider has no spool configured, statement was not sent.\n Statement data: {}", id, asString(statement));
+            }
+            return;
+        }
+
+        for (byte[] statement : statements) {
+            try {
+                spool.append(statement);
+                metrics.statementsSpooled(1);
+            } catch (IOException e) {
+                metrics.statementsDropped(1);
+                log.error("{} LRS provider failed to spool statement, statement was not sent.\n Statement data: {}", id, asString(statement), e);
+            }
+        }
+
+        log.debug("{} LRS provider spooled {} statement(s) for replay", id, statements.size());
+    }
+
+    /**
+     * Send the spooled statements in batches until the spool is empty or the LRS fails again
+     *
+     * @param destination the sink the statements of the spool are for
+     */
+    private void replaySpool(StatementSpool spool, StatementSink destination) {
+        StatementSink to = destination != null ? destination : sink;
+
+        if (to == null) {
+            return;
+        }
+
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                StatementSpool.Batch batch = spool.read(delivery.getBatchSize());
+
+                if (batch.isEmpty()) {
+                    return;
+                }
+
+                List<byte[]> statements = batch.getRecords();
+                DeliveryResult result = to.deliver(statements, RATE_LIMIT_WAIT_MS).join();
+
+                if (result == DeliveryResult.RETRY) {
+                    return;
+                }
+
+                if (result == DeliveryResult.REJECTED && statements.size() > 1) {
+                    for (int i = 0; i < statements.size(); i++) {
+                        if (to.deliver(Collections.singletonList(statements.get(i)), RATE_LIMIT_WAIT_MS).join() == DeliveryResult.RETRY) {
+                            spool.commit(batch, i);
+                            return;
+                        }
+                    }
+                }
+
+                spool.commit(batch, batch.size());
+                log.info("{} LRS provider replayed {} spooled statement(s)", id, batch.size());
             }
         } catch (Exception e) {
-            log.error("{} LRS provider exception: Statement was not sent.\n Statement data: {}", id, data, e);
+            log.error("{} LRS provider failed to replay spooled statements", id, e);
+        }
+    }
+
+    /**
+     * Open the spool and start the background tasks which force it to disk and replay it
+     */
+    private void startSpool() {
+        spoolExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LRS-" + id + "-spool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        spool = openSpool(id, settings.getSpoolDirectory(), null);
+    }
+
+    /**
+     * Open a spool and schedule the tasks which force it to disk and replay it
+     *
+     * @param destination where the spooled statements are replayed to, null for the sink of the provider
+     * @return the spool, null if it cannot be used
+     */
+    private StatementSpool openSpool(final String name, File directory, final StatementSink destination) {
+        final StatementSpool openSpool = new StatementSpool(name, directory, settings.getSpoolSegmentSize(), settings.getSpoolMaxSegments(),
+            settings.getSpoolFsyncRecords());
+
+        try {
+            openSpool.open();
+        } catch (IOException e) {
+            log.error("{} LRS provider cannot use spool directory {}, failed statements will not be spooled", name, directory, e);
+            return null;
         }
+
+        spoolExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    openSpool.flush();
+                } catch (IOException e) {
+                    log.warn("{} LRS provider failed to force the spool to disk", name, e);
+                }
+            }
+        }, settings.getSpoolFsyncIntervalMs(), settings.getSpoolFsyncIntervalMs(), TimeUnit.MILLISECONDS);
+        spoolExecutor.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                replaySpool(openSpool, destination);
+            }
+        }, settings.getSpoolReplayIntervalMs(), settings.getSpoolReplayIntervalMs(), TimeUnit.MILLISECONDS);
+
+        log.info("{} LRS provider spooling failed statements to {}", name, directory);
+        return openSpool;
+    }
+
+    /**
+     * @return the UTF-8 statement data as a string for logging
+     */
+    private static String asString(byte[] data) {
+        return new String(data, StandardCharsets.UTF_8);
     }
 
     /**
@@ -189,141 +683,908 @@ public class TincanapiLearningResourceStoreProvider implements LearningResourceS
      */
     public void init() throws OAuthException, IOException, URISyntaxException {
         readConfig();
+        metrics = new LrsMetrics(id);
+        StatementMapUtils.setServerConfigurationService(serverConfigurationService);
         // Don't allow api version to be configured... we only should be reporting it
-        log.info("{} LRS provider (version {}) configured: {}", id, apiVersion, url);
-        
-        headers = new HashMap<>(3);
-        headers.put("Content-Type", "application/json");
-        headers.put("X-Experience-API-Version", apiVersion);
-
-        if (StringUtils.isNotEmpty(basicAuthString)) {
-            // Note that the SCORM example javascript 64 encoder does use + and / in their output, so we do NOT use the URL safe
-            // version of this method here to match their logic
-            headers.put("Authorization", "Basic " + Base64.encodeBase64String((basicAuthString).getBytes()));
-        } else {
-            configForOAuth();
+        log.info("{} LRS provider (version {}) configured: {}", id, apiVersion, settings.isFileSink() ? settings.getSinkDirectory() : getTargetUrls());
+
+        if (settings.isGzipEnabled()) {
+            gzipCompressor = new GzipCompressor(settings.getGzipLevel(), GZIP_POOL_SIZE);
         }
 
         jsonTranscoder = new JSONTranscoder(true, true, false);
-        httpClientWrapper = HttpRESTUtils.makeReusableHttpClient(true, timeout, null);
-        HttpResponse response;
 
-        try {
-            response = postData(TEST_CONN_MESSAGE);
+        if (settings.isFileSink()) {
+            NdjsonFileSink fileSink = new NdjsonFileSink(id, settings.getSinkDirectory(), settings.getSinkFileSize(), settings.getSinkFileAgeMs(),
+                settings.getSinkGzipLevel(), metrics);
+            fileSink.open();
+            sink = fileSink;
+            log.info("{} LRS provider writing statements to files in {} instead of sending them", id, settings.getSinkDirectory());
+        } else {
+            transport = createTransport(delivery);
+            startFollowUp();
 
-            if (response.getResponseCode() == 200) {
-                log.info("{} LRS provider configured and ready", id);
-            } else {
-                log.error("{} LRS provider not configured properly OR LRS is offline - test message failed!", id);
+            for (TargetConfig config : delivery.getTargets()) {
+                // each target has metrics of its own, the provider metrics cover the rest of the pipeline
+                boolean fanningOut = settings.isFanOut();
+                String name = fanningOut ? id + "." + config.getName() : id;
+                targets.add(new HttpStatementSink(name, config, delivery, transport, settings, gzipCompressor, followUpExecutor,
+                    this::scheduleReplay, fanningOut ? new LrsMetrics(name) : metrics));
             }
-        } catch (Exception e) {
-            log.error("{} LRS provider failure while trying to contact the LRS! Initialization test failed: ", id, e);
         }
 
-        log.info("{} LRS provider INIT complete", id);
-    }
+        if (settings.getFilterRules() != null && settings.getFilterRules().length > 0) {
+            if (settings.getFilterRules().length > StatementFilter.MAX_RULES) {
+                log.warn("{} LRS provider only uses the first {} of the {} filter rules", id, StatementFilter.MAX_RULES, settings.getFilterRules().length);
+            }
+
+            try {
+                statementFilter = new StatementFilter(settings.getFilterRules());
+            } catch (IllegalArgumentException e) {
+                throw new IllegalStateException("Invalid " + id + " LRS provider filter rule, correct the " + settings.getConfigPrefix() + "filter config values", e);
+            }
+
+            log.info("{} LRS provider filtering statements with {} rule(s)", id, statementFilter.getRuleCount());
+        }
+
+        if (settings.getCoalesceWindowMs() > 0) {
+            startCoalescer();
+        }
+
+        if (settings.getDedupWindowMs() > 0) {
+            duplicateFilter = new DuplicateFilter(settings.getDedupWindowMs(), settings.getDedupCapacity(), DEDUP_FALSE_POSITIVE_RATE);
+            log.info("{} LRS provider dropping duplicate statements within {} ms ({} KB)", id, settings.getDedupWindowMs(), duplicateFilter.getSizeBytes() / 1024);
+        }
+
+        if (gzipCompressor != null) {
+            log.info("{} LRS provider compressing statement bodies of {} bytes or more", id, settings.getGzipThreshold());
+        }
+
+        if (settings.isSpoolEnabled()) {
+            startSpool();
+        }
+
+        if (!targets.isEmpty()) {
+            startTargets();
+        }
 
-    private HttpResponse postData(String data) throws OAuthException, IOException, URISyntaxException {
-        if (StringUtils.isEmpty(basicAuthString)) {
-            OAuthMessage message = oAuthAccessor.newRequestMessage(OAuthMessage.POST, url, null);
-            message.sign(oAuthAccessor);
-            String authHeader = message.getAuthorizationHeader(realm);
-            headers.put("Authorization", authHeader);
+        if (settings.isOutboxEnabled()) {
+            startOutbox();
+        } else if (settings.isAsyncEnabled()) {
+            startDispatcher();
         }
-        HttpResponse response = HttpRESTUtils.fireRequest(httpClientWrapper, url, Method.POST, EMPTY_PARAMS, headers, data, GUARANTEE_SSL);
 
-        return response;
+        registerMetrics();
+        startReload();
+
+        log.info("{} LRS provider INIT complete", id);
     }
 
     /**
-     * Read the setup from the configuration. All non-empty values will overwrite any values that may have been set due to DI
-     * Values are prefixed with "lrs.[id]." so that multiple versions of this provider can be instantiated based on the id.
+     * Start the circuit breakers and the health checks of the LRSs. With targets configured, the statements fan out to all of
+     * them and each target gets a spool of its own for the statements it could not take.
      */
-    private void readConfig() {
-        if (StringUtils.isEmpty(id)) {
-            throw new IllegalStateException("Invalid " + id + " for LRS provider, cannot start");
+    private void startTargets() {
+        if (!settings.isFanOut()) {
+            HttpStatementSink target = targets.get(0);
+            // the outbox keeps the statements not sent in its table
+            target.setHoldWhileDown(spool != null || settings.isOutboxEnabled());
+            startTarget(target, settings.getHealthUrl());
+            sink = target;
+            return;
         }
 
-        configPrefix = "lrs." + id + ".";
+        List<FanOutStatementSink.Target> fanOutTargets = new ArrayList<>(targets.size());
 
-        String value = serverConfigurationService.getConfig(configPrefix + "url", "");
-        url = StringUtils.isNotEmpty(value) ? value : url;
+        for (int i = 0; i < targets.size(); i++) {
+            HttpStatementSink target = targets.get(i);
+            File directory = new File(settings.getSpoolDirectory(), "targets" + File.separator + delivery.getTargets().get(i).getName());
+            StatementSpool targetSpool = spoolExecutor != null ? openSpool(target.getName(), directory, target) : null;
+            target.setHoldWhileDown(targetSpool != null);
+            startTarget(target, null);
+            fanOutTargets.add(new FanOutStatementSink.Target(target.getName(), target, targetSpool, target.getMetrics(), target.getConcurrency()));
+        }
 
-        // ensure the URL is valid and formatted the same way (add "/" if not on the end for example)
-        UrlValidator urlValidator = new UrlValidator(UrlValidator.ALLOW_LOCAL_URLS);
+        fanOut = new FanOutStatementSink(id, fanOutTargets, settings.getTargetWaitMs());
+        sink = fanOut;
+        log.info("{} LRS provider delivering every statement to {} target(s)", id, fanOutTargets.size());
+    }
 
-        if (!urlValidator.isValid(url)) {
-            throw new IllegalStateException("Invalid " + id + " LRS provider url (" + url + "), correct the " + configPrefix + "url config value");
-        } /* won't work with some LRS
-        else {
-            if (!url.endsWith("/")) {
-                url = url + "/";
-            }
-        }*/
+    private void startTarget(HttpStatementSink target, String aboutUrl) {
+        if (settings.isCircuitEnabled()) {
+            target.startCircuitBreaker();
+        }
 
-        value = serverConfigurationService.getConfig(configPrefix + "request.timeout", "");
+        target.startChecks(aboutUrl);
+    }
 
-        try {
-            timeout = StringUtils.isNotEmpty(value) ? Integer.parseInt(value) : timeout; // allow setter to override
-        } catch (NumberFormatException e) {
-                timeout = 0;
-                log.debug("{} request.timeout must be an integer value - using default setting", configPrefix, e);
+    /**
+     * Keep the statements in the outbox table of the Sakai database until one of the nodes delivers them, instead of queueing
+     * them in memory
+     */
+    private void startOutbox() {
+        if (settings.isAsyncEnabled()) {
+            log.info("{} LRS provider sends the statements from the outbox, async dispatch is not used", id);
         }
 
-        // basic auth
-        value = serverConfigurationService.getConfig(configPrefix + "basicAuthUserPass", "");
-        basicAuthString = StringUtils.isNotEmpty(value) ? value : basicAuthString;
+        DataSource outboxDataSource = dataSource != null ? dataSource : (DataSource) ComponentManager.get("javax.sql.BaseDataSource");
 
-        // oauth fields
-        value = serverConfigurationService.getConfig(configPrefix + "consumer.key", "");
-        consumerKey = StringUtils.isNotEmpty(value) ? value : consumerKey;
-        value = serverConfigurationService.getConfig(configPrefix + "consumer.secret", "");
-        consumerSecret = StringUtils.isNotEmpty(value) ? value : consumerSecret;
-        value = serverConfigurationService.getConfig(configPrefix + "realm", "");
-        realm = StringUtils.isNotEmpty(value) ? value : realm;
-
-        if (StringUtils.isEmpty(basicAuthString) && (StringUtils.isEmpty(consumerKey) || StringUtils.isEmpty(consumerSecret) || StringUtils.isEmpty(realm))) {
-            throw new IllegalStateException("No authentication configured properly for LRS provider, service cannot start. Please check the configuration");
+        if (outboxDataSource == null) {
+            throw new IllegalStateException("No data source for the " + id + " LRS provider outbox, service cannot start");
         }
-    }
 
-    public void setBasicAuthString(String authString) {
-        this.basicAuthString = authString;
-    }
+        outbox = new JdbcStatementOutbox(id, outboxDataSource, settings.getOutboxTable(), sink, this::spoolStatements, settings.getOutboxQueueSize(),
+            settings.getOutboxCommitSize(), settings.getOutboxCommitIntervalMs(), delivery.getBatchSize(), settings.getOutboxLeaseMs(),
+            settings.getOutboxRetryMs(), settings.getOutboxPollIntervalMs(), settings.getOutboxRetentionMs());
+        outbox.setSkipLocked(settings.isOutboxSkipLocked());
 
-    public void setConsumerKey(String consumerKey) {
-        this.consumerKey = consumerKey;
-    }
+        if (settings.isOutboxAutoDdl()) {
+            try {
+                outbox.createTable();
+            } catch (SQLException e) {
+                throw new IllegalStateException("Cannot create the " + id + " LRS provider outbox table " + settings.getOutboxTable(), e);
+            }
+        }
 
-    public void setConsumerSecret(String consumerSecret) {
-        this.consumerSecret = consumerSecret;
+        outbox.start(settings.getOutboxDrainers());
     }
 
     /**
-     * @see org.sakaiproject.event.api.LearningResourceStoreProvider#getID()
+     * Start the async dispatcher, with a small high priority lane for the statements that matter most (results, instructors
+     * and the configured verbs) next to the lane for everything else. Partitioned by actor to keep the order of the
+     * statements of each actor, otherwise shared by all the workers.
      */
-    public String getID() {
-        return id;
-    }
+    private void startDispatcher() {
+        if (settings.getHighLaneVerbs() != null) {
+            highLaneVerbIds = new HashSet<>();
 
-    public void setId(String id) {
-        this.id = id;
-    }
+            for (String verb : settings.getHighLaneVerbs()) {
+                try {
+                    highLaneVerbIds.add(StatementFilter.toVerbId(verb.trim()));
+                } catch (IllegalArgumentException e) {
+                    throw new IllegalStateException("Invalid " + id + " LRS provider high priority verb, correct the " + settings.getConfigPrefix() + "lane.high.verbs config values", e);
+                }
+            }
+        }
 
-    public void setRealm(String realm) {
-        this.realm = realm;
-    }
+        StatementDispatcher.BatchHandler handler = new StatementDispatcher.BatchHandler() {
+            public void handleBatch(Lane lane, List<byte[]> batch) {
+                sendBatch(lane, batch);
+            }
+        };
 
-    public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
-        this.serverConfigurationService = serverConfigurationService;
+        int partitions = settings.getAsyncPartitions();
+
+        if (partitions > 0) {
+            PartitionedStatementDispatcher partitioned = new PartitionedStatementDispatcher(id, handler, delivery.getBatchSize(), partitions);
+            // the lane capacities are shared out between the partitions, unless the partition size is set
+            int lowCapacity = settings.getAsyncPartitionQueueSize() > 0 ? settings.getAsyncPartitionQueueSize()
+                : (settings.getAsyncQueueSize() + partitions - 1) / partitions;
+            partitioned.setLane(Lane.HIGH, (settings.getHighLaneQueueSize() + partitions - 1) / partitions, settings.getHighLaneLingerMs());
+            partitioned.setLane(Lane.LOW, lowCapacity, settings.getBatchLingerMs());
+            dispatcher = partitioned;
+        } else {
+            BatchingStatementDispatcher shared = new BatchingStatementDispatcher(id, handler, delivery.getBatchSize(), settings.getAsyncWorkers());
+            shared.setLane(Lane.HIGH, settings.getHighLaneQueueSize(), settings.getHighLaneWeight(), settings.getHighLaneLingerMs());
+            shared.setLane(Lane.LOW, settings.getAsyncQueueSize(), settings.getLowLaneWeight(), settings.getBatchLingerMs());
+            dispatcher = shared;
+        }
+
+        dispatcher.start();
     }
 
-    public void setTimeout(int timeout) {
-        this.timeout = timeout;
+    /**
+     * Publish the metrics to the registry and over JMX, with gauges reading the current queue, spool and circuit state
+     */
+    private void registerMetrics() {
+        final StatementDispatcher queue = dispatcher;
+        final StatementSpool openSpool = spool;
+
+        if (queue != null) {
+            metrics.setQueueGauges(queue::getQueueSize, queue::getOldestAgeMs);
+            metrics.setLaneGauges(() -> queue.getQueueSize(Lane.HIGH), () -> queue.getQueueSize(Lane.LOW),
+                queue.getWaitHistogram(Lane.HIGH), queue.getWaitHistogram(Lane.LOW));
+        }
+
+        if (outbox != null) {
+            metrics.setQueueGauges(outbox::getQueueSize, outbox::getOldestAgeMs);
+        }
+
+        if (queue instanceof PartitionedStatementDispatcher) {
+            metrics.setPartitionGauge(((PartitionedStatementDispatcher) queue)::getLargestPartitionSize);
+        }
+
+        if (openSpool != null) {
+            metrics.setSpoolGauge(openSpool::getSegmentCount);
+        }
+
+        metrics.setCircuitGauge(() -> getCircuitState().name());
+        metrics.setHealthGauge(() -> getHealthState().name());
+
+        if (!settings.isFanOut() && !targets.isEmpty() && targets.get(0).isPooled()) {
+            final HttpStatementSink target = targets.get(0);
+            metrics.setEndpointGauge(() -> target.getEndpoints().toString());
+        }
+
+        if (statementFilter != null) {
+            metrics.setFilterGauge(statementFilter::getHits);
+        }
+        metricsName = publishMetrics(metrics);
+
+        if (fanOut != null) {
+            // each target has its own delivery counters, circuit, health and spool
+            for (FanOutStatementSink.Target target : fanOut.getTargets()) {
+                final HttpStatementSink targetSink = (HttpStatementSink) target.getSink();
+                final StatementSpool targetSpool = target.getSpool();
+                LrsMetrics targetMetrics = target.getMetrics();
+                targetMetrics.setCircuitGauge(() -> targetSink.getCircuitState().name());
+                targetMetrics.setHealthGauge(() -> targetSink.getHealthState().name());
+
+                if (targetSink.isPooled()) {
+                    targetMetrics.setEndpointGauge(() -> targetSink.getEndpoints().toString());
+                }
+
+                if (targetSpool != null) {
+                    targetMetrics.setSpoolGauge(targetSpool::getSegmentCount);
+                }
+
+                ObjectName name = publishMetrics(targetMetrics);
+
+                if (name != null) {
+                    targetMetricsNames.add(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the JMX name of the metrics, null if they could not be registered over JMX
+     */
+    private ObjectName publishMetrics(LrsMetrics published) {
+        LrsMetrics.register(published);
+
+        try {
+            ObjectName name = new ObjectName("org.sakaiproject.lrs.expapi:type=LrsMetrics,id=" + published.getId());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(published, name);
+            return name;
+        } catch (JMException e) {
+            log.warn("{} LRS provider could not register its metrics over JMX", published.getId(), e);
+            return null;
+        }
+    }
+
+    private void unregisterMetrics() {
+        LrsMetrics.unregister(metrics);
+
+        if (fanOut != null) {
+            for (FanOutStatementSink.Target target : fanOut.getTargets()) {
+                LrsMetrics.unregister(target.getMetrics());
+            }
+        }
+
+        if (metricsName != null) {
+            unpublishMetrics(metricsName);
+            metricsName = null;
+        }
+
+        for (ObjectName name : targetMetricsNames) {
+            unpublishMetrics(name);
+        }
+
+        targetMetricsNames.clear();
+    }
+
+    private void unpublishMetrics(ObjectName name) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        } catch (JMException e) {
+            log.debug("{} LRS provider could not unregister its metrics from JMX", id, e);
+        }
+    }
+
+    /**
+     * Hold back repetitive statements to send them as one, the aggregate statements go through the rest of the pipeline
+     * (ids, dedup, delivery) like any other
+     */
+    private void startCoalescer() {
+        try {
+            String[] verbs = settings.getCoalesceVerbs();
+            coalescer = new StatementCoalescer(id, settings.getCoalesceWindowMs(), settings.getCoalesceCapacity(), verbs != null ? verbs : new String[0],
+                new StatementCoalescer.Sink() {
+                    public void emit(LRS_Statement statement, int count, Map<String, Object> resultExtensions) {
+                        metrics.statementsCoalesced(count - 1);
+                        submitStatement(statement, resultExtensions);
+                    }
+                });
+        } catch (IllegalArgumentException e) {
+            throw new IllegalStateException("Invalid " + id + " LRS provider coalescing verb, correct the " + settings.getConfigPrefix() + "coalesce.verbs config values", e);
+        }
+
+        coalescer.start();
+        log.info("{} LRS provider coalescing repeated statements within {} ms", id, settings.getCoalesceWindowMs());
+    }
+
+    /**
+     * Replay the spools (if any) in the background, as soon as possible
+     */
+    private void scheduleReplay() {
+        final StatementSpool openSpool = spool;
+        final FanOutStatementSink targetSinks = fanOut;
+        final ScheduledExecutorService executor = spoolExecutor;
+
+        if (executor != null) {
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        if (openSpool != null) {
+                            replaySpool(openSpool, null);
+                        }
+
+                        if (targetSinks != null) {
+                            for (FanOutStatementSink.Target target : targetSinks.getTargets()) {
+                                if (target.getSpool() != null) {
+                                    replaySpool(target.getSpool(), target.getSink());
+                                }
+                            }
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                log.debug("{} LRS provider is shutting down, spool not replayed", id);
+            }
+        }
+    }
+
+    private String getTargetUrls() {
+        StringBuilder urls = new StringBuilder();
+
+        for (TargetConfig config : delivery.getTargets()) {
+            urls.append(urls.length() > 0 ? ", " : "").append(settings.isFanOut() ? config.getName() + "=" : "")
+                .append(StringUtils.join(config.getUrls(), " "));
+        }
+
+        return urls.toString();
+    }
+
+    /**
+     * Start the threads the follow-up of the deliveries runs on. Once they are shut down the follow-up runs on the thread
+     * which completed the delivery, so that no outcome is lost.
+     */
+    private void startFollowUp() {
+        final AtomicInteger threads = new AtomicInteger();
+        // the deliveries in progress bound the number of threads
+        final ExecutorService pool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "LRS-" + id + "-followup-" + threads.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        followUpThreads = pool;
+        followUpExecutor = task -> {
+            try {
+                pool.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
+            }
+        };
+    }
+
+    /**
+     * @return the configured transport, with a connection pool large enough for the parallel delivery we want, shared by all
+     *     the targets
+     */
+    private LrsTransport createTransport(DeliveryConfig config) {
+        int connections = config.getConnections();
+        int totalConnections = connections * config.getHostCount();
+        transportSettings = config.getTransportSettings();
+
+        if (StringUtils.equalsIgnoreCase(config.getTransportType(), "async")) {
+            log.info("{} LRS provider using the async transport with {} connection(s), {} request(s) in flight, HTTP/2 {}",
+                id, totalConnections, config.getMaxInFlight(), config.isHttp2Enabled() ? "enabled" : "disabled");
+            int timeout = config.getTimeout();
+            return new AsyncHttpTransport(id, config.getConnectTimeout() > 0 ? config.getConnectTimeout() : timeout, timeout, connections,
+                totalConnections, config.getKeepAliveMs(), config.getMaxInFlight(), config.isHttp2Enabled());
+        }
+
+        log.debug("{} LRS provider allows {} parallel connection(s)", id, totalConnections);
+        return new EntityBrokerTransport(config.getTimeout(), connections, totalConnections);
+    }
+
+    /**
+     * Apply the changes of the delivery settings as soon as the configuration reports them
+     */
+    private void startReload() {
+        final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "LRS-" + id + "-config");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reloadExecutor = executor;
+        settings.watch(new Runnable() {
+            public void run() {
+                // several settings changed at once are applied together, off the thread which changed them
+                if (!reloadPending.compareAndSet(false, true)) {
+                    return;
+                }
+
+                try {
+                    executor.execute(new Runnable() {
+                        public void run() {
+                            reloadPending.set(false);
+
+                            try {
+                                reloadConfig();
+                            } catch (RuntimeException e) {
+                                log.error("{} LRS provider failed to apply the changed configuration", id, e);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    reloadPending.set(false);
+                    log.debug("{} LRS provider is shutting down, configuration change not applied", id);
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the sinks of the url or of each target (package visible for the tests)
+     */
+    List<HttpStatementSink> getTargetSinks() {
+        return targets;
+    }
+
+    /**
+     * Apply the current delivery settings (package visible for the benchmarks). They are read and checked first, then
+     * swapped in as a whole. A new transport (only if its own settings changed) and new routes to the LRSs (reusing what did
+     * not change) are built off the delivery threads, the deliveries in progress finish on the previous ones. The batch size and the concurrency of the
+     * targets apply from the next batch on. The other settings (targets, async dispatch, spool, outbox...) still need a
+     * restart. An invalid change is logged and ignored, the current settings stay until it is corrected.
+     */
+    void reloadConfig() {
+        DeliveryConfig config;
+
+        try {
+            config = settings.readDeliveryConfig();
+        } catch (IllegalStateException e) {
+            log.error("{} LRS provider ignored the changed configuration and keeps its current settings", id, e);
+            return;
+        }
+
+        delivery = config;
+
+        if (dispatcher != null) {
+            dispatcher.setBatchSize(config.getBatchSize());
+        }
+
+        if (outbox != null) {
+            outbox.setClaimSize(config.getBatchSize());
+        }
+
+        if (!targets.isEmpty()) {
+            LrsTransport previous = transport;
+
+            if (!config.getTransportSettings().equals(transportSettings)) {
+                transport = createTransport(config);
+            }
+
+            for (int i = 0; i < targets.size(); i++) {
+                targets.get(i).reconfigure(config.getTargets().get(i), config, transport, settings.isFanOut() ? null : settings.getHealthUrl());
+
+                if (fanOut != null) {
+                    fanOut.getTargets().get(i).setConcurrency(targets.get(i).getConcurrency());
+                }
+            }
+
+            if (transport != previous) {
+                retireTransport(previous);
+            }
+        }
+
+        log.info("{} LRS provider reconfigured: {}, batch size {}, {} connection(s){}", id, settings.isFileSink() ? settings.getSinkDirectory() : getTargetUrls(),
+            config.getBatchSize(), config.getConnections(), config.getRateLimit() > 0 ? ", " + config.getRateLimit() + " request(s) per second" : "");
+    }
+
+    /**
+     * Shut the replaced transport down once the requests still in flight on it had time to complete
+     */
+    private void retireTransport(final LrsTransport retired) {
+        retiredTransports.add(retired);
+        ScheduledExecutorService executor = reloadExecutor;
+
+        if (executor != null) {
+            executor.schedule(new Runnable() {
+                public void run() {
+                    if (retiredTransports.remove(retired)) {
+                        retired.shutdown();
+                    }
+                }
+            }, TRANSPORT_RETIRE_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send the data to the (first) LRS, compressed if it is large enough and compression is enabled (package visible for the
+     * benchmarks)
+     */
+    CompletableFuture<HttpResponse> postData(byte[] data) {
+        return targets.get(0).postData(data);
+    }
+
+    /**
+     * Read the setup from the configuration, see {@link ProviderConfig#read}
+     */
+    private void readConfig() {
+        settings.read(serverConfigurationService, id);
+        delivery = settings.readDeliveryConfig();
+    }
+
+    public void setTargetNames(String[] targetNames) {
+        settings.setTargetNames(targetNames);
+    }
+
+    public void setTargetWaitMs(long targetWaitMs) {
+        settings.setTargetWaitMs(targetWaitMs);
+    }
+
+    public void setEndpointUrls(String[] endpointUrls) {
+        settings.setEndpointUrls(endpointUrls);
+    }
+
+    public void setEndpointPolicy(String endpointPolicy) {
+        settings.setEndpointPolicy(endpointPolicy);
+    }
+
+    public void setEndpointEjectFailures(int endpointEjectFailures) {
+        settings.setEndpointEjectFailures(endpointEjectFailures);
+    }
+
+    public void setEndpointEjectMs(long endpointEjectMs) {
+        settings.setEndpointEjectMs(endpointEjectMs);
+    }
+
+    public void setEndpointEjectMaxMs(long endpointEjectMaxMs) {
+        settings.setEndpointEjectMaxMs(endpointEjectMaxMs);
+    }
+
+    public void setEndpointProbeIntervalMs(long endpointProbeIntervalMs) {
+        settings.setEndpointProbeIntervalMs(endpointProbeIntervalMs);
+    }
+
+    public void setAsyncEnabled(boolean asyncEnabled) {
+        settings.setAsyncEnabled(asyncEnabled);
+    }
+
+    public void setAsyncQueueSize(int asyncQueueSize) {
+        settings.setAsyncQueueSize(asyncQueueSize);
+    }
+
+    public void setAsyncWorkers(int asyncWorkers) {
+        settings.setAsyncWorkers(asyncWorkers);
+    }
+
+    public void setAsyncPartitions(int asyncPartitions) {
+        settings.setAsyncPartitions(asyncPartitions);
+    }
+
+    public void setAsyncPartitionQueueSize(int asyncPartitionQueueSize) {
+        settings.setAsyncPartitionQueueSize(asyncPartitionQueueSize);
+    }
+
+    public void setDeliveryConcurrency(int deliveryConcurrency) {
+        settings.setDeliveryConcurrency(deliveryConcurrency);
+    }
+
+    public void setBatchSize(int batchSize) {
+        settings.setBatchSize(batchSize);
+    }
+
+    public void setBatchLingerMs(long batchLingerMs) {
+        settings.setBatchLingerMs(batchLingerMs);
+    }
+
+    public void setHighLaneQueueSize(int highLaneQueueSize) {
+        settings.setHighLaneQueueSize(highLaneQueueSize);
+    }
+
+    public void setHighLaneWeight(int highLaneWeight) {
+        settings.setHighLaneWeight(highLaneWeight);
+    }
+
+    public void setLowLaneWeight(int lowLaneWeight) {
+        settings.setLowLaneWeight(lowLaneWeight);
+    }
+
+    public void setHighLaneLingerMs(long highLaneLingerMs) {
+        settings.setHighLaneLingerMs(highLaneLingerMs);
+    }
+
+    public void setHighLaneVerbs(String[] highLaneVerbs) {
+        settings.setHighLaneVerbs(highLaneVerbs);
+    }
+
+    public void setLowLaneShed(boolean lowLaneShed) {
+        settings.setLowLaneShed(lowLaneShed);
+    }
+
+    public void setSpoolEnabled(boolean spoolEnabled) {
+        settings.setSpoolEnabled(spoolEnabled);
+    }
+
+    public void setSpoolDirectory(String spoolDirectory) {
+        settings.setSpoolDirectory(spoolDirectory);
+    }
+
+    public void setSpoolSegmentSize(int spoolSegmentSize) {
+        settings.setSpoolSegmentSize(spoolSegmentSize);
+    }
+
+    public void setSpoolMaxSegments(int spoolMaxSegments) {
+        settings.setSpoolMaxSegments(spoolMaxSegments);
+    }
+
+    public void setSpoolFsyncRecords(int spoolFsyncRecords) {
+        settings.setSpoolFsyncRecords(spoolFsyncRecords);
+    }
+
+    public void setSpoolFsyncIntervalMs(long spoolFsyncIntervalMs) {
+        settings.setSpoolFsyncIntervalMs(spoolFsyncIntervalMs);
+    }
+
+    public void setSpoolReplayIntervalMs(long spoolReplayIntervalMs) {
+        settings.setSpoolReplayIntervalMs(spoolReplayIntervalMs);
+    }
+
+    public void setCircuitEnabled(boolean circuitEnabled) {
+        settings.setCircuitEnabled(circuitEnabled);
+    }
+
+    public void setCircuitWindow(int circuitWindow) {
+        settings.setCircuitWindow(circuitWindow);
+    }
+
+    public void setCircuitMinCalls(int circuitMinCalls) {
+        settings.setCircuitMinCalls(circuitMinCalls);
+    }
+
+    public void setCircuitFailureRate(int circuitFailureRate) {
+        settings.setCircuitFailureRate(circuitFailureRate);
+    }
+
+    public void setCircuitSlowCallMs(long circuitSlowCallMs) {
+        settings.setCircuitSlowCallMs(circuitSlowCallMs);
+    }
+
+    public void setCircuitSlowCallRate(int circuitSlowCallRate) {
+        settings.setCircuitSlowCallRate(circuitSlowCallRate);
+    }
+
+    public void setCircuitBackoffInitialMs(long circuitBackoffInitialMs) {
+        settings.setCircuitBackoffInitialMs(circuitBackoffInitialMs);
+    }
+
+    public void setCircuitBackoffMaxMs(long circuitBackoffMaxMs) {
+        settings.setCircuitBackoffMaxMs(circuitBackoffMaxMs);
+    }
+
+    public void setCircuitHalfOpenCalls(int circuitHalfOpenCalls) {
+        settings.setCircuitHalfOpenCalls(circuitHalfOpenCalls);
+    }
+
+    public void setRateLimit(double rateLimit) {
+        settings.setRateLimit(rateLimit);
+    }
+
+    public void setRateBurst(int rateBurst) {
+        settings.setRateBurst(rateBurst);
+    }
+
+    public void setGzipEnabled(boolean gzipEnabled) {
+        settings.setGzipEnabled(gzipEnabled);
+    }
+
+    public void setGzipThreshold(int gzipThreshold) {
+        settings.setGzipThreshold(gzipThreshold);
+    }
+
+    public void setGzipLevel(int gzipLevel) {
+        settings.setGzipLevel(gzipLevel);
+    }
+
+    public void setSinkType(String sinkType) {
+        settings.setSinkType(sinkType);
+    }
+
+    public void setSinkDirectory(String sinkDirectory) {
+        settings.setSinkDirectory(sinkDirectory);
+    }
+
+    public void setSinkFileSize(long sinkFileSize) {
+        settings.setSinkFileSize(sinkFileSize);
+    }
+
+    public void setSinkFileAgeMs(long sinkFileAgeMs) {
+        settings.setSinkFileAgeMs(sinkFileAgeMs);
+    }
+
+    public void setSinkGzipLevel(int sinkGzipLevel) {
+        settings.setSinkGzipLevel(sinkGzipLevel);
+    }
+
+    public void setOutboxEnabled(boolean outboxEnabled) {
+        settings.setOutboxEnabled(outboxEnabled);
+    }
+
+    public void setOutboxTable(String outboxTable) {
+        settings.setOutboxTable(outboxTable);
+    }
+
+    public void setOutboxAutoDdl(boolean outboxAutoDdl) {
+        settings.setOutboxAutoDdl(outboxAutoDdl);
+    }
+
+    public void setOutboxQueueSize(int outboxQueueSize) {
+        settings.setOutboxQueueSize(outboxQueueSize);
+    }
+
+    public void setOutboxCommitSize(int outboxCommitSize) {
+        settings.setOutboxCommitSize(outboxCommitSize);
+    }
+
+    public void setOutboxCommitIntervalMs(long outboxCommitIntervalMs) {
+        settings.setOutboxCommitIntervalMs(outboxCommitIntervalMs);
+    }
+
+    public void setOutboxDrainers(int outboxDrainers) {
+        settings.setOutboxDrainers(outboxDrainers);
+    }
+
+    public void setOutboxLeaseMs(long outboxLeaseMs) {
+        settings.setOutboxLeaseMs(outboxLeaseMs);
+    }
+
+    public void setOutboxRetryMs(long outboxRetryMs) {
+        settings.setOutboxRetryMs(outboxRetryMs);
+    }
+
+    public void setOutboxPollIntervalMs(long outboxPollIntervalMs) {
+        settings.setOutboxPollIntervalMs(outboxPollIntervalMs);
+    }
+
+    public void setOutboxRetentionMs(long outboxRetentionMs) {
+        settings.setOutboxRetentionMs(outboxRetentionMs);
+    }
+
+    public void setOutboxSkipLocked(boolean outboxSkipLocked) {
+        settings.setOutboxSkipLocked(outboxSkipLocked);
+    }
+
+    /**
+     * @param dataSource the database of the outbox, the Sakai data source when not set
+     */
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    public void setFilterRules(String[] filterRules) {
+        settings.setFilterRules(filterRules);
+    }
+
+    public void setCoalesceWindowMs(long coalesceWindowMs) {
+        settings.setCoalesceWindowMs(coalesceWindowMs);
+    }
+
+    public void setCoalesceCapacity(int coalesceCapacity) {
+        settings.setCoalesceCapacity(coalesceCapacity);
+    }
+
+    public void setCoalesceVerbs(String[] coalesceVerbs) {
+        settings.setCoalesceVerbs(coalesceVerbs);
+    }
+
+    public void setStatementIdsEnabled(boolean statementIdsEnabled) {
+        settings.setStatementIdsEnabled(statementIdsEnabled);
+    }
+
+    public void setDedupWindowMs(long dedupWindowMs) {
+        settings.setDedupWindowMs(dedupWindowMs);
+    }
+
+    public void setDedupCapacity(int dedupCapacity) {
+        settings.setDedupCapacity(dedupCapacity);
+    }
+
+    public void setHealthEnabled(boolean healthEnabled) {
+        settings.setHealthEnabled(healthEnabled);
+    }
+
+    public void setHealthIntervalMs(long healthIntervalMs) {
+        settings.setHealthIntervalMs(healthIntervalMs);
+    }
+
+    public void setHealthUrl(String healthUrl) {
+        settings.setHealthUrl(healthUrl);
+    }
+
+    public void setBasicAuthString(String authString) {
+        settings.setBasicAuthString(authString);
+    }
+
+    public void setBearerToken(String bearerToken) {
+        settings.setBearerToken(bearerToken);
+    }
+
+    public void setTokenUrl(String tokenUrl) {
+        settings.setTokenUrl(tokenUrl);
+    }
+
+    public void setClientId(String clientId) {
+        settings.setClientId(clientId);
+    }
+
+    public void setClientSecret(String clientSecret) {
+        settings.setClientSecret(clientSecret);
+    }
+
+    public void setTokenScope(String tokenScope) {
+        settings.setTokenScope(tokenScope);
+    }
+
+    public void setConsumerKey(String consumerKey) {
+        settings.setConsumerKey(consumerKey);
+    }
+
+    public void setConsumerSecret(String consumerSecret) {
+        settings.setConsumerSecret(consumerSecret);
+    }
+
+    /**
+     * @see org.sakaiproject.event.api.LearningResourceStoreProvider#getID()
+     */
+    public String getID() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public void setRealm(String realm) {
+        settings.setRealm(realm);
+    }
+
+    public void setServerConfigurationService(ServerConfigurationService serverConfigurationService) {
+        this.serverConfigurationService = serverConfigurationService;
+    }
+
+    public void setTimeout(int timeout) {
+        settings.setTimeout(timeout);
+    }
+
+    public void setConnectTimeout(int connectTimeout) {
+        settings.setConnectTimeout(connectTimeout);
+    }
+
+    public void setTransportType(String transportType) {
+        settings.setTransportType(transportType);
+    }
+
+    public void setKeepAliveMs(long keepAliveMs) {
+        settings.setKeepAliveMs(keepAliveMs);
+    }
+
+    public void setHttp2Enabled(boolean http2Enabled) {
+        settings.setHttp2Enabled(http2Enabled);
+    }
+
+    public void setMaxInFlight(int maxInFlight) {
+        settings.setMaxInFlight(maxInFlight);
     }
 
     public void setUrl(String url) {
-        this.url = url;
+        settings.setUrl(url);
     }
 
 }
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket limiting the rate of requests sent to the LRS. The bucket refills continuously at the configured rate and
+ * holds at most the burst size, so short bursts go through at full speed while the average rate stays bounded.
+ */
+public class TokenBucketRateLimiter {
+
+    private final double tokensPerNano;
+    private final double burst;
+
+    // guarded by this
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * @param permitsPerSecond average number of requests allowed per second
+     * @param burst maximum number of requests allowed at once
+     */
+    public TokenBucketRateLimiter(double permitsPerSecond, int burst) {
+        this.tokensPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+        this.burst = Math.max(1, burst);
+        this.tokens = this.burst;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Take a token, waiting for one to be refilled if needed
+     *
+     * @param maxWaitMs maximum time (in ms) to wait, 0 to never wait
+     * @return false if no token is available within the wait time
+     */
+    public boolean tryAcquire(long maxWaitMs) throws InterruptedException {
+        long waitNanos;
+
+        synchronized (this) {
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+
+            if (tokens >= 1) {
+                tokens -= 1;
+                return true;
+            }
+
+            waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+
+            if (waitNanos > TimeUnit.MILLISECONDS.toNanos(maxWaitMs)) {
+                return false;
+            }
+
+            // reserve the token now, callers waiting together queue up behind each other
+            tokens -= 1;
+        }
+
+        TimeUnit.NANOSECONDS.sleep(waitNanos);
+        return true;
+    }
+
+    /**
+     * @return the number of tokens currently available (negative while callers are waiting on reserved tokens)
+     */
+    public synchronized double getAvailableTokens() {
+        return Math.min(burst, tokens + (System.nanoTime() - lastRefill) * tokensPerNano);
+    }
+
+}
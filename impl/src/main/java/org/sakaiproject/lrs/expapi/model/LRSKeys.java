@@ -23,9 +23,13 @@ package org.sakaiproject.lrs.expapi.model;
 public interface LRSKeys {
 
     static final String INVERSE_FUNCTIONAL_IDENTIFIER_PROPERTY = "lrs.tincanapi.inverse.functional.identifier";
+    static final String ACTOR_CACHE_SIZE_PROPERTY = "lrs.tincanapi.actor.cache.size";
+    static final String VERB_CACHE_SIZE_PROPERTY = "lrs.tincanapi.verb.cache.size";
+    static final String ACTIVITY_CACHE_SIZE_PROPERTY = "lrs.tincanapi.activity.cache.size";
+    static final String GRADE_CACHE_SIZE_PROPERTY = "lrs.tincanapi.grade.cache.size";
 
     public static enum LRSStatementKey {
-        actor, context, object, result, stored, timestamp, verb;
+        actor, context, id, object, result, stored, timestamp, verb;
     }
 
     public static enum LRSActorKey {
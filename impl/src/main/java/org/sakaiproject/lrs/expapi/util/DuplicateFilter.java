@@ -0,0 +1,143 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.util;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Remembers the statement ids seen recently in two rotating Bloom filters: ids are added to the current filter, looked up
+ * in both, and every window the older filter is dropped. An id is therefore remembered for at least one window after it was
+ * last seen, in a fixed amount of memory whatever the number of ids. Like any Bloom filter it can mistake a new id for one it
+ * has seen (at roughly the configured rate once a window holds the expected number of ids), it never misses a repeated id
+ * within the window. Lock-free apart from the rotation, safe to use from any number of threads.
+ */
+public class DuplicateFilter {
+
+    private static final double LN2 = Math.log(2);
+
+    private final long windowMs;
+    private final int mask;
+    private final int hashes;
+
+    private volatile Generation current;
+    // null until the first rotation, and when the filter it would be is already more than two windows old
+    private volatile Generation previous;
+
+    private static final class Generation {
+        private final AtomicLongArray words;
+        private final long started;
+
+        Generation(int bits, long started) {
+            this.words = new AtomicLongArray(bits >>> 6);
+            this.started = started;
+        }
+    }
+
+    /**
+     * @param windowMs time (in ms) an id is remembered at least
+     * @param expectedIds number of ids expected in a window
+     * @param falsePositiveRate wanted rate of new ids taken for duplicates when a window holds the expected number of ids
+     */
+    public DuplicateFilter(long windowMs, int expectedIds, double falsePositiveRate) {
+        this.windowMs = Math.max(1L, windowMs);
+        long optimalBits = (long) Math.ceil(-Math.max(1, expectedIds) * Math.log(falsePositiveRate) / (LN2 * LN2));
+        // a power of two (of at least one word, at most 2^30) so an index is a mask away from a hash
+        int bits = Integer.highestOneBit((int) Math.min(1L << 30, Math.max(64L, optimalBits)) - 1) << 1;
+        this.mask = bits - 1;
+        this.hashes = (int) Math.max(1L, Math.min(16L, Math.round((double) bits / Math.max(1, expectedIds) * LN2)));
+        this.current = new Generation(bits, System.currentTimeMillis());
+    }
+
+    /**
+     * Record the id
+     *
+     * @return true if the id was (probably) seen within the window, false if it is new
+     */
+    public boolean seen(UUID id) {
+        rotate();
+        // the UUID bits are already uniformly distributed, they are split into the two hashes of double hashing
+        long hash1 = id.getMostSignificantBits() ^ (id.getMostSignificantBits() >>> 32);
+        long hash2 = id.getLeastSignificantBits() ^ (id.getLeastSignificantBits() >>> 32) | 1L;
+
+        Generation newer = current;
+        Generation older = previous;
+        boolean inOlder = older != null;
+        boolean added = false;
+
+        for (int i = 0; i < hashes; i++) {
+            int bit = (int) (hash1 + i * hash2) & mask;
+            added |= set(newer.words, bit);
+
+            if (inOlder && !isSet(older.words, bit)) {
+                inOlder = false;
+            }
+        }
+
+        return inOlder || !added;
+    }
+
+    /**
+     * @return the memory (in bytes) taken by the bits of both filters
+     */
+    public long getSizeBytes() {
+        return (mask + 1L) / 8L * 2L;
+    }
+
+    public int getHashes() {
+        return hashes;
+    }
+
+    private void rotate() {
+        long now = System.currentTimeMillis();
+
+        if (now - current.started < windowMs) {
+            return;
+        }
+
+        synchronized (this) {
+            Generation latest = current;
+
+            if (now - latest.started >= windowMs) {
+                previous = now - latest.started < 2 * windowMs ? latest : null;
+                current = new Generation(mask + 1, now);
+            }
+        }
+    }
+
+    /**
+     * @return true if the bit was not set before
+     */
+    private static boolean set(AtomicLongArray words, int bit) {
+        int index = bit >>> 6;
+        long flag = 1L << bit;
+
+        while (true) {
+            long word = words.get(index);
+
+            if ((word & flag) != 0L) {
+                return false;
+            } else if (words.compareAndSet(index, word, word | flag)) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean isSet(AtomicLongArray words, int bit) {
+        return (words.get(bit >>> 6) & (1L << bit)) != 0L;
+    }
+
+}
@@ -0,0 +1,206 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.lrs.expapi.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of already rendered JSON fragments, keeps hit and miss counts so the sizing can be checked.
+ * The cached arrays are shared and must not be modified.
+ * <p>
+ * The fragments are spread over segments by key hash, each with its own lock and its share of the size, so the threads
+ * serializing statements rarely wait for each other. The least recently used fragment of a segment is evicted, which is
+ * close to but not exactly the least recently used one of the whole cache.
+ *
+ * @param <K> the key identifying the rendered value
+ */
+public class FragmentCache<K> {
+
+    /**
+     * A key made of all the values a fragment is rendered from, equal to another only if every value is equal
+     */
+    public static final class Key {
+        private final Object[] values;
+        private final int hash;
+
+        private Key(Object[] values) {
+            this.values = values;
+            this.hash = Arrays.hashCode(values);
+        }
+
+        /**
+         * @param values strings or maps of strings, nulls allowed
+         */
+        public static Key of(Object... values) {
+            return new Key(values);
+        }
+
+        /**
+         * @return a key equal to this one which does not change with the maps it was made from, to keep in the cache
+         */
+        Key copy() {
+            Object[] copied = values.clone();
+
+            for (int i = 0; i < copied.length; i++) {
+                if (copied[i] instanceof Map) {
+                    copied[i] = Collections.unmodifiableMap(new HashMap<>((Map<?, ?>) copied[i]));
+                }
+            }
+
+            return new Key(copied);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other == this || (other instanceof Key && hash == ((Key) other).hash && Arrays.equals(values, ((Key) other).values));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    // a segment holds at least this many fragments, so small caches are not split into tiny LRUs
+    private static final int MIN_SEGMENT_SIZE = 32;
+    private static final int MAX_SEGMENTS = 16;
+
+    private final String name;
+    private final int maxSize;
+    private final LinkedHashMap<K, byte[]>[] segments;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param name used to identify the cache in the stats
+     * @param maxSize maximum number of fragments kept, 0 disables the cache
+     */
+    @SuppressWarnings("unchecked")
+    public FragmentCache(String name, int maxSize) {
+        this.name = name;
+        this.maxSize = Math.max(0, maxSize);
+        // a power of two, to pick the segment from the hash bits
+        int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, this.maxSize / MIN_SEGMENT_SIZE)));
+        this.segments = new LinkedHashMap[count];
+
+        for (int i = 0; i < count; i++) {
+            // the sizes of the segments add up to the size of the cache
+            final int segmentSize = this.maxSize / count + (i < this.maxSize % count ? 1 : 0);
+
+            segments[i] = new LinkedHashMap<K, byte[]>(Math.min(segmentSize, 1024) * 4 / 3 + 1, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<K, byte[]> eldest) {
+                    if (size() > segmentSize) {
+                        evictions.incrementAndGet();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+    }
+
+    /**
+     * @return the cached fragment or null if there is none
+     */
+    public byte[] get(K key) {
+        if (maxSize == 0) {
+            return null;
+        }
+
+        LinkedHashMap<K, byte[]> segment = segmentOf(key);
+        byte[] fragment;
+        synchronized (segment) {
+            fragment = segment.get(key);
+        }
+
+        if (fragment == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+
+        return fragment;
+    }
+
+    @SuppressWarnings("unchecked")
+    public void put(K key, byte[] fragment) {
+        if (maxSize > 0 && key != null && fragment != null) {
+            // the maps of a key may be changed by the caller later on
+            K kept = key instanceof Key ? (K) ((Key) key).copy() : key;
+
+            LinkedHashMap<K, byte[]> segment = segmentOf(kept);
+            synchronized (segment) {
+                segment.put(kept, fragment);
+            }
+        }
+    }
+
+    public void clear() {
+        for (LinkedHashMap<K, byte[]> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+
+        for (LinkedHashMap<K, byte[]> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+
+        return size;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    private LinkedHashMap<K, byte[]> segmentOf(K key) {
+        int hash = key != null ? key.hashCode() : 0;
+        // fold in the high bits, the low ones of a string hash alone spread badly
+        return segments[(hash ^ (hash >>> 16)) & (segments.length - 1)];
+    }
+
+    @Override
+    public String toString() {
+        return name + " cache: size=" + size() + "/" + maxSize + ", hits=" + getHits() + ", misses=" + getMisses() + ", evictions=" + getEvictions();
+    }
+
+}
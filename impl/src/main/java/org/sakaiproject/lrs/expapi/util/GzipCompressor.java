@@ -0,0 +1,131 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.lrs.expapi.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses request bodies to the gzip format (RFC 1952). Deflaters hold native memory and are costly to create, so they
+ * are pooled and reused; the working buffer is kept per thread so only the returned array is allocated for each body.
+ * Safe to use from any number of threads.
+ */
+public class GzipCompressor {
+
+    private static final byte[] HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+    private static final int TRAILER_LENGTH = 8;
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private final int level;
+    private final BlockingQueue<Deflater> deflaters;
+    private final ThreadLocal<byte[]> buffers = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[INITIAL_CAPACITY];
+        }
+    };
+    private final ThreadLocal<CRC32> checksums = new ThreadLocal<CRC32>() {
+        @Override
+        protected CRC32 initialValue() {
+            return new CRC32();
+        }
+    };
+
+    /**
+     * @param level the deflate compression level (0-9, or -1 for the default)
+     * @param poolSize maximum number of idle deflaters kept for reuse
+     */
+    public GzipCompressor(int level, int poolSize) {
+        this.level = level;
+        this.deflaters = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+    }
+
+    /**
+     * @return the data as a gzip member
+     */
+    public byte[] compress(byte[] data) {
+        Deflater deflater = deflaters.poll();
+
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+        }
+
+        try {
+            byte[] buffer = buffers.get();
+            System.arraycopy(HEADER, 0, buffer, 0, HEADER.length);
+            int position = HEADER.length;
+
+            deflater.setInput(data);
+            deflater.finish();
+
+            while (!deflater.finished()) {
+                if (position == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+
+                position += deflater.deflate(buffer, position, buffer.length - position);
+            }
+
+            if (position + TRAILER_LENGTH > buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+
+            CRC32 checksum = checksums.get();
+            checksum.reset();
+            checksum.update(data, 0, data.length);
+            position = writeInt(buffer, position, (int) checksum.getValue());
+            position = writeInt(buffer, position, data.length);
+
+            if (buffer.length <= MAX_RETAINED_CAPACITY) {
+                buffers.set(buffer);
+            }
+
+            return Arrays.copyOf(buffer, position);
+        } finally {
+            deflater.reset();
+
+            if (!deflaters.offer(deflater)) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * Release the pooled deflaters
+     */
+    public void close() {
+        Deflater deflater;
+
+        while ((deflater = deflaters.poll()) != null) {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Write the int in little-endian order, as gzip requires
+     */
+    private static int writeInt(byte[] buffer, int position, int value) {
+        buffer[position++] = (byte) value;
+        buffer[position++] = (byte) (value >>> 8);
+        buffer[position++] = (byte) (value >>> 16);
+        buffer[position++] = (byte) (value >>> 24);
+        return position;
+    }
+
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.util;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.UUID;
+
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+
+/**
+ * Deterministic statement ids: name based (version 5) UUIDs, so the same statement always gets the same id and the LRS can
+ * recognize a statement it already stored when it is sent again. Only statements with a timestamp get one: without it two
+ * statements that really happened one after the other could not be told apart.
+ */
+public final class StatementIds {
+
+    private static final UUID NAMESPACE = UUID.fromString("8ec52603-2ca7-52f9-b37b-f1994881eaff");
+    private static final byte[] NAMESPACE_BYTES = toBytes(NAMESPACE);
+
+    private StatementIds() {
+    }
+
+    /**
+     * The id is derived from the actor (by the configured inverse functional identifier), verb, object and timestamp (to
+     * the second, as it is sent), an id set on the statement is kept as it is
+     *
+     * @return the id of a populated statement, null if it has neither an id nor a timestamp
+     */
+    public static UUID forStatement(LRS_Statement statement) {
+        if (StringUtils.isNotEmpty(statement.getId())) {
+            try {
+                return UUID.fromString(statement.getId());
+            } catch (IllegalArgumentException e) {
+                // not a valid statement id, derive one instead
+            }
+        }
+
+        if (statement.getTimestamp() == null) {
+            return null;
+        }
+
+        StringBuilder name = new StringBuilder(256);
+        name.append(StatementMapUtils.getActorIdentity(statement.getActor())).append('\u0000');
+        name.append(statement.getVerb() != null ? statement.getVerb().getId() : "").append('\u0000');
+        name.append(statement.getObject() != null ? statement.getObject().getId() : "").append('\u0000');
+        name.append(DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(statement.getTimestamp()));
+        return nameUUID(name.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Find the id of a raw statement without decoding it: only the members before the "id" one are scanned, and they are
+     * skipped rather than parsed
+     *
+     * @return the value of the "id" member of the JSON object (as it is written, without the quotes of a string), null if
+     *     the object has none
+     * @throws IllegalArgumentException if the JSON is not a single object (a statement array for example) or is invalid
+     *     before its "id" member
+     */
+    public static String getId(byte[] json) {
+        int position = skipWhitespace(json, 0);
+
+        if (position == json.length || json[position] != '{') {
+            throw new IllegalArgumentException("Not a JSON object");
+        }
+
+        position = skipWhitespace(json, position + 1);
+
+        if (position < json.length && json[position] == '}') {
+            return null;
+        }
+
+        while (position < json.length) {
+            if (json[position] != '"') {
+                throw new IllegalArgumentException("Invalid JSON object, member name expected at " + position);
+            }
+
+            int nameEnd = skipString(json, position);
+            boolean isId = nameEnd - position == 4 && json[position + 1] == 'i' && json[position + 2] == 'd';
+            position = skipWhitespace(json, nameEnd);
+
+            if (position == json.length || json[position] != ':') {
+                throw new IllegalArgumentException("Invalid JSON object, ':' expected at " + position);
+            }
+
+            int valueStart = skipWhitespace(json, position + 1);
+            int valueEnd = skipValue(json, valueStart);
+
+            if (isId) {
+                boolean quoted = json[valueStart] == '"';
+                int from = quoted ? valueStart + 1 : valueStart;
+                int to = quoted ? valueEnd - 1 : valueEnd;
+                return new String(json, from, to - from, StandardCharsets.UTF_8);
+            }
+
+            position = skipWhitespace(json, valueEnd);
+
+            if (position < json.length && json[position] == '}') {
+                return null;
+            } else if (position == json.length || json[position] != ',') {
+                throw new IllegalArgumentException("Invalid JSON object, ',' or '}' expected at " + position);
+            }
+
+            position = skipWhitespace(json, position + 1);
+        }
+
+        throw new IllegalArgumentException("Invalid JSON object, it is not closed");
+    }
+
+    /**
+     * @return the JSON object with an "id" member holding the id added as its first member
+     * @throws IllegalArgumentException if the JSON is not an object
+     */
+    public static byte[] withId(byte[] json, UUID id) {
+        int start = skipWhitespace(json, 0);
+
+        if (start == json.length || json[start] != '{') {
+            throw new IllegalArgumentException("Not a JSON object");
+        }
+
+        int end = start + 1;
+        while (end < json.length && Character.isWhitespace(json[end])) {
+            end++;
+        }
+
+        byte[] member = ("\"id\":\"" + id + "\"" + (end < json.length && json[end] != '}' ? "," : "")).getBytes(StandardCharsets.UTF_8);
+        byte[] data = new byte[json.length + member.length];
+        System.arraycopy(json, 0, data, 0, start + 1);
+        System.arraycopy(member, 0, data, start + 1, member.length);
+        System.arraycopy(json, start + 1, data, start + 1 + member.length, json.length - start - 1);
+        return data;
+    }
+
+    private static int skipWhitespace(byte[] json, int position) {
+        while (position < json.length && (json[position] == ' ' || json[position] == '\t' || json[position] == '\n' || json[position] == '\r')) {
+            position++;
+        }
+
+        return position;
+    }
+
+    /**
+     * @param position the position of the opening quote
+     * @return the position after the closing quote
+     */
+    private static int skipString(byte[] json, int position) {
+        for (int i = position + 1; i < json.length; i++) {
+            if (json[i] == '\\') {
+                i++;
+            } else if (json[i] == '"') {
+                return i + 1;
+            }
+        }
+
+        throw new IllegalArgumentException("Invalid JSON, string not closed");
+    }
+
+    /**
+     * @return the position after the value (string, object, array, number or literal) starting at the position
+     */
+    private static int skipValue(byte[] json, int position) {
+        if (position == json.length) {
+            throw new IllegalArgumentException("Invalid JSON, value expected");
+        }
+
+        if (json[position] == '"') {
+            return skipString(json, position);
+        }
+
+        if (json[position] != '{' && json[position] != '[') {
+            int end = position;
+
+            while (end < json.length && json[end] != ',' && json[end] != '}' && json[end] != ']' && skipWhitespace(json, end) == end) {
+                end++;
+            }
+
+            if (end == position) {
+                throw new IllegalArgumentException("Invalid JSON, value expected at " + position);
+            }
+
+            return end;
+        }
+
+        int depth = 0;
+
+        for (int i = position; i < json.length; i++) {
+            if (json[i] == '"') {
+                i = skipString(json, i) - 1;
+            } else if (json[i] == '{' || json[i] == '[') {
+                depth++;
+            } else if ((json[i] == '}' || json[i] == ']') && --depth == 0) {
+                return i + 1;
+            }
+        }
+
+        throw new IllegalArgumentException("Invalid JSON, " + (json[position] == '{' ? "object" : "array") + " not closed");
+    }
+
+    /**
+     * @return the version 5 (SHA-1) UUID of the name in the statement namespace (RFC 4122)
+     */
+    static UUID nameUUID(byte[] name) {
+        MessageDigest sha1;
+
+        try {
+            sha1 = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available", e);
+        }
+
+        sha1.update(NAMESPACE_BYTES);
+        byte[] hash = sha1.digest(name);
+        hash[6] = (byte) ((hash[6] & 0x0f) | 0x50);
+        hash[8] = (byte) ((hash[8] & 0x3f) | 0x80);
+
+        long msb = 0;
+        long lsb = 0;
+        for (int i = 0; i < 8; i++) {
+            msb = (msb << 8) | (hash[i] & 0xff);
+            lsb = (lsb << 8) | (hash[i + 8] & 0xff);
+        }
+
+        return new UUID(msb, lsb);
+    }
+
+    private static byte[] toBytes(UUID uuid) {
+        byte[] bytes = new byte[16];
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+
+        for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (msb >>> (56 - 8 * i));
+            bytes[i + 8] = (byte) (lsb >>> (56 - 8 * i));
+        }
+
+        return bytes;
+    }
+
+}
@@ -0,0 +1,527 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+package org.sakaiproject.lrs.expapi.util;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.UUID;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Actor;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Context;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Result;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+import org.sakaiproject.lrs.expapi.model.LRSKeys;
+
+/**
+ * Writes LRS statements straight to UTF-8 JSON bytes, producing the same document as the maps from
+ * {@link StatementMapUtils} without building them. Null values are skipped the same way {@code NonNullValueHashMap} skips them.
+ * <p>
+ * The internal buffer is reused between statements, so an instance must not be shared between threads.
+ */
+public class StatementJsonWriter implements LRSKeys {
+
+    private static final FastDateFormat FORMATTER = DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT;
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final int INITIAL_CAPACITY = 2048;
+    private static final int MAX_RETAINED_CAPACITY = 64 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int count;
+    private final StringBuilder scratch = new StringBuilder(32);
+    // true when the next member of the current object does not need a leading comma
+    private boolean first;
+
+    /**
+     * @return the statement as UTF-8 encoded JSON
+     * @throws IllegalArgumentException if the actor, verb or object cannot be written
+     */
+    public byte[] write(LRS_Statement statement) {
+        return write(statement, null);
+    }
+
+    /**
+     * @param id the statement id, null to leave the id to the LRS
+     * @return the statement as UTF-8 encoded JSON
+     * @throws IllegalArgumentException if the actor, verb or object cannot be written
+     */
+    public byte[] write(LRS_Statement statement, UUID id) {
+        return write(statement, id, null);
+    }
+
+    /**
+     * @param id the statement id, null to leave the id to the LRS
+     * @param resultExtensions extensions added to the result of the statement (which gets a result if it has none), null
+     *     for none
+     * @return the statement as UTF-8 encoded JSON
+     * @throws IllegalArgumentException if the actor, verb or object cannot be written
+     */
+    public byte[] write(LRS_Statement statement, UUID id, Map<String, Object> resultExtensions) {
+        reset();
+        beginObject();
+
+        if (null != id) {
+            stringField(LRSStatementKey.id.toString(), id.toString());
+        }
+
+        // Actor, verb and object are required
+        try {
+            name(LRSStatementKey.actor.toString());
+            writeActor(statement.getActor());
+            name(LRSStatementKey.verb.toString());
+            writeVerb(statement.getVerb());
+            name(LRSStatementKey.object.toString());
+            writeObject(statement.getObject());
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Unable to handle supplied LRS_Statement.\nUnable to process Actor, Verb, or Object", e);
+        }
+
+        if (null != statement.getContext()) {
+            name(LRSStatementKey.context.toString());
+            writeContext(statement.getContext());
+        }
+
+        if (null != statement.getResult()) {
+            name(LRSStatementKey.result.toString());
+            writeResult(statement.getResult(), resultExtensions);
+        } else if (null != resultExtensions) {
+            name(LRSStatementKey.result.toString());
+            beginObject();
+            valueField(LRSResultKey.extensions.toString(), resultExtensions);
+            endObject();
+        }
+
+        dateField(LRSStatementKey.stored.toString(), statement.getStored());
+        dateField(LRSStatementKey.timestamp.toString(), statement.getTimestamp());
+
+        endObject();
+
+        return toByteArray();
+    }
+
+    /**
+     * @return a copy of the bytes written since the last reset
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * Discard everything written so far, shrinking the buffer if an unusually large statement grew it
+     */
+    public void reset() {
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            buffer = new byte[INITIAL_CAPACITY];
+        }
+
+        count = 0;
+        first = true;
+    }
+
+    /**
+     * Actors repeat constantly, so the rendered actor is cached by its identity
+     *
+     * @see StatementMapUtils#getActorMap(LRS_Actor)
+     */
+    void writeActor(LRS_Actor actor) {
+        StatementMapUtils.ConfigSnapshot config = StatementMapUtils.getConfigSnapshot();
+        LRSIdentifierKey identifier = config.identifier;
+        FragmentCache.Key key = FragmentCache.Key.of(StatementMapUtils.getActorIdentity(actor, identifier), actor.getName(), actor.getObjectType());
+
+        if (writeCached(config.actorCache, key)) {
+            return;
+        }
+
+        int start = count;
+        beginObject();
+        stringField(LRSActorKey.name.toString(), actor.getName());
+        stringField(LRSActorKey.objectType.toString(), actor.getObjectType());
+
+        if (identifier == LRSIdentifierKey.mbox) {
+            stringField(LRSIdentifierKey.mbox.toString(), actor.getMbox());
+        } else if (identifier == LRSIdentifierKey.mbox_sha1sum) {
+            stringField(LRSIdentifierKey.mbox_sha1sum.toString(), DigestUtils.sha1Hex(actor.getMbox()));
+        } else if (identifier == LRSIdentifierKey.openid) {
+            stringField(LRSActorKey.openid.toString(), actor.getOpenid());
+        } else {
+            // default to "account"
+            String name = actor.getAccount().getName();
+            String homePage = actor.getAccount().getHomePage();
+
+            name(LRSActorKey.account.toString());
+            beginObject();
+            stringField(LRSActorKey.name.toString(), StringUtils.isBlank(name) ? "unknown" : name);
+            stringField(LRSActorKey.homePage.toString(), StringUtils.isBlank(homePage) ? config.defaultHomePage : homePage);
+            endObject();
+        }
+
+        endObject();
+        cache(config.actorCache, key, start);
+    }
+
+    /**
+     * Sakai uses a small set of verbs, so the rendered verb is cached by its id and display
+     *
+     * @see StatementMapUtils#getVerbMap(LRS_Verb)
+     */
+    void writeVerb(LRS_Verb verb) {
+        FragmentCache<FragmentCache.Key> verbCache = StatementMapUtils.getConfigSnapshot().verbCache;
+        FragmentCache.Key key = FragmentCache.Key.of(verb.getId(), verb.getDisplay());
+
+        if (writeCached(verbCache, key)) {
+            return;
+        }
+
+        int start = count;
+        beginObject();
+        stringField(LRSVerbKey.id.toString(), verb.getId());
+        valueField(LRSVerbKey.display.toString(), verb.getDisplay());
+        endObject();
+        cache(verbCache, key, start);
+    }
+
+    /**
+     * The rendered object is cached by activity id plus its definition, so a renamed or re-described activity gets a new
+     * entry instead of the stale one
+     *
+     * @see StatementMapUtils#getObjectMap(LRS_Object)
+     */
+    void writeObject(LRS_Object lrsObject) {
+        FragmentCache<FragmentCache.Key> activityCache = StatementMapUtils.getConfigSnapshot().activityCache;
+        FragmentCache.Key key = FragmentCache.Key.of(lrsObject.getId(), lrsObject.getActivityName(), lrsObject.getActivityType(), lrsObject.getDescription());
+
+        if (writeCached(activityCache, key)) {
+            return;
+        }
+
+        int start = count;
+        beginObject();
+        stringField(LRSObjectKey.id.toString(), lrsObject.getId());
+        stringField(LRSObjectKey.objectType.toString(), "Activity");
+
+        name(LRSObjectKey.definition.toString());
+        beginObject();
+        valueField(LRSDefinitionKey.name.toString(), lrsObject.getActivityName());
+        stringField(LRSDefinitionKey.type.toString(), lrsObject.getActivityType());
+        valueField(LRSDefinitionKey.description.toString(), lrsObject.getDescription());
+        endObject();
+
+        endObject();
+        cache(activityCache, key, start);
+    }
+
+    /**
+     * @see StatementMapUtils#getContextMap(LRS_Context)
+     */
+    void writeContext(LRS_Context context) {
+        beginObject();
+        valueField(LRSContextKey.contextActivities.toString(), context.getActivitiesMap());
+
+        if (null != context.getInstructor()) {
+            name(LRSContextKey.instructor.toString());
+            writeActor(context.getInstructor());
+        }
+
+        stringField(LRSContextKey.revision.toString(), context.getRevision());
+        endObject();
+    }
+
+    /**
+     * @see StatementMapUtils#getResultMap(LRS_Result, Map)
+     */
+    void writeResult(LRS_Result result, Map<String, Object> extensions) {
+        beginObject();
+        valueField(LRSResultKey.completion.toString(), result.getCompletion());
+
+        // Duration has to be formatted to https://en.wikipedia.org/wiki/ISO_8601#Durations
+        if (result.getDuration() > 0) {
+            name(LRSResultKey.duration.toString());
+            writeByte('"');
+            writeAscii("PT");
+            writeAscii(Integer.toString(result.getDuration()));
+            writeAscii("S\"");
+            first = false;
+        }
+
+        // Grade should only be set if there is no numeric value set
+        if (StringUtils.isEmpty(result.getGrade())) {
+            name(LRSResultKey.score.toString());
+            beginObject();
+            valueField(LRSScoreKey.max.toString(), result.getMax());
+            valueField(LRSScoreKey.min.toString(), result.getMin());
+            valueField(LRSScoreKey.raw.toString(), result.getRaw());
+            valueField(LRSScoreKey.scaled.toString(), result.getScaled());
+            endObject();
+            valueField(LRSResultKey.extensions.toString(), extensions);
+        } else {
+            name(LRSResultKey.extensions.toString());
+            writeGradeExtensions(result.getGrade());
+
+            if (null != extensions) {
+                // reopen the (cached) extensions object to add the other extensions after the classification
+                count--;
+                first = false;
+                writeMembers(extensions);
+                endObject();
+            }
+        }
+
+        valueField(LRSResultKey.success.toString(), result.getSuccess());
+        stringField(LRSResultKey.response.toString(), result.getResponse());
+        endObject();
+    }
+
+    /**
+     * Write the grade classification extensions, cached by grade
+     */
+    private void writeGradeExtensions(String grade) {
+        FragmentCache<String> gradeCache = StatementMapUtils.getConfigSnapshot().gradeCache;
+
+        if (writeCached(gradeCache, grade)) {
+            return;
+        }
+
+        int start = count;
+        beginObject();
+        name("http://sakaiproject.org/xapi/extensions/result/classification");
+        beginObject();
+        stringField(LRSObjectKey.objectType.toString(), "activity");
+        stringField(LRSObjectKey.id.toString(), "http://sakaiproject.org/xapi/activities/" + grade);
+        name(LRSObjectKey.definition.toString());
+        beginObject();
+        stringField(LRSDefinitionKey.type.toString(), "http://sakaiproject.org/xapi/activitytypes/grade_classification");
+        name(LRSDefinitionKey.name.toString());
+        beginObject();
+        stringField("en-US", grade);
+        endObject();
+        endObject();
+        endObject();
+        endObject();
+        cache(gradeCache, grade, start);
+    }
+
+    private void beginObject() {
+        writeByte('{');
+        first = true;
+    }
+
+    private void endObject() {
+        writeByte('}');
+        first = false;
+    }
+
+    /**
+     * Start an object member, the caller writes the value
+     */
+    private void name(String name) {
+        if (!first) {
+            writeByte(',');
+        }
+
+        writeString(name);
+        writeByte(':');
+        first = true;
+    }
+
+    private void stringField(String name, String value) {
+        if (null != value) {
+            name(name);
+            writeString(value);
+            first = false;
+        }
+    }
+
+    private void dateField(String name, Date value) {
+        if (null != value) {
+            scratch.setLength(0);
+            FORMATTER.format(value, scratch);
+            name(name);
+            writeString(scratch);
+            first = false;
+        }
+    }
+
+    private void valueField(String name, Object value) {
+        if (null != value && !isNonFinite(value)) {
+            name(name);
+            writeValue(value);
+            first = false;
+        }
+    }
+
+    /**
+     * Write any of the values found in the statement maps (strings, numbers, booleans, maps and collections)
+     */
+    private void writeValue(Object value) {
+        if (null == value || isNonFinite(value)) {
+            writeAscii("null");
+        } else if (value instanceof CharSequence) {
+            writeString((CharSequence) value);
+        } else if (value instanceof Number || value instanceof Boolean) {
+            writeAscii(value.toString());
+        } else if (value instanceof Date) {
+            scratch.setLength(0);
+            FORMATTER.format((Date) value, scratch);
+            writeString(scratch);
+        } else if (value instanceof Map) {
+            beginObject();
+            writeMembers((Map<?, ?>) value);
+            endObject();
+        } else if (value instanceof Collection) {
+            writeByte('[');
+            boolean firstElement = true;
+            for (Object element : (Collection<?>) value) {
+                if (!firstElement) {
+                    writeByte(',');
+                }
+                writeValue(element);
+                firstElement = false;
+            }
+            writeByte(']');
+        } else {
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Write the entries of the map as members of the current object
+     */
+    private void writeMembers(Map<?, ?> members) {
+        for (Map.Entry<?, ?> entry : members.entrySet()) {
+            if (null != entry.getKey()) {
+                name(entry.getKey().toString());
+                writeValue(entry.getValue());
+                first = false;
+            }
+        }
+    }
+
+    private static boolean isNonFinite(Object value) {
+        return (value instanceof Double && (((Double) value).isNaN() || ((Double) value).isInfinite()))
+            || (value instanceof Float && (((Float) value).isNaN() || ((Float) value).isInfinite()));
+    }
+
+    /**
+     * Write a quoted, escaped JSON string encoded as UTF-8
+     */
+    private void writeString(CharSequence value) {
+        int length = value.length();
+        ensureCapacity(length * 3 + 2);
+        buffer[count++] = '"';
+
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+
+            if (c == '"' || c == '\\') {
+                ensureCapacity(2 + (length - i) * 3);
+                buffer[count++] = '\\';
+                buffer[count++] = (byte) c;
+            } else if (c < 0x20) {
+                ensureCapacity(6 + (length - i) * 3);
+                buffer[count++] = '\\';
+                buffer[count++] = 'u';
+                buffer[count++] = '0';
+                buffer[count++] = '0';
+                buffer[count++] = HEX[c >> 4];
+                buffer[count++] = HEX[c & 0xF];
+            } else if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xC0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[count++] = (byte) (0xF0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate, same replacement as String.getBytes(UTF_8)
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xE0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                buffer[count++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+
+        ensureCapacity(1);
+        buffer[count++] = '"';
+    }
+
+    /**
+     * Write characters known to be plain ASCII without quoting
+     */
+    private void writeAscii(String value) {
+        int length = value.length();
+        ensureCapacity(length);
+
+        for (int i = 0; i < length; i++) {
+            buffer[count++] = (byte) value.charAt(i);
+        }
+    }
+
+    /**
+     * Write the fragment cached under the key, if there is one
+     *
+     * @return true if the fragment was written
+     */
+    private <K> boolean writeCached(FragmentCache<K> cache, K key) {
+        byte[] fragment = cache.get(key);
+
+        if (fragment == null) {
+            return false;
+        }
+
+        writeRaw(fragment);
+        return true;
+    }
+
+    /**
+     * Cache everything written since start under the key
+     */
+    private <K> void cache(FragmentCache<K> cache, K key, int start) {
+        cache.put(key, Arrays.copyOfRange(buffer, start, count));
+    }
+
+    /**
+     * Write an already rendered JSON value
+     */
+    private void writeRaw(byte[] fragment) {
+        ensureCapacity(fragment.length);
+        System.arraycopy(fragment, 0, buffer, count, fragment.length);
+        count += fragment.length;
+        first = false;
+    }
+
+    private void writeByte(char c) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) c;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (count + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + extra));
+        }
+    }
+
+}
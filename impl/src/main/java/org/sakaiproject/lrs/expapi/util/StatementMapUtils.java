@@ -14,12 +14,18 @@
  */
 package org.sakaiproject.lrs.expapi.util;
 
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.component.api.ServerConfigurationService.ConfigItem;
+import org.sakaiproject.component.api.ServerConfigurationService.ConfigurationListener;
 import org.sakaiproject.component.cover.ComponentManager;
 import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Actor;
 import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Context;
@@ -36,6 +42,167 @@ import org.sakaiproject.lrs.expapi.model.NonNullValueHashMap;
  */
 public class StatementMapUtils implements LRSKeys {
 
+    private static final String SERVER_URL_PROPERTY = "serverUrl";
+    private static final int DEFAULT_ACTOR_CACHE_SIZE = 5000;
+    private static final int DEFAULT_VERB_CACHE_SIZE = 200;
+    private static final int DEFAULT_ACTIVITY_CACHE_SIZE = 10000;
+    private static final int DEFAULT_GRADE_CACHE_SIZE = 500;
+
+    private static volatile ServerConfigurationService serverConfigurationService;
+    // the listener registered with the configuration service and the number of providers using it, guarded by the class
+    private static RefreshListener refreshListener;
+    private static int serviceUsers;
+    private static final AtomicReference<ConfigSnapshot> configSnapshot = new AtomicReference<>();
+    // counts the configuration changes, a snapshot read before the last one is not used
+    private static final AtomicInteger configVersion = new AtomicInteger();
+
+    /**
+     * The configuration used while processing statements, resolved once instead of on every statement.
+     * A new snapshot (with empty caches) replaces it when the configuration changes.
+     */
+    static final class ConfigSnapshot {
+        final int version;
+        final LRSIdentifierKey identifier;
+        final String defaultHomePage;
+        final FragmentCache<FragmentCache.Key> actorCache;
+        final FragmentCache<FragmentCache.Key> verbCache;
+        final FragmentCache<FragmentCache.Key> activityCache;
+        final FragmentCache<String> gradeCache;
+
+        ConfigSnapshot(ServerConfigurationService serverConfigurationService, int version) {
+            this.version = version;
+            String value = serverConfigurationService.getString(INVERSE_FUNCTIONAL_IDENTIFIER_PROPERTY, LRSIdentifierKey.account.toString());
+            LRSIdentifierKey key = LRSIdentifierKey.account;
+
+            for (LRSIdentifierKey candidate : LRSIdentifierKey.values()) {
+                if (StringUtils.equalsIgnoreCase(value, candidate.toString())) {
+                    key = candidate;
+                    break;
+                }
+            }
+
+            identifier = key;
+            defaultHomePage = serverConfigurationService.getServerUrl();
+            actorCache = new FragmentCache<>("actor", serverConfigurationService.getInt(ACTOR_CACHE_SIZE_PROPERTY, DEFAULT_ACTOR_CACHE_SIZE));
+            verbCache = new FragmentCache<>("verb", serverConfigurationService.getInt(VERB_CACHE_SIZE_PROPERTY, DEFAULT_VERB_CACHE_SIZE));
+            activityCache = new FragmentCache<>("activity", serverConfigurationService.getInt(ACTIVITY_CACHE_SIZE_PROPERTY, DEFAULT_ACTIVITY_CACHE_SIZE));
+            gradeCache = new FragmentCache<>("grade", serverConfigurationService.getInt(GRADE_CACHE_SIZE_PROPERTY, DEFAULT_GRADE_CACHE_SIZE));
+        }
+    }
+
+    /**
+     * Refreshes the configuration when an LRS setting or the server url changes. The configuration service cannot remove
+     * a listener, so it is deactivated instead once no provider uses the service.
+     */
+    private static final class RefreshListener implements ConfigurationListener {
+        private volatile boolean active = true;
+
+        public ConfigItem changing(ConfigItem current, ConfigItem newItem) {
+            return null;
+        }
+
+        public void changed(ConfigItem current, ConfigItem previous) {
+            if (active && current != null && (StringUtils.startsWith(current.getName(), "lrs.") || SERVER_URL_PROPERTY.equals(current.getName()))) {
+                refreshConfiguration();
+            }
+        }
+    }
+
+    /**
+     * Use this configuration service instead of looking it up, the configuration is read again whenever it changes. Each
+     * call is matched with a call to {@link #releaseServerConfigurationService} once the caller is done with it.
+     */
+    public static synchronized void setServerConfigurationService(ServerConfigurationService configurationService) {
+        if (configurationService != serverConfigurationService) {
+            deactivateListener();
+
+            if (configurationService != null) {
+                refreshListener = new RefreshListener();
+                configurationService.registerListener(refreshListener);
+            }
+        }
+
+        if (configurationService != null) {
+            serviceUsers++;
+        }
+
+        serverConfigurationService = configurationService;
+        refreshConfiguration();
+    }
+
+    /**
+     * Stop using this configuration service. Once nothing uses it any more its changes are ignored and the cached fragments
+     * are discarded.
+     */
+    public static synchronized void releaseServerConfigurationService(ServerConfigurationService configurationService) {
+        if (configurationService == null || configurationService != serverConfigurationService || --serviceUsers > 0) {
+            return;
+        }
+
+        deactivateListener();
+        serverConfigurationService = null;
+        refreshConfiguration();
+    }
+
+    private static void deactivateListener() {
+        if (refreshListener != null) {
+            refreshListener.active = false;
+            refreshListener = null;
+        }
+
+        serviceUsers = 0;
+    }
+
+    /**
+     * Discard the configuration snapshot and the cached fragments, they are rebuilt on the next statement
+     */
+    public static void refreshConfiguration() {
+        configVersion.incrementAndGet();
+        configSnapshot.set(null);
+    }
+
+    static ConfigSnapshot getConfigSnapshot() {
+        int version = configVersion.get();
+        ConfigSnapshot snapshot = configSnapshot.get();
+
+        if (snapshot != null && snapshot.version == version) {
+            return snapshot;
+        }
+
+        // kept unless another thread got there first; if the configuration changed meanwhile, the version tells the next
+        // call to read it again
+        ConfigSnapshot current = new ConfigSnapshot(getServerConfigurationService(), version);
+        configSnapshot.compareAndSet(snapshot, current);
+        return current;
+    }
+
+    /**
+     * @return the caches of rendered actors, verbs, activities and grade classifications, for checking their hit rates
+     */
+    public static List<FragmentCache<?>> getFragmentCaches() {
+        ConfigSnapshot snapshot = getConfigSnapshot();
+        return Arrays.<FragmentCache<?>>asList(snapshot.actorCache, snapshot.verbCache, snapshot.activityCache, snapshot.gradeCache);
+    }
+
+    /**
+     * @return a string identifying the actor by the configured inverse functional identifier
+     */
+    public static String getActorIdentity(LRS_Actor actor) {
+        return getActorIdentity(actor, getConfigSnapshot().identifier);
+    }
+
+    static String getActorIdentity(LRS_Actor actor, LRSIdentifierKey identifier) {
+        switch (identifier) {
+            case mbox:
+            case mbox_sha1sum:
+                return "mbox:" + actor.getMbox();
+            case openid:
+                return "openid:" + actor.getOpenid();
+            default:
+                return actor.getAccount() == null ? "account:" : "account:" + actor.getAccount().getName() + "|" + actor.getAccount().getHomePage();
+        }
+    }
+
     /**
      * @return a map of the actor values
      */
@@ -45,14 +212,14 @@ public class StatementMapUtils implements LRSKeys {
         actorMap.put(LRSActorKey.name.toString(), actor.getName());
         actorMap.put(LRSActorKey.objectType.toString(), actor.getObjectType());
 
-        ServerConfigurationService serverConfigurationService = (ServerConfigurationService) ComponentManager.get(ServerConfigurationService.class);
-        String identifier = serverConfigurationService.getString(INVERSE_FUNCTIONAL_IDENTIFIER_PROPERTY, LRSIdentifierKey.account.toString());
+        ConfigSnapshot config = getConfigSnapshot();
+        LRSIdentifierKey identifier = config.identifier;
 
-        if (StringUtils.equalsIgnoreCase(identifier, LRSIdentifierKey.mbox.toString())) {
+        if (identifier == LRSIdentifierKey.mbox) {
             actorMap.put(LRSIdentifierKey.mbox.toString(), actor.getMbox());
-        } else if (StringUtils.equalsIgnoreCase(identifier, LRSIdentifierKey.mbox_sha1sum.toString())) {
+        } else if (identifier == LRSIdentifierKey.mbox_sha1sum) {
             actorMap.put(LRSIdentifierKey.mbox_sha1sum.toString(), DigestUtils.sha1Hex(actor.getMbox()));
-        } else if (StringUtils.equalsIgnoreCase(identifier, LRSIdentifierKey.openid.toString())) {
+        } else if (identifier == LRSIdentifierKey.openid) {
             actorMap.put(LRSActorKey.openid.toString(), actor.getOpenid());
         } else {
             // default to "account"
@@ -65,7 +232,7 @@ public class StatementMapUtils implements LRSKeys {
 
             String homePage = actor.getAccount().getHomePage();
             if (StringUtils.isBlank(homePage)) {
-                homePage = serverConfigurationService.getServerUrl();
+                homePage = config.defaultHomePage;
             }
             accountMap.put(LRSActorKey.homePage.toString(), homePage);
             actorMap.put(LRSActorKey.account.toString(), accountMap);
@@ -74,6 +241,35 @@ public class StatementMapUtils implements LRSKeys {
         return actorMap;
     }
 
+    /**
+     * @return the configured inverse functional identifier type used for actors, "account" when not set or unknown
+     */
+    public static LRSIdentifierKey getInverseFunctionalIdentifier() {
+        return getConfigSnapshot().identifier;
+    }
+
+    /**
+     * @return the homePage used for actor accounts which do not have one
+     */
+    public static String getDefaultHomePage() {
+        return getConfigSnapshot().defaultHomePage;
+    }
+
+    /**
+     * @return the configuration service set by a provider, or else the one of the component manager. The latter is only
+     *     read: nothing would release it, so no listener is registered with it and its changes are picked up once a
+     *     provider sets a service or the configuration is refreshed.
+     */
+    private static ServerConfigurationService getServerConfigurationService() {
+        ServerConfigurationService configurationService = serverConfigurationService;
+
+        if (configurationService == null) {
+            configurationService = (ServerConfigurationService) ComponentManager.get(ServerConfigurationService.class);
+        }
+
+        return configurationService;
+    }
+
     /**
      * @return a map of the values from the context
      */
@@ -115,7 +311,22 @@ public class StatementMapUtils implements LRSKeys {
      * @return a map of the values from the LRS result
      */
     public static Map<String, Object> getResultMap(LRS_Result result) {
+        return getResultMap(result, null);
+    }
+
+    /**
+     * @param result the LRS result, null for a result holding only the extensions
+     * @param extensions extensions added to the result (next to the grade classification if any), null for none
+     * @return a map of the values from the LRS result
+     */
+    public static Map<String, Object> getResultMap(LRS_Result result, Map<String, Object> extensions) {
         HashMap<String, Object> resultMap = new NonNullValueHashMap<>();
+
+        if (null == result) {
+            resultMap.put(LRSResultKey.extensions.toString(), extensions);
+            return resultMap;
+        }
+
         resultMap.put(LRSResultKey.completion.toString(), result.getCompletion());
 
         // Duration has to be formatted to https://en.wikipedia.org/wiki/ISO_8601#Durations
@@ -123,6 +334,8 @@ public class StatementMapUtils implements LRSKeys {
             resultMap.put(LRSResultKey.duration.toString(), "PT" + result.getDuration() + "S");
         }
 
+        HashMap<String, Object> allExtensions = new NonNullValueHashMap<>();
+
         // Grade should only be set if there is no numeric value set
         if (StringUtils.isEmpty(result.getGrade())) {
             HashMap<String, Object> scoreMap = new NonNullValueHashMap<>();
@@ -145,10 +358,15 @@ public class StatementMapUtils implements LRSKeys {
             classification.put(LRSObjectKey.id.toString(), "http://sakaiproject.org/xapi/activities/" + result.getGrade());
             classification.put(LRSObjectKey.definition.toString(), definition);
 
-            HashMap<String, Object> extensions = new NonNullValueHashMap<>();
-            extensions.put("http://sakaiproject.org/xapi/extensions/result/classification", classification);
+            allExtensions.put("http://sakaiproject.org/xapi/extensions/result/classification", classification);
+        }
 
-            resultMap.put(LRSResultKey.extensions.toString(), extensions);
+        if (null != extensions) {
+            allExtensions.putAll(extensions);
+        }
+
+        if (!allExtensions.isEmpty()) {
+            resultMap.put(LRSResultKey.extensions.toString(), allExtensions);
         }
 
         resultMap.put(LRSResultKey.success.toString(), result.getSuccess());
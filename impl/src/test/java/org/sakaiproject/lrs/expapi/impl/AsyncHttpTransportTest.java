@@ -0,0 +1,138 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+
+/**
+ * Requests are sent without blocking the caller beyond the in-flight limit, and complete on the callback thread of the
+ * transport, exceptionally when the LRS is too slow or cannot be reached
+ */
+public class AsyncHttpTransportTest {
+
+    private static final String STATEMENT = "{\"actor\":{\"mbox\":\"mailto:student1@example.edu\"},"
+        + "\"verb\":{\"id\":\"http://adlnet.gov/expapi/verbs/experienced\"},\"object\":{\"id\":\"https://sakai.example.edu/portal\"}}";
+    private static final int MAX_IN_FLIGHT = 3;
+
+    private StandInLrs lrs;
+    private AsyncHttpTransport transport;
+    private final Map<String, String> headers = new HashMap<>();
+
+    @Before
+    public void startLrs() throws Exception {
+        lrs = new StandInLrs().requireBasicAuth("sakai:secret");
+        transport = new AsyncHttpTransport("test", 2000, 5000, 8, 16, 60000L, MAX_IN_FLIGHT, false);
+        headers.put("Content-Type", "application/json");
+        headers.put("X-Experience-API-Version", "1.0.3");
+        headers.put("Authorization", new BasicAuthentication("sakai:secret").getStaticAuthorization());
+    }
+
+    @After
+    public void stopLrs() {
+        transport.shutdown();
+        lrs.stop();
+    }
+
+    @Test
+    public void postsTheStatementsAndReadsTheAnswer() throws Exception {
+        HttpResponse response = post(0).get(10, TimeUnit.SECONDS);
+
+        assertEquals(200, response.getResponseCode());
+        assertTrue(response.getResponseBody(), response.getResponseBody().matches("\\[\"[0-9a-f-]{36}\"\\]"));
+        assertEquals(1L, lrs.getStatements());
+        assertEquals(headers.get("Authorization"), lrs.getReceived().get(0).getAuthorization());
+
+        HttpResponse about = transport.get(LrsHealthProber.getAboutUrl(lrs.getUrl()), headers).get(10, TimeUnit.SECONDS);
+        assertEquals(200, about.getResponseCode());
+    }
+
+    @Test
+    public void keepsAtMostTheLimitOfRequestsInFlight() throws Exception {
+        lrs.setLatency(50L, 0L);
+        List<CompletableFuture<HttpResponse>> responses = new ArrayList<>();
+
+        // the caller waits once the limit is reached
+        for (int i = 0; i < 12; i++) {
+            responses.add(post(0));
+        }
+
+        for (CompletableFuture<HttpResponse> response : responses) {
+            assertEquals(200, response.get(10, TimeUnit.SECONDS).getResponseCode());
+        }
+
+        assertEquals(12L, lrs.getStatements());
+        assertTrue("Most in flight " + lrs.getMostInFlight(), lrs.getMostInFlight() <= MAX_IN_FLIGHT);
+    }
+
+    @Test
+    public void completesOnTheCallbackThread() throws Exception {
+        lrs.setLatency(100L, 0L);
+
+        String thread = post(0).thenApply(response -> Thread.currentThread().getName()).get(10, TimeUnit.SECONDS);
+
+        assertEquals("LRS-test-transport-callback", thread);
+    }
+
+    @Test
+    public void failsARequestOverItsTimeout() throws Exception {
+        // the timeouts are checked about once a second
+        lrs.setLatency(1500L, 0L);
+
+        try {
+            post(200).get(10, TimeUnit.SECONDS);
+            fail("The request outlived its timeout");
+        } catch (ExecutionException e) {
+            assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof SocketTimeoutException);
+        }
+
+        // the timeout was only for that request
+        assertEquals(200, post(0).get(10, TimeUnit.SECONDS).getResponseCode());
+    }
+
+    @Test
+    public void failsWhenTheLrsCannotBeReached() throws Exception {
+        lrs.stop();
+
+        try {
+            post(0).get(10, TimeUnit.SECONDS);
+            fail("Sent to a stopped LRS");
+        } catch (ExecutionException e) {
+            // expected
+        }
+    }
+
+    private CompletableFuture<HttpResponse> post(int timeout) {
+        return transport.post(lrs.getUrl(), headers, STATEMENT.getBytes(StandardCharsets.UTF_8), timeout);
+    }
+
+}
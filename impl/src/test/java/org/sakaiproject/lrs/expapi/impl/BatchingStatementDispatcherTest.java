@@ -0,0 +1,167 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sakaiproject.lrs.expapi.impl.StatementDispatcher.Lane;
+
+/**
+ * The workers take batches from the lanes by weight without lingering over high priority statements, and the statements
+ * they could not hand over before the shutdown gave up are returned to the caller
+ */
+public class BatchingStatementDispatcherTest {
+
+    private BatchingStatementDispatcher dispatcher;
+
+    @After
+    public void stopDispatcher() {
+        if (dispatcher != null) {
+            dispatcher.shutdown(10000L);
+        }
+    }
+
+    @Test
+    public void takesTheBatchesFromTheLanesByWeight() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handling = new CountDownLatch(1);
+        final CountDownLatch handled = new CountDownLatch(17);
+        final List<Lane> lanes = new CopyOnWriteArrayList<>();
+
+        dispatcher = new BatchingStatementDispatcher("test", (lane, batch) -> {
+            handling.countDown();
+            PartitionedStatementDispatcherTest.awaitIgnoringInterrupts(release);
+            lanes.add(lane);
+            handled.countDown();
+        }, 1, 1);
+        dispatcher.setLane(Lane.HIGH, 10, 3, 0L);
+        dispatcher.setLane(Lane.LOW, 10, 1, 0L);
+        dispatcher.start();
+
+        // both lanes fill up while the worker is busy
+        assertTrue(dispatcher.offer(statement("first"), Lane.LOW, null));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+
+        for (int i = 0; i < 8; i++) {
+            assertTrue(dispatcher.offer(statement("high" + i), Lane.HIGH, null));
+            assertTrue(dispatcher.offer(statement("low" + i), Lane.LOW, null));
+        }
+
+        release.countDown();
+        assertTrue(handled.await(5, TimeUnit.SECONDS));
+
+        // three high batches for each low one while both lanes hold statements, then the rest of the low lane
+        assertEquals(2, Collections.frequency(lanes.subList(1, 9), Lane.LOW));
+        assertEquals(8, Collections.frequency(lanes.subList(1, 17), Lane.HIGH));
+        assertEquals(Lane.LOW, lanes.get(16));
+    }
+
+    @Test
+    public void refusesStatementsOnlyInTheFullLane() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+
+        dispatcher = new BatchingStatementDispatcher("test", (lane, batch) -> PartitionedStatementDispatcherTest.awaitIgnoringInterrupts(release), 1, 1);
+        dispatcher.setLane(Lane.HIGH, 10, 1, 0L);
+        dispatcher.setLane(Lane.LOW, 2, 1, 0L);
+        dispatcher.start();
+
+        try {
+            // the worker holds at most one statement, the low lane two more
+            int accepted = 0;
+            for (int i = 0; i < 5; i++) {
+                accepted += dispatcher.offer(statement("low" + i), Lane.LOW, null) ? 1 : 0;
+            }
+
+            assertTrue("Accepted " + accepted, accepted == 2 || accepted == 3);
+            assertEquals(2, dispatcher.getCapacity(Lane.LOW));
+            assertTrue(dispatcher.offer(statement("high"), Lane.HIGH, null));
+        } finally {
+            release.countDown();
+        }
+    }
+
+    @Test
+    public void doesNotLingerOverAHighPriorityStatement() throws Exception {
+        final Map<Lane, Long> handedOver = new ConcurrentHashMap<>();
+        final CountDownLatch handled = new CountDownLatch(2);
+
+        dispatcher = new BatchingStatementDispatcher("test", (lane, batch) -> {
+            handedOver.put(lane, System.nanoTime());
+            handled.countDown();
+        }, 10, 1);
+        dispatcher.setLane(Lane.HIGH, 10, 1, 0L);
+        dispatcher.setLane(Lane.LOW, 10, 1, 10000L);
+        dispatcher.start();
+
+        assertTrue(dispatcher.offer(statement("low"), Lane.LOW, null));
+        TimeUnit.MILLISECONDS.sleep(100L);
+        long offered = System.nanoTime();
+        assertTrue(dispatcher.offer(statement("high"), Lane.HIGH, null));
+
+        assertTrue("The low batch lingered for its full linger time", handled.await(5, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(handedOver.get(Lane.HIGH) - offered) < 1000L);
+    }
+
+    @Test
+    public void returnsTheStatementsLeftAtShutdown() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handling = new CountDownLatch(1);
+
+        dispatcher = new BatchingStatementDispatcher("test", (lane, batch) -> {
+            handling.countDown();
+            PartitionedStatementDispatcherTest.awaitIgnoringInterrupts(release);
+        }, 1, 1);
+        dispatcher.setLane(Lane.HIGH, 10, 1, 0L);
+        dispatcher.setLane(Lane.LOW, 10, 1, 0L);
+        dispatcher.start();
+
+        assertTrue(dispatcher.offer(statement("first"), Lane.LOW, null));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.offer(statement("low"), Lane.LOW, null));
+        assertTrue(dispatcher.offer(statement("high"), Lane.HIGH, null));
+
+        // the single worker is still busy with the first statement once the shutdown gives up waiting
+        List<byte[]> unsent = dispatcher.shutdown(100L);
+        release.countDown();
+
+        List<String> statements = new ArrayList<>();
+        for (byte[] statement : unsent) {
+            statements.add(new String(statement, StandardCharsets.UTF_8));
+        }
+
+        assertEquals(Arrays.asList("high", "low"), statements);
+        assertEquals(0, dispatcher.getQueueSize());
+    }
+
+    private static byte[] statement(String name) {
+        return name.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,168 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.sakaiproject.lrs.expapi.impl.CircuitBreaker.State;
+
+/**
+ * The circuit opens once enough recent calls failed or were slow, lets a few trial calls through after the delay and closes
+ * again or reopens for longer depending on their outcome
+ */
+public class CircuitBreakerTest {
+
+    private final List<String> transitions = Collections.synchronizedList(new ArrayList<>());
+
+    @Test
+    public void opensOnceEnoughCallsFailed() {
+        CircuitBreaker breaker = breaker(10, 4, 80, 60000L, 60000L);
+
+        // too few calls to judge
+        fail(breaker, 3);
+        assertEquals(State.CLOSED, breaker.getState());
+
+        succeed(breaker, 1);
+        assertEquals(State.CLOSED, breaker.getState());
+        fail(breaker, 1);
+        assertEquals("4 of 5 calls failed, 80%", State.OPEN, breaker.getState());
+        assertFalse(breaker.tryAcquire());
+        assertTrue(breaker.getRemainingOpenMs() > 0L);
+        assertEquals(Collections.singletonList("CLOSED>OPEN"), transitions);
+    }
+
+    @Test
+    public void forgetsTheCallsOutsideTheWindow() {
+        CircuitBreaker breaker = breaker(4, 4, 75, 60000L, 60000L);
+
+        fail(breaker, 2);
+        succeed(breaker, 2);
+        succeed(breaker, 2);
+        // the failures have left the window, these are 2 of 4
+        fail(breaker, 2);
+
+        assertEquals(State.CLOSED, breaker.getState());
+        fail(breaker, 1);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void opensOnceEnoughCallsWereSlow() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 4, 100, 100L, 50, 60000L, 60000L, 1);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess(500L);
+        succeed(breaker, 2);
+        assertEquals(State.CLOSED, breaker.getState());
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onSuccess(500L);
+        assertEquals(State.OPEN, breaker.getState());
+    }
+
+    @Test
+    public void closesAgainOnceTheTrialCallsSucceed() throws InterruptedException {
+        CircuitBreaker breaker = breaker(4, 2, 50, 50L, 50L);
+        fail(breaker, 2);
+        assertEquals(State.OPEN, breaker.getState());
+
+        TimeUnit.MILLISECONDS.sleep(80L);
+
+        // two trial calls, no more
+        assertTrue(breaker.tryAcquire());
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+
+        breaker.onSuccess(1L);
+        assertEquals(State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(1L);
+        assertEquals(State.CLOSED, breaker.getState());
+        assertEquals(3, transitions.size());
+        assertEquals("HALF_OPEN>CLOSED", transitions.get(2));
+    }
+
+    @Test
+    public void reopensForLongerWhenATrialCallFails() throws InterruptedException {
+        CircuitBreaker breaker = breaker(4, 2, 50, 100L, 60000L);
+        fail(breaker, 2);
+        long firstOpenMs = breaker.getRemainingOpenMs();
+        assertTrue(firstOpenMs <= 100L);
+
+        TimeUnit.MILLISECONDS.sleep(firstOpenMs + 20L);
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure(1L, 0L);
+
+        // twice the delay, of which the upper half is jittered
+        assertEquals(State.OPEN, breaker.getState());
+        assertTrue(breaker.getRemainingOpenMs() >= 90L);
+    }
+
+    @Test
+    public void aReleasedTrialCallCanBeMadeAgain() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 4, 2, 50, 0L, 100, 10L, 10L, 1);
+        fail(breaker, 2);
+        TimeUnit.MILLISECONDS.sleep(30L);
+
+        assertTrue(breaker.tryAcquire());
+        assertFalse(breaker.tryAcquire());
+        breaker.release();
+        assertTrue(breaker.tryAcquire());
+    }
+
+    @Test
+    public void staysOpenAsLongAsTheLrsAsks() {
+        CircuitBreaker breaker = breaker(10, 5, 50, 10L, 60000L);
+
+        assertTrue(breaker.tryAcquire());
+        breaker.onFailure(1L, 30000L);
+
+        assertEquals("A Retry-After opens the circuit at once", State.OPEN, breaker.getState());
+        assertTrue(breaker.getRemainingOpenMs() > 20000L);
+    }
+
+    /**
+     * @return a breaker ignoring latency, which lets two trial calls through
+     */
+    private CircuitBreaker breaker(int windowSize, int minimumCalls, int failureRate, long baseOpenMs, long maxOpenMs) {
+        CircuitBreaker breaker = new CircuitBreaker("test", windowSize, minimumCalls, failureRate, 0L, 100, baseOpenMs, maxOpenMs, 2);
+        breaker.addListener((circuit, from, to) -> transitions.add(from + ">" + to));
+        return breaker;
+    }
+
+    private static void fail(CircuitBreaker breaker, int calls) {
+        for (int i = 0; i < calls; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onFailure(1L, 0L);
+        }
+    }
+
+    private static void succeed(CircuitBreaker breaker, int calls) {
+        for (int i = 0; i < calls; i++) {
+            assertTrue(breaker.tryAcquire());
+            breaker.onSuccess(1L);
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Request bodies are compressed, and sent again uncompressed to an LRS which cannot read them
+ */
+public class CompressionTest {
+
+    private StandInLrs lrs;
+    private TincanapiLearningResourceStoreProvider provider;
+
+    @Before
+    public void startLrs() throws Exception {
+        lrs = new StandInLrs().requireBasicAuth("sakai:secret");
+    }
+
+    @After
+    public void stopLrs() {
+        if (provider != null) {
+            provider.destroy();
+        }
+
+        lrs.stop();
+    }
+
+    @Test
+    public void compressesTheBodies() throws Exception {
+        startProvider(0);
+        send(2);
+
+        assertEquals(2L, lrs.getStatements());
+        assertEquals(2L, lrs.getCompressedRequests());
+    }
+
+    @Test
+    public void leavesSmallBodiesUncompressed() throws Exception {
+        startProvider(100000);
+        send(1);
+
+        assertEquals(1L, lrs.getStatements());
+        assertEquals(0L, lrs.getCompressedRequests());
+    }
+
+    @Test
+    public void stopsCompressingForAnLrsWhichRefusesIt() throws Exception {
+        lrs.refuseCompression(415);
+        startProvider(0);
+        send(3);
+
+        // the first statement is sent again uncompressed, the following ones are not compressed any more
+        assertEquals(3L, lrs.getStatements());
+        assertEquals(1L, lrs.getCompressedRequests());
+        assertEquals(1L, lrs.getResponses(415));
+    }
+
+    @Test
+    public void keepsCompressingWhenTheStatementsAreBad() throws Exception {
+        lrs.setFailureRates(0.0, 0.0, 0.0, 1.0);
+        startProvider(0);
+        send(2);
+
+        // refused compressed and uncompressed alike, the statements are bad and not the compression
+        assertEquals(0L, lrs.getStatements());
+        assertEquals(2L, lrs.getCompressedRequests());
+        assertEquals(4L, lrs.getResponses(400));
+    }
+
+    private void startProvider(int threshold) throws Exception {
+        Map<String, String> values = TestSupport.providerConfiguration(lrs.getUrl());
+        values.put("lrs.tincanapi.gzip.enabled", "true");
+        values.put("lrs.tincanapi.gzip.threshold", Integer.toString(threshold));
+        values.put("lrs.tincanapi.spool.enabled", "false");
+        values.put("lrs.tincanapi.health.enabled", "false");
+        provider = new TincanapiLearningResourceStoreProvider(TestSupport.configuration(values));
+        provider.init();
+    }
+
+    private void send(int statements) {
+        for (int i = 0; i < statements; i++) {
+            provider.handleStatement(TestSupport.fullStatement(true));
+        }
+    }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthMessage;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+
+/**
+ * Calls handleStatement (synchronous delivery) from many threads at once against the {@link StandInLrs}, which checks
+ * every OAuth signature: each request must be signed on its own, with nothing shared between the callers.
+ */
+public class ConcurrentSendTest {
+
+    private static final String CONSUMER_KEY = "sakai";
+    private static final String CONSUMER_SECRET = "secret";
+    private static final String ACTIVITY_URL = TestSupport.SITE_URL + "/activity/";
+    private static final Pattern ACTIVITY_ID = Pattern.compile(Pattern.quote(ACTIVITY_URL) + "([0-9]+-[0-9]+)");
+    private static final long LRS_LATENCY_MS = 20L;
+
+    private StandInLrs lrs;
+    private final Set<String> nonces = ConcurrentHashMap.newKeySet();
+    private final Map<String, Integer> received = new ConcurrentHashMap<>();
+    private TincanapiLearningResourceStoreProvider provider;
+
+    @Before
+    public void startLrs() throws Exception {
+        lrs = new StandInLrs().requireOAuth(CONSUMER_KEY, CONSUMER_SECRET).setLatency(LRS_LATENCY_MS, 0L).setListener(this::received);
+    }
+
+    @After
+    public void stopLrs() {
+        if (provider != null) {
+            provider.destroy();
+        }
+
+        lrs.stop();
+    }
+
+    @Test
+    public void concurrentCallersSignEachRequestOnTheirOwn() throws Exception {
+        startProvider(8);
+        int sent = send(8, 50);
+
+        assertEquals("Requests the LRS refused", 0L, lrs.getResponses(401));
+        assertEquals(sent, received.size());
+
+        for (Map.Entry<String, Integer> statement : received.entrySet()) {
+            assertEquals("Statement " + statement.getKey() + " delivered more than once", 1, statement.getValue().intValue());
+        }
+
+        assertEquals("Every request has a nonce of its own", sent, nonces.size());
+    }
+
+    @Test
+    public void concurrentCallersSendAtTheSameTime() throws Exception {
+        startProvider(4);
+        send(8, 20);
+
+        assertEquals("Requests the LRS refused", 0L, lrs.getResponses(401));
+        // the LRS holds each request 20 ms, long enough for the requests of callers which do not wait for each other to overlap
+        assertTrue("At most " + lrs.getMostInFlight() + " request(s) in flight", lrs.getMostInFlight() > 1);
+    }
+
+    private void startProvider(int connections) throws Exception {
+        Map<String, String> values = TestSupport.providerConfiguration(lrs.getUrl());
+        values.remove("lrs.tincanapi.basicAuthUserPass");
+        values.put("lrs.tincanapi.consumer.key", CONSUMER_KEY);
+        values.put("lrs.tincanapi.consumer.secret", CONSUMER_SECRET);
+        values.put("lrs.tincanapi.realm", "test");
+        values.put("lrs.tincanapi.delivery.concurrency", Integer.toString(connections));
+        values.put("lrs.tincanapi.spool.enabled", "false");
+        values.put("lrs.tincanapi.health.enabled", "false");
+
+        provider = new TincanapiLearningResourceStoreProvider(TestSupport.configuration(values));
+        provider.init();
+    }
+
+    /**
+     * @return the number of statements sent, each caller sends its own
+     */
+    private int send(int callers, final int statements) throws InterruptedException {
+        final String run = Long.toString(System.nanoTime());
+        final CountDownLatch ready = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+
+        for (int c = 0; c < callers; c++) {
+            final int caller = c;
+            Thread thread = new Thread(() -> {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int n = 0; n < statements; n++) {
+                    provider.handleStatement(statement(caller, run + caller + "-" + n));
+                }
+            }, "caller-" + c);
+            thread.start();
+            threads.add(thread);
+        }
+
+        ready.countDown();
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(60));
+        }
+
+        return callers * statements;
+    }
+
+    private static LRS_Statement statement(int caller, String id) {
+        return new LRS_Statement(TestSupport.actor("student" + caller), new LRS_Verb(LRS_Verb.SAKAI_VERB.experienced),
+            new LRS_Object(ACTIVITY_URL + id, "view-" + id));
+    }
+
+    /**
+     * Record the statements and the nonce of a request the stand-in accepted, its signature is already checked
+     */
+    private void received(StandInLrs.Received request) {
+        Matcher activity = ACTIVITY_ID.matcher(request.getBody());
+
+        while (activity.find()) {
+            received.merge(activity.group(1), 1, Integer::sum);
+        }
+
+        for (OAuth.Parameter parameter : OAuthMessage.decodeAuthorization(request.getAuthorization())) {
+            if (OAuth.OAUTH_NONCE.equals(parameter.getKey())) {
+                nonces.add(parameter.getValue());
+            }
+        }
+    }
+
+}
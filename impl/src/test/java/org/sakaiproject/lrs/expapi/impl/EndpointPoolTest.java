@@ -0,0 +1,202 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.sakaiproject.entitybroker.util.http.HttpResponse;
+import org.sakaiproject.lrs.expapi.impl.EndpointPool.Endpoint;
+import org.sakaiproject.lrs.expapi.impl.EndpointPool.Policy;
+import org.sakaiproject.lrs.expapi.impl.EndpointPool.State;
+
+/**
+ * Requests go to the least busy active node, a node failing in a row is ejected until its about resource answers again
+ */
+public class EndpointPoolTest {
+
+    private static final List<String> URLS = Arrays.asList("http://a.example.edu/xapi/statements", "http://b.example.edu/xapi/statements",
+        "http://c.example.edu/xapi/statements");
+    private static final long EJECT_MS = 50L;
+
+    private final AboutTransport transport = new AboutTransport();
+
+    @Test
+    public void sendsToTheNodeWithTheFewestRequestsWaiting() {
+        EndpointPool pool = pool(Policy.LEAST_OUTSTANDING);
+        Set<String> used = new HashSet<>();
+
+        for (int i = 0; i < URLS.size(); i++) {
+            used.add(pool.acquire().getUrl());
+        }
+
+        assertEquals(new HashSet<>(URLS), used);
+
+        Endpoint b = pool.getEndpoints().get(1);
+        for (Endpoint endpoint : pool.getEndpoints()) {
+            if (endpoint != b) {
+                pool.release(endpoint, 1000L, false);
+            }
+        }
+
+        assertNotSame(b, pool.acquire());
+        assertNotSame(b, pool.acquire());
+    }
+
+    @Test
+    public void sendsToTheFastestNodeByLatencyAverage() {
+        EndpointPool pool = pool(Policy.EWMA);
+
+        Endpoint fast = pool.getEndpoints().get(2);
+        List<Endpoint> acquired = Arrays.asList(pool.acquire(), pool.acquire(), pool.acquire());
+
+        for (Endpoint endpoint : acquired) {
+            pool.release(endpoint, endpoint == fast ? 1000L : 50000000L, false);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            Endpoint chosen = pool.acquire();
+            assertSame(fast, chosen);
+            pool.release(chosen, 1000L, false);
+        }
+    }
+
+    @Test
+    public void ejectsANodeFailingInARow() {
+        EndpointPool pool = pool(Policy.LEAST_OUTSTANDING);
+        Endpoint a = pool.getEndpoints().get(0);
+
+        fail(pool, a, 2);
+        pool.release(acquire(pool, a), 1000L, false);
+        fail(pool, a, 2);
+        assertEquals("A success starts the count again", State.ACTIVE, a.getState());
+
+        fail(pool, a, 1);
+        assertEquals(State.EJECTED, a.getState());
+        assertEquals(1L, a.getEjections());
+        assertEquals(5L, a.getErrors());
+
+        for (int i = 0; i < 10; i++) {
+            assertNotSame(a, pool.acquire());
+        }
+    }
+
+    @Test
+    public void keepsTheLastActiveNode() {
+        EndpointPool pool = pool(Policy.LEAST_OUTSTANDING);
+
+        for (Endpoint endpoint : pool.getEndpoints()) {
+            fail(pool, endpoint, 3);
+        }
+
+        assertEquals(State.EJECTED, pool.getEndpoints().get(0).getState());
+        assertEquals(State.EJECTED, pool.getEndpoints().get(1).getState());
+        assertEquals(State.ACTIVE, pool.getEndpoints().get(2).getState());
+        assertSame(pool.getEndpoints().get(2), pool.acquire());
+    }
+
+    @Test
+    public void readmitsANodeOnceItsAboutResourceAnswers() throws Exception {
+        EndpointPool pool = pool(Policy.LEAST_OUTSTANDING);
+        Endpoint a = pool.getEndpoints().get(0);
+        fail(pool, a, 3);
+
+        pool.probe();
+        assertTrue("Checked before its ejection time passed", transport.requested.isEmpty());
+
+        TimeUnit.MILLISECONDS.sleep(EJECT_MS + 20L);
+        transport.code = 503;
+        pool.probe();
+        assertEquals("http://a.example.edu/xapi/about", transport.requested.poll());
+        assertEquals(State.EJECTED, a.getState());
+
+        // ejected for twice as long after a failed check
+        transport.code = 200;
+        TimeUnit.MILLISECONDS.sleep(EJECT_MS + 20L);
+        pool.probe();
+        assertTrue(transport.requested.isEmpty());
+
+        TimeUnit.MILLISECONDS.sleep(EJECT_MS);
+        pool.probe();
+        assertEquals("http://a.example.edu/xapi/about", transport.requested.poll());
+        assertEquals(State.ACTIVE, a.getState());
+
+        // and needs as many failures as the first time to be ejected again
+        fail(pool, a, 2);
+        assertEquals(State.ACTIVE, a.getState());
+    }
+
+    private EndpointPool pool(Policy policy) {
+        return new EndpointPool("test", URLS, policy, transport, Collections.emptyMap(), 3, EJECT_MS, 10000L, 100L);
+    }
+
+    private static void fail(EndpointPool pool, Endpoint endpoint, int times) {
+        for (int i = 0; i < times; i++) {
+            pool.release(acquire(pool, endpoint), 1000L, true);
+        }
+    }
+
+    /**
+     * @return the endpoint once the pool picks it, the other nodes picked on the way answer right away
+     */
+    private static Endpoint acquire(EndpointPool pool, Endpoint endpoint) {
+        Endpoint chosen;
+
+        while ((chosen = pool.acquire()) != endpoint) {
+            pool.release(chosen, 1000L, false);
+        }
+
+        return chosen;
+    }
+
+    /**
+     * Answers every about request with the current code
+     */
+    private static final class AboutTransport implements LrsTransport {
+        private final Queue<String> requested = new ConcurrentLinkedQueue<>();
+        private volatile int code = 200;
+
+        @Override
+        public CompletableFuture<HttpResponse> post(String url, Map<String, String> headers, byte[] body, int timeout) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public CompletableFuture<HttpResponse> get(String url, Map<String, String> headers) {
+            requested.add(url);
+            return CompletableFuture.completedFuture(new HttpResponse(code));
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.lrs.expapi.impl.StatementSink.DeliveryResult;
+
+/**
+ * Each target gets the statements or keeps them in its spool, without a slow or failing target holding back the others
+ */
+public class FanOutStatementSinkTest {
+
+    private static final long WAIT_MS = 200L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final List<StatementSpool> spools = new ArrayList<>();
+    private FanOutStatementSink fanOut;
+
+    @After
+    public void stopFanOut() {
+        if (fanOut != null) {
+            fanOut.shutdown();
+        }
+
+        for (StatementSpool spool : spools) {
+            spool.close();
+        }
+    }
+
+    @Test
+    public void aSlowTargetDoesNotHoldBackTheOthers() throws Exception {
+        ScriptedSink fast = new ScriptedSink();
+        ScriptedSink slow = new ScriptedSink().hold();
+        FanOutStatementSink.Target fastTarget = target("fast", fast);
+        FanOutStatementSink.Target slowTarget = target("slow", slow);
+        fanOut = new FanOutStatementSink("test", Arrays.asList(fastTarget, slowTarget), WAIT_MS);
+
+        long start = System.nanoTime();
+        assertEquals(DeliveryResult.SENT, fanOut.deliver(statements("a", "b"), 0L).get(5, TimeUnit.SECONDS));
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("Waited " + waitedMs + " ms for the slow target", waitedMs < 2000L);
+        assertEquals(Arrays.asList("[a, b]"), fast.getDeliveries());
+        assertEquals(Arrays.asList("a", "b"), spooled(slowTarget));
+        assertEquals(2L, slowTarget.getMetrics().getStatementsParked());
+
+        // the answer which comes later keeps nothing more
+        slow.release(DeliveryResult.RETRY);
+        TimeUnit.MILLISECONDS.sleep(100L);
+        assertEquals(Arrays.asList("a", "b"), spooled(slowTarget));
+        assertTrue(spooled(fastTarget).isEmpty());
+    }
+
+    @Test
+    public void waitsForATargetWhichAnswersInTime() throws Exception {
+        ScriptedSink target = new ScriptedSink().answer(DeliveryResult.RETRY);
+        FanOutStatementSink.Target retrying = target("retrying", target);
+        fanOut = new FanOutStatementSink("test", Arrays.asList(retrying, target("other", new ScriptedSink())), WAIT_MS);
+
+        assertEquals(DeliveryResult.SENT, fanOut.deliver(statements("a"), 0L).get(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("a"), spooled(retrying));
+        assertEquals(0L, retrying.getMetrics().getStatementsParked());
+    }
+
+    @Test
+    public void sendsARejectedBatchOneByOne() throws Exception {
+        // the batch is rejected, the first statement then fails and the second one is sent
+        ScriptedSink target = new ScriptedSink().answer(DeliveryResult.REJECTED).fail().answer(DeliveryResult.SENT);
+        FanOutStatementSink.Target rejecting = target("rejecting", target);
+        fanOut = new FanOutStatementSink("test", Arrays.asList(rejecting, target("other", new ScriptedSink())), WAIT_MS);
+
+        assertEquals(DeliveryResult.SENT, fanOut.deliver(statements("a", "b"), 0L).get(5, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("[a, b]", "[a]", "[b]"), target.getDeliveries());
+        assertEquals(Arrays.asList("a"), spooled(rejecting));
+    }
+
+    @Test
+    public void aStatementEveryTargetRejectsIsRejected() throws Exception {
+        fanOut = new FanOutStatementSink("test", Arrays.asList(target("one", new ScriptedSink().answer(DeliveryResult.REJECTED)),
+            target("two", new ScriptedSink().answer(DeliveryResult.REJECTED))), WAIT_MS);
+
+        assertEquals(DeliveryResult.REJECTED, fanOut.deliver(statements("a"), 0L).get(5, TimeUnit.SECONDS));
+    }
+
+    private FanOutStatementSink.Target target(String name, StatementSink sink) throws IOException {
+        StatementSpool spool = new StatementSpool("test", folder.newFolder(name), 64L * 1024, 4, 100);
+        spool.open();
+        spools.add(spool);
+        return new FanOutStatementSink.Target(name, sink, spool, new LrsMetrics("test." + name), 2);
+    }
+
+    private static List<String> spooled(FanOutStatementSink.Target target) throws IOException {
+        List<String> statements = new ArrayList<>();
+
+        for (byte[] record : target.getSpool().read(100).getRecords()) {
+            statements.add(new String(record, StandardCharsets.UTF_8));
+        }
+
+        return statements;
+    }
+
+    private static List<byte[]> statements(String... statements) {
+        List<byte[]> data = new ArrayList<>();
+
+        for (String statement : statements) {
+            data.add(statement.getBytes(StandardCharsets.UTF_8));
+        }
+
+        return data;
+    }
+
+    /**
+     * Answers the deliveries in the scripted order (SENT once the script is over), or holds them until released
+     */
+    private static class ScriptedSink implements StatementSink {
+        private final Queue<Object> script = new ConcurrentLinkedQueue<>();
+        private final Queue<String> deliveries = new ConcurrentLinkedQueue<>();
+        private final CompletableFuture<DeliveryResult> held = new CompletableFuture<>();
+        private volatile boolean holding;
+
+        ScriptedSink answer(DeliveryResult result) {
+            script.add(result);
+            return this;
+        }
+
+        ScriptedSink fail() {
+            script.add(new IllegalStateException("test failure"));
+            return this;
+        }
+
+        ScriptedSink hold() {
+            holding = true;
+            return this;
+        }
+
+        void release(DeliveryResult result) {
+            held.complete(result);
+        }
+
+        List<String> getDeliveries() {
+            return new ArrayList<>(deliveries);
+        }
+
+        public CompletableFuture<DeliveryResult> deliver(List<byte[]> statements, long maxWaitMs) {
+            List<String> delivered = new ArrayList<>();
+
+            for (byte[] statement : statements) {
+                delivered.add(new String(statement, StandardCharsets.UTF_8));
+            }
+            deliveries.add(delivered.toString());
+
+            if (holding) {
+                return held;
+            }
+
+            Object next = script.poll();
+            CompletableFuture<DeliveryResult> outcome = new CompletableFuture<>();
+
+            if (next instanceof RuntimeException) {
+                outcome.completeExceptionally((RuntimeException) next);
+            } else {
+                outcome.complete(next != null ? (DeliveryResult) next : DeliveryResult.SENT);
+            }
+
+            return outcome;
+        }
+
+        public void shutdown() {
+        }
+    }
+
+}
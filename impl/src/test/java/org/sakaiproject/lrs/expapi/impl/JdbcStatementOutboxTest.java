@@ -0,0 +1,262 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.lrs.expapi.impl.StatementSink.DeliveryResult;
+
+/**
+ * The outbox against an in-memory H2 database, two outboxes on the same table stand for two nodes of a cluster
+ */
+public class JdbcStatementOutboxTest {
+
+    private static final String TABLE = "LRS_OUTBOX_TEST";
+    private static final AtomicInteger DATABASES = new AtomicInteger();
+
+    private JdbcDataSource dataSource;
+    private final List<JdbcStatementOutbox> outboxes = new ArrayList<>();
+    private final Queue<byte[]> fallenBack = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Records the statements it is given, and may ask for some of the deliveries to be retried
+     */
+    private static final class RecordingSink implements StatementSink {
+        private final Map<String, Integer> delivered = new ConcurrentHashMap<>();
+        private final AtomicInteger retriesLeft;
+
+        RecordingSink(int retries) {
+            this.retriesLeft = new AtomicInteger(retries);
+        }
+
+        public CompletableFuture<DeliveryResult> deliver(List<byte[]> statements, long maxWaitMs) {
+            if (retriesLeft.getAndDecrement() > 0) {
+                return CompletableFuture.completedFuture(DeliveryResult.RETRY);
+            }
+
+            for (byte[] statement : statements) {
+                delivered.merge(new String(statement, StandardCharsets.UTF_8), 1, Integer::sum);
+            }
+
+            return CompletableFuture.completedFuture(DeliveryResult.SENT);
+        }
+
+        public void shutdown() {
+        }
+
+        int count() {
+            int count = 0;
+
+            for (int times : delivered.values()) {
+                count += times;
+            }
+
+            return count;
+        }
+    }
+
+    @Before
+    public void createDatabase() throws SQLException {
+        dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:lrs-outbox-" + DATABASES.incrementAndGet() + ";DB_CLOSE_DELAY=-1");
+    }
+
+    @After
+    public void stopOutboxes() throws SQLException {
+        for (JdbcStatementOutbox outbox : outboxes) {
+            outbox.shutdown(5000L);
+        }
+
+        try (Connection connection = dataSource.getConnection(); Statement shutdown = connection.createStatement()) {
+            shutdown.execute("SHUTDOWN");
+        }
+    }
+
+    @Test
+    public void twoNodesDeliverEveryStatementOnce() throws Exception {
+        RecordingSink first = new RecordingSink(0);
+        RecordingSink second = new RecordingSink(0);
+        JdbcStatementOutbox one = outbox(first, 60000L, 0L, 60000L);
+        JdbcStatementOutbox other = outbox(second, 60000L, 0L, 60000L);
+        one.start(2);
+        other.start(2);
+
+        int total = 2000;
+        for (int i = 0; i < total; i++) {
+            // both nodes take statements, and both drain the rows of both
+            assertTrue((i % 2 == 0 ? one : other).append(statement(i)));
+        }
+
+        await(() -> first.count() + second.count() >= total);
+        TimeUnit.MILLISECONDS.sleep(200L);
+
+        assertEquals(total, first.count() + second.count());
+
+        for (int i = 0; i < total; i++) {
+            String statement = new String(statement(i), StandardCharsets.UTF_8);
+            int times = first.delivered.getOrDefault(statement, 0) + second.delivered.getOrDefault(statement, 0);
+            assertEquals(statement + " delivered " + times + " time(s)", 1, times);
+        }
+
+        assertEquals(0, count("DELIVERED IS NULL"));
+        assertTrue(fallenBack.isEmpty());
+    }
+
+    @Test
+    public void retriesTheStatementsTheSinkCannotTakeNow() throws Exception {
+        RecordingSink sink = new RecordingSink(3);
+        JdbcStatementOutbox outbox = outbox(sink, 60000L, 0L, 60000L);
+        outbox.start(1);
+
+        for (int i = 0; i < 20; i++) {
+            outbox.append(statement(i));
+        }
+
+        await(() -> sink.count() >= 20);
+
+        assertEquals(20, sink.delivered.size());
+        assertEquals(0, count("DELIVERED IS NULL"));
+        assertTrue("The attempts that had to be retried are counted", count("ATTEMPTS > 0") > 0);
+    }
+
+    @Test
+    public void takesOverTheStatementsOfANodeWhichStoppedSending() throws Exception {
+        // the first node claims the statements and never gets an answer
+        final CompletableFuture<DeliveryResult> stuck = new CompletableFuture<>();
+        final AtomicInteger claimed = new AtomicInteger();
+        JdbcStatementOutbox stopped = outbox(new StatementSink() {
+            public CompletableFuture<DeliveryResult> deliver(List<byte[]> statements, long maxWaitMs) {
+                claimed.addAndGet(statements.size());
+                return stuck;
+            }
+
+            public void shutdown() {
+            }
+        }, 1000L, 0L, 60000L);
+
+        stopped.start(1);
+
+        for (int i = 0; i < 10; i++) {
+            stopped.append(statement(i));
+        }
+
+        await(() -> claimed.get() == 10);
+
+        // the other node takes them once the lease has expired
+        RecordingSink sink = new RecordingSink(0);
+        long start = System.currentTimeMillis();
+        outbox(sink, 1000L, 0L, 60000L).start(1);
+        await(() -> sink.count() >= 10);
+
+        assertEquals(10, sink.delivered.size());
+        assertTrue("The statements were taken over before their lease expired", System.currentTimeMillis() - start >= 500L);
+
+        // the first node gets its answer late, the statements stay delivered
+        stuck.complete(DeliveryResult.RETRY);
+        TimeUnit.MILLISECONDS.sleep(200L);
+        assertEquals(0, count("DELIVERED IS NULL"));
+    }
+
+    @Test
+    public void prunesTheDeliveredStatementsOnceTheirRetentionHasPassed() throws Exception {
+        RecordingSink sink = new RecordingSink(0);
+        JdbcStatementOutbox outbox = outbox(sink, 60000L, 0L, 60000L);
+        outbox.start(1);
+
+        for (int i = 0; i < 10; i++) {
+            outbox.append(statement(i));
+        }
+
+        // the sink answers before the statements are marked delivered
+        await(() -> count("DELIVERED IS NOT NULL") == 10);
+        assertEquals(10, sink.count());
+
+        // pruning runs once a minute on each node, a node starting up (here with no retention at all) prunes right away
+        outbox(new RecordingSink(0), 60000L, 0L, 0L).start(1);
+        await(() -> count("1 = 1") == 0);
+    }
+
+    @Test
+    public void fallsBackWhenTheStatementsCannotBeWritten() throws Exception {
+        JdbcStatementOutbox outbox = new JdbcStatementOutbox("test", dataSource, "LRS_OUTBOX_MISSING", new RecordingSink(0), fallenBack::addAll,
+            100, 10, 0L, 10, 60000L, 0L, 10L, 60000L);
+        outboxes.add(outbox);
+        outbox.start(1);
+
+        for (int i = 0; i < 5; i++) {
+            outbox.append(statement(i));
+        }
+
+        await(() -> fallenBack.size() == 5);
+    }
+
+    /**
+     * @return a started outbox on the test table, created if needed
+     */
+    private JdbcStatementOutbox outbox(StatementSink sink, long leaseMs, long retryMs, long retentionMs) throws SQLException {
+        JdbcStatementOutbox outbox = new JdbcStatementOutbox("test", dataSource, TABLE, sink, fallenBack::addAll,
+            10000, 100, 5L, 50, leaseMs, retryMs, 10L, retentionMs);
+        outbox.createTable();
+        outboxes.add(outbox);
+        return outbox;
+    }
+
+    private int count(String condition) {
+        try (Connection connection = dataSource.getConnection();
+             Statement query = connection.createStatement();
+             ResultSet results = query.executeQuery("SELECT COUNT(*) FROM " + TABLE + " WHERE " + condition)) {
+            results.next();
+            return results.getInt(1);
+        } catch (SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] statement(int n) {
+        return ("{\"id\":\"statement-" + n + "\"}").getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+
+        while (!condition.getAsBoolean()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            TimeUnit.MILLISECONDS.sleep(10L);
+        }
+    }
+
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The percentiles are the upper bound of their power of two bucket, never above the largest sample, and no sample is lost
+ * while many threads record
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void isEmptyWithoutSamples() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.getMeanMicros());
+        assertEquals(0L, histogram.getMaxMicros());
+        assertEquals(0L, histogram.getPercentileMicros(99));
+    }
+
+    @Test
+    public void givesThePercentilesToWithinTheirBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for (int i = 0; i < 990; i++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(100L));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(50L));
+        }
+
+        assertEquals(1000L, histogram.getCount());
+        assertEquals(599L, histogram.getMeanMicros());
+        assertEquals(50000L, histogram.getMaxMicros());
+        // 100 us is in the bucket of 64-127 us
+        assertEquals(127L, histogram.getPercentileMicros(50));
+        assertEquals(127L, histogram.getPercentileMicros(99));
+        // the bucket of 50 ms goes up to 65535 us, but no sample was larger than 50 ms
+        assertEquals(50000L, histogram.getPercentileMicros(99.9));
+        assertEquals(50000L, histogram.getPercentileMicros(100));
+    }
+
+    @Test
+    public void keepsTheSmallestAndLargestSamples() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5L);
+        histogram.record(500L);
+
+        assertEquals(0L, histogram.getPercentileMicros(100));
+
+        histogram.record(TimeUnit.DAYS.toNanos(30L));
+
+        assertEquals(TimeUnit.DAYS.toMicros(30L), histogram.getMaxMicros());
+        assertEquals(TimeUnit.DAYS.toMicros(30L), histogram.getPercentileMicros(100));
+        assertEquals(0L, histogram.getPercentileMicros(50));
+    }
+
+    @Test
+    public void countsEverySampleOfConcurrentThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 8; t++) {
+            final long micros = 1L << t;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 100000; i++) {
+                    histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(800000L, histogram.getCount());
+        assertEquals(128L, histogram.getMaxMicros());
+        assertEquals((1L + 2 + 4 + 8 + 16 + 32 + 64 + 128) / 8, histogram.getMeanMicros());
+        assertEquals(15L, histogram.getPercentileMicros(50));
+    }
+
+}
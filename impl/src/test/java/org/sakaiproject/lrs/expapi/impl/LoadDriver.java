@@ -0,0 +1,333 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import org.h2.jdbcx.JdbcDataSource;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Result;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+import org.sakaiproject.lrs.expapi.util.StatementMapUtils;
+
+/**
+ * Open-loop load test of the provider against the {@link StandInLrs}: statements are handed to
+ * {@link TincanapiLearningResourceStoreProvider#handleStatement} at a fixed rate, whether or not the earlier ones have
+ * been delivered, and every statement is matched with what the stand-in received. It reports the achieved rate, the
+ * time callers spent in handleStatement, the time from handing a statement over to the stand-in receiving it, and the
+ * statements lost or delivered twice. Runs without a network, arguments are key=value pairs:
+ * <pre>
+ * rate=100           statements per second
+ * duration=10        seconds
+ * threads=4          caller threads
+ * actors=50          distinct actors, statement n is for actor n % actors (the statements of an actor are checked to arrive in
+ *                    order, exactly so when threads divides actors and each actor's statements come from one thread)
+ * high=0             share of the statements with a result, which go through the high priority lane when async
+ * auth=basic         basic, oauth or bearer (tokens from the stand-in's token endpoint)
+ * tokenLifetime=60   seconds a bearer token is accepted
+ * latency=0          stand-in latency (in ms)
+ * jitter=0           stand-in random extra latency (in ms)
+ * drop=0             share of requests the stand-in drops the connection of (0-1)
+ * throttle=0         share answered 429 with Retry-After
+ * retryAfter=1       the Retry-After (in seconds)
+ * error=0            share answered 503
+ * reject=0           share answered 400
+ * drain=30           seconds to wait for queued and retried statements once the load stops
+ * maxLoss=-1         exit with 1 when more than this share (0-1) of the statements is lost, -1 to never fail
+ * ordered=false      exit with 1 when a statement arrives before an earlier one of the same actor
+ * outbox=false       send the statements through the outbox, in a table of an in-memory H2 database
+ * lrs.tincanapi.*    passed to the provider, e.g. lrs.tincanapi.async.enabled=true
+ * </pre>
+ */
+public class LoadDriver {
+
+    private static final String CONSUMER_KEY = "sakai";
+    private static final String CONSUMER_SECRET = "secret";
+
+    private final Map<String, String> options = new HashMap<>();
+    private final Map<String, String> providerOptions = new HashMap<>();
+
+    private AtomicLongArray handedOverAt;
+    private AtomicIntegerArray deliveries;
+    // the highest statement sequence number received for each actor
+    private AtomicIntegerArray lastReceived;
+    private int actorCount;
+    private double highShare;
+    private final LatencyHistogram callerLatency = new LatencyHistogram();
+    private final LatencyHistogram endToEndLatency = new LatencyHistogram();
+    private final LatencyHistogram highEndToEndLatency = new LatencyHistogram();
+    private final LongAdder callerErrors = new LongAdder();
+    private final LongAdder behind = new LongAdder();
+    private final LongAdder outOfOrder = new LongAdder();
+
+    /**
+     * @param args the options, as key=value pairs
+     */
+    public LoadDriver(String... args) {
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+
+            if (split <= 0) {
+                throw new IllegalArgumentException("Arguments are key=value pairs: " + arg);
+            } else if (arg.startsWith("lrs.")) {
+                providerOptions.put(arg.substring(0, split), arg.substring(split + 1));
+            } else {
+                options.put(arg.substring(0, split), arg.substring(split + 1));
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadDriver driver = new LoadDriver(args);
+        System.exit(driver.isPassed(driver.run()) ? 0 : 1);
+    }
+
+    /**
+     * @param loss the share of the statements lost by the run
+     * @return false if more statements were lost than maxLoss allows, or if statements arrived out of order when ordered is set
+     */
+    boolean isPassed(double loss) {
+        double maxLoss = option("maxLoss", -1d);
+        boolean ordered = Boolean.parseBoolean(options.get("ordered"));
+        return !(maxLoss >= 0 && loss > maxLoss) && !(ordered && outOfOrder.sum() > 0);
+    }
+
+    /**
+     * @return the share of the statements lost
+     */
+    double run() throws Exception {
+        double rate = option("rate", 100d);
+        int duration = (int) option("duration", 10d);
+        int threads = (int) option("threads", 4d);
+        int actors = (int) option("actors", 50d);
+        long drainMs = (long) (option("drain", 30d) * 1000);
+        String auth = options.containsKey("auth") ? options.get("auth") : "basic";
+        highShare = option("high", 0d);
+        int total = (int) Math.ceil(rate * duration);
+
+        handedOverAt = new AtomicLongArray(total);
+        deliveries = new AtomicIntegerArray(total);
+        actorCount = Math.max(1, actors);
+        lastReceived = new AtomicIntegerArray(actorCount);
+        for (int actor = 0; actor < actorCount; actor++) {
+            lastReceived.set(actor, -1);
+        }
+
+        StandInLrs lrs = new StandInLrs().setRecordLimit(0).setListener(this::received);
+        Map<String, String> configuration = TestSupport.providerConfiguration(lrs.getUrl());
+
+        if ("oauth".equalsIgnoreCase(auth)) {
+            lrs.requireOAuth(CONSUMER_KEY, CONSUMER_SECRET);
+            configuration.remove("lrs.tincanapi.basicAuthUserPass");
+            configuration.put("lrs.tincanapi.consumer.key", CONSUMER_KEY);
+            configuration.put("lrs.tincanapi.consumer.secret", CONSUMER_SECRET);
+            configuration.put("lrs.tincanapi.realm", "load");
+        } else if ("bearer".equalsIgnoreCase(auth)) {
+            lrs.requireBearerToken(CONSUMER_KEY, CONSUMER_SECRET, (int) option("tokenLifetime", 60d));
+            configuration.remove("lrs.tincanapi.basicAuthUserPass");
+            configuration.put("lrs.tincanapi.bearer.token.url", lrs.getTokenUrl());
+            configuration.put("lrs.tincanapi.bearer.client.id", CONSUMER_KEY);
+            configuration.put("lrs.tincanapi.bearer.client.secret", CONSUMER_SECRET);
+        } else {
+            lrs.requireBasicAuth("sakai:secret");
+        }
+
+        configuration.put("lrs.tincanapi.spool.dir", Files.createTempDirectory("lrs-load-spool").toString());
+        configuration.putAll(providerOptions);
+
+        ServerConfigurationService configurationService = TestSupport.configuration(configuration);
+        StatementMapUtils.setServerConfigurationService(configurationService);
+        TincanapiLearningResourceStoreProvider provider = new TincanapiLearningResourceStoreProvider(configurationService);
+
+        if (Boolean.parseBoolean(options.get("outbox"))) {
+            JdbcDataSource dataSource = new JdbcDataSource();
+            dataSource.setURL("jdbc:h2:mem:lrs-load;DB_CLOSE_DELAY=-1");
+            provider.setDataSource(dataSource);
+            provider.setOutboxEnabled(true);
+        }
+        // the connection test at startup goes through before the faults are switched on
+        provider.init();
+
+        lrs.setLatency((long) option("latency", 0d), (long) option("jitter", 0d));
+        lrs.setRetryAfter((int) option("retryAfter", 1d));
+        lrs.setFailureRates(option("drop", 0d), option("throttle", 0d), option("error", 0d), option("reject", 0d));
+
+        System.out.printf("Offering %d statements at %.0f/s for %ds from %d threads to %s%n", total, rate, duration, threads, lrs.getUrl());
+
+        // each thread sends every threads-th statement, on the schedule of the whole run
+        long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        CountDownLatch done = new CountDownLatch(threads);
+
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            Thread caller = new Thread(() -> {
+                try {
+                    for (int seq = first; seq < total; seq += threads) {
+                        long due = start + seq * intervalNanos;
+                        long wait = due - System.nanoTime();
+
+                        if (wait > 0) {
+                            LockSupport.parkNanos(wait);
+                        } else if (wait < -TimeUnit.MILLISECONDS.toNanos(10)) {
+                            behind.increment();
+                        }
+
+                        send(provider, seq, actors);
+                    }
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + t);
+            caller.start();
+        }
+
+        done.await();
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        // wait for the queued and retried statements, until the stand-in has them all or nothing arrived for a while
+        LrsMetrics metrics = LrsMetrics.get(provider.getID());
+        long deadline = System.currentTimeMillis() + drainMs;
+        long delivered = -1;
+        int idle = 0;
+
+        while (System.currentTimeMillis() < deadline && endToEndLatency.getCount() < total && idle < 3) {
+            TimeUnit.SECONDS.sleep(1);
+            idle = endToEndLatency.getCount() == delivered && metrics.getQueueDepth() == 0 ? idle + 1 : 0;
+            delivered = endToEndLatency.getCount();
+        }
+
+        String providerMetrics = String.valueOf(metrics);
+        provider.destroy();
+        lrs.stop();
+
+        int unique = 0;
+        long duplicates = 0;
+        for (int seq = 0; seq < total; seq++) {
+            int count = deliveries.get(seq);
+            unique += count > 0 ? 1 : 0;
+            duplicates += count > 1 ? count - 1 : 0;
+        }
+        double loss = total > 0 ? (total - unique) / (double) total : 0d;
+
+        System.out.printf("Offered      %d statements, achieved %.1f/s over %.1fs (%d late by more than 10 ms), %d caller errors%n",
+            total, total / elapsed, elapsed, behind.sum(), callerErrors.sum());
+        System.out.printf("Caller       %s%n", describe(callerLatency));
+        System.out.printf("End-to-end   %s%n", describe(endToEndLatency));
+        if (highShare > 0) {
+            System.out.printf("  with result %s%n", describe(highEndToEndLatency));
+        }
+        System.out.printf("Delivered    %d unique, %d lost (%.2f%%), %d duplicates, %d before an earlier statement of their actor%n",
+            unique, total - unique, loss * 100, duplicates, outOfOrder.sum());
+        System.out.printf("Stand-in     %d requests: 200=%d 400=%d 401=%d 429=%d 503=%d dropped=%d%n", lrs.getRequests(),
+            lrs.getResponses(200), lrs.getResponses(400), lrs.getResponses(401), lrs.getResponses(429), lrs.getResponses(503), lrs.getDropped());
+        if (lrs.getTokenRequests() > 0) {
+            System.out.printf("  tokens     %d requests%n", lrs.getTokenRequests());
+        }
+        System.out.printf("Provider     %s%n", providerMetrics);
+        return loss;
+    }
+
+    private void send(TincanapiLearningResourceStoreProvider provider, int seq, int actors) {
+        LRS_Object object = new LRS_Object(TestSupport.SITE_URL + "/activity/" + seq, "load-test");
+        LRS_Statement statement;
+
+        if (isHigh(seq)) {
+            statement = new LRS_Statement(TestSupport.actor("student" + (seq % actors)),
+                new LRS_Verb(LRS_Verb.SAKAI_VERB.scored), object, new LRS_Result(87, 0, 100, true), null);
+        } else {
+            statement = new LRS_Statement(TestSupport.actor("student" + (seq % actors)),
+                new LRS_Verb(LRS_Verb.SAKAI_VERB.experienced), object);
+        }
+
+        long handedOver = System.nanoTime();
+        handedOverAt.set(seq, handedOver);
+
+        try {
+            provider.handleStatement(statement);
+        } catch (RuntimeException e) {
+            callerErrors.increment();
+        }
+
+        callerLatency.record(System.nanoTime() - handedOver);
+    }
+
+    /**
+     * Match the statements of an accepted request by the sequence number in their object id
+     */
+    private void received(StandInLrs.Received request) {
+        String body = request.getBody();
+        String marker = "/activity/";
+        int at = body.indexOf(marker);
+
+        while (at >= 0) {
+            int from = at + marker.length();
+            int to = from;
+
+            while (to < body.length() && Character.isDigit(body.charAt(to))) {
+                to++;
+            }
+
+            if (to > from) {
+                int seq = Integer.parseInt(body.substring(from, to));
+
+                if (seq < deliveries.length() && deliveries.getAndIncrement(seq) == 0) {
+                    long latency = request.getReceivedNanos() - handedOverAt.get(seq);
+                    endToEndLatency.record(latency);
+
+                    if (isHigh(seq)) {
+                        highEndToEndLatency.record(latency);
+                    }
+
+                    if (lastReceived.getAndAccumulate(seq % actorCount, seq, Math::max) > seq) {
+                        outOfOrder.increment();
+                    }
+                }
+            }
+
+            at = body.indexOf(marker, to);
+        }
+    }
+
+    /**
+     * @return true if the statement has a result, spread evenly over the run
+     */
+    private boolean isHigh(int seq) {
+        return highShare > 0 && (int) ((seq + 1) * highShare) > (int) (seq * highShare);
+    }
+
+    private double option(String name, double defaultValue) {
+        String value = options.get(name);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+    private static String describe(LatencyHistogram histogram) {
+        return String.format("n=%d mean=%dus p50=%dus p90=%dus p99=%dus p99.9=%dus max=%dus", histogram.getCount(),
+            histogram.getMeanMicros(), histogram.getPercentileMicros(50), histogram.getPercentileMicros(90),
+            histogram.getPercentileMicros(99), histogram.getPercentileMicros(99.9), histogram.getMaxMicros());
+    }
+
+}
@@ -0,0 +1,52 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * End-to-end runs of the {@link LoadDriver} against the {@link StandInLrs}: no statement may be lost, whether the LRS
+ * answers well or misbehaves
+ */
+public class LoadDriverTest {
+
+    @Test
+    public void deliversEveryStatementSynchronously() throws Exception {
+        run("rate=200", "duration=2", "threads=4", "drain=20", "maxLoss=0");
+    }
+
+    @Test
+    public void deliversEveryStatementInOrderThroughThePartitionedDispatcher() throws Exception {
+        run("rate=400", "duration=2", "threads=4", "actors=20", "drain=20", "maxLoss=0", "ordered=true",
+            "lrs.tincanapi.async.enabled=true", "lrs.tincanapi.async.partitions=4", "lrs.tincanapi.batch.linger=10");
+    }
+
+    @Test
+    public void replaysWhatTheFailingLrsDidNotTake() throws Exception {
+        run("rate=200", "duration=2", "threads=4", "drain=30", "maxLoss=0", "error=0.1", "throttle=0.05", "drop=0.02",
+            "lrs.tincanapi.async.enabled=true", "lrs.tincanapi.spool.enabled=true", "lrs.tincanapi.spool.replay.interval=500",
+            "lrs.tincanapi.circuit.enabled=false", "lrs.tincanapi.request.timeout=2000");
+    }
+
+    private static void run(String... args) throws Exception {
+        LoadDriver driver = new LoadDriver(args);
+        double loss = driver.run();
+        assertTrue("Lost " + loss * 100 + "% of the statements, or delivered them out of order", driver.isPassed(loss));
+    }
+
+}
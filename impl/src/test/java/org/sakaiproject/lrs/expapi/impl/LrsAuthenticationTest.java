@@ -0,0 +1,163 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Each authentication is accepted by an LRS expecting it, and the bearer tokens are fetched ahead of their expiry
+ */
+public class LrsAuthenticationTest {
+
+    private static final String STATEMENT = "{\"actor\":{\"mbox\":\"mailto:student1@example.edu\"},"
+        + "\"verb\":{\"id\":\"http://adlnet.gov/expapi/verbs/experienced\"},\"object\":{\"id\":\"https://sakai.example.edu/portal\"}}";
+
+    private StandInLrs lrs;
+    private LrsTransport transport;
+    private LrsAuthentication authentication;
+
+    @Before
+    public void startLrs() throws Exception {
+        lrs = new StandInLrs();
+        transport = new AsyncHttpTransport("test", 5000, 5000, 4, 8, 60000L, 0, false);
+    }
+
+    @After
+    public void stopLrs() {
+        if (authentication != null) {
+            authentication.shutdown();
+        }
+
+        transport.shutdown();
+        lrs.stop();
+    }
+
+    @Test
+    public void sendsTheSameBasicAuthorizationWithEveryRequest() throws Exception {
+        lrs.requireBasicAuth("sakai:secret");
+        authentication = new BasicAuthentication("sakai:secret");
+
+        assertEquals("Basic c2FrYWk6c2VjcmV0", authentication.getStaticAuthorization());
+        assertEquals(authentication.getStaticAuthorization(), authentication.getAuthorization("POST", lrs.getUrl()));
+        assertEquals(200, send(authentication));
+        assertFalse(authentication.rejected());
+
+        assertEquals(401, send(new BasicAuthentication("sakai:wrong")));
+    }
+
+    @Test
+    public void signsEachRequestWithOAuth() throws Exception {
+        lrs.requireOAuth("consumer", "consumer-secret");
+        authentication = new OAuthAuthentication("consumer", "consumer-secret", "LRS");
+
+        assertNull(authentication.getStaticAuthorization());
+        assertNotEquals("Each request has its own nonce", authentication.getAuthorization("POST", lrs.getUrl()),
+            authentication.getAuthorization("POST", lrs.getUrl()));
+        assertEquals(200, send(authentication));
+        assertEquals(200, send(authentication));
+
+        assertEquals(401, send(new OAuthAuthentication("consumer", "wrong", "LRS")));
+    }
+
+    @Test
+    public void sendsAFixedBearerToken() throws Exception {
+        authentication = new BearerTokenAuthentication("abc");
+
+        assertEquals("Bearer abc", authentication.getStaticAuthorization());
+        assertEquals("Bearer abc", authentication.getAuthorization("POST", lrs.getUrl()));
+        assertFalse("A fixed token cannot be replaced", authentication.rejected());
+    }
+
+    @Test
+    public void fetchesTheFirstBearerTokenAtStart() throws Exception {
+        lrs.requireBearerToken("client", "client-secret", 3600);
+        authentication = new BearerTokenAuthentication("test", transport, lrs.getTokenUrl(), "client", "client-secret", null);
+        authentication.start();
+
+        assertNull(authentication.getStaticAuthorization());
+        assertEquals(1L, lrs.getTokenRequests());
+        assertEquals(200, send(authentication));
+        assertEquals(200, send(authentication));
+        assertEquals("The token is kept for the following requests", 1L, lrs.getTokenRequests());
+
+        // a token that new is not replaced when a request is refused, but the request is worth sending again
+        assertTrue(authentication.rejected());
+        TimeUnit.MILLISECONDS.sleep(200L);
+        assertEquals(1L, lrs.getTokenRequests());
+    }
+
+    @Test
+    public void fetchesTheNextBearerTokenBeforeTheCurrentOneExpires() throws Exception {
+        lrs.requireBearerToken("client", "client-secret", 1);
+        authentication = new BearerTokenAuthentication("test", transport, lrs.getTokenUrl(), "client", "client-secret", "statements/write");
+        authentication.start();
+        String first = authentication.getAuthorization("POST", lrs.getUrl());
+
+        // the next token is fetched once 80% of the lifetime has passed, each request has a valid token
+        long end = System.currentTimeMillis() + 2500L;
+        while (System.currentTimeMillis() < end) {
+            assertEquals(200, send(authentication));
+            TimeUnit.MILLISECONDS.sleep(100L);
+        }
+
+        assertTrue(lrs.getTokenRequests() >= 3L);
+        assertNotEquals(first, authentication.getAuthorization("POST", lrs.getUrl()));
+    }
+
+    @Test
+    public void sendsNothingWithoutABearerToken() throws Exception {
+        lrs.requireBearerToken("client", "client-secret", 3600);
+        authentication = new BearerTokenAuthentication("test", transport, lrs.getTokenUrl(), "client", "wrong", null);
+        authentication.start();
+
+        assertEquals(1L, lrs.getTokenRequests());
+
+        try {
+            authentication.getAuthorization("POST", lrs.getUrl());
+            fail("Authorized without a token");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("No valid bearer token"));
+        }
+    }
+
+    /**
+     * @return the response code of the LRS to a statement sent with the authentication
+     */
+    private int send(LrsAuthentication with) throws Exception {
+        Map<String, String> headers = new HashMap<>();
+        headers.put("Content-Type", "application/json");
+        headers.put("X-Experience-API-Version", "1.0.3");
+        headers.put("Authorization", with.getAuthorization("POST", lrs.getUrl()));
+
+        return transport.post(lrs.getUrl(), headers, STATEMENT.getBytes(StandardCharsets.UTF_8)).get(10, TimeUnit.SECONDS).getResponseCode();
+    }
+
+}
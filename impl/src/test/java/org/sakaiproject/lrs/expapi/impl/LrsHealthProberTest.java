@@ -0,0 +1,120 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.lrs.expapi.impl.LrsHealthProber.State;
+
+/**
+ * The LRS is up while its about resource lists a version the provider speaks, the listeners hear about each change
+ */
+public class LrsHealthProberTest {
+
+    private StandInLrs lrs;
+    private LrsTransport transport;
+    private LrsHealthProber prober;
+    private final List<String> changes = new CopyOnWriteArrayList<>();
+
+    @Before
+    public void startLrs() throws Exception {
+        lrs = new StandInLrs();
+        transport = new AsyncHttpTransport("test", 2000, 2000, 2, 4, 60000L, 0, false);
+        prober = new LrsHealthProber("test", transport, LrsHealthProber.getAboutUrl(lrs.getUrl()), Collections.emptyMap(), "1.0.0", 60000L);
+        prober.addListener((source, from, to) -> changes.add(from + "->" + to));
+    }
+
+    @After
+    public void stopLrs() {
+        prober.shutdown();
+        transport.shutdown();
+        lrs.stop();
+    }
+
+    @Test
+    public void findsTheAboutResourceNextToTheStatements() {
+        assertEquals("https://lrs.example.edu/xapi/about", LrsHealthProber.getAboutUrl("https://lrs.example.edu/xapi/statements"));
+        assertEquals("https://lrs.example.edu/xapi/about", LrsHealthProber.getAboutUrl("https://lrs.example.edu/xapi/statements/"));
+        assertEquals("https://lrs.example.edu/xapi/about", LrsHealthProber.getAboutUrl("https://lrs.example.edu/xapi/"));
+    }
+
+    @Test
+    public void isUpWhileTheLrsSpeaksTheVersion() throws Exception {
+        assertEquals(State.UNKNOWN, prober.getState());
+
+        check(State.UP);
+        assertNull(prober.getProblem());
+        assertTrue(prober.getLastCheck() > 0L);
+
+        lrs.setAboutVersions("0.95", "2.0.0");
+        check(State.DOWN);
+        assertTrue(prober.getProblem(), prober.getProblem().startsWith("the LRS does not support xAPI 1.0.0"));
+
+        lrs.setAboutVersions("1.0.3");
+        check(State.UP);
+
+        assertEquals(Arrays.asList("UNKNOWN->UP", "UP->DOWN", "DOWN->UP"), changes);
+    }
+
+    @Test
+    public void isDownWhenTheAboutResourceFails() throws Exception {
+        lrs.setAboutVersions();
+        check(State.DOWN);
+        assertTrue(prober.getProblem(), prober.getProblem().contains(" answered 503"));
+
+        // the listeners only hear about changes
+        check(State.DOWN);
+        assertEquals(Arrays.asList("UNKNOWN->DOWN"), changes);
+    }
+
+    @Test
+    public void isDownWhenTheLrsCannotBeReached() throws Exception {
+        check(State.UP);
+        lrs.stop();
+
+        check(State.DOWN);
+        assertTrue(prober.getProblem(), prober.getProblem().startsWith("cannot reach "));
+    }
+
+    /**
+     * Check the LRS now and wait for the answer
+     */
+    private void check(State expected) throws InterruptedException {
+        long checked = prober.getLastCheck();
+        // so the time of this check differs from the last one
+        TimeUnit.MILLISECONDS.sleep(2L);
+        prober.probe();
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+
+        while (prober.getLastCheck() == checked && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10L);
+        }
+
+        assertEquals(prober.getProblem(), expected, prober.getState());
+    }
+
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * The provider counts what happens to its statements and publishes the counts over JMX while it runs
+ */
+public class LrsMetricsTest {
+
+    private StandInLrs lrs;
+    private TincanapiLearningResourceStoreProvider provider;
+
+    @After
+    public void stopProvider() {
+        if (provider != null) {
+            provider.destroy();
+        }
+
+        if (lrs != null) {
+            lrs.stop();
+        }
+    }
+
+    @Test
+    public void countsTheResponseCodes() {
+        LrsMetrics metrics = new LrsMetrics("test");
+        metrics.responseCode(200);
+        metrics.responseCode(200);
+        metrics.responseCode(503);
+        metrics.responseCode(0);
+        metrics.responseCode(700);
+
+        assertEquals(2L, metrics.getResponseCount(200));
+        assertEquals(1L, metrics.getResponseCount(503));
+        assertEquals(2L, metrics.getResponseCount(-1));
+        assertEquals("other=2, 200=2, 503=1", metrics.getResponseCodes());
+    }
+
+    @Test
+    public void readsTheGaugesOnlyOnceSet() {
+        LrsMetrics metrics = new LrsMetrics("test");
+
+        assertEquals(0, metrics.getQueueDepth());
+        assertNull(metrics.getCircuitState());
+        assertEquals("", metrics.getFilterHits());
+        assertFalse(metrics.toString().contains("endpoints"));
+
+        metrics.setQueueGauges(() -> 12, () -> 3000L);
+        metrics.setCircuitGauge(() -> "OPEN");
+        metrics.setEndpointGauge(() -> "node-a ACTIVE");
+
+        assertEquals(12, metrics.getQueueDepth());
+        assertEquals(3000L, metrics.getQueueOldestAgeMs());
+        assertEquals("OPEN", metrics.getCircuitState());
+        assertTrue(metrics.toString().endsWith(", endpoints [node-a ACTIVE]"));
+    }
+
+    @Test
+    public void keepsTheRegisteredMetricsOfEachProvider() {
+        LrsMetrics first = new LrsMetrics("registry-test");
+        LrsMetrics second = new LrsMetrics("registry-test");
+
+        LrsMetrics.register(first);
+        LrsMetrics.register(second);
+        LrsMetrics.unregister(first);
+        assertSame("Only the registered metrics are removed", second, LrsMetrics.get("registry-test"));
+
+        LrsMetrics.unregister(second);
+        assertNull(LrsMetrics.get("registry-test"));
+    }
+
+    @Test
+    public void publishesTheMetricsOfTheProviderOverJmx() throws Exception {
+        lrs = new StandInLrs().requireBasicAuth("sakai:secret");
+        Map<String, String> values = TestSupport.providerConfiguration(lrs.getUrl());
+        values.put("lrs.tincanapi.spool.enabled", "false");
+        values.put("lrs.tincanapi.health.enabled", "false");
+        provider = new TincanapiLearningResourceStoreProvider(TestSupport.configuration(values));
+        provider.init();
+
+        for (int i = 0; i < 3; i++) {
+            provider.handleStatement(TestSupport.typicalStatement());
+        }
+
+        String id = provider.getID();
+        LrsMetrics metrics = LrsMetrics.get(id);
+        assertEquals(3L, metrics.getStatementsSent());
+        assertEquals(3L, metrics.getResponseCount(200));
+        assertEquals(3L, metrics.getRoundTripHistogram().getCount());
+        assertEquals(3L, metrics.getSerializeHistogram().getCount());
+        assertEquals(0L, metrics.getStatementsFailed());
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("org.sakaiproject.lrs.expapi:type=LrsMetrics,id=" + id);
+        assertEquals(3L, server.getAttribute(name, "StatementsSent"));
+        assertEquals("200=3", server.getAttribute(name, "ResponseCodes"));
+
+        provider.destroy();
+        provider = null;
+
+        assertNull(LrsMetrics.get(id));
+        assertFalse(server.isRegistered(name));
+    }
+
+}
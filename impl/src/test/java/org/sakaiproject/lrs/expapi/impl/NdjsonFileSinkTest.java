@@ -0,0 +1,217 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sakaiproject.lrs.expapi.impl.StatementSink.DeliveryResult;
+
+/**
+ * The export files are completed once large or old enough, and every statement acknowledged can be read back from them
+ */
+public class NdjsonFileSinkTest {
+
+    private static final long MAX_FILE_SIZE = 256 * 1024;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private NdjsonFileSink sink;
+
+    @After
+    public void stopSink() {
+        if (sink != null) {
+            sink.shutdown();
+        }
+    }
+
+    @Test
+    public void startsANewFileOnceTheFileIsLargeEnough() throws Exception {
+        File directory = folder.newFolder("export");
+        sink = open(directory, 3600000L);
+        // random data barely compresses, 400 statements of 2 KB fill two files and start a third
+        Random random = new Random(1L);
+        List<String> sent = new ArrayList<>();
+
+        for (int i = 0; i < 400; i++) {
+            byte[] data = new byte[1500];
+            random.nextBytes(data);
+            String statement = "{\"id\":" + i + ",\"data\":\"" + Base64.getEncoder().encodeToString(data) + "\"}";
+            sent.add(statement);
+            assertEquals(DeliveryResult.SENT, deliver(statement));
+        }
+
+        sink.shutdown();
+        List<File> files = completedFiles(directory);
+
+        assertEquals(3, files.size());
+        for (File file : files.subList(0, files.size() - 1)) {
+            // completed at the first group commit past the limit
+            assertTrue(file.length() >= MAX_FILE_SIZE && file.length() < MAX_FILE_SIZE + 4096);
+        }
+
+        List<String> exported = new ArrayList<>();
+        for (File file : files) {
+            exported.addAll(readLines(file));
+        }
+
+        assertEquals(sent, exported);
+    }
+
+    @Test
+    public void completesAFileOnceItIsOldEnough() throws Exception {
+        File directory = folder.newFolder("export");
+        sink = open(directory, 1000L);
+
+        assertEquals(DeliveryResult.SENT, deliver("{\"id\":1}"));
+        await(() -> completedFiles(directory).size() == 1);
+        assertEquals(0, partFiles(directory).size());
+
+        assertEquals(DeliveryResult.SENT, deliver("{\"id\":2}"));
+        await(() -> completedFiles(directory).size() == 2);
+
+        List<File> files = completedFiles(directory);
+        assertEquals(Arrays.asList("{\"id\":1}"), readLines(files.get(0)));
+        assertEquals(Arrays.asList("{\"id\":2}"), readLines(files.get(1)));
+    }
+
+    @Test
+    public void keepsEachStatementOnOneLine() throws Exception {
+        File directory = folder.newFolder("export");
+        sink = open(directory, 3600000L);
+
+        assertEquals(DeliveryResult.SENT, deliver("{\r\n\"id\":1,\n\"verb\":\"a\"}"));
+        assertEquals(DeliveryResult.SENT, deliver("{\"id\":2}"));
+        sink.shutdown();
+
+        assertEquals(Arrays.asList("{  \"id\":1, \"verb\":\"a\"}", "{\"id\":2}"), readLines(completedFiles(directory).get(0)));
+    }
+
+    @Test
+    public void keepsTheStatementsOfAnInterruptedFile() throws Exception {
+        File directory = folder.newFolder("export");
+        File part = new File(directory, "test-20260101T000000Z-0.ndjson.gz.part");
+
+        // a file written up to a group commit, without the gzip trailer
+        try (OutputStream file = new FileOutputStream(part)) {
+            GZIPOutputStream gzip = new GZIPOutputStream(file, true);
+            gzip.write("{\"id\":1}\n{\"id\":2}\n".getBytes(StandardCharsets.UTF_8));
+            gzip.flush();
+        }
+
+        sink = open(directory, 3600000L);
+
+        assertEquals(0, partFiles(directory).size());
+        assertEquals(Arrays.asList("{\"id\":1}", "{\"id\":2}"), readLines(new File(directory, "test-20260101T000000Z-0.ndjson.gz")));
+    }
+
+    @Test
+    public void retriesTheStatementsOnceShutDown() throws Exception {
+        sink = open(folder.newFolder("export"), 3600000L);
+        sink.shutdown();
+
+        assertEquals(DeliveryResult.RETRY, deliver("{\"id\":1}"));
+    }
+
+    private NdjsonFileSink open(File directory, long maxFileAgeMs) throws IOException {
+        NdjsonFileSink opened = new NdjsonFileSink("test", directory, MAX_FILE_SIZE, maxFileAgeMs, 6, new LrsMetrics("test"));
+        opened.open();
+        return opened;
+    }
+
+    private DeliveryResult deliver(String statement) throws Exception {
+        return sink.deliver(Collections.singletonList(statement.getBytes(StandardCharsets.UTF_8)), 0L).get(10, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @return the completed files, in the order they were written
+     */
+    private static List<File> completedFiles(File directory) {
+        List<File> files = new ArrayList<>(Arrays.asList(directory.listFiles((dir, name) -> name.endsWith(".ndjson.gz"))));
+        files.sort((a, b) -> Integer.compare(sequence(a), sequence(b)));
+        return files;
+    }
+
+    private static List<File> partFiles(File directory) {
+        return Arrays.asList(directory.listFiles((dir, name) -> name.endsWith(".part")));
+    }
+
+    private static int sequence(File file) {
+        return Integer.parseInt(StringUtils.substringBetween(file.getName(), "Z-", ".ndjson.gz"));
+    }
+
+    /**
+     * @return the lines of the file, up to the last complete line of a file without its gzip trailer
+     */
+    private static List<String> readLines(File file) throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        try (InputStream in = new GZIPInputStream(new FileInputStream(file))) {
+            byte[] buffer = new byte[8192];
+            int read;
+
+            while ((read = in.read(buffer)) >= 0) {
+                content.write(buffer, 0, read);
+            }
+        } catch (EOFException e) {
+            // an interrupted file, everything written before is kept
+        }
+
+        String text = new String(content.toByteArray(), StandardCharsets.UTF_8);
+        assertTrue("The file ends with a complete line", text.isEmpty() || text.endsWith("\n"));
+
+        return text.isEmpty() ? Collections.emptyList() : Arrays.asList(text.substring(0, text.length() - 1).split("\n", -1));
+    }
+
+    private static void await(IoCondition condition) throws Exception {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+
+        while (!condition.holds()) {
+            assertTrue("Timed out", System.currentTimeMillis() < deadline);
+            TimeUnit.MILLISECONDS.sleep(50L);
+        }
+    }
+
+    private interface IoCondition {
+        boolean holds() throws IOException;
+    }
+
+}
@@ -0,0 +1,274 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.After;
+import org.junit.Test;
+import org.sakaiproject.lrs.expapi.impl.StatementDispatcher.Lane;
+
+/**
+ * The statements of each actor must be handed over in the order they were queued, whatever the load, the lanes and the
+ * number of partitions, while the partitions hand batches over at the same time
+ */
+public class PartitionedStatementDispatcherTest {
+
+    private static final int PARTITIONS = 4;
+    private static final int ACTORS = 200;
+    private static final int PRODUCERS = 8;
+
+    private PartitionedStatementDispatcher dispatcher;
+
+    @After
+    public void stopDispatcher() {
+        if (dispatcher != null) {
+            dispatcher.shutdown(10000L);
+        }
+    }
+
+    @Test
+    public void keepsTheOrderOfEachActorUnderLoad() throws Exception {
+        final int perActor = 100;
+        final AtomicIntegerArray last = new AtomicIntegerArray(ACTORS);
+        final Queue<String> outOfOrder = new ConcurrentLinkedQueue<>();
+        final AtomicInteger handed = new AtomicInteger();
+
+        for (int actor = 0; actor < ACTORS; actor++) {
+            last.set(actor, -1);
+        }
+
+        dispatcher = start(10, 10000, (lane, batch) -> {
+            for (byte[] statement : batch) {
+                int[] parsed = parse(statement);
+
+                // only the partition thread of the actor updates its entry
+                if (parsed[1] != last.get(parsed[0]) + 1) {
+                    outOfOrder.add("actor " + parsed[0] + ": " + parsed[1] + " after " + last.get(parsed[0]));
+                }
+
+                last.set(parsed[0], parsed[1]);
+                handed.incrementAndGet();
+            }
+
+            // an LRS answering at varying speed, so that the partitions drift apart
+            pause(ThreadLocalRandom.current().nextInt(3));
+        });
+
+        // each producer queues the statements of its own actors, in a random mix of lanes
+        int offered = produce(perActor, actor -> ThreadLocalRandom.current().nextBoolean() ? Lane.HIGH : Lane.LOW);
+
+        assertEquals(ACTORS * perActor, offered);
+        awaitHanded(handed, offered);
+        assertTrue("Statements handed over out of order: " + outOfOrder, outOfOrder.isEmpty());
+
+        for (int actor = 0; actor < ACTORS; actor++) {
+            assertEquals(perActor - 1, last.get(actor));
+        }
+    }
+
+    @Test
+    public void partitionsHandBatchesOverAtTheSameTime() throws Exception {
+        final AtomicInteger inProgress = new AtomicInteger();
+        final AtomicInteger mostInProgress = new AtomicInteger();
+        final AtomicInteger handed = new AtomicInteger();
+
+        dispatcher = start(5, 10000, (lane, batch) -> {
+            mostInProgress.accumulateAndGet(inProgress.incrementAndGet(), Math::max);
+            pause(20);
+            inProgress.decrementAndGet();
+            handed.addAndGet(batch.size());
+        });
+
+        int offered = produce(5, actor -> Lane.LOW);
+
+        awaitHanded(handed, offered);
+        assertTrue("At most " + mostInProgress.get() + " partition(s) sent at the same time", mostInProgress.get() > 1);
+        assertTrue(mostInProgress.get() <= PARTITIONS);
+    }
+
+    @Test
+    public void refusesStatementsBeyondTheLaneCapacityOfAPartition() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handling = new CountDownLatch(1);
+
+        dispatcher = start(1, 2, (lane, batch) -> {
+            handling.countDown();
+
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        // the first statement is taken by the partition thread, which then waits
+        assertTrue(dispatcher.offer(statement(0, 0), Lane.LOW, "actor0"));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+
+        assertTrue(dispatcher.offer(statement(0, 1), Lane.LOW, "actor0"));
+        assertTrue(dispatcher.offer(statement(0, 2), Lane.LOW, "actor0"));
+        assertFalse("The low lane of the partition is full", dispatcher.offer(statement(0, 3), Lane.LOW, "actor0"));
+        assertTrue("The high lane has room of its own", dispatcher.offer(statement(0, 3), Lane.HIGH, "actor0"));
+        assertEquals(3, dispatcher.getQueueSize());
+
+        release.countDown();
+    }
+
+    @Test
+    public void returnsTheStatementsLeftAtShutdown() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch handling = new CountDownLatch(1);
+
+        dispatcher = start(5, 10, (lane, batch) -> {
+            handling.countDown();
+            awaitIgnoringInterrupts(release);
+        });
+
+        // the high priority statement is carried over to the next batch, or still queued
+        assertTrue(dispatcher.offer(statement(0, 0), Lane.LOW, "actor0"));
+        assertTrue(dispatcher.offer(statement(0, 1), Lane.HIGH, "actor0"));
+        assertTrue(handling.await(5, TimeUnit.SECONDS));
+        assertTrue(dispatcher.offer(statement(0, 2), Lane.LOW, "actor0"));
+        assertTrue(dispatcher.offer(statement(0, 3), Lane.LOW, "actor0"));
+
+        // the partition thread is still busy with the first batch once the shutdown gives up waiting
+        List<byte[]> unsent = dispatcher.shutdown(100L);
+        release.countDown();
+
+        List<String> statements = new ArrayList<>();
+        for (byte[] statement : unsent) {
+            statements.add(new String(statement, StandardCharsets.UTF_8));
+        }
+
+        assertEquals(Arrays.asList("0:1", "0:2", "0:3"), statements);
+        assertEquals(0, dispatcher.getQueueSize());
+        assertFalse(dispatcher.offer(statement(0, 4), Lane.LOW, "actor0"));
+    }
+
+    private interface LaneChoice {
+        Lane of(int actor);
+    }
+
+    private PartitionedStatementDispatcher start(int batchSize, int capacity, StatementDispatcher.BatchHandler handler) {
+        PartitionedStatementDispatcher started = new PartitionedStatementDispatcher("test", handler, batchSize, PARTITIONS);
+        started.setLane(Lane.HIGH, capacity, 0L);
+        started.setLane(Lane.LOW, capacity, 5L);
+        started.start();
+        return started;
+    }
+
+    /**
+     * Queue the statements of every actor from several threads, the statements of an actor all from the same thread
+     *
+     * @return the number of statements accepted
+     */
+    private int produce(final int perActor, final LaneChoice lanes) throws InterruptedException {
+        final AtomicInteger accepted = new AtomicInteger();
+        final CountDownLatch ready = new CountDownLatch(1);
+        List<Thread> producers = new ArrayList<>();
+
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            Thread thread = new Thread(() -> {
+                try {
+                    ready.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                for (int seq = 0; seq < perActor; seq++) {
+                    for (int actor = producer; actor < ACTORS; actor += PRODUCERS) {
+                        if (dispatcher.offer(statement(actor, seq), lanes.of(actor), "actor" + actor)) {
+                            accepted.incrementAndGet();
+                        }
+                    }
+                }
+            }, "producer-" + p);
+            thread.start();
+            producers.add(thread);
+        }
+
+        ready.countDown();
+
+        for (Thread thread : producers) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+
+        return accepted.get();
+    }
+
+    private static void awaitHanded(AtomicInteger handed, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+
+        while (handed.get() < expected && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        assertEquals(expected, handed.get());
+    }
+
+    private static byte[] statement(int actor, int seq) {
+        return (actor + ":" + seq).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the actor and the sequence number of the statement
+     */
+    private static int[] parse(byte[] statement) {
+        String[] parts = new String(statement, StandardCharsets.UTF_8).split(":");
+        return new int[] {Integer.parseInt(parts[0]), Integer.parseInt(parts[1])};
+    }
+
+    static void awaitIgnoringInterrupts(CountDownLatch latch) {
+        boolean interrupted = false;
+
+        while (latch.getCount() > 0) {
+            try {
+                latch.await();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void pause(long ms) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+}
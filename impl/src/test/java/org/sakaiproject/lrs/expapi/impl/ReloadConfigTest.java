@@ -0,0 +1,132 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Changed delivery settings are applied to the targets they concern while the provider runs, the other targets and an
+ * invalid change are left alone
+ */
+public class ReloadConfigTest {
+
+    private StandInLrs lrs;
+    private Map<String, String> values;
+    private TincanapiLearningResourceStoreProvider provider;
+
+    @Before
+    public void startLrs() throws Exception {
+        lrs = new StandInLrs().requireBasicAuth("sakai:secret");
+    }
+
+    @After
+    public void stopLrs() {
+        if (provider != null) {
+            provider.destroy();
+        }
+
+        lrs.stop();
+    }
+
+    @Test
+    public void appliesTheChangedAuthenticationAndBatchSize() throws Exception {
+        startProvider(false);
+        HttpStatementSink sink = provider.getTargetSinks().get(0);
+        EndpointPool endpoints = sink.getEndpoints();
+
+        provider.handleStatement(TestSupport.typicalStatement());
+        assertEquals(1L, lrs.getStatements());
+
+        lrs.requireBasicAuth("sakai:changed");
+        values.put("lrs.tincanapi.basicAuthUserPass", "sakai:changed");
+        values.put("lrs.tincanapi.batch.size", "20");
+        provider.reloadConfig();
+
+        provider.handleStatement(TestSupport.typicalStatement());
+        assertEquals(2L, lrs.getStatements());
+        assertEquals(0L, lrs.getResponses(401));
+        assertNotSame("The nodes check the LRS with the new authorization", endpoints, sink.getEndpoints());
+    }
+
+    @Test
+    public void leavesTheTargetsWhichDidNotChangeAlone() throws Exception {
+        startProvider(true);
+        HttpStatementSink campus = provider.getTargetSinks().get(0);
+        HttpStatementSink research = provider.getTargetSinks().get(1);
+        EndpointPool campusEndpoints = campus.getEndpoints();
+        EndpointPool researchEndpoints = research.getEndpoints();
+
+        // nothing changed
+        provider.reloadConfig();
+        assertSame(campusEndpoints, campus.getEndpoints());
+        assertSame(researchEndpoints, research.getEndpoints());
+
+        values.put("lrs.tincanapi.target.research.basicAuthUserPass", "sakai:other");
+        values.put("lrs.tincanapi.target.research.concurrency", "1");
+        provider.reloadConfig();
+
+        assertSame("The campus target did not change", campusEndpoints, campus.getEndpoints());
+        assertNotSame(researchEndpoints, research.getEndpoints());
+        assertEquals(1, research.getConcurrency());
+
+        // the campus target still takes the statements, the research one refuses the changed authorization
+        provider.handleStatement(TestSupport.typicalStatement());
+        assertEquals(1L, lrs.getStatements());
+        assertEquals(1L, lrs.getResponses(401));
+    }
+
+    @Test
+    public void ignoresAnInvalidChange() throws Exception {
+        startProvider(false);
+        HttpStatementSink sink = provider.getTargetSinks().get(0);
+        EndpointPool endpoints = sink.getEndpoints();
+
+        values.put("lrs.tincanapi.url", "not a url");
+        values.put("lrs.tincanapi.batch.size", "20");
+        provider.reloadConfig();
+
+        assertSame(endpoints, sink.getEndpoints());
+        provider.handleStatement(TestSupport.typicalStatement());
+        assertEquals(1L, lrs.getStatements());
+    }
+
+    private void startProvider(boolean targets) throws Exception {
+        values = TestSupport.providerConfiguration(lrs.getUrl());
+        values.put("lrs.tincanapi.spool.enabled", "false");
+        values.put("lrs.tincanapi.health.enabled", "false");
+
+        if (targets) {
+            values.put("lrs.tincanapi.targets", "campus,research");
+
+            for (String target : new String[] {"campus", "research"}) {
+                values.put("lrs.tincanapi.target." + target + ".url", lrs.getUrl());
+                values.put("lrs.tincanapi.target." + target + ".basicAuthUserPass", "sakai:secret");
+            }
+        }
+
+        provider = new TincanapiLearningResourceStoreProvider(TestSupport.configuration(values));
+        provider.init();
+    }
+
+}
@@ -0,0 +1,580 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.zip.GZIPInputStream;
+
+import net.oauth.OAuth;
+import net.oauth.OAuthAccessor;
+import net.oauth.OAuthConsumer;
+import net.oauth.OAuthException;
+import net.oauth.OAuthMessage;
+import net.oauth.signature.OAuthSignatureMethod;
+
+import org.apache.commons.codec.binary.Base64;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process xAPI statements (and about) endpoint on the loopback interface, so the provider can be measured and exercised without a
+ * network or a real LRS. It accepts a single statement or a statement array, checks the Basic, OAuth or bearer token
+ * credentials when told to (handing the tokens out itself), records what it accepts and can be made to misbehave: slow answers, 400, 503, 429 with Retry-After, or a
+ * connection closed without an answer.
+ */
+public class StandInLrs {
+
+    static final String PATH = "/xAPI/statements";
+    static final String ABOUT_PATH = "/xAPI/about";
+    static final String TOKEN_PATH = "/oauth/token";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger mostInFlight = new AtomicInteger();
+    private final AtomicLong statements = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong aboutRequests = new AtomicLong();
+    private final AtomicLong tokenRequests = new AtomicLong();
+    // issued bearer tokens and when they expire
+    private final ConcurrentMap<String, Long> tokens = new ConcurrentHashMap<>();
+    private final AtomicLongArray responseCodes = new AtomicLongArray(600);
+    private final List<Received> received = new ArrayList<>();
+
+    private volatile String basicAuthorization;
+    private volatile OAuthAccessor oAuthAccessor;
+    private volatile String tokenClientAuthorization;
+    private volatile int tokenLifetimeSeconds;
+    private volatile int recordLimit = 10000;
+    private volatile Consumer<Received> listener;
+    private volatile long latencyMs;
+    private volatile long latencyJitterMs;
+    private volatile double dropRate;
+    private volatile double throttleRate;
+    private volatile double serverErrorRate;
+    private volatile double clientErrorRate;
+    private volatile int retryAfterSeconds = 1;
+    // answered to compressed requests, 0 to read them
+    private volatile int compressionRefusal;
+    private volatile String aboutVersions = "\"1.0.3\",\"1.0.0\"";
+
+    /**
+     * A request the stand-in accepted
+     */
+    public static final class Received {
+        private final long receivedNanos;
+        private final String authorization;
+        private final byte[] body;
+        private final int statements;
+
+        Received(long receivedNanos, String authorization, byte[] body, int statements) {
+            this.receivedNanos = receivedNanos;
+            this.authorization = authorization;
+            this.body = body;
+            this.statements = statements;
+        }
+
+        /**
+         * @return when the request was accepted, from System.nanoTime()
+         */
+        public long getReceivedNanos() {
+            return receivedNanos;
+        }
+
+        public String getAuthorization() {
+            return authorization;
+        }
+
+        /**
+         * @return the request body, uncompressed
+         */
+        public String getBody() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        public int getStatements() {
+            return statements;
+        }
+    }
+
+    /**
+     * Start listening on a free port
+     */
+    public StandInLrs() throws IOException {
+        // otherwise Nagle's algorithm holds the response body back until the client acknowledges the headers
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext(PATH, this::handle);
+        server.createContext(ABOUT_PATH, this::about);
+        server.createContext(TOKEN_PATH, this::token);
+        executor = Executors.newFixedThreadPool(16, runnable -> {
+            Thread thread = new Thread(runnable, "stand-in-lrs");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    /**
+     * @return the statements endpoint url
+     */
+    public String getUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * @return the token endpoint url
+     */
+    public String getTokenUrl() {
+        return "http://localhost:" + server.getAddress().getPort() + TOKEN_PATH;
+    }
+
+    /**
+     * Only accept requests with this Basic authorization
+     *
+     * @param userPass user:password
+     */
+    public StandInLrs requireBasicAuth(String userPass) {
+        basicAuthorization = "Basic " + Base64.encodeBase64String(userPass.getBytes(StandardCharsets.UTF_8));
+        oAuthAccessor = null;
+        tokenClientAuthorization = null;
+        return this;
+    }
+
+    /**
+     * Only accept requests signed by this two-legged OAuth consumer
+     */
+    public StandInLrs requireOAuth(String consumerKey, String consumerSecret) {
+        oAuthAccessor = new OAuthAccessor(new OAuthConsumer(null, consumerKey, consumerSecret, null));
+        basicAuthorization = null;
+        tokenClientAuthorization = null;
+        return this;
+    }
+
+    /**
+     * Only accept requests with a bearer token handed out by the token endpoint, which grants client credentials
+     *
+     * @param lifetimeSeconds how long a token is accepted
+     */
+    public StandInLrs requireBearerToken(String clientId, String clientSecret, int lifetimeSeconds) {
+        tokenClientAuthorization = "Basic " + Base64.encodeBase64String((clientId + ":" + clientSecret).getBytes(StandardCharsets.UTF_8));
+        tokenLifetimeSeconds = lifetimeSeconds;
+        basicAuthorization = null;
+        oAuthAccessor = null;
+        return this;
+    }
+
+    /**
+     * @param recordLimit the number of accepted requests kept for {@link #getReceived()}, later ones are only counted
+     */
+    public StandInLrs setRecordLimit(int recordLimit) {
+        this.recordLimit = recordLimit;
+        return this;
+    }
+
+    /**
+     * @param listener called on the server thread with every accepted request, before it is answered
+     */
+    public StandInLrs setListener(Consumer<Received> listener) {
+        this.listener = listener;
+        return this;
+    }
+
+    /**
+     * Hold every answer for the latency plus a random part of the jitter (in ms)
+     */
+    public StandInLrs setLatency(long latencyMs, long latencyJitterMs) {
+        this.latencyMs = latencyMs;
+        this.latencyJitterMs = latencyJitterMs;
+        return this;
+    }
+
+    /**
+     * Fail a share (0 to 1) of the authorized requests. The failures are drawn in this order: connection dropped, 429 with
+     * Retry-After, 503, 400. The JDK server can not reset a connection, a dropped one is closed without any answer, which
+     * the client sees the same way.
+     */
+    public StandInLrs setFailureRates(double dropRate, double throttleRate, double serverErrorRate, double clientErrorRate) {
+        this.dropRate = dropRate;
+        this.throttleRate = throttleRate;
+        this.serverErrorRate = serverErrorRate;
+        this.clientErrorRate = clientErrorRate;
+        return this;
+    }
+
+    /**
+     * @param retryAfterSeconds the Retry-After sent with a 429
+     */
+    public StandInLrs setRetryAfter(int retryAfterSeconds) {
+        this.retryAfterSeconds = retryAfterSeconds;
+        return this;
+    }
+
+    /**
+     * Answer compressed requests like an LRS which cannot read them
+     *
+     * @param code the response code (400 or 415), 0 to read compressed requests
+     */
+    public StandInLrs refuseCompression(int code) {
+        this.compressionRefusal = code;
+        return this;
+    }
+
+    /**
+     * @param versions the xAPI versions listed by the about resource, none to answer it with 503
+     */
+    public StandInLrs setAboutVersions(String... versions) {
+        StringBuilder list = new StringBuilder();
+
+        for (String version : versions) {
+            list.append(list.length() > 0 ? ",\"" : "\"").append(version).append('"');
+        }
+
+        aboutVersions = versions.length > 0 ? list.toString() : null;
+        return this;
+    }
+
+    /**
+     * @return the number of requests to the about resource
+     */
+    public long getAboutRequests() {
+        return aboutRequests.get();
+    }
+
+    /**
+     * @return the number of requests to the token endpoint
+     */
+    public long getTokenRequests() {
+        return tokenRequests.get();
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of statement requests with a gzip body
+     */
+    public long getCompressedRequests() {
+        return compressedRequests.get();
+    }
+
+    /**
+     * @return the largest number of statement requests the stand-in was handling at the same time
+     */
+    public int getMostInFlight() {
+        return mostInFlight.get();
+    }
+
+    /**
+     * @return the number of statements accepted
+     */
+    public long getStatements() {
+        return statements.get();
+    }
+
+    /**
+     * @return the number of connections closed without an answer
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of answers with this code
+     */
+    public long getResponses(int code) {
+        return code > 0 && code < responseCodes.length() ? responseCodes.get(code) : 0L;
+    }
+
+    /**
+     * @return the accepted requests (up to the record limit), oldest first
+     */
+    public List<Received> getReceived() {
+        synchronized (received) {
+            return new ArrayList<>(received);
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+
+        try {
+            requests.incrementAndGet();
+            byte[] body = readBody(exchange);
+            pause();
+
+            String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                answer(exchange, 405, "");
+                return;
+            } else if (!authorized(authorization)) {
+                answer(exchange, 401, "{\"error\":\"unauthorized\"}");
+                return;
+            }
+
+            if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                compressedRequests.incrementAndGet();
+
+                if (compressionRefusal != 0) {
+                    answer(exchange, compressionRefusal, "{\"error\":\"unsupported content encoding\"}");
+                    return;
+                }
+            }
+
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+
+            if (random.nextDouble() < dropRate) {
+                dropped.incrementAndGet();
+                return;
+            } else if (random.nextDouble() < throttleRate) {
+                exchange.getResponseHeaders().set("Retry-After", String.valueOf(retryAfterSeconds));
+                answer(exchange, 429, "{\"error\":\"too many requests\"}");
+                return;
+            } else if (random.nextDouble() < serverErrorRate) {
+                answer(exchange, 503, "{\"error\":\"unavailable\"}");
+                return;
+            } else if (random.nextDouble() < clientErrorRate) {
+                answer(exchange, 400, "{\"error\":\"invalid statement\"}");
+                return;
+            }
+
+            int count = countStatements(body);
+
+            if (count == 0) {
+                answer(exchange, 400, "{\"error\":\"no statement\"}");
+                return;
+            }
+
+            Received request = new Received(System.nanoTime(), authorization, body, count);
+            statements.addAndGet(count);
+
+            synchronized (received) {
+                if (received.size() < recordLimit) {
+                    received.add(request);
+                }
+            }
+
+            Consumer<Received> callback = listener;
+
+            if (callback != null) {
+                callback.accept(request);
+            }
+
+            // the LRS answers with the ids of the stored statements
+            StringBuilder ids = new StringBuilder("[");
+
+            for (int i = 0; i < count; i++) {
+                ids.append(i > 0 ? ",\"" : "\"").append(UUID.randomUUID()).append('"');
+            }
+
+            answer(exchange, 200, ids.append(']').toString());
+        } finally {
+            inFlight.decrementAndGet();
+            exchange.close();
+        }
+    }
+
+    private void about(HttpExchange exchange) throws IOException {
+        try {
+            aboutRequests.incrementAndGet();
+            String versions = aboutVersions;
+
+            if (versions == null) {
+                respond(exchange, 503, "{\"error\":\"unavailable\"}");
+            } else {
+                respond(exchange, 200, "{\"version\":[" + versions + "]}");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void token(HttpExchange exchange) throws IOException {
+        try {
+            tokenRequests.incrementAndGet();
+            String body = new String(readBody(exchange), StandardCharsets.UTF_8);
+            String client = tokenClientAuthorization;
+
+            if (client == null || !client.equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+                respond(exchange, 401, "{\"error\":\"invalid_client\"}");
+            } else if (!body.contains("grant_type=client_credentials")) {
+                respond(exchange, 400, "{\"error\":\"unsupported_grant_type\"}");
+            } else {
+                String token = UUID.randomUUID().toString();
+                int lifetime = tokenLifetimeSeconds;
+                tokens.put(token, System.currentTimeMillis() + lifetime * 1000L);
+                respond(exchange, 200, "{\"access_token\":\"" + token + "\",\"token_type\":\"Bearer\",\"expires_in\":" + lifetime + "}");
+            }
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void pause() {
+        long delay = latencyMs + (latencyJitterMs > 0 ? ThreadLocalRandom.current().nextLong(latencyJitterMs + 1) : 0L);
+
+        if (delay > 0) {
+            try {
+                TimeUnit.MILLISECONDS.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private boolean authorized(String authorization) {
+        String basic = basicAuthorization;
+        OAuthAccessor accessor = oAuthAccessor;
+
+        if (basic != null) {
+            return basic.equals(authorization);
+        } else if (tokenClientAuthorization != null) {
+            Long expires = authorization != null && authorization.startsWith("Bearer ") ? tokens.get(authorization.substring(7)) : null;
+            return expires != null && expires > System.currentTimeMillis();
+        } else if (accessor == null) {
+            return true;
+        } else if (authorization == null || !authorization.startsWith("OAuth ")) {
+            return false;
+        }
+
+        // the realm is part of the header but not of the signature
+        List<OAuth.Parameter> parameters = new ArrayList<>();
+        for (OAuth.Parameter parameter : OAuthMessage.decodeAuthorization(authorization)) {
+            if (!"realm".equals(parameter.getKey())) {
+                parameters.add(parameter);
+            }
+        }
+
+        try {
+            OAuthMessage message = new OAuthMessage(OAuthMessage.POST, getUrl(), parameters);
+            OAuthSignatureMethod.newSigner(message, accessor).validate(message);
+            return accessor.consumer.consumerKey.equals(message.getConsumerKey());
+        } catch (IOException | OAuthException | URISyntaxException e) {
+            return false;
+        }
+    }
+
+    private void answer(HttpExchange exchange, int code, String body) throws IOException {
+        responseCodes.incrementAndGet(code);
+        respond(exchange, code, body);
+    }
+
+    static byte[] readBody(HttpExchange exchange) throws IOException {
+        InputStream in = exchange.getRequestBody();
+
+        if ("gzip".equalsIgnoreCase(exchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+            in = new GZIPInputStream(in);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) > 0) {
+            body.write(buffer, 0, read);
+        }
+
+        return body.toByteArray();
+    }
+
+    static void respond(HttpExchange exchange, int code, String body) throws IOException {
+        byte[] data = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.getResponseHeaders().set("X-Experience-API-Version", "1.0.0");
+        exchange.sendResponseHeaders(code, data.length > 0 ? data.length : -1);
+
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(data);
+        }
+    }
+
+    /**
+     * @return the number of statements in a single statement or statement array body (the top level objects)
+     */
+    static int countStatements(byte[] body) {
+        int count = 0;
+        int depth = 0;
+        boolean inString = false;
+        // statements are the objects at depth 0 of a single statement, or at depth 1 of an array
+        int statementDepth = isArray(body) ? 1 : 0;
+
+        for (int i = 0; i < body.length; i++) {
+            byte b = body[i];
+
+            if (inString) {
+                if (b == '\\') {
+                    i++;
+                } else if (b == '"') {
+                    inString = false;
+                }
+            } else if (b == '"') {
+                inString = true;
+            } else if (b == '{') {
+                if (depth == statementDepth) {
+                    count++;
+                }
+                depth++;
+            } else if (b == '[') {
+                depth++;
+            } else if (b == '}' || b == ']') {
+                depth--;
+            }
+        }
+
+        return count;
+    }
+
+    private static boolean isArray(byte[] body) {
+        for (byte b : body) {
+            if (!Character.isWhitespace(b)) {
+                return b == '[';
+            }
+        }
+        return false;
+    }
+
+}
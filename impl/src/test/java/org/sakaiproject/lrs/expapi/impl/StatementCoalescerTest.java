@@ -0,0 +1,198 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Result;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+import org.sakaiproject.lrs.expapi.util.StatementMapUtils;
+
+/**
+ * Statements of one actor, verb and object are merged within a window, the groups held are bounded and all sent at shutdown
+ */
+public class StatementCoalescerTest {
+
+    private static final String VIEW = "http://adlnet.gov/expapi/activities/view";
+    private static final String MEDIA = "http://adlnet.gov/expapi/activities/media";
+
+    private final List<Emitted> emitted = Collections.synchronizedList(new ArrayList<>());
+    private ServerConfigurationService configuration;
+    private StatementCoalescer coalescer;
+
+    @Before
+    public void useConfiguration() {
+        configuration = TestSupport.configuration(Collections.<String, String>emptyMap());
+        StatementMapUtils.setServerConfigurationService(configuration);
+    }
+
+    @After
+    public void stopCoalescer() {
+        if (coalescer != null) {
+            coalescer.shutdown();
+        }
+
+        StatementMapUtils.releaseServerConfigurationService(configuration);
+    }
+
+    @Test
+    public void mergesTheStatementsOfAWindow() throws Exception {
+        coalescer = start(200L, 100);
+        LRS_Statement first = statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW);
+
+        assertTrue(coalescer.offer(first));
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+        assertEquals(1, coalescer.getPending());
+
+        // any other actor, verb, object or activity type starts a group of its own
+        assertTrue(coalescer.offer(statement("student2", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.interacted, "page1", VIEW)));
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page2", VIEW)));
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", MEDIA)));
+        assertEquals(5, coalescer.getPending());
+
+        awaitEmitted(5);
+        assertEquals(0, coalescer.getPending());
+
+        Emitted merged = emitted.get(0);
+        assertSame(first, merged.statement);
+        assertEquals(3, merged.count);
+        assertEquals(3, merged.extensions.get(StatementCoalescer.COUNT_EXTENSION));
+        assertNotNull(merged.extensions.get(StatementCoalescer.FIRST_TIMESTAMP_EXTENSION));
+        assertNotNull(merged.extensions.get(StatementCoalescer.LAST_TIMESTAMP_EXTENSION));
+
+        for (Emitted single : emitted.subList(1, emitted.size())) {
+            assertEquals(1, single.count);
+            assertNull("A statement nothing was merged into is sent unchanged", single.extensions);
+        }
+    }
+
+    @Test
+    public void aStatementAfterTheWindowStartsTheNextOne() throws Exception {
+        coalescer = new StatementCoalescer("test", 100L, 100, new String[0], this::emitted);
+
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+        TimeUnit.MILLISECONDS.sleep(150L);
+
+        // not flushed yet (the coalescer is not started), the expired group is sent as the next one starts
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+        assertEquals(1, emitted.size());
+        assertEquals(1, emitted.get(0).count);
+        assertEquals(1, coalescer.getPending());
+    }
+
+    @Test
+    public void leavesStatementsWithAResultOrAnotherVerb() {
+        coalescer = new StatementCoalescer("test", 60000L, 100, new String[] {"experienced"}, this::emitted);
+
+        LRS_Statement scored = statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW);
+        scored.setResult(new LRS_Result(true));
+        assertFalse("Its result would be lost", coalescer.offer(scored));
+        assertFalse(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.interacted, "page1", VIEW)));
+        assertFalse(coalescer.offer(new LRS_Statement("{\"actor\":{}}")));
+
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+        assertEquals(1, coalescer.getPending());
+    }
+
+    @Test
+    public void sendsTheOldestGroupWhenFull() {
+        coalescer = new StatementCoalescer("test", 60000L, 2, new String[0], this::emitted);
+        LRS_Statement oldest = statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW);
+
+        assertTrue(coalescer.offer(oldest));
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page2", VIEW)));
+        assertTrue(emitted.isEmpty());
+
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page3", VIEW)));
+        assertEquals(1, emitted.size());
+        assertSame(oldest, emitted.get(0).statement);
+        assertEquals(2, coalescer.getPending());
+    }
+
+    @Test
+    public void sendsTheGroupsHeldAtShutdown() {
+        coalescer = start(60000L, 100);
+
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+        assertTrue(coalescer.offer(statement("student1", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+        assertTrue(coalescer.offer(statement("student2", LRS_Verb.SAKAI_VERB.experienced, "page1", VIEW)));
+
+        coalescer.shutdown();
+
+        assertEquals(2, emitted.size());
+        assertEquals(2, emitted.get(0).count);
+        assertEquals(1, emitted.get(1).count);
+        assertEquals(0, coalescer.getPending());
+    }
+
+    private StatementCoalescer start(long windowMs, int capacity) {
+        StatementCoalescer started = new StatementCoalescer("test", windowMs, capacity, new String[0], this::emitted);
+        started.start();
+        return started;
+    }
+
+    private void emitted(LRS_Statement statement, int count, Map<String, Object> extensions) {
+        emitted.add(new Emitted(statement, count, extensions));
+    }
+
+    private void awaitEmitted(int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+
+        while (emitted.size() < expected && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+
+        assertEquals(expected, emitted.size());
+    }
+
+    private static LRS_Statement statement(String eid, LRS_Verb.SAKAI_VERB verb, String page, String type) {
+        LRS_Object object = new LRS_Object(TestSupport.SITE_URL + "/" + page, "view");
+        object.setActivityType(type);
+        return new LRS_Statement(TestSupport.actor(eid), new LRS_Verb(verb), object);
+    }
+
+    private static final class Emitted {
+        private final LRS_Statement statement;
+        private final int count;
+        private final Map<String, Object> extensions;
+
+        Emitted(LRS_Statement statement, int count, Map<String, Object> extensions) {
+            this.statement = statement;
+            this.count = count;
+            this.extensions = extensions;
+        }
+    }
+
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Result;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+
+/**
+ * The first rule whose conditions all hold decides, whatever the number of rules and the overlap of their activity prefixes
+ */
+public class StatementFilterTest {
+
+    private static final String SITE = "https://sakai.example.edu/portal/site/";
+    private static final String MEDIA = "http://adlnet.gov/expapi/activities/media";
+    private static final String VIEW = "http://adlnet.gov/expapi/activities/view";
+
+    @Test
+    public void theFirstMatchingRuleDecides() {
+        StatementFilter filter = new StatementFilter(new String[] {
+            "allow verb=scored,http://www.adlnet.gov/expapi/verbs/passed",
+            "drop verb=experienced activity=" + SITE,
+            "drop type=" + MEDIA + " result=false"});
+
+        assertEquals(0, filter.match(statement(LRS_Verb.SAKAI_VERB.scored, SITE + "page", MEDIA, false)));
+        assertEquals(0, filter.match(statement(LRS_Verb.SAKAI_VERB.passed, SITE + "page", VIEW, true)));
+        assertEquals(1, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, SITE + "page", MEDIA, false)));
+        assertEquals(2, filter.match(statement(LRS_Verb.SAKAI_VERB.interacted, SITE + "page", MEDIA, false)));
+        assertEquals("Every condition must hold", -1, filter.match(statement(LRS_Verb.SAKAI_VERB.interacted, SITE + "page", MEDIA, true)));
+        assertEquals(-1, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://other.example.edu/page", VIEW, false)));
+
+        assertTrue(filter.accept(statement(LRS_Verb.SAKAI_VERB.scored, SITE + "page", MEDIA, false)));
+        assertFalse(filter.accept(statement(LRS_Verb.SAKAI_VERB.experienced, SITE + "page", VIEW, false)));
+        assertTrue("Statements no rule matches are sent", filter.accept(statement(LRS_Verb.SAKAI_VERB.experienced, "urn:other", VIEW, false)));
+        assertEquals("[allow verb=scored,http://www.adlnet.gov/expapi/verbs/passed]=1, [drop verb=experienced activity=" + SITE + "]=1, [drop type="
+            + MEDIA + " result=false]=0", filter.getHits());
+    }
+
+    @Test
+    public void matchesOverlappingActivityPrefixes() {
+        StatementFilter filter = new StatementFilter(new String[] {
+            "drop activity=https://sakai.example.edu/portal/site/abc",
+            "drop activity=https://sakai.example.edu/direct/,https://sakai.example.edu/portal/tool/",
+            "drop activity=https://sakai.example.edu/portal/",
+            "allow activity=https://sakai.example.edu/portal/site/a"});
+
+        assertEquals(0, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://sakai.example.edu/portal/site/abcdef", VIEW, false)));
+        assertEquals(1, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://sakai.example.edu/direct/x", VIEW, false)));
+        assertEquals(1, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://sakai.example.edu/portal/tool/x", VIEW, false)));
+        assertEquals(2, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://sakai.example.edu/portal/site/abx", VIEW, false)));
+        assertEquals(2, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://sakai.example.edu/portal/", VIEW, false)));
+        assertEquals("A shorter id is not a match", -1, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://sakai.example.edu/porta", VIEW, false)));
+        assertEquals(-1, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://sakai.example.edu/dire", VIEW, false)));
+        assertEquals(-1, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "https://sakai.example.org/portal/", VIEW, false)));
+    }
+
+    @Test
+    public void keepsTheSampledShare() {
+        StatementFilter filter = new StatementFilter(new String[] {"sample=0.25 verb=experienced", "sample=0 verb=interacted"});
+        int kept = 0;
+
+        for (int i = 0; i < 20000; i++) {
+            kept += filter.accept(statement(LRS_Verb.SAKAI_VERB.experienced, "urn:page", VIEW, false)) ? 1 : 0;
+            assertFalse(filter.accept(statement(LRS_Verb.SAKAI_VERB.interacted, "urn:page", VIEW, false)));
+        }
+
+        assertTrue("Kept " + kept + " of 20000", kept > 4500 && kept < 5500);
+    }
+
+    @Test
+    public void takesAtMost64Rules() {
+        String[] rules = new String[70];
+
+        for (int i = 0; i < rules.length; i++) {
+            rules[i] = "drop activity=urn:rule" + i + ":";
+        }
+
+        StatementFilter filter = new StatementFilter(rules);
+
+        assertEquals(64, filter.getRuleCount());
+        assertEquals(63, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "urn:rule63:x", VIEW, false)));
+        assertEquals(-1, filter.match(statement(LRS_Verb.SAKAI_VERB.experienced, "urn:rule64:x", VIEW, false)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAnUnknownAction() {
+        new StatementFilter(new String[] {"keep verb=experienced"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAnUnknownCondition() {
+        new StatementFilter(new String[] {"drop site=abc"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAnUnknownSakaiVerb() {
+        new StatementFilter(new String[] {"drop verb=browsed"});
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesAnInvalidSampleRate() {
+        new StatementFilter(new String[] {"sample=often"});
+    }
+
+    private static LRS_Statement statement(LRS_Verb.SAKAI_VERB verb, String activity, String type, boolean result) {
+        LRS_Object object = new LRS_Object(activity, "view");
+        object.setActivityType(type);
+        LRS_Statement statement = new LRS_Statement(TestSupport.actor("student1"), new LRS_Verb(verb), object);
+
+        if (result) {
+            statement.setResult(new LRS_Result(true));
+        }
+
+        return statement;
+    }
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Context;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+import org.sakaiproject.lrs.expapi.impl.StatementDispatcher.Lane;
+
+/**
+ * Statements with a result, an instructor or one of the configured verbs go through the high priority lane and get there
+ * like the others
+ */
+public class StatementLanesTest {
+
+    private StandInLrs lrs;
+    private TincanapiLearningResourceStoreProvider provider;
+
+    @Before
+    public void startProvider() throws Exception {
+        lrs = new StandInLrs().requireBasicAuth("sakai:secret");
+        Map<String, String> values = TestSupport.providerConfiguration(lrs.getUrl());
+        values.put("lrs.tincanapi.spool.enabled", "false");
+        values.put("lrs.tincanapi.health.enabled", "false");
+        values.put("lrs.tincanapi.async.enabled", "true");
+        values.put("lrs.tincanapi.lane.high.verbs.count", "2");
+        values.put("lrs.tincanapi.lane.high.verbs.1", "completed");
+        values.put("lrs.tincanapi.lane.high.verbs.2", "http://example.edu/xapi/verbs/graded");
+        provider = new TincanapiLearningResourceStoreProvider(TestSupport.configuration(values));
+        provider.init();
+    }
+
+    @After
+    public void stopProvider() {
+        provider.destroy();
+        lrs.stop();
+    }
+
+    @Test
+    public void sendsTheImportantStatementsThroughTheHighLane() {
+        assertEquals(Lane.LOW, provider.getLane(TestSupport.minimalStatement()));
+        assertEquals(Lane.LOW, provider.getLane(TestSupport.typicalStatement()));
+        assertEquals(Lane.HIGH, provider.getLane(TestSupport.fullStatement(false)));
+        assertEquals(Lane.HIGH, provider.getLane(TestSupport.fullStatement(true)));
+
+        LRS_Context context = new LRS_Context(TestSupport.SITE_URL, "site");
+        context.setInstructor(TestSupport.actor("instructor1"));
+        LRS_Statement instructed = new LRS_Statement(TestSupport.actor("student1"), new LRS_Verb(LRS_Verb.SAKAI_VERB.experienced),
+            new LRS_Object(TestSupport.SITE_URL, "view-site"), null, context);
+        assertEquals(Lane.HIGH, provider.getLane(instructed));
+
+        assertEquals(Lane.HIGH, provider.getLane(statement(new LRS_Verb(LRS_Verb.SAKAI_VERB.completed))));
+        assertEquals(Lane.HIGH, provider.getLane(statement(new LRS_Verb("http://example.edu/xapi/verbs/graded"))));
+        assertEquals(Lane.LOW, provider.getLane(statement(new LRS_Verb(LRS_Verb.SAKAI_VERB.attempted))));
+    }
+
+    @Test
+    public void sendsRawStatementsWithAResultThroughTheHighLane() {
+        Map<String, Object> raw = new HashMap<>();
+        raw.put("actor", Collections.singletonMap("mbox", "mailto:student1@example.edu"));
+        raw.put("verb", Collections.singletonMap("id", "http://adlnet.gov/expapi/verbs/experienced"));
+        raw.put("object", Collections.singletonMap("id", TestSupport.SITE_URL));
+        assertEquals(Lane.LOW, provider.getLane(new LRS_Statement(raw)));
+
+        raw.put("result", Collections.singletonMap("success", true));
+        assertEquals(Lane.HIGH, provider.getLane(new LRS_Statement(raw)));
+    }
+
+    @Test
+    public void deliversTheStatementsOfBothLanes() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            provider.handleStatement(TestSupport.typicalStatement());
+            provider.handleStatement(TestSupport.fullStatement(false));
+        }
+
+        long deadline = System.currentTimeMillis() + 10000L;
+        while (lrs.getStatements() < 20L && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20L);
+        }
+
+        assertEquals(20L, lrs.getStatements());
+    }
+
+    private static LRS_Statement statement(LRS_Verb verb) {
+        return new LRS_Statement(TestSupport.actor("student1"), verb, new LRS_Object(TestSupport.SITE_URL, "view-site"));
+    }
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * The spooled statements are read back in order after a restart, from the saved cursor, without the torn or corrupt records
+ */
+public class StatementSpoolTest {
+
+    // three records of 12 bytes and their 8 byte headers fit in a segment
+    private static final long SEGMENT_SIZE = 64L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File directory;
+    private StatementSpool spool;
+
+    @Before
+    public void openSpool() throws IOException {
+        directory = folder.newFolder("spool");
+        spool = open(SEGMENT_SIZE, 10);
+    }
+
+    @After
+    public void closeSpool() {
+        spool.close();
+    }
+
+    @Test
+    public void readsTheRecordsBackInOrderAcrossSegments() throws IOException {
+        append(0, 10);
+
+        assertEquals(4, spool.getSegmentCount());
+        assertFalse(spool.isEmpty());
+        assertEquals(records(0, 10), read(100));
+        assertEquals("Reading does not move the cursor", records(0, 4), read(4));
+
+        StatementSpool.Batch batch = spool.read(100);
+        spool.commit(batch, 10);
+
+        assertTrue(spool.isEmpty());
+        assertEquals("The segments read completely are deleted", 1, spool.getSegmentCount());
+    }
+
+    @Test
+    public void continuesFromTheCursorAfterARestart() throws IOException {
+        append(0, 10);
+        spool.commit(spool.read(100), 4);
+        spool.close();
+
+        spool = open(SEGMENT_SIZE, 10);
+        assertEquals(records(4, 10), read(100));
+
+        // records appended before and after the restart follow each other
+        append(10, 12);
+        spool.commit(spool.read(3), 3);
+        spool.close();
+
+        spool = open(SEGMENT_SIZE, 10);
+        assertEquals(records(7, 12), read(100));
+        spool.commit(spool.read(100), 5);
+        spool.close();
+
+        spool = open(SEGMENT_SIZE, 10);
+        assertTrue(spool.isEmpty());
+        assertEquals(0, read(100).size());
+    }
+
+    @Test
+    public void dropsTheSegmentsLeftEmptyByEarlierRuns() throws IOException {
+        for (int i = 0; i < 15; i++) {
+            spool.close();
+            spool = open(SEGMENT_SIZE, 10);
+        }
+
+        assertEquals(1, spool.getSegmentCount());
+
+        append(0, 2);
+        spool.close();
+        spool = open(SEGMENT_SIZE, 10);
+
+        assertEquals(2, spool.getSegmentCount());
+        assertEquals(records(0, 2), read(100));
+    }
+
+    @Test
+    public void skipsATornRecordAtTheEndOfASegment() throws IOException {
+        spool.close();
+        spool = open(1000L, 10);
+        append(0, 5);
+        spool.close();
+
+        File segment = segmentFile(0);
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        spool = open(1000L, 10);
+        assertEquals(records(0, 4), read(100));
+
+        append(5, 7);
+        assertEquals("The records after the torn one are read", join(records(0, 4), records(5, 7)), read(100));
+    }
+
+    @Test
+    public void skipsARecordFailingItsChecksum() throws IOException {
+        append(0, 3);
+        spool.close();
+
+        // flip a byte of the payload of the second record
+        try (RandomAccessFile file = new RandomAccessFile(segmentFile(0), "rw")) {
+            file.seek(20 + 8 + 5);
+            int value = file.read();
+            file.seek(20 + 8 + 5);
+            file.write(value ^ 0x20);
+        }
+
+        spool = open(SEGMENT_SIZE, 10);
+        assertEquals(join(records(0, 1), records(2, 3)), read(100));
+    }
+
+    @Test
+    public void replaysFromTheOldestSegmentWithACorruptCursor() throws IOException {
+        append(0, 6);
+        spool.commit(spool.read(100), 4);
+        spool.close();
+
+        Files.write(new File(directory, "cursor").toPath(), "not a cursor".getBytes(StandardCharsets.UTF_8));
+
+        spool = open(SEGMENT_SIZE, 10);
+        // the first segment was deleted once read, the statements of the next one are sent again
+        assertEquals(records(3, 6), read(100));
+    }
+
+    @Test
+    public void discardsTheOldestSegmentOnceFull() throws IOException {
+        spool.close();
+        spool = open(SEGMENT_SIZE, 3);
+        append(0, 12);
+
+        assertEquals(3, spool.getSegmentCount());
+        assertEquals(records(3, 12), read(100));
+    }
+
+    private StatementSpool open(long segmentSize, int maxSegments) throws IOException {
+        StatementSpool opened = new StatementSpool("test", directory, segmentSize, maxSegments, 1);
+        opened.open();
+        return opened;
+    }
+
+    private File segmentFile(long segment) {
+        return new File(directory, String.format("%020d.spool", segment));
+    }
+
+    private void append(int from, int to) throws IOException {
+        for (String record : records(from, to)) {
+            spool.append(record.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private List<String> read(int maxRecords) throws IOException {
+        List<String> read = new ArrayList<>();
+
+        for (byte[] record : spool.read(maxRecords).getRecords()) {
+            read.add(new String(record, StandardCharsets.UTF_8));
+        }
+
+        return read;
+    }
+
+    private static List<String> records(int from, int to) {
+        List<String> records = new ArrayList<>();
+
+        for (int i = from; i < to; i++) {
+            records.add(String.format("statement-%02d", i));
+        }
+
+        return records;
+    }
+
+    private static List<String> join(List<String> first, List<String> second) {
+        List<String> joined = new ArrayList<>(first);
+        joined.addAll(second);
+        return joined;
+    }
+
+}
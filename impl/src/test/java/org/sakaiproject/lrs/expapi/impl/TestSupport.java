@@ -0,0 +1,201 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Actor;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Context;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Result;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+
+/**
+ * Configuration and sample statements shared by the tests, the load driver and the benchmarks, so they run without a Sakai
+ * instance
+ */
+public final class TestSupport {
+
+    public static final String SERVER_URL = "http://localhost:8080";
+    public static final String SITE_URL = SERVER_URL + "/portal/site/0a1b2c3d-4e5f-6071-8293-a4b5c6d7e8f9";
+
+    private TestSupport() {
+    }
+
+    /**
+     * @return a configuration service answering from the values, and with the defaults asked for otherwise
+     */
+    public static ServerConfigurationService configuration(final Map<String, String> values) {
+        return (ServerConfigurationService) Proxy.newProxyInstance(TestSupport.class.getClassLoader(),
+            new Class<?>[] {ServerConfigurationService.class}, (proxy, method, args) -> {
+                String name = method.getName();
+                Class<?> type = method.getReturnType();
+
+                switch (name) {
+                    case "getServerUrl":
+                        return SERVER_URL;
+                    case "getSakaiHomePath":
+                        return System.getProperty("java.io.tmpdir");
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    case "equals":
+                        return proxy == args[0];
+                    case "toString":
+                        return "TestConfiguration" + values;
+                    default:
+                        break;
+                }
+
+                // like Sakai, a list is given as name.count and name.1 to name.[count]
+                if ("getStrings".equals(name)) {
+                    String count = values.get(args[0] + ".count");
+
+                    if (count == null) {
+                        return null;
+                    }
+
+                    String[] strings = new String[Integer.parseInt(count)];
+                    for (int i = 0; i < strings.length; i++) {
+                        strings[i] = values.get(args[0] + "." + (i + 1));
+                    }
+                    return strings;
+                }
+
+                if (args != null && args.length == 2 && args[0] instanceof String) {
+                    String value = values.get(args[0]);
+
+                    if (value == null) {
+                        return args[1];
+                    } else if (type == int.class) {
+                        return Integer.valueOf(value);
+                    } else if (type == boolean.class) {
+                        return Boolean.valueOf(value);
+                    }
+                    return value;
+                }
+
+                if (args != null && args.length == 1 && args[0] instanceof String && type == String.class) {
+                    String value = values.get(args[0]);
+                    return value != null ? value : "";
+                }
+
+                if (type == boolean.class) {
+                    return false;
+                } else if (type == int.class) {
+                    return 0;
+                }
+                return null;
+            });
+    }
+
+    /**
+     * @return the configuration of a provider sending to the url with Basic authentication
+     */
+    public static Map<String, String> providerConfiguration(String url) {
+        Map<String, String> values = new HashMap<>();
+        values.put("lrs.tincanapi.url", url);
+        values.put("lrs.tincanapi.basicAuthUserPass", "sakai:secret");
+        values.put("lrs.tincanapi.request.timeout", "10000");
+        return values;
+    }
+
+    public static LRS_Actor actor(String eid) {
+        LRS_Actor actor = new LRS_Actor(eid + "@example.edu");
+        actor.setName("Student " + eid);
+        actor.setAccount(eid, SERVER_URL);
+        actor.setOpenId(SERVER_URL + "/openid/" + eid);
+        return actor;
+    }
+
+    /**
+     * @return a statement with only the actor, verb and object
+     */
+    public static LRS_Statement minimalStatement() {
+        return new LRS_Statement(actor("student1"), new LRS_Verb(LRS_Verb.SAKAI_VERB.experienced), new LRS_Object(SITE_URL, "view-site"));
+    }
+
+    /**
+     * @return a statement like most Sakai events produce: the object has a description and there is a site context
+     */
+    public static LRS_Statement typicalStatement() {
+        LRS_Object object = new LRS_Object(SITE_URL + "/page/5c1e2f3a", "read-resource");
+        object.setActivityType("http://adlnet.gov/expapi/activities/media");
+        object.setDescription(Collections.singletonMap("en-US", "User read a resource: /content/group/site/syllabus.pdf"));
+
+        LRS_Statement statement = new LRS_Statement(actor("student1"), new LRS_Verb(LRS_Verb.SAKAI_VERB.experienced), object);
+        statement.setContext(new LRS_Context(SITE_URL, "site"));
+        return statement;
+    }
+
+    /**
+     * @return a statement with every part populated, the result has a score or a grade
+     */
+    public static LRS_Statement fullStatement(boolean grade) {
+        LRS_Object object = new LRS_Object(SITE_URL + "/assignment/a1b2c3", "submit-assignment");
+        object.setActivityType("http://adlnet.gov/expapi/activities/assessment");
+        Map<String, String> names = new LinkedHashMap<>();
+        names.put("en-US", "Essay on the industrial revolution");
+        names.put("fr-FR", "Dissertation sur la r\u00e9volution industrielle");
+        object.setActivityName(names);
+        object.setDescription(Collections.singletonMap("en-US", "Final essay, 2000 words, graded by the instructor"));
+
+        LRS_Context context = new LRS_Context(SITE_URL, "site");
+        context.setActivity("grouping", SERVER_URL + "/portal/site/0a1b2c3d-4e5f-6071-8293-a4b5c6d7e8f9/group/g1");
+        context.setInstructor(actor("instructor1"));
+
+        LRS_Result result;
+
+        if (grade) {
+            result = new LRS_Result("B+", true);
+            // the constructor does not keep the grade in every kernel version
+            result.setGrade("B+");
+        } else {
+            result = new LRS_Result(87, 0, 100, true);
+            result.setScore(0.87f);
+        }
+
+        result.setCompletion(true);
+        result.setDuration(5400);
+        result.setResponse("Submitted essay.docx");
+
+        return new LRS_Statement(actor("student1"), new LRS_Verb(LRS_Verb.SAKAI_VERB.scored), object, result, context);
+    }
+
+    /**
+     * @return the statement for the shape: minimal, typical, fullScore or fullGrade
+     */
+    public static LRS_Statement statement(String shape) {
+        switch (shape) {
+            case "minimal":
+                return minimalStatement();
+            case "typical":
+                return typicalStatement();
+            case "fullScore":
+                return fullStatement(false);
+            case "fullGrade":
+                return fullStatement(true);
+            default:
+                throw new IllegalArgumentException("Unknown statement shape: " + shape);
+        }
+    }
+
+}
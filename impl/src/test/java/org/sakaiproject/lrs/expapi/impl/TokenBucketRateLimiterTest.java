@@ -0,0 +1,100 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.impl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The bucket lets a burst through at once, then hands out tokens at the configured rate
+ */
+public class TokenBucketRateLimiterTest {
+
+    @Test
+    public void letsABurstThroughAtOnce() throws InterruptedException {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1.0, 5);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 5; i++) {
+            assertTrue(limiter.tryAcquire(0L));
+        }
+
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 500L);
+        assertFalse("The bucket is empty and refills once a second", limiter.tryAcquire(0L));
+        assertFalse(limiter.tryAcquire(100L));
+    }
+
+    @Test
+    public void waitsForTheNextToken() throws InterruptedException {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(20.0, 1);
+        assertTrue(limiter.tryAcquire(0L));
+
+        long start = System.nanoTime();
+        assertTrue(limiter.tryAcquire(1000L));
+        long waitedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        // one token every 50 ms
+        assertTrue("Waited " + waitedMs + " ms", waitedMs >= 30L && waitedMs < 1000L);
+    }
+
+    @Test
+    public void holdsTheRateOverTime() throws InterruptedException {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(100.0, 1);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < 21; i++) {
+            assertTrue(limiter.tryAcquire(1000L));
+        }
+
+        // the first token is there, the 20 others take 200 ms
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Took " + elapsedMs + " ms", elapsedMs >= 180L);
+    }
+
+    @Test
+    public void neverHoldsMoreThanTheBurst() throws InterruptedException {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(1000.0, 3);
+        TimeUnit.MILLISECONDS.sleep(50L);
+
+        assertEquals(3.0, limiter.getAvailableTokens(), 0.0);
+    }
+
+    @Test
+    public void waitingCallersReserveTheirTokens() throws InterruptedException {
+        TokenBucketRateLimiter limiter = new TokenBucketRateLimiter(10.0, 1);
+        assertTrue(limiter.tryAcquire(0L));
+
+        Thread waiting = new Thread(() -> {
+            try {
+                limiter.tryAcquire(1000L);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        waiting.start();
+        TimeUnit.MILLISECONDS.sleep(20L);
+
+        // the token refilled next goes to the waiting caller
+        assertTrue(limiter.getAvailableTokens() < 0.0);
+        waiting.join(TimeUnit.SECONDS.toMillis(5));
+    }
+
+}
@@ -0,0 +1,84 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The rotating Bloom filter remembers the ids of a window, mistakes few new ids for seen ones and forgets old ids
+ */
+public class DuplicateFilterTest {
+
+    @Test
+    public void remembersTheIdsOfTheWindow() {
+        DuplicateFilter filter = new DuplicateFilter(60000L, 1000, 0.0001);
+        UUID[] ids = new UUID[1000];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID();
+            assertFalse(filter.seen(ids[i]));
+        }
+
+        for (UUID id : ids) {
+            assertTrue("A repeated id is never missed", filter.seen(id));
+        }
+    }
+
+    @Test
+    public void mistakesFewNewIdsForSeenOnes() {
+        DuplicateFilter filter = new DuplicateFilter(60000L, 100000, 0.0001);
+        int mistaken = 0;
+
+        // a full window: about 10 new ids in 100000 are expected to be taken for seen ones
+        for (int i = 0; i < 100000; i++) {
+            mistaken += filter.seen(UUID.randomUUID()) ? 1 : 0;
+        }
+
+        assertTrue(mistaken + " new id(s) taken for seen ones", mistaken <= 50);
+    }
+
+    @Test
+    public void forgetsTheIdsOfOlderWindows() throws InterruptedException {
+        DuplicateFilter filter = new DuplicateFilter(200L, 100, 0.0001);
+        UUID id = UUID.randomUUID();
+        assertFalse(filter.seen(id));
+
+        // still remembered in the window after
+        TimeUnit.MILLISECONDS.sleep(300L);
+        assertTrue(filter.seen(id));
+
+        // forgotten once two windows passed without it
+        TimeUnit.MILLISECONDS.sleep(500L);
+        assertFalse(filter.seen(id));
+    }
+
+    @Test
+    public void sizesTheFiltersForTheExpectedIds() {
+        DuplicateFilter filter = new DuplicateFilter(60000L, 100000, 0.0001);
+
+        // 1.9 million bits for the rate, rounded up to 2^21 bits (256 KB) per filter
+        assertEquals(512L * 1024L, filter.getSizeBytes());
+        assertEquals(15, filter.getHashes());
+    }
+
+}
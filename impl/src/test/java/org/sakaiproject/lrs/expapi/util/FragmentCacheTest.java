@@ -0,0 +1,137 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The cache keeps at most its size in fragments, evicting the least recently used ones, while many threads use it
+ */
+public class FragmentCacheTest {
+
+    @Test
+    public void evictsTheLeastRecentlyUsedFragment() {
+        // small enough for a single segment, so the order is exact
+        FragmentCache<String> cache = new FragmentCache<>("test", 3);
+        cache.put("a", fragment("a"));
+        cache.put("b", fragment("b"));
+        cache.put("c", fragment("c"));
+        assertNotNull(cache.get("a"));
+
+        cache.put("d", fragment("d"));
+
+        assertNull(cache.get("b"));
+        assertArrayEquals(fragment("a"), cache.get("a"));
+        assertEquals(3, cache.size());
+        assertEquals(1L, cache.getEvictions());
+        assertEquals(2L, cache.getHits());
+        assertEquals(1L, cache.getMisses());
+    }
+
+    @Test
+    public void neverHoldsMoreThanItsSize() {
+        FragmentCache<String> cache = new FragmentCache<>("test", 1000);
+
+        for (int i = 0; i < 10000; i++) {
+            cache.put("key" + i, fragment("key" + i));
+        }
+
+        assertTrue(cache.size() <= 1000);
+        // the segments fill up unevenly, but most of the cache is used
+        assertTrue("Holds " + cache.size(), cache.size() > 900);
+        assertEquals(10000L - cache.size(), cache.getEvictions());
+
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void keepsKeysWhoseMapsChangeLater() {
+        FragmentCache<FragmentCache.Key> cache = new FragmentCache<>("test", 100);
+        Map<String, String> name = new HashMap<>();
+        name.put("en-US", "Page");
+
+        cache.put(FragmentCache.Key.of("id", name), fragment("page"));
+        name.put("en-US", "Other page");
+
+        assertNull(cache.get(FragmentCache.Key.of("id", name)));
+        name.put("en-US", "Page");
+        assertArrayEquals(fragment("page"), cache.get(FragmentCache.Key.of("id", name)));
+    }
+
+    @Test
+    public void aCacheOfSizeZeroKeepsNothing() {
+        FragmentCache<String> cache = new FragmentCache<>("test", 0);
+        cache.put("a", fragment("a"));
+
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+        assertEquals(0L, cache.getMisses());
+    }
+
+    @Test
+    public void servesManyThreadsAtOnce() throws Exception {
+        final FragmentCache<String> cache = new FragmentCache<>("test", 500);
+        final Queue<String> wrong = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < 20000; i++) {
+                    String key = "key" + ThreadLocalRandom.current().nextInt(1000);
+                    byte[] cached = cache.get(key);
+
+                    if (cached == null) {
+                        cache.put(key, fragment(key));
+                    } else if (!key.equals(new String(cached, StandardCharsets.UTF_8))) {
+                        wrong.add(key);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+
+        assertTrue("Wrong fragments for " + wrong, wrong.isEmpty());
+        assertTrue(cache.size() <= 500);
+        assertEquals(8L * 20000L, cache.getHits() + cache.getMisses());
+    }
+
+    private static byte[] fragment(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,128 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+/**
+ * The compressed bodies are valid gzip members holding the data, whatever their size and however many threads compress
+ */
+public class GzipCompressorTest {
+
+    @Test
+    public void compressesToGzip() throws IOException {
+        GzipCompressor compressor = new GzipCompressor(-1, 2);
+        byte[] data = statements(20);
+
+        byte[] compressed = compressor.compress(data);
+
+        assertEquals(0x1f, compressed[0] & 0xff);
+        assertEquals(0x8b, compressed[1] & 0xff);
+        assertTrue("Repetitive statements compress well", compressed.length < data.length / 4);
+        assertArrayEquals(data, decompress(compressed));
+        compressor.close();
+    }
+
+    @Test
+    public void compressesAnySize() throws IOException {
+        GzipCompressor compressor = new GzipCompressor(1, 1);
+        byte[] random = new byte[600 * 1024];
+        new Random(42L).nextBytes(random);
+
+        // empty, and larger than the working buffer even once compressed (random data does not compress)
+        for (byte[] data : new byte[][] {new byte[0], statements(1), random, statements(5000), statements(2)}) {
+            assertArrayEquals(data, decompress(compressor.compress(data)));
+        }
+
+        compressor.close();
+    }
+
+    @Test
+    public void compressesFromManyThreads() throws Exception {
+        final GzipCompressor compressor = new GzipCompressor(-1, 2);
+        final Queue<String> wrong = new ConcurrentLinkedQueue<>();
+        List<Thread> threads = new ArrayList<>();
+
+        for (int t = 0; t < 8; t++) {
+            final int count = t + 1;
+            Thread thread = new Thread(() -> {
+                byte[] data = statements(count * 10);
+
+                for (int i = 0; i < 200; i++) {
+                    try {
+                        if (!new String(decompress(compressor.compress(data)), StandardCharsets.UTF_8).equals(new String(data, StandardCharsets.UTF_8))) {
+                            wrong.add(count + "/" + i);
+                        }
+                    } catch (IOException e) {
+                        wrong.add(count + "/" + i + ": " + e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(30));
+        }
+
+        assertTrue("Wrong bodies " + wrong, wrong.isEmpty());
+        compressor.close();
+    }
+
+    private static byte[] statements(int count) {
+        StringBuilder json = new StringBuilder("[");
+
+        for (int i = 0; i < count; i++) {
+            json.append(i > 0 ? "," : "").append("{\"actor\":{\"mbox\":\"mailto:student").append(i % 7)
+                .append("@example.edu\"},\"verb\":{\"id\":\"http://adlnet.gov/expapi/verbs/experienced\"},\"object\":{\"id\":\"http://localhost/page/")
+                .append(i).append("\"}}");
+        }
+
+        return json.append(']').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] decompress(byte[] compressed) throws IOException {
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+
+        while ((read = in.read(buffer)) > 0) {
+            out.write(buffer, 0, read);
+        }
+
+        return out.toByteArray();
+    }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Date;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+import org.sakaiproject.lrs.expapi.impl.TestSupport;
+
+/**
+ * Deterministic ids of populated statements, and finding or adding the id of raw JSON statements
+ */
+public class StatementIdsTest {
+
+    private static final UUID ID = UUID.fromString("3ac4ec9e-5d4c-5daf-b764-d7ad2c41b6df");
+
+    private ServerConfigurationService configuration;
+
+    @Before
+    public void useConfiguration() {
+        configuration = TestSupport.configuration(Collections.<String, String>emptyMap());
+        StatementMapUtils.setServerConfigurationService(configuration);
+    }
+
+    @After
+    public void releaseConfiguration() {
+        StatementMapUtils.releaseServerConfigurationService(configuration);
+    }
+
+    @Test
+    public void theSameStatementGetsTheSameId() throws Exception {
+        Date timestamp = new Date(1500000000000L);
+        UUID id = StatementIds.forStatement(statement("student1", "activity1", timestamp));
+
+        assertEquals(id, StatementIds.forStatement(statement("student1", "activity1", timestamp)));
+        assertEquals("A name based (version 5) UUID", 5, id.version());
+        // the timestamp is sent to the second, so is the id
+        assertEquals(id, StatementIds.forStatement(statement("student1", "activity1", new Date(timestamp.getTime() + 999L))));
+    }
+
+    @Test
+    public void statementsWhichDifferGetDifferentIds() throws Exception {
+        Date timestamp = new Date(1500000000000L);
+        UUID id = StatementIds.forStatement(statement("student1", "activity1", timestamp));
+
+        assertNotEquals(id, StatementIds.forStatement(statement("student2", "activity1", timestamp)));
+        assertNotEquals(id, StatementIds.forStatement(statement("student1", "activity2", timestamp)));
+        assertNotEquals(id, StatementIds.forStatement(statement("student1", "activity1", new Date(timestamp.getTime() + 1000L))));
+    }
+
+    @Test
+    public void aStatementWithoutATimestampGetsNoId() throws Exception {
+        // the same actor, verb and object may well happen again, the id would make the LRS refuse it
+        assertNull(StatementIds.forStatement(statement("student1", "activity1", null)));
+    }
+
+    @Test
+    public void theIdOfTheStatementIsKept() throws Exception {
+        LRS_Statement statement = statement("student1", "activity1", null);
+        setField(statement, "id", ID.toString());
+
+        assertEquals(ID, StatementIds.forStatement(statement));
+
+        // unless it is not a valid id, it is then derived like any other
+        setField(statement, "id", "not an id");
+        assertNull(StatementIds.forStatement(statement));
+    }
+
+    @Test
+    public void findsTheIdAfterTheOtherMembers() {
+        assertEquals(ID.toString(), StatementIds.getId(json("{\"id\":\"" + ID + "\",\"actor\":{}}")));
+        assertEquals(ID.toString(), StatementIds.getId(json(" {\n \"actor\" : {\"id\":\"nested\",\"name\":\"a \\\"quoted\\\" } name\"},"
+            + " \"context\":{\"contextActivities\":[{\"id\":\"x\"},[1,2]]}, \"version\":1.0, \"voided\":false,\t\"id\" : \"" + ID + "\"}")));
+        assertEquals("42", StatementIds.getId(json("{\"actor\":null,\"id\":42}")));
+    }
+
+    @Test
+    public void findsNoIdWhenThereIsNone() {
+        assertNull(StatementIds.getId(json("{}")));
+        assertNull(StatementIds.getId(json(" { } ")));
+        assertNull(StatementIds.getId(json("{\"actor\":{\"id\":\"nested\"},\"ids\":[\"" + ID + "\"]}")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void aStatementArrayHasNoId() {
+        StatementIds.getId(json("[{\"id\":\"" + ID + "\"}]"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidJsonHasNoId() {
+        StatementIds.getId(json("{\"actor\":{\"name\":\"unclosed}, \"id\":\"" + ID + "\"}"));
+    }
+
+    @Test
+    public void addsTheIdAsTheFirstMember() {
+        assertArrayEquals(json("{\"id\":\"" + ID + "\",\"actor\":{}}"), StatementIds.withId(json("{\"actor\":{}}"), ID));
+        assertArrayEquals(json(" {\"id\":\"" + ID + "\" \n}"), StatementIds.withId(json(" { \n}"), ID));
+
+        byte[] data = StatementIds.withId(json("{\"actor\":{\"id\":\"nested\"},\"verb\":{}}"), ID);
+        assertEquals(ID.toString(), StatementIds.getId(data));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void addsNoIdToAStatementArray() {
+        StatementIds.withId(json("[{}]"), ID);
+    }
+
+    private static LRS_Statement statement(String eid, String activity, Date timestamp) throws Exception {
+        LRS_Statement statement = new LRS_Statement(TestSupport.actor(eid), new LRS_Verb(LRS_Verb.SAKAI_VERB.experienced),
+            new LRS_Object(TestSupport.SITE_URL + "/" + activity, "view"));
+        setField(statement, "timestamp", timestamp);
+        return statement;
+    }
+
+    /**
+     * The statement has no setters for the id and timestamp, they are set by Sakai
+     */
+    private static void setField(LRS_Statement statement, String name, Object value) throws Exception {
+        Field field = LRS_Statement.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(statement, value);
+    }
+
+    private static byte[] json(String json) {
+        return json.getBytes(StandardCharsets.UTF_8);
+    }
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2013 Unicon (R) Licensed under the
+ * Educational Community License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may
+ * obtain a copy of the License at
+ *
+ * http://www.osedu.org/licenses/ECL-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an "AS IS"
+ * BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package org.sakaiproject.lrs.expapi.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.apache.commons.lang3.time.FastDateFormat;
+import org.azeckoski.reflectutils.transcoders.JSONTranscoder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sakaiproject.component.api.ServerConfigurationService;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Context;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Object;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Result;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Statement;
+import org.sakaiproject.event.api.LearningResourceStoreService.LRS_Verb;
+import org.sakaiproject.lrs.expapi.impl.TestSupport;
+import org.sakaiproject.lrs.expapi.model.LRSKeys;
+
+/**
+ * The writer produces the document the maps of {@link StatementMapUtils} encode to, with the rendered fragments cached or
+ * not. The maps are hash maps, so both documents are compared with their members sorted; every other byte must match.
+ */
+public class StatementJsonWriterTest implements LRSKeys {
+
+    private static final String[] SHAPES = {"minimal", "typical", "fullScore", "fullGrade"};
+    private static final FastDateFormat FORMATTER = DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT;
+    private static final UUID ID = UUID.fromString("3ac4ec9e-5d4c-5daf-b764-d7ad2c41b6df");
+
+    private final JSONTranscoder jsonTranscoder = new JSONTranscoder(true, true, false);
+    private final StatementJsonWriter writer = new StatementJsonWriter();
+    private final Map<String, String> values = new HashMap<>();
+    private ServerConfigurationService configuration;
+
+    @Before
+    public void useConfiguration() {
+        configuration = TestSupport.configuration(values);
+        StatementMapUtils.setServerConfigurationService(configuration);
+    }
+
+    @After
+    public void releaseConfiguration() {
+        StatementMapUtils.releaseServerConfigurationService(configuration);
+    }
+
+    @Test
+    public void writesTheDocumentOfTheMaps() throws Exception {
+        for (String shape : SHAPES) {
+            LRS_Statement statement = TestSupport.statement(shape);
+
+            // the second time from the cached fragments
+            assertSameDocument(shape, statement, null, null);
+            assertSameDocument(shape, statement, null, null);
+            assertSameDocument(shape, statement, ID, null);
+        }
+    }
+
+    @Test
+    public void writesTheDocumentOfTheMapsWithoutCaches() throws Exception {
+        values.put(ACTOR_CACHE_SIZE_PROPERTY, "0");
+        values.put(VERB_CACHE_SIZE_PROPERTY, "0");
+        values.put(ACTIVITY_CACHE_SIZE_PROPERTY, "0");
+        values.put(GRADE_CACHE_SIZE_PROPERTY, "0");
+        StatementMapUtils.refreshConfiguration();
+
+        for (String shape : SHAPES) {
+            assertSameDocument(shape, TestSupport.statement(shape), ID, extensions());
+        }
+    }
+
+    @Test
+    public void addsTheExtensionsNextToTheCachedGradeClassification() throws Exception {
+        LRS_Statement graded = TestSupport.fullStatement(true);
+
+        // the first statement fills the grade cache, the others reopen the cached extensions object
+        assertSameDocument("grade", graded, ID, null);
+        assertSameDocument("grade", graded, ID, extensions());
+        assertSameDocument("grade", graded, ID, extensions());
+        assertSameDocument("grade", graded, ID, null);
+
+        String json = new String(writer.write(graded, ID, extensions()), StandardCharsets.UTF_8);
+        assertTrue(json, json.contains("\"extensions\":{\"http://sakaiproject.org/xapi/extensions/result/classification\":{"));
+        assertTrue(json, json.contains("}},\"http://example.edu/xapi/extensions/tool\":\"samigo\",\"http://example.edu/xapi/extensions/attempt\":2},\"success\""));
+    }
+
+    @Test
+    public void addsTheExtensionsToAScoreOrAMissingResult() throws Exception {
+        assertSameDocument("score", TestSupport.fullStatement(false), ID, extensions());
+        assertSameDocument("no result", TestSupport.typicalStatement(), ID, extensions());
+    }
+
+    @Test
+    public void escapesTheStringsAndWritesTheDates() throws Exception {
+        LRS_Object object = new LRS_Object(TestSupport.SITE_URL + "/page/\"quoted\"", "read-resource");
+        Map<String, String> names = new LinkedHashMap<>();
+        names.put("en-US", "Tab\there, line\nbreak, back\\slash, \"quotes\" and \u0001");
+        names.put("ja-JP", "\u8ab2\u984c \ud83d\udcda");
+        object.setActivityName(names);
+        object.setDescription(names);
+
+        LRS_Result result = new LRS_Result(12.5f, 0f, 20f, null);
+        result.setResponse("</script>\u2028\u00e9");
+        LRS_Statement statement = new LRS_Statement(TestSupport.actor("student\"1"), new LRS_Verb(LRS_Verb.SAKAI_VERB.answered), object, result,
+            new LRS_Context(TestSupport.SITE_URL, "site"));
+        setField(statement, "timestamp", new Date(1500000000123L));
+        setField(statement, "stored", new Date(1500000001000L));
+
+        assertSameDocument("escaped", statement, ID, null);
+
+        String json = new String(writer.write(statement), StandardCharsets.UTF_8);
+        assertTrue(json, json.endsWith(",\"stored\":\"" + FORMATTER.format(statement.getStored())
+            + "\",\"timestamp\":\"" + FORMATTER.format(statement.getTimestamp()) + "\"}"));
+    }
+
+    private void assertSameDocument(String shape, LRS_Statement statement, UUID id, Map<String, Object> extensions) {
+        String written = new String(writer.write(statement, id, extensions), StandardCharsets.UTF_8);
+        assertEquals(shape, sorted(mapJson(statement, id, extensions)), sorted(written));
+    }
+
+    /**
+     * @return the statement as the provider encoded it before the writer, from the maps of each part
+     */
+    private String mapJson(LRS_Statement statement, UUID id, Map<String, Object> extensions) {
+        Map<String, Object> statementMap = new HashMap<>();
+
+        if (null != id) {
+            statementMap.put(LRSStatementKey.id.toString(), id.toString());
+        }
+
+        statementMap.put(LRSStatementKey.actor.toString(), StatementMapUtils.getActorMap(statement.getActor()));
+        statementMap.put(LRSStatementKey.verb.toString(), StatementMapUtils.getVerbMap(statement.getVerb()));
+        statementMap.put(LRSStatementKey.object.toString(), StatementMapUtils.getObjectMap(statement.getObject()));
+
+        if (null != statement.getContext()) {
+            statementMap.put(LRSStatementKey.context.toString(), StatementMapUtils.getContextMap(statement.getContext()));
+        }
+
+        if (null != statement.getResult() || null != extensions) {
+            statementMap.put(LRSStatementKey.result.toString(), StatementMapUtils.getResultMap(statement.getResult(), extensions));
+        }
+
+        if (null != statement.getStored()) {
+            statementMap.put(LRSStatementKey.stored.toString(), FORMATTER.format(statement.getStored()));
+        }
+
+        if (null != statement.getTimestamp()) {
+            statementMap.put(LRSStatementKey.timestamp.toString(), FORMATTER.format(statement.getTimestamp()));
+        }
+
+        return jsonTranscoder.encode(statementMap, null, null);
+    }
+
+    /**
+     * @return the JSON encoded again with the members of every object sorted by name
+     */
+    private String sorted(String json) {
+        return jsonTranscoder.encode(sort(jsonTranscoder.decode(json)), null, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Object sort(Object value) {
+        if (value instanceof Map) {
+            Map<String, Object> sorted = new TreeMap<>();
+
+            for (Map.Entry<String, Object> member : ((Map<String, Object>) value).entrySet()) {
+                sorted.put(member.getKey(), sort(member.getValue()));
+            }
+
+            return sorted;
+        } else if (value instanceof List) {
+            List<Object> sorted = new ArrayList<>();
+
+            for (Object element : (List<Object>) value) {
+                sorted.add(sort(element));
+            }
+
+            return sorted;
+        }
+
+        return value;
+    }
+
+    private static Map<String, Object> extensions() {
+        Map<String, Object> extensions = new LinkedHashMap<>();
+        extensions.put("http://example.edu/xapi/extensions/tool", "samigo");
+        extensions.put("http://example.edu/xapi/extensions/attempt", 2);
+        return extensions;
+    }
+
+    private static void setField(Object target, String name, Object value) throws ReflectiveOperationException {
+        Field field = target.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(target, value);
+    }
+
+}